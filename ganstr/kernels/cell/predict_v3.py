@@ -81,7 +81,13 @@ def predict(opt):
     FloatTensor = torch.cuda.FloatTensor if cuda else torch.FloatTensor
     LongTensor = torch.cuda.LongTensor if cuda else torch.LongTensor
     
-    with open(opt.output_file, 'w', newline='') as f:
+    # Results are written as CSV, or as a .npz archive (ids, subtype, genes, expression) read much faster by QuPath
+    save_npz = opt.output_file.lower().endswith('.npz')
+    uuid_list = []
+    pred_list = []
+    gen_trns_list = []
+    
+    with open(os.devnull if save_npz else opt.output_file, 'w', newline='') as f:
         csvWriter = csv.writer(f)
         csvWriter.writerow(['Object ID','subtype']+param_json_data['geneIDs'])
     
@@ -106,9 +112,22 @@ def predict(opt):
             gen_trns *= param_json_data['trns_count_per_cell']
             gen_trns = np.log1p(gen_trns)
             
+            if save_npz:
+                uuid_list.extend(uuid)
+                pred_list.append(pred.astype(np.int32))
+                gen_trns_list.append(gen_trns.astype(np.float32))
+                continue
+            
             for j in range(batch_size):
                 row = [uuid[j], pred[j].astype(np.int32)]+gen_trns[j].tolist()
                 csvWriter.writerow(row)
+    
+    if save_npz:
+        np.savez(opt.output_file,
+                 ids=np.array(uuid_list, dtype='S36'),
+                 subtype=np.concatenate(pred_list) if pred_list else np.zeros(0, dtype=np.int32),
+                 genes=np.array(param_json_data['geneIDs'], dtype='S'),
+                 expression=np.concatenate(gen_trns_list) if gen_trns_list else np.zeros((0, len(param_json_data['geneIDs'])), dtype=np.float32))
                 
         # spearmanMean = np.concatenate(spearmanAryList).mean(axis=0)
         # spearmanStddev = np.concatenate(spearmanAryList).std(axis=0)
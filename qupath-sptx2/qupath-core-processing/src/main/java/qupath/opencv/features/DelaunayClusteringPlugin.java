@@ -37,6 +37,7 @@ import qupath.lib.common.GeneralTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.objects.CompactPathObjectConnectionGroup;
 import qupath.lib.objects.DefaultPathObjectConnectionGroup;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathObject;
@@ -209,7 +210,7 @@ public class DelaunayClusteringPlugin<T> extends AbstractInteractivePlugin<T> {
 			
 			DelaunayTriangulation dt = new DelaunayTriangulation(pathObjects, pixelWidth, pixelHeight, distanceThresholdPixels, limitByClass);
 			
-			DefaultPathObjectConnectionGroup result = new DefaultPathObjectConnectionGroup(dt);
+			CompactPathObjectConnectionGroup result = CompactPathObjectConnectionGroup.fromConnectionGroup(dt);
 			pathObjects = new ArrayList<>(result.getPathObjects());
 			
 			dt.addNodeMeasurements();
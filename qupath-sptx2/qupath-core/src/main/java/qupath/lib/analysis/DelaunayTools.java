@@ -23,11 +23,13 @@ package qupath.lib.analysis;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -60,6 +62,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.objects.CompactPathObjectConnectionGroup;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectTools;
 import qupath.lib.objects.PathObjects;
@@ -363,7 +366,114 @@ public class DelaunayTools {
 		}
 		return new Subdivision(createSubdivision(coords.keySet(), 0.01), pathObjects, coords, plane);
 	}
-	
+
+	/**
+	 * Default number of points per tile for {@link #createTiledConnectionGroup(Collection, boolean, BiPredicate)}.
+	 */
+	public static final int DEFAULT_TILED_POINTS = 50_000;
+
+	/**
+	 * Create a connection group from the Delaunay triangulation of ROI centroids, computed over overlapping tiles in parallel.
+	 * <p>
+	 * This gives the same neighbours as {@link #createFromCentroids(Collection, boolean)}, but is intended for slides
+	 * with millions of objects: each triangulation only holds the points of a tile and its margin, and the result
+	 * is stored in primitive arrays rather than as a {@link Subdivision}. Voronoi faces are not available.
+	 *
+	 * @param pathObjects collection of objects to connect
+	 * @param preferNucleusROI if true, prefer the nucleus ROI when extracting the centroid from a cell
+	 * @param predicate optional predicate to filter connections (may be null)
+	 * @return a new connection group, with neighbours sorted by centroid distance
+	 * @see #createTiledConnectionGroup(Collection, boolean, BiPredicate, int)
+	 */
+	public static CompactPathObjectConnectionGroup createTiledConnectionGroup(Collection<PathObject> pathObjects, boolean preferNucleusROI, BiPredicate<PathObject, PathObject> predicate) {
+		return createTiledConnectionGroup(pathObjects, preferNucleusROI, predicate, DEFAULT_TILED_POINTS);
+	}
+
+	/**
+	 * Create a connection group from the Delaunay triangulation of ROI centroids, computed over overlapping tiles in parallel.
+	 * <p>
+	 * Note: as with {@link #createFromCentroids(Collection, boolean)}, only one object is connected for any centroid
+	 * shared by several objects, and objects on a different plane from the first are skipped.
+	 *
+	 * @param pathObjects collection of objects to connect
+	 * @param preferNucleusROI if true, prefer the nucleus ROI when extracting the centroid from a cell
+	 * @param predicate optional predicate to filter connections (may be null)
+	 * @param pointsPerTile approximate number of centroids triangulated per tile, excluding the overlap
+	 * @return a new connection group, with neighbours sorted by centroid distance
+	 */
+	public static CompactPathObjectConnectionGroup createTiledConnectionGroup(Collection<PathObject> pathObjects, boolean preferNucleusROI, BiPredicate<PathObject, PathObject> predicate, int pointsPerTile) {
+
+		logger.debug("Creating tiled Delaunay connections from ROI centroids for {} objects", pathObjects.size());
+
+		var list = new ArrayList<PathObject>(pathObjects.size());
+		var xAll = new double[pathObjects.size()];
+		var yAll = new double[pathObjects.size()];
+		var coords = new HashSet<Coordinate>();
+		ImagePlane plane = null;
+
+		var precisionModel = GeometryTools.getDefaultFactory().getPrecisionModel();
+
+		for (var pathObject : pathObjects) {
+			var roi = PathObjectTools.getROI(pathObject, preferNucleusROI);
+
+			if (plane == null)
+				plane = roi.getImagePlane();
+			else if (!plane.equals(roi.getImagePlane())) {
+				logger.warn("Non-matching image planes: {} and {}! Object will be skipped...", plane, roi.getImagePlane());
+				continue;
+			}
+			double x = precisionModel.makePrecise(roi.getCentroidX());
+			double y = precisionModel.makePrecise(roi.getCentroidY());
+			if (!coords.add(new Coordinate(x, y))) {
+				logger.debug("Duplicate centroid for {} - object will not be connected", pathObject);
+				continue;
+			}
+			xAll[list.size()] = x;
+			yAll[list.size()] = y;
+			list.add(pathObject);
+		}
+		coords = null;
+
+		int n = list.size();
+		long[] edges = TiledDelaunay.computeEdges(Arrays.copyOf(xAll, n), Arrays.copyOf(yAll, n), pointsPerTile, DelaunayTools::triangulate);
+
+		int[] sources = new int[edges.length * 2];
+		int[] targets = new int[edges.length * 2];
+		int nEdges = 0;
+		for (long edge : edges) {
+			int i = (int)(edge >>> 32);
+			int j = (int)edge;
+			if (predicate != null && !predicate.test(list.get(i), list.get(j)))
+				continue;
+			sources[nEdges] = i;
+			targets[nEdges++] = j;
+			sources[nEdges] = j;
+			targets[nEdges++] = i;
+		}
+		return CompactPathObjectConnectionGroup.fromEdges(list, sources, targets, nEdges);
+	}
+
+	/**
+	 * Triangulate a subset of points with JTS, keeping track of point indices in the z-coordinate.
+	 */
+	private static int[] triangulate(double[] x, double[] y, int[] indices, int n) {
+		var coords = new ArrayList<Coordinate>(n);
+		for (int k = 0; k < n; k++) {
+			int i = indices[k];
+			coords.add(new Coordinate(x[i], y[i], i));
+		}
+		var subdiv = createSubdivision(coords, 0.01);
+		@SuppressWarnings("unchecked")
+		List<Vertex[]> triangles = subdiv.getTriangleVertices(false);
+		int[] result = new int[triangles.size() * 3];
+		int k = 0;
+		for (var triangle : triangles) {
+			for (var vertex : triangle)
+				result[k++] = (int)vertex.getZ();
+		}
+		return result;
+	}
+
 	/**
 	 * Create a {@link Subdivision} using the boundary coordinates of ROIs.
 	 * This is primarily useful for computing Voronoi faces centered on ROIs rather than single points, 
@@ -753,6 +863,48 @@ public class DelaunayTools {
 		
 		
 		
+		/**
+		 * Create a compact connection group directly from the edges of the triangulation, 
+		 * without building neighbor lists for every object.
+		 * <p>
+		 * Connections are sorted by centroid distance. Unlike {@link #getAllNeighbors()}, objects represented by several 
+		 * coordinates (e.g. when using ROI bounds) are connected to the neighbors of all their coordinates.
+		 * 
+		 * @param predicate optional predicate that determines if two objects may be considered neighbors
+		 * @return
+		 */
+		public CompactPathObjectConnectionGroup createConnectionGroup(BiPredicate<PathObject, PathObject> predicate) {
+			var objects = new ArrayList<>(getPathObjects());
+			var indexMap = new IdentityHashMap<PathObject, Integer>();
+			for (int i = 0; i < objects.size(); i++)
+				indexMap.put(objects.get(i), i);
+			
+			@SuppressWarnings("unchecked")
+			var edges = (Collection<QuadEdge>)subdivision.getPrimaryEdges(false);
+			int[] sources = new int[edges.size() * 2];
+			int[] targets = new int[edges.size() * 2];
+			int nEdges = 0;
+			for (var edge : edges) {
+				var origin = getPathObject(edge.orig());
+				var dest = getPathObject(edge.dest());
+				if (origin == null || dest == null || origin == dest)
+					continue;
+				int i = indexMap.get(origin);
+				int j = indexMap.get(dest);
+				if (predicate == null || predicate.test(origin, dest)) {
+					sources[nEdges] = i;
+					targets[nEdges++] = j;
+				}
+				if (predicate == null || predicate.test(dest, origin)) {
+					sources[nEdges] = j;
+					targets[nEdges++] = i;
+				}
+			}
+			return CompactPathObjectConnectionGroup.fromEdges(objects, sources, targets, nEdges);
+		}
+		
+		
+		
 		private synchronized Map<PathObject, List<PathObject>> calculateAllNeighbors() {
 			
 			logger.debug("Calculating all neighbors for {} objects", getPathObjects().size());
@@ -0,0 +1,421 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delaunay edges of a large point set, computed by triangulating overlapping tiles in parallel.
+ * <p>
+ * Each tile is triangulated together with the points within a margin around it. A local triangle is kept by the tile
+ * containing its circumcentre, and only if its circumcircle (clipped to the bounds of all points) lies within the
+ * triangulated window: the circle is then empty of all points, so the triangle belongs to the global triangulation.
+ * The margin starts from an upper bound on the empty-circle radius inside the tile, obtained from a distance transform
+ * of a coarse occupancy grid, so that every triangle with its circumcentre inside the points' bounds is found in one
+ * pass; tiles with unverified triangles (e.g. thin triangles along the convex hull) are redone with a doubled margin.
+ * Any hull triangles still missed are recovered afterwards from edges that have a triangle on one side only.
+ * <p>
+ * Points are held in primitive arrays throughout, and edges are returned as packed index pairs.
+ */
+class TiledDelaunay {
+
+	private static final Logger logger = LoggerFactory.getLogger(TiledDelaunay.class);
+
+	/**
+	 * Triangulates a subset of points.
+	 */
+	static interface Triangulator {
+
+		/**
+		 * @param x x-coordinates of all points
+		 * @param y y-coordinates of all points
+		 * @param indices indices of the points to triangulate
+		 * @param n number of indices used
+		 * @return the point indices of the triangles, three per triangle
+		 */
+		int[] triangulate(double[] x, double[] y, int[] indices, int n);
+
+	}
+
+	private TiledDelaunay() {}
+
+	/**
+	 * Pack an undirected edge into a long, lower index first.
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	static long pack(int i, int j) {
+		return i < j ? ((long)i << 32) | j : ((long)j << 32) | i;
+	}
+
+	/**
+	 * Compute all Delaunay edges.
+	 * @param x
+	 * @param y
+	 * @param pointsPerTile approximate number of points per tile, excluding the margin
+	 * @param triangulator local triangulation
+	 * @return sorted, unique edges packed with {@link #pack(int, int)}
+	 */
+	static long[] computeEdges(double[] x, double[] y, int pointsPerTile, Triangulator triangulator) {
+		int n = x.length;
+		if (n < 2)
+			return new long[0];
+
+		double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+		double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			x0 = Math.min(x0, x[i]);
+			y0 = Math.min(y0, y[i]);
+			x1 = Math.max(x1, x[i]);
+			y1 = Math.max(y1, y[i]);
+		}
+		var bounds = new double[] {x0, y0, x1, y1};
+		double w = Math.max(x1 - x0, 1e-9);
+		double h = Math.max(y1 - y0, 1e-9);
+
+		// Tiles of roughly equal area
+		int nTilesTarget = Math.max(1, (int)Math.ceil(n / (double)Math.max(1, pointsPerTile)));
+		int ntx = (int)Math.max(1, Math.min(nTilesTarget, Math.round(Math.sqrt(nTilesTarget * w / h))));
+		int nty = Math.max(1, (int)Math.ceil(nTilesTarget / (double)ntx));
+		var tiles = new Grid(x0, y0, w / ntx, h / nty, ntx, nty);
+		int[][] tileIndex = tiles.index(x, y);
+
+		// Occupancy grid with about one point per cell, to bound empty circles
+		double g = Math.max(Math.sqrt(w * h / n), Math.max(w, h) / (1 << 14));
+		int ngx = (int)Math.min(1 << 14, Math.floor(w / g) + 1);
+		int ngy = (int)Math.min(1 << 14, Math.floor(h / g) + 1);
+		var cells = new Grid(x0, y0, g, g, ngx, ngy);
+		float[] cellDistance = cells.distanceToOccupied(x, y);
+
+		int nTiles = ntx * nty;
+		int[][] tileTriangles = new int[nTiles][];
+		IntStream.range(0, nTiles).parallel().forEach(t -> {
+			tileTriangles[t] = triangulateTile(t, x, y, bounds, tiles, tileIndex, cells, cellDistance, triangulator);
+		});
+
+		int total = 0;
+		for (var triangles : tileTriangles)
+			total += triangles.length;
+		int[] triangles = new int[total];
+		int k = 0;
+		for (var tileTriangle : tileTriangles) {
+			System.arraycopy(tileTriangle, 0, triangles, k, tileTriangle.length);
+			k += tileTriangle.length;
+		}
+		triangles = closeTriangulation(x, y, triangles);
+
+		long[] edges = new long[triangles.length];
+		for (int t = 0; t < triangles.length; t += 3) {
+			edges[t] = pack(triangles[t], triangles[t+1]);
+			edges[t+1] = pack(triangles[t+1], triangles[t+2]);
+			edges[t+2] = pack(triangles[t+2], triangles[t]);
+		}
+		Arrays.parallelSort(edges);
+		int nUnique = 0;
+		for (int e = 0; e < edges.length; e++) {
+			if (nUnique == 0 || edges[nUnique-1] != edges[e])
+				edges[nUnique++] = edges[e];
+		}
+		logger.debug("Tiled Delaunay triangulation of {} points in {} tiles: {} edges", n, nTiles, nUnique);
+		return Arrays.copyOf(edges, nUnique);
+	}
+
+	/**
+	 * Add any triangles missed by the tiles.
+	 * <p>
+	 * Tiles only find the triangles whose circumcircle they can see; a triangle along the convex hull with its
+	 * circumcentre far outside the points' bounds may be skipped by all of them. Every interior edge belongs to two
+	 * triangles, so a missing triangle leaves an edge with a single (counter-clockwise) direction; the triangle beyond
+	 * that edge is then found directly, and the search continues from its own open edges.
+	 *
+	 * @param x
+	 * @param y
+	 * @param triangles counter-clockwise triangles
+	 * @return the triangles, with any missing ones appended
+	 */
+	private static int[] closeTriangulation(double[] x, double[] y, int[] triangles) {
+		long[] directed = new long[triangles.length];
+		for (int t = 0; t < triangles.length; t += 3) {
+			directed[t] = directedEdge(triangles[t], triangles[t+1]);
+			directed[t+1] = directedEdge(triangles[t+1], triangles[t+2]);
+			directed[t+2] = directedEdge(triangles[t+2], triangles[t]);
+		}
+		Arrays.parallelSort(directed);
+		long[] open = Arrays.stream(directed)
+				.parallel()
+				.filter(e -> Arrays.binarySearch(directed, reverse(e)) < 0)
+				.toArray();
+		if (open.length == 0)
+			return triangles;
+
+		var added = new HashSet<Long>();
+		var pending = new ArrayDeque<Long>();
+		for (long e : open)
+			pending.add(e);
+		int[] extra = new int[0];
+		int nExtra = 0;
+		while (!pending.isEmpty()) {
+			long e = pending.poll();
+			if (added.contains(reverse(e)))
+				continue;
+			int a = (int)(e >>> 32), b = (int)e;
+			int c = findDelaunayNeighbor(x, y, a, b);
+			if (c < 0)
+				continue; // Convex hull edge
+			if (nExtra + 3 > extra.length)
+				extra = Arrays.copyOf(extra, Math.max(24, extra.length * 2));
+			extra[nExtra++] = b;
+			extra[nExtra++] = a;
+			extra[nExtra++] = c;
+			added.add(reverse(e));
+			for (long e2 : new long[] {directedEdge(a, c), directedEdge(c, b)}) {
+				if (added.add(e2) && Arrays.binarySearch(directed, reverse(e2)) < 0 && !added.contains(reverse(e2)))
+					pending.add(e2);
+			}
+		}
+		logger.debug("Added {} triangles missed by the tiles", nExtra / 3);
+		int[] result = Arrays.copyOf(triangles, triangles.length + nExtra);
+		System.arraycopy(extra, 0, result, triangles.length, nExtra);
+		return result;
+	}
+
+	/**
+	 * Find the point to the right of a directed edge that forms a Delaunay triangle with it, by growing a circle
+	 * through both end points until it first reaches another point.
+	 * @return the point index, or -1 if no point lies to the right
+	 */
+	private static int findDelaunayNeighbor(double[] x, double[] y, int a, int b) {
+		double mx = (x[a] + x[b]) / 2, my = (y[a] + y[b]) / 2;
+		// Normal pointing to the right of a -> b
+		double nx = y[b] - y[a], ny = x[a] - x[b];
+		double ra2 = (x[a] - mx) * (x[a] - mx) + (y[a] - my) * (y[a] - my);
+		int best = -1;
+		double bestT = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < x.length; i++) {
+			double dx = x[i] - mx, dy = y[i] - my;
+			double side = dx * nx + dy * ny;
+			if (side <= 0 || i == a || i == b)
+				continue;
+			// Circumcentre is m + t * n
+			double t = (dx * dx + dy * dy - ra2) / (2 * side);
+			if (t < bestT) {
+				bestT = t;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	private static long directedEdge(int from, int to) {
+		return ((long)from << 32) | (to & 0xFFFFFFFFL);
+	}
+
+	private static long reverse(long edge) {
+		return (edge << 32) | (edge >>> 32);
+	}
+
+	private static int[] triangulateTile(int t, double[] x, double[] y, double[] bounds, Grid tiles, int[][] tileIndex,
+			Grid cells, float[] cellDistance, Triangulator triangulator) {
+		int tx = t % tiles.nx, ty = t / tiles.nx;
+		double cx0 = tiles.x0 + tx * tiles.cellWidth, cx1 = cx0 + tiles.cellWidth;
+		double cy0 = tiles.y0 + ty * tiles.cellHeight, cy1 = cy0 + tiles.cellHeight;
+
+		// Any point of the tile is within this distance of a point
+		double margin = 0;
+		for (int gy = cells.cellY(cy0); gy <= cells.cellY(cy1); gy++) {
+			for (int gx = cells.cellX(cx0); gx <= cells.cellX(cx1); gx++)
+				margin = Math.max(margin, cellDistance[gy * cells.nx + gx]);
+		}
+		margin = margin + Math.sqrt(2) * Math.max(cells.cellWidth, cells.cellHeight) + 1e-6 * Math.max(tiles.cellWidth, tiles.cellHeight);
+
+		int[] indices = new int[64];
+		int[] accepted = new int[64];
+		while (true) {
+			double wx0 = cx0 - margin, wx1 = cx1 + margin;
+			double wy0 = cy0 - margin, wy1 = cy1 + margin;
+			boolean coversAll = wx0 <= bounds[0] && wy0 <= bounds[1] && wx1 >= bounds[2] && wy1 >= bounds[3];
+
+			int count = 0;
+			for (int gy = tiles.cellY(wy0); gy <= tiles.cellY(wy1); gy++) {
+				for (int gx = tiles.cellX(wx0); gx <= tiles.cellX(wx1); gx++) {
+					for (int i : tileIndex[gy * tiles.nx + gx]) {
+						if (x[i] >= wx0 && x[i] <= wx1 && y[i] >= wy0 && y[i] <= wy1) {
+							if (count == indices.length)
+								indices = Arrays.copyOf(indices, count * 2);
+							indices[count++] = i;
+						}
+					}
+				}
+			}
+
+			int[] triangles = count < 3 ? new int[0] : triangulator.triangulate(x, y, indices, count);
+			int nAccepted = 0;
+			boolean verified = true;
+			for (int k = 0; k + 2 < triangles.length; k += 3) {
+				int a = triangles[k], b = triangles[k+1], c = triangles[k+2];
+
+				// Circumcentre relative to a
+				double bx = x[b] - x[a], by = y[b] - y[a];
+				double qx = x[c] - x[a], qy = y[c] - y[a];
+				double d = 2 * (bx * qy - by * qx);
+				double b2 = bx * bx + by * by, q2 = qx * qx + qy * qy;
+				double ux = x[a] + (qy * b2 - by * q2) / d;
+				double uy = y[a] + (bx * q2 - qx * b2) / d;
+				boolean finite = Double.isFinite(ux) && Double.isFinite(uy);
+
+				int owner = finite ? tiles.cellY(uy) * tiles.nx + tiles.cellX(ux) : tiles.cellY(y[a]) * tiles.nx + tiles.cellX(x[a]);
+				if (owner != t)
+					continue;
+
+				if (!coversAll) {
+					if (!finite) {
+						verified = false;
+						break;
+					}
+					double r = Math.hypot(x[a] - ux, y[a] - uy);
+					// No points lie outside the bounds, so only the clipped circle must be inside the window
+					if (Math.max(ux - r, bounds[0]) < wx0 || Math.min(ux + r, bounds[2]) > wx1 ||
+							Math.max(uy - r, bounds[1]) < wy0 || Math.min(uy + r, bounds[3]) > wy1) {
+						verified = false;
+						break;
+					}
+				}
+
+				if (nAccepted + 3 > accepted.length)
+					accepted = Arrays.copyOf(accepted, accepted.length * 2);
+				// Store counter-clockwise
+				accepted[nAccepted++] = a;
+				accepted[nAccepted++] = d > 0 ? b : c;
+				accepted[nAccepted++] = d > 0 ? c : b;
+			}
+
+			if (verified)
+				return Arrays.copyOf(accepted, nAccepted);
+			margin *= 2;
+		}
+	}
+
+	/**
+	 * Regular grid over the bounds of the points; out-of-range locations are clamped to the border cells.
+	 */
+	private static class Grid {
+
+		final double x0, y0;
+		final double cellWidth, cellHeight;
+		final int nx, ny;
+
+		Grid(double x0, double y0, double cellWidth, double cellHeight, int nx, int ny) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.cellWidth = cellWidth;
+			this.cellHeight = cellHeight;
+			this.nx = nx;
+			this.ny = ny;
+		}
+
+		int cellX(double px) {
+			double v = Math.floor((px - x0) / cellWidth);
+			return v < 0 ? 0 : v >= nx ? nx - 1 : (int)v;
+		}
+
+		int cellY(double py) {
+			double v = Math.floor((py - y0) / cellHeight);
+			return v < 0 ? 0 : v >= ny ? ny - 1 : (int)v;
+		}
+
+		int[][] index(double[] x, double[] y) {
+			int[] counts = new int[nx * ny];
+			int[] cellOf = new int[x.length];
+			for (int i = 0; i < x.length; i++) {
+				cellOf[i] = cellY(y[i]) * nx + cellX(x[i]);
+				counts[cellOf[i]]++;
+			}
+			int[][] index = new int[nx * ny][];
+			for (int c = 0; c < index.length; c++)
+				index[c] = new int[counts[c]];
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < x.length; i++)
+				index[cellOf[i]][counts[cellOf[i]]++] = i;
+			return index;
+		}
+
+		/**
+		 * Two-pass chamfer distance transform from the cells containing points.
+		 * Chamfer path lengths are never shorter than straight lines, so the result is an upper bound
+		 * on the distance between cell centres.
+		 */
+		float[] distanceToOccupied(double[] x, double[] y) {
+			float[] dist = new float[nx * ny];
+			Arrays.fill(dist, Float.POSITIVE_INFINITY);
+			for (int i = 0; i < x.length; i++)
+				dist[cellY(y[i]) * nx + cellX(x[i])] = 0;
+
+			float dx = (float)cellWidth, dy = (float)cellHeight;
+			float dd = (float)Math.hypot(cellWidth, cellHeight);
+			for (int gy = 0; gy < ny; gy++) {
+				for (int gx = 0; gx < nx; gx++) {
+					int c = gy * nx + gx;
+					float v = dist[c];
+					if (gx > 0)
+						v = Math.min(v, dist[c-1] + dx);
+					if (gy > 0) {
+						v = Math.min(v, dist[c-nx] + dy);
+						if (gx > 0)
+							v = Math.min(v, dist[c-nx-1] + dd);
+						if (gx < nx - 1)
+							v = Math.min(v, dist[c-nx+1] + dd);
+					}
+					dist[c] = v;
+				}
+			}
+			for (int gy = ny - 1; gy >= 0; gy--) {
+				for (int gx = nx - 1; gx >= 0; gx--) {
+					int c = gy * nx + gx;
+					float v = dist[c];
+					if (gx < nx - 1)
+						v = Math.min(v, dist[c+1] + dx);
+					if (gy < ny - 1) {
+						v = Math.min(v, dist[c+nx] + dy);
+						if (gx < nx - 1)
+							v = Math.min(v, dist[c+nx+1] + dd);
+						if (gx > 0)
+							v = Math.min(v, dist[c+nx-1] + dd);
+					}
+					dist[c] = v;
+				}
+			}
+			// Float rounding could make the bound slightly short
+			for (int c = 0; c < dist.length; c++)
+				dist[c] = dist[c] * 1.0001f;
+			return dist;
+		}
+
+	}
+
+}
@@ -1267,8 +1267,9 @@ public class ContourTracing {
 	 * @param xOffset
 	 * @param yOffset
 	 * @return
+	 * @implNote this is package-private so that {@link LabelStitcher} can trace labels within their bounding boxes
 	 */
-	private static Geometry traceGeometry(SimpleImage image, double min, double max, double xOffset, double yOffset) {
+	static Geometry traceGeometry(SimpleImage image, double min, double max, double xOffset, double yOffset) {
 		
 		int w = image.getWidth();
 		int h = image.getHeight();
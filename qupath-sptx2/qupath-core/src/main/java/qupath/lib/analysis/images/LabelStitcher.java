@@ -0,0 +1,578 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.images;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.util.AffineTransformation;
+import org.locationtech.jts.geom.util.PolygonExtracter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Convert labelled images to objects tile by tile, so that large label images (e.g. whole slide nucleus masks)
+ * can be converted in parallel.
+ * <p>
+ * Each tile is traced independently: a single pass finds the bounding box of every label, and each label is then
+ * traced within its bounding box only. This keeps the cost proportional to the number of pixels,
+ * rather than to the number of pixels times the number of labels as with {@link ContourTracing#createObjects(SimpleImage, RegionRequest, int, int, BiFunction)}.
+ * <p>
+ * The pieces of a label in different tiles are then reconciled with a union-find over the pixel pairs on both sides
+ * of each tile seam: only pieces that are connected across a seam are unioned, so that the expensive geometry
+ * operations are restricted to objects that really need them. The result contains one object per label.
+ * <p>
+ * Labels are expected to be integers, and the tiles to form a regular grid.
+ *
+ * @author Chao Hui Huang
+ */
+public class LabelStitcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(LabelStitcher.class);
+
+	/**
+	 * Default tile size used when splitting a {@link SimpleImage}.
+	 */
+	public static final int DEFAULT_TILE_SIZE = 512;
+
+	private static final int NO_LABEL = Integer.MIN_VALUE;
+
+	// Suppress default constructor for non-instantiability
+	private LabelStitcher() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Create objects from a labelled image, tracing tiles in parallel.
+	 *
+	 * @param image the labelled image
+	 * @param region region used to convert coordinates into the full image space (optional)
+	 * @param tileSize width and height of the tiles the image is split into
+	 * @param minLabel minimum label; usually 1, but may be 0 if a background ROI should be created
+	 * @param creator function to convert the traced ROI and associated numeric label into a {@link PathObject}
+	 * @return a list of all created objects, ordered by label
+	 */
+	public static List<PathObject> createObjects(SimpleImage image, RegionRequest region, int tileSize, int minLabel, BiFunction<ROI, Number, PathObject> creator) {
+		var geometries = createGeometries(image, region, tileSize, minLabel);
+		return toObjects(geometries, region == null ? ImagePlane.getDefaultPlane() : region.getImagePlane(), creator);
+	}
+
+	/**
+	 * Create detection objects from a labelled image, tracing tiles in parallel.
+	 *
+	 * @param image the labelled image
+	 * @param region region used to convert coordinates into the full image space (optional)
+	 * @param minLabel minimum label; usually 1, but may be 0 if a background ROI should be created
+	 * @return a list of all created objects, ordered by label
+	 * @see #createObjects(SimpleImage, RegionRequest, int, int, BiFunction)
+	 */
+	public static List<PathObject> createDetections(SimpleImage image, RegionRequest region, int minLabel) {
+		return createObjects(image, region, DEFAULT_TILE_SIZE, minLabel, ContourTracing.createNumberedObjectFunction(r -> PathObjects.createDetectionObject(r)));
+	}
+
+	/**
+	 * Create objects from one band of a labelled image server, reading and tracing its tiles in parallel.
+	 * Only the borders of the tiles are kept after tracing, so that the whole image never needs to be in memory.
+	 *
+	 * @param server the server containing integer labels
+	 * @param region region defining the area and resolution of the objects; if null, the full image is used at full resolution.
+	 *               Labels in tiles that intersect the region are traced in full.
+	 * @param band the band of interest (usually 0)
+	 * @param minLabel minimum label; usually 1, but may be 0 if a background ROI should be created
+	 * @param creator function to convert the traced ROI and associated numeric label into a {@link PathObject}
+	 * @return a list of all created objects, ordered by label
+	 * @throws IOException if a tile could not be read
+	 */
+	public static List<PathObject> createObjects(ImageServer<BufferedImage> server, RegionRequest region, int band, int minLabel, BiFunction<ROI, Number, PathObject> creator) throws IOException {
+		if (region == null)
+			region = RegionRequest.createInstance(server, server.getDownsampleForResolution(0));
+
+		var tileRequests = server.getTileRequestManager().getTileRequests(region);
+		if (tileRequests.isEmpty())
+			return new ArrayList<>();
+
+		// As for ContourTracing.traceGeometries, generate tiles at the requested resolution if needed
+		double downsample = region.getDownsample();
+		if (Math.abs(tileRequests.iterator().next().getDownsample() - downsample) > 1e-3) {
+			server = ImageServers.pyramidalize(server, downsample);
+			tileRequests = server.getTileRequestManager().getTileRequests(region);
+		}
+
+		var tileServer = server;
+		var tiles = tileRequests.stream()
+				.map(t -> new LabelTile(t.getTileX(), t.getTileY(), t.getTileWidth(), t.getTileHeight(),
+						() -> ContourTracing.extractBand(tileServer.readRegion(t.getRegionRequest()).getRaster(), band)))
+				.collect(Collectors.toList());
+
+		var transform = AffineTransformation.scaleInstance(downsample, downsample);
+		var geometries = stitch(tiles, minLabel, transform);
+		return toObjects(geometries, region.getImagePlane(), creator);
+	}
+
+	/**
+	 * Trace all the labels of an image, splitting it into tiles that are traced in parallel.
+	 *
+	 * @param image the labelled image
+	 * @param region optional region request; if provided, the geometries will be translated and rescaled to the image space
+	 * @param tileSize width and height of the tiles the image is split into
+	 * @param minLabel minimum label; usually 1, but may be 0 if a background geometry should be created
+	 * @return an ordered map with one geometry per label; labels are keys in the map
+	 */
+	public static Map<Integer, Geometry> createGeometries(SimpleImage image, RegionRequest region, int tileSize, int minLabel) {
+		if (tileSize <= 0)
+			throw new IllegalArgumentException("Tile size must be > 0, but was " + tileSize);
+
+		int w = image.getWidth();
+		int h = image.getHeight();
+		var tiles = new ArrayList<LabelTile>();
+		for (int y = 0; y < h; y += tileSize) {
+			for (int x = 0; x < w; x += tileSize) {
+				var tile = new CroppedImage(image, x, y, Math.min(tileSize, w - x), Math.min(tileSize, h - y));
+				tiles.add(new LabelTile(x, y, tile.getWidth(), tile.getHeight(), () -> tile));
+			}
+		}
+
+		// As for ContourTracing.createTracedGeometry, rescale before translating to the region
+		var transform = new AffineTransformation();
+		if (region != null) {
+			double scale = region.getDownsample();
+			transform = AffineTransformation.scaleInstance(scale, scale).translate(region.getX(), region.getY());
+		}
+
+		try {
+			return stitch(tiles, minLabel, transform);
+		} catch (IOException e) {
+			// Only expected if interrupted, since the tiles are already in memory
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Trace all the labels of an image in the current thread, visiting each label only within its bounding box.
+	 * This is intended for tiles that are already processed in parallel by the caller.
+	 *
+	 * @param image the labelled image
+	 * @param region optional region request; if provided, the geometries will be translated and rescaled to the image space
+	 * @param minLabel minimum label; usually 1, but may be 0 if a background geometry should be created
+	 * @return an ordered map with one geometry per label; labels are keys in the map
+	 */
+	public static Map<Integer, Geometry> traceLabels(SimpleImage image, RegionRequest region, int minLabel) {
+		var traced = traceTile(image, 0, 0, minLabel);
+		var transform = region == null ? new AffineTransformation() :
+			AffineTransformation.scaleInstance(region.getDownsample(), region.getDownsample()).translate(region.getX(), region.getY());
+		Map<Integer, Geometry> geometries = new LinkedHashMap<>();
+		for (int i = 0; i < traced.labels.length; i++)
+			geometries.put(traced.labels[i], transform(traced.pieces[i], transform));
+		return geometries;
+	}
+
+
+	private static List<PathObject> toObjects(Map<Integer, Geometry> geometries, ImagePlane plane, BiFunction<ROI, Number, PathObject> creator) {
+		return geometries.entrySet().parallelStream()
+				.map(e -> creator.apply(GeometryTools.geometryToROI(e.getValue(), plane), e.getKey()))
+				.collect(Collectors.toList());
+	}
+
+
+	/**
+	 * Trace all tiles in parallel, reconcile the pieces across seams and merge them into one geometry per label.
+	 */
+	private static Map<Integer, Geometry> stitch(List<LabelTile> tiles, int minLabel, AffineTransformation transform) throws IOException {
+
+		var pool = Executors.newFixedThreadPool(ThreadTools.getParallelism(), ThreadTools.createThreadFactory("label-stitcher-", true));
+		try {
+			long startTime = System.currentTimeMillis();
+
+			List<TracedTile> traced = invokeAll(pool, tiles, t -> traceTile(t.read(), t.x, t.y, minLabel));
+
+			// Give each (tile, label) piece a global index
+			int[] offsets = new int[traced.size()];
+			int nPieces = 0;
+			for (int i = 0; i < traced.size(); i++) {
+				offsets[i] = nPieces;
+				nPieces += traced.get(i).labels.length;
+			}
+
+			// Join pieces that touch across a seam; tiles are matched to their right and bottom neighbours by their origin
+			var forest = new UnionFind(nPieces);
+			Map<Long, Integer> byOrigin = new HashMap<>();
+			for (int i = 0; i < traced.size(); i++)
+				byOrigin.put(originKey(traced.get(i).x, traced.get(i).y), i);
+			for (int i = 0; i < traced.size(); i++) {
+				var tile = traced.get(i);
+				Integer right = byOrigin.get(originKey(tile.x + tile.width, tile.y));
+				if (right != null)
+					unionSeam(forest, tile, offsets[i], tile.right, traced.get(right), offsets[right], traced.get(right).left);
+				Integer below = byOrigin.get(originKey(tile.x, tile.y + tile.height));
+				if (below != null)
+					unionSeam(forest, tile, offsets[i], tile.bottom, traced.get(below), offsets[below], traced.get(below).top);
+			}
+
+			// Group the pieces by label
+			Map<Integer, List<Integer>> piecesByLabel = new TreeMap<>();
+			for (int i = 0; i < traced.size(); i++) {
+				var tile = traced.get(i);
+				for (int j = 0; j < tile.labels.length; j++)
+					piecesByLabel.computeIfAbsent(tile.labels[j], k -> new ArrayList<>(2)).add(offsets[i] + j);
+			}
+			Geometry[] pieces = new Geometry[nPieces];
+			for (int i = 0; i < traced.size(); i++)
+				System.arraycopy(traced.get(i).pieces, 0, pieces, offsets[i], traced.get(i).pieces.length);
+			traced = null;
+
+			// Merge in batches, since there may be millions of labels
+			var labels = new ArrayList<>(piecesByLabel.keySet());
+			int batchSize = Math.max(1, labels.size() / (ThreadTools.getParallelism() * 8) + 1);
+			var batches = new ArrayList<List<Integer>>();
+			for (int i = 0; i < labels.size(); i += batchSize)
+				batches.add(labels.subList(i, Math.min(labels.size(), i + batchSize)));
+
+			List<List<Geometry>> merged = invokeAll(pool, batches, batch -> {
+				var list = new ArrayList<Geometry>(batch.size());
+				for (var label : batch)
+					list.add(transform(mergePieces(piecesByLabel.get(label), pieces, forest), transform));
+				return list;
+			});
+
+			Map<Integer, Geometry> output = new LinkedHashMap<>();
+			for (int b = 0; b < batches.size(); b++) {
+				var batch = batches.get(b);
+				var geometries = merged.get(b);
+				for (int i = 0; i < batch.size(); i++)
+					output.put(batch.get(i), geometries.get(i));
+			}
+
+			logger.debug("Stitched {} labels from {} pieces in {} tiles ({} ms)", output.size(), nPieces, tiles.size(), System.currentTimeMillis() - startTime);
+			return output;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+	private static <T, S> List<S> invokeAll(ExecutorService pool, Collection<T> items, TileFunction<T, S> fun) throws InterruptedException, ExecutionException {
+		List<Future<S>> futures = new ArrayList<>();
+		for (var item : items)
+			futures.add(pool.submit(() -> fun.apply(item)));
+
+		List<S> results = new ArrayList<>();
+		for (var future : futures)
+			results.add(future.get());
+
+		return results;
+	}
+
+
+	/**
+	 * Union the pieces on both sides of a seam that share the same label on neighbouring pixels.
+	 */
+	private static void unionSeam(UnionFind forest, TracedTile tile1, int offset1, int[] side1, TracedTile tile2, int offset2, int[] side2) {
+		int n = Math.min(side1.length, side2.length);
+		int lastLabel = NO_LABEL;
+		for (int i = 0; i < n; i++) {
+			int label = side1[i];
+			if (label == NO_LABEL || label != side2[i]) {
+				lastLabel = NO_LABEL;
+				continue;
+			}
+			// Runs of the same label only need to be joined once
+			if (label == lastLabel)
+				continue;
+			forest.union(offset1 + tile1.indexOf(label), offset2 + tile2.indexOf(label));
+			lastLabel = label;
+		}
+	}
+
+
+	/**
+	 * Merge the pieces of one label. Pieces that were joined across seams are unioned,
+	 * while disconnected parts are simply collected.
+	 */
+	private static Geometry mergePieces(List<Integer> indices, Geometry[] pieces, UnionFind forest) {
+		if (indices.size() == 1)
+			return pieces[indices.get(0)];
+
+		Map<Integer, List<Geometry>> components = new LinkedHashMap<>();
+		for (int i : indices)
+			components.computeIfAbsent(forest.find(i), k -> new ArrayList<>()).add(pieces[i]);
+
+		var polygons = new ArrayList<Polygon>();
+		for (var component : components.values()) {
+			var geometry = component.size() == 1 ? component.get(0) : GeometryTools.union(component);
+			PolygonExtracter.getPolygons(geometry, polygons);
+		}
+		if (polygons.size() == 1)
+			return polygons.get(0);
+		var geometry = GeometryTools.getDefaultFactory().buildGeometry(polygons);
+		geometry.normalize();
+		return geometry;
+	}
+
+
+	private static Geometry transform(Geometry geometry, AffineTransformation transform) {
+		if (transform.isIdentity())
+			return geometry;
+		return transform.transform(geometry);
+	}
+
+
+	private static long originKey(int x, int y) {
+		return ((long)x << 32) | (y & 0xffffffffL);
+	}
+
+
+	/**
+	 * Trace every label of a tile within its own bounding box, and keep the labels along the tile borders.
+	 */
+	private static TracedTile traceTile(SimpleImage image, int x, int y, int minLabel) {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		float[] pixels = SimpleImages.getPixels(image, true);
+
+		var tile = new TracedTile(x, y, w, h);
+
+		// Find bounding boxes in a single pass, as [minX, minY, maxX, maxY]
+		Map<Integer, int[]> bounds = new HashMap<>();
+		int lastLabel = NO_LABEL;
+		int[] lastBounds = null;
+		for (int yy = 0; yy < h; yy++) {
+			for (int xx = 0; xx < w; xx++) {
+				float p = pixels[yy * w + xx];
+				int label = p >= minLabel ? (int)p : NO_LABEL;
+				if (yy == 0)
+					tile.top[xx] = label;
+				if (yy == h - 1)
+					tile.bottom[xx] = label;
+				if (xx == 0)
+					tile.left[yy] = label;
+				if (xx == w - 1)
+					tile.right[yy] = label;
+				if (label == NO_LABEL)
+					continue;
+				if (label != lastLabel) {
+					lastBounds = bounds.get(label);
+					if (lastBounds == null) {
+						lastBounds = new int[] {xx, yy, xx, yy};
+						bounds.put(label, lastBounds);
+					}
+					lastLabel = label;
+				}
+				if (xx < lastBounds[0])
+					lastBounds[0] = xx;
+				else if (xx > lastBounds[2])
+					lastBounds[2] = xx;
+				lastBounds[3] = yy;
+			}
+		}
+
+		tile.labels = bounds.keySet().stream().mapToInt(i -> i).sorted().toArray();
+		tile.pieces = new Geometry[tile.labels.length];
+		for (int i = 0; i < tile.labels.length; i++) {
+			int label = tile.labels[i];
+			int[] b = bounds.get(label);
+			var crop = new CroppedImage(pixels, w, b[0], b[1], b[2] - b[0] + 1, b[3] - b[1] + 1);
+			tile.pieces[i] = ContourTracing.traceGeometry(crop, label, label, x + b[0], y + b[1]);
+		}
+		return tile;
+	}
+
+
+	@FunctionalInterface
+	private static interface TileFunction<T, S> {
+		S apply(T item) throws Exception;
+	}
+
+
+	private static class LabelTile {
+
+		private final int x, y;
+		private final Callable<SimpleImage> reader;
+
+		LabelTile(int x, int y, int width, int height, Callable<SimpleImage> reader) {
+			this.x = x;
+			this.y = y;
+			this.reader = () -> {
+				var image = reader.call();
+				if (image.getWidth() != width || image.getHeight() != height)
+					throw new IOException("Expected a " + width + "x" + height + " tile at (" + x + ", " + y + "), but read " + image.getWidth() + "x" + image.getHeight());
+				return image;
+			};
+		}
+
+		SimpleImage read() throws Exception {
+			return reader.call();
+		}
+
+	}
+
+
+	private static class TracedTile {
+
+		private final int x, y, width, height;
+		private final int[] top, bottom, left, right;
+
+		private int[] labels;
+		private Geometry[] pieces;
+
+		TracedTile(int x, int y, int width, int height) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.top = new int[width];
+			this.bottom = new int[width];
+			this.left = new int[height];
+			this.right = new int[height];
+		}
+
+		int indexOf(int label) {
+			return Arrays.binarySearch(labels, label);
+		}
+
+	}
+
+
+	/**
+	 * Disjoint sets over piece indices, with path halving and union by size.
+	 */
+	private static class UnionFind {
+
+		private final int[] parent;
+		private final int[] size;
+
+		UnionFind(int n) {
+			parent = new int[n];
+			size = new int[n];
+			for (int i = 0; i < n; i++) {
+				parent[i] = i;
+				size[i] = 1;
+			}
+		}
+
+		int find(int i) {
+			while (parent[i] != i) {
+				parent[i] = parent[parent[i]];
+				i = parent[i];
+			}
+			return i;
+		}
+
+		void union(int i, int j) {
+			int a = find(i);
+			int b = find(j);
+			if (a == b)
+				return;
+			if (size[a] < size[b]) {
+				int temp = a;
+				a = b;
+				b = temp;
+			}
+			parent[b] = a;
+			size[a] += size[b];
+		}
+
+	}
+
+
+	/**
+	 * View of a rectangle within an image, without copying the pixels.
+	 */
+	private static class CroppedImage implements SimpleImage {
+
+		private final SimpleImage image;
+		private final float[] pixels;
+		private final int stride;
+		private final int x, y, width, height;
+
+		CroppedImage(SimpleImage image, int x, int y, int width, int height) {
+			this(image, null, 0, x, y, width, height);
+		}
+
+		CroppedImage(float[] pixels, int stride, int x, int y, int width, int height) {
+			this(null, pixels, stride, x, y, width, height);
+		}
+
+		private CroppedImage(SimpleImage image, float[] pixels, int stride, int x, int y, int width, int height) {
+			this.image = image;
+			this.pixels = pixels;
+			this.stride = stride;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public float getValue(int x, int y) {
+			if (pixels == null)
+				return image.getValue(this.x + x, this.y + y);
+			return pixels[(this.y + y) * stride + this.x + x];
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+	}
+
+}
@@ -0,0 +1,693 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.SpatialIndex;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Implementation of {@link PathObjectConnectionGroup} that stores connections in compressed sparse row (CSR) form.
+ * <p>
+ * Objects are numbered densely, and the connections of object {@code i} are the entries
+ * {@code getNeighborStart(i)} to {@code getNeighborEnd(i)-1} of two primitive arrays holding the neighbor index and
+ * the centroid distance (in pixels) of each edge. This needs a few bytes per edge rather than the per-object lists of
+ * {@link DefaultPathObjectConnectionGroup}, serializes as a handful of arrays, and can be traversed without allocation.
+ * <p>
+ * Groups can be created from another group, from a list of edges (e.g. a Delaunay triangulation),
+ * or as radius and k-nearest-neighbor graphs of object centroids.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class CompactPathObjectConnectionGroup implements PathObjectConnectionGroup, Externalizable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger logger = LoggerFactory.getLogger(CompactPathObjectConnectionGroup.class);
+
+	private PathObject[] pathObjects = new PathObject[0];
+	private int nConnected = 0;
+	private int[] offsets = new int[1];
+	private int[] neighbors = new int[0];
+	private float[] distances = new float[0];
+
+	private transient volatile Map<PathObject, Integer> indexMap;
+	private transient List<PathObject> connectedObjects;
+	private transient volatile SpatialIndex index;
+
+	/**
+	 * Default constructor, only intended for deserialization.
+	 */
+	public CompactPathObjectConnectionGroup() {}
+
+	private CompactPathObjectConnectionGroup(final PathObject[] pathObjects, final int nConnected, final int[] offsets, final int[] neighbors, final float[] distances) {
+		this.pathObjects = pathObjects;
+		this.nConnected = nConnected;
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+		this.distances = distances;
+	}
+
+	/**
+	 * Create a compact copy of an existing group, keeping the order of the connections.
+	 * <p>
+	 * Connected objects that are not themselves part of the group are indexed too,
+	 * but {@link #containsObject(PathObject)} returns false for them as for the original group.
+	 * @param group
+	 * @return
+	 */
+	public static CompactPathObjectConnectionGroup fromConnectionGroup(final PathObjectConnectionGroup group) {
+		if (group instanceof CompactPathObjectConnectionGroup)
+			return (CompactPathObjectConnectionGroup)group;
+
+		var objects = new ArrayList<PathObject>(group.getPathObjects());
+		int nConnected = objects.size();
+		var indexMap = new IdentityHashMap<PathObject, Integer>();
+		for (int i = 0; i < nConnected; i++)
+			indexMap.put(objects.get(i), i);
+
+		int[] offsets = new int[nConnected + 1];
+		var lists = new ArrayList<List<PathObject>>(nConnected);
+		for (int i = 0; i < nConnected; i++) {
+			var list = group.getConnectedObjects(objects.get(i));
+			lists.add(list);
+			offsets[i+1] = offsets[i] + list.size();
+		}
+		int[] neighbors = new int[offsets[nConnected]];
+		for (int i = 0; i < nConnected; i++) {
+			int k = offsets[i];
+			for (var connected : lists.get(i)) {
+				Integer j = indexMap.get(connected);
+				if (j == null) {
+					j = objects.size();
+					indexMap.put(connected, j);
+					objects.add(connected);
+				}
+				neighbors[k++] = j;
+			}
+		}
+
+		var pathObjects = objects.toArray(PathObject[]::new);
+		var group2 = new CompactPathObjectConnectionGroup(pathObjects, nConnected, offsets, neighbors, computeDistances(pathObjects, nConnected, offsets, neighbors));
+		group2.indexMap = indexMap;
+		return group2;
+	}
+
+	/**
+	 * Create a group from a list of directed edges between objects.
+	 * Duplicate edges and self-connections are removed, and the connections of each object are sorted by centroid distance.
+	 * @param pathObjects the objects; edges refer to their positions in this list
+	 * @param sources source object index of each edge
+	 * @param targets target object index of each edge
+	 * @param nEdges number of edges used from the arrays
+	 * @return
+	 */
+	public static CompactPathObjectConnectionGroup fromEdges(final List<? extends PathObject> pathObjects, final int[] sources, final int[] targets, final int nEdges) {
+		int n = pathObjects.size();
+		int[] offsets = new int[n + 1];
+		for (int e = 0; e < nEdges; e++) {
+			if (sources[e] < 0 || sources[e] >= n || targets[e] < 0 || targets[e] >= n)
+				throw new IllegalArgumentException("Edge " + e + " (" + sources[e] + ", " + targets[e] + ") is outside the range of " + n + " objects");
+			offsets[sources[e] + 1]++;
+		}
+		for (int i = 0; i < n; i++)
+			offsets[i+1] += offsets[i];
+		int[] fill = Arrays.copyOf(offsets, n);
+		int[] raw = new int[nEdges];
+		for (int e = 0; e < nEdges; e++)
+			raw[fill[sources[e]]++] = targets[e];
+
+		var objects = pathObjects.toArray(PathObject[]::new);
+		double[][] centroids = getCentroids(objects);
+
+		// Sort and deduplicate each row, then order it by distance
+		int[] counts = new int[n];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			int from = offsets[i], to = offsets[i+1];
+			Arrays.sort(raw, from, to);
+			int k = from;
+			for (int e = from; e < to; e++) {
+				if (raw[e] != i && (k == from || raw[k-1] != raw[e]))
+					raw[k++] = raw[e];
+			}
+			counts[i] = k - from;
+		});
+
+		int[] compactOffsets = new int[n + 1];
+		for (int i = 0; i < n; i++)
+			compactOffsets[i+1] = compactOffsets[i] + counts[i];
+		int[] neighbors = new int[compactOffsets[n]];
+		float[] distances = new float[compactOffsets[n]];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			int start = compactOffsets[i];
+			for (int k = 0; k < counts[i]; k++) {
+				int j = raw[offsets[i] + k];
+				neighbors[start + k] = j;
+				distances[start + k] = (float)distance(centroids, i, j);
+			}
+			sortByDistance(neighbors, distances, start, compactOffsets[i+1]);
+		});
+
+		return new CompactPathObjectConnectionGroup(objects, n, compactOffsets, neighbors, distances);
+	}
+
+	/**
+	 * Create a group connecting every object to all other objects on the same plane whose centroid lies within a fixed distance.
+	 * @param pathObjects
+	 * @param radius maximum centroid distance, in pixels
+	 * @return
+	 */
+	public static CompactPathObjectConnectionGroup createRadiusGraph(final Collection<? extends PathObject> pathObjects, final double radius) {
+		var objects = pathObjects.toArray(PathObject[]::new);
+		var centroids = getCentroids(objects);
+		var grid = new CentroidGrid(centroids[0], centroids[1], radius);
+		var planes = getPlanes(objects);
+
+		int n = objects.length;
+		int[][] rows = new int[n][];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			var list = new int[8];
+			int count = 0;
+			for (int j : grid.within(centroids[0][i], centroids[1][i], radius)) {
+				if (j == i || planes[j] != planes[i])
+					continue;
+				if (count == list.length)
+					list = Arrays.copyOf(list, count * 2);
+				list[count++] = j;
+			}
+			rows[i] = Arrays.copyOf(list, count);
+		});
+		return fromRows(objects, centroids, rows);
+	}
+
+	/**
+	 * Create a group connecting every object to its k nearest objects on the same plane, by centroid distance.
+	 * @param pathObjects
+	 * @param k number of neighbors of each object
+	 * @return
+	 */
+	public static CompactPathObjectConnectionGroup createNearestNeighborGraph(final Collection<? extends PathObject> pathObjects, final int k) {
+		if (k < 1)
+			throw new IllegalArgumentException("Number of neighbors must be at least 1, but was " + k);
+		var objects = pathObjects.toArray(PathObject[]::new);
+		var centroids = getCentroids(objects);
+		var grid = new CentroidGrid(centroids[0], centroids[1], CentroidGrid.defaultCellSize(centroids[0], centroids[1], k));
+		var planes = getPlanes(objects);
+
+		int n = objects.length;
+		int[][] rows = new int[n][];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			rows[i] = grid.nearest(i, k, j -> planes[j] == planes[i]);
+		});
+		return fromRows(objects, centroids, rows);
+	}
+
+	private static CompactPathObjectConnectionGroup fromRows(final PathObject[] objects, final double[][] centroids, final int[][] rows) {
+		int n = objects.length;
+		int[] offsets = new int[n + 1];
+		for (int i = 0; i < n; i++)
+			offsets[i+1] = offsets[i] + rows[i].length;
+		int[] neighbors = new int[offsets[n]];
+		float[] distances = new float[offsets[n]];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			System.arraycopy(rows[i], 0, neighbors, offsets[i], rows[i].length);
+			for (int e = offsets[i]; e < offsets[i+1]; e++)
+				distances[e] = (float)distance(centroids, i, neighbors[e]);
+			sortByDistance(neighbors, distances, offsets[i], offsets[i+1]);
+		});
+		return new CompactPathObjectConnectionGroup(objects, n, offsets, neighbors, distances);
+	}
+
+	private static double[][] getCentroids(final PathObject[] objects) {
+		double[][] centroids = new double[2][objects.length];
+		IntStream.range(0, objects.length).parallel().forEach(i -> {
+			ROI roi = PathObjectTools.getROI(objects[i], true);
+			centroids[0][i] = roi.getCentroidX();
+			centroids[1][i] = roi.getCentroidY();
+		});
+		return centroids;
+	}
+
+	private static long[] getPlanes(final PathObject[] objects) {
+		long[] planes = new long[objects.length];
+		for (int i = 0; i < objects.length; i++) {
+			ROI roi = objects[i].getROI();
+			planes[i] = ((long)roi.getZ() << 32) | (roi.getT() & 0xffffffffL);
+		}
+		return planes;
+	}
+
+	private static float[] computeDistances(final PathObject[] objects, final int nConnected, final int[] offsets, final int[] neighbors) {
+		double[][] centroids = getCentroids(objects);
+		float[] distances = new float[neighbors.length];
+		IntStream.range(0, nConnected).parallel().forEach(i -> {
+			for (int e = offsets[i]; e < offsets[i+1]; e++)
+				distances[e] = (float)distance(centroids, i, neighbors[e]);
+		});
+		return distances;
+	}
+
+	private static double distance(final double[][] centroids, final int i, final int j) {
+		double dx = centroids[0][i] - centroids[0][j];
+		double dy = centroids[1][i] - centroids[1][j];
+		return Math.sqrt(dx*dx + dy*dy);
+	}
+
+	/**
+	 * Insertion sort of one row by distance, which is fast for the short rows of cell graphs.
+	 */
+	private static void sortByDistance(final int[] neighbors, final float[] distances, final int from, final int to) {
+		for (int e = from + 1; e < to; e++) {
+			int j = neighbors[e];
+			float d = distances[e];
+			int k = e - 1;
+			while (k >= from && (distances[k] > d || (distances[k] == d && neighbors[k] > j))) {
+				neighbors[k+1] = neighbors[k];
+				distances[k+1] = distances[k];
+				k--;
+			}
+			neighbors[k+1] = j;
+			distances[k+1] = d;
+		}
+	}
+
+
+	/**
+	 * Get the number of objects that have connections stored in this group.
+	 * @return
+	 */
+	public int size() {
+		return nConnected;
+	}
+
+	/**
+	 * Get the number of indexed objects, including connected objects that are not part of the group.
+	 * @return
+	 */
+	public int getIndexedObjectCount() {
+		return pathObjects.length;
+	}
+
+	/**
+	 * Get an object by index.
+	 * @param index
+	 * @return
+	 */
+	public PathObject getPathObject(final int index) {
+		return pathObjects[index];
+	}
+
+	/**
+	 * Get the index of an object.
+	 * @param pathObject
+	 * @return the index, or -1 if the object is not indexed
+	 */
+	public int getIndex(final PathObject pathObject) {
+		Integer ind = getIndexMap().get(pathObject);
+		return ind == null ? -1 : ind;
+	}
+
+	private Map<PathObject, Integer> getIndexMap() {
+		if (indexMap == null) {
+			synchronized (this) {
+				if (indexMap == null) {
+					var map = new IdentityHashMap<PathObject, Integer>(pathObjects.length);
+					for (int i = 0; i < pathObjects.length; i++)
+						map.put(pathObjects[i], i);
+					indexMap = map;
+				}
+			}
+		}
+		return indexMap;
+	}
+
+	/**
+	 * Get the number of connections of an object.
+	 * @param index object index
+	 * @return
+	 */
+	public int getDegree(final int index) {
+		return index < nConnected ? offsets[index+1] - offsets[index] : 0;
+	}
+
+	/**
+	 * Get the position of the first connection of an object, for use with {@link #getNeighborIndex(int)} and {@link #getDistance(int)}.
+	 * @param index object index
+	 * @return
+	 */
+	public int getNeighborStart(final int index) {
+		return index < nConnected ? offsets[index] : 0;
+	}
+
+	/**
+	 * Get the position after the last connection of an object.
+	 * @param index object index
+	 * @return
+	 */
+	public int getNeighborEnd(final int index) {
+		return index < nConnected ? offsets[index+1] : 0;
+	}
+
+	/**
+	 * Get the object index at one end of a connection.
+	 * @param edge position of the connection, between {@link #getNeighborStart(int)} and {@link #getNeighborEnd(int)}
+	 * @return
+	 */
+	public int getNeighborIndex(final int edge) {
+		return neighbors[edge];
+	}
+
+	/**
+	 * Get the centroid distance of a connection, in pixels.
+	 * @param edge position of the connection, between {@link #getNeighborStart(int)} and {@link #getNeighborEnd(int)}
+	 * @return
+	 */
+	public double getDistance(final int edge) {
+		return distances[edge];
+	}
+
+	/**
+	 * Get the total number of (directed) connections.
+	 * @return
+	 */
+	public int getEdgeCount() {
+		return offsets[nConnected];
+	}
+
+	/**
+	 * Copy the row offsets of the connections, of length {@link #size()}+1.
+	 * @return
+	 */
+	public int[] getNeighborOffsets() {
+		return offsets.clone();
+	}
+
+	/**
+	 * Copy the neighbor indices of all connections, in row order.
+	 * @return
+	 */
+	public int[] getNeighborIndices() {
+		return neighbors.clone();
+	}
+
+	/**
+	 * Copy the distances of all connections, in row order.
+	 * @return
+	 */
+	public float[] getDistances() {
+		return distances.clone();
+	}
+
+
+	@Override
+	public boolean containsObject(PathObject pathObject) {
+		int ind = getIndex(pathObject);
+		return ind >= 0 && ind < nConnected;
+	}
+
+	@Override
+	public Collection<PathObject> getPathObjects() {
+		if (connectedObjects == null)
+			connectedObjects = Collections.unmodifiableList(Arrays.asList(pathObjects).subList(0, nConnected));
+		return connectedObjects;
+	}
+
+	@Override
+	public List<PathObject> getConnectedObjects(PathObject pathObject) {
+		int ind = getIndex(pathObject);
+		if (ind < 0 || ind >= nConnected)
+			return Collections.emptyList();
+		return new NeighborList(offsets[ind], offsets[ind+1]);
+	}
+
+	/**
+	 * Read-only view of one row of the neighbor array.
+	 */
+	private class NeighborList extends AbstractList<PathObject> implements RandomAccess {
+
+		private final int from;
+		private final int to;
+
+		NeighborList(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public PathObject get(int index) {
+			if (index < 0 || index >= to - from)
+				throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + (to - from));
+			return pathObjects[neighbors[from + index]];
+		}
+
+		@Override
+		public int size() {
+			return to - from;
+		}
+
+	}
+
+
+	@Override
+	public Collection<PathObject> getPathObjectsForRegion(ImageRegion region) {
+		if (index == null) {
+			synchronized(this) {
+				if (index == null)
+					index = buildIndex();
+			}
+		}
+		var envelope = new Envelope(region.getMinX(), region.getMaxX(), region.getMinY(), region.getMaxY());
+		@SuppressWarnings("unchecked")
+		var candidates = (Collection<PathObject>)index.query(envelope);
+		return candidates
+				.stream()
+				.filter(p -> p.getROI().getZ() == region.getZ() && p.getROI().getT() == region.getT())
+				.collect(Collectors.toSet());
+	}
+
+	private SpatialIndex buildIndex() {
+		long startTime = System.currentTimeMillis();
+		var index = new Quadtree();
+		for (int i = 0; i < nConnected; i++) {
+			var envelope = getEnvelope(pathObjects[i].getROI());
+			for (int e = offsets[i]; e < offsets[i+1]; e++)
+				envelope.expandToInclude(getEnvelope(pathObjects[neighbors[e]].getROI()));
+			index.insert(envelope, pathObjects[i]);
+		}
+		long endTime = System.currentTimeMillis();
+		logger.debug("Spatial index built in {} ms", endTime - startTime);
+		return index;
+	}
+
+	private static Envelope getEnvelope(ROI roi) {
+		return new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(),
+				roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight());
+	}
+
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeLong(1);
+		out.writeObject(pathObjects);
+		out.writeInt(nConnected);
+		out.writeObject(offsets);
+		out.writeObject(neighbors);
+		out.writeObject(distances);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		long version = in.readLong();
+		if (version != 1) {
+			logger.warn("Unexpected {} version number {}", CompactPathObjectConnectionGroup.class, version);
+		}
+		pathObjects = (PathObject[])in.readObject();
+		nConnected = in.readInt();
+		offsets = (int[])in.readObject();
+		neighbors = (int[])in.readObject();
+		distances = (float[])in.readObject();
+	}
+
+
+	/**
+	 * Uniform bucket grid over object centroids, for radius and nearest-neighbor queries.
+	 */
+	private static class CentroidGrid {
+
+		private final double[] x;
+		private final double[] y;
+		private final double minX;
+		private final double minY;
+		private final double cellSize;
+		private final int nx;
+		private final int ny;
+		private final int[] cellPtr;
+		private final int[] cellPoints;
+
+		CentroidGrid(double[] x, double[] y, double cellSize) {
+			this.x = x;
+			this.y = y;
+			double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+			double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < x.length; i++) {
+				x0 = Math.min(x0, x[i]);
+				y0 = Math.min(y0, y[i]);
+				x1 = Math.max(x1, x[i]);
+				y1 = Math.max(y1, y[i]);
+			}
+			if (x.length == 0)
+				x0 = y0 = x1 = y1 = 0;
+			this.minX = x0;
+			this.minY = y0;
+			// Limit the number of cells to a few per point, whatever the requested size
+			double minCellSize = Math.sqrt(Math.max(x1 - x0, 1e-9) * Math.max(y1 - y0, 1e-9) / Math.max(1, 4 * x.length));
+			this.cellSize = cellSize > 0 && Double.isFinite(cellSize) ? Math.max(cellSize, minCellSize) : Math.max(1.0, minCellSize);
+			this.nx = (int)Math.min(1 << 15, Math.floor((x1 - x0) / this.cellSize) + 1);
+			this.ny = (int)Math.min(1 << 15, Math.floor((y1 - y0) / this.cellSize) + 1);
+
+			int[] cells = new int[x.length];
+			cellPtr = new int[nx * ny + 1];
+			for (int i = 0; i < x.length; i++) {
+				cells[i] = cellY(y[i]) * nx + cellX(x[i]);
+				cellPtr[cells[i] + 1]++;
+			}
+			for (int c = 0; c < nx * ny; c++)
+				cellPtr[c+1] += cellPtr[c];
+			int[] fill = Arrays.copyOf(cellPtr, nx * ny);
+			cellPoints = new int[x.length];
+			for (int i = 0; i < x.length; i++)
+				cellPoints[fill[cells[i]]++] = i;
+		}
+
+		static double defaultCellSize(double[] x, double[] y, int k) {
+			if (x.length < 2)
+				return 1.0;
+			double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+			double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < x.length; i++) {
+				x0 = Math.min(x0, x[i]);
+				y0 = Math.min(y0, y[i]);
+				x1 = Math.max(x1, x[i]);
+				y1 = Math.max(y1, y[i]);
+			}
+			double w = Math.max(x1 - x0, 1e-9);
+			double h = Math.max(y1 - y0, 1e-9);
+			// About k points per cell, guarding against collinear sets
+			return Math.max(Math.sqrt(w * h * Math.max(1, k) / x.length), Math.max(w, h) * Math.max(1, k) / x.length);
+		}
+
+		private int cellX(double px) {
+			return Math.max(0, Math.min(nx - 1, (int)Math.floor((px - minX) / cellSize)));
+		}
+
+		private int cellY(double py) {
+			return Math.max(0, Math.min(ny - 1, (int)Math.floor((py - minY) / cellSize)));
+		}
+
+		int[] within(double qx, double qy, double radius) {
+			double r2 = radius * radius;
+			int[] list = new int[8];
+			int count = 0;
+			for (int gy = cellY(qy - radius); gy <= cellY(qy + radius); gy++) {
+				for (int gx = cellX(qx - radius); gx <= cellX(qx + radius); gx++) {
+					int c = gy * nx + gx;
+					for (int k = cellPtr[c]; k < cellPtr[c+1]; k++) {
+						int j = cellPoints[k];
+						double dx = x[j] - qx, dy = y[j] - qy;
+						if (dx*dx + dy*dy <= r2) {
+							if (count == list.length)
+								list = Arrays.copyOf(list, count * 2);
+							list[count++] = j;
+						}
+					}
+				}
+			}
+			return Arrays.copyOf(list, count);
+		}
+
+		int[] nearest(int i, int k, IntPredicate filter) {
+			double qx = x[i], qy = y[i];
+			int cx = cellX(qx), cy = cellY(qy);
+			int[] best = new int[k];
+			double[] bestDist2 = new double[k];
+			int count = 0;
+			int maxRing = Math.max(nx, ny);
+			for (int r = 0; r <= maxRing; r++) {
+				for (int gy = Math.max(0, cy - r); gy <= Math.min(ny - 1, cy + r); gy++) {
+					// Only the border of the ring is new
+					int step = (gy == cy - r || gy == cy + r) ? 1 : Math.max(1, 2 * r);
+					for (int gx = cx - r; gx <= cx + r; gx += step) {
+						if (gx < 0 || gx >= nx)
+							continue;
+						int c = gy * nx + gx;
+						for (int p = cellPtr[c]; p < cellPtr[c+1]; p++) {
+							int j = cellPoints[p];
+							if (j == i || !filter.test(j))
+								continue;
+							double dx = x[j] - qx, dy = y[j] - qy;
+							double d2 = dx*dx + dy*dy;
+							if (count == k && d2 >= bestDist2[k-1])
+								continue;
+							int pos = count < k ? count++ : k - 1;
+							while (pos > 0 && bestDist2[pos-1] > d2) {
+								best[pos] = best[pos-1];
+								bestDist2[pos] = bestDist2[pos-1];
+								pos--;
+							}
+							best[pos] = j;
+							bestDist2[pos] = d2;
+						}
+					}
+				}
+				// Points outside ring r are more than r cells away
+				if (count == k && bestDist2[k-1] <= (r * cellSize) * (r * cellSize))
+					break;
+			}
+			return count == k ? best : Arrays.copyOf(best, count);
+		}
+
+	}
+
+}
@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestDelaunayTools {
+
+	private static PathObject createObject(double x, double y) {
+		return PathObjects.createDetectionObject(ROIs.createRectangleROI(x - 1, y - 1, 2, 2, ImagePlane.getDefaultPlane()));
+	}
+
+	private static List<PathObject> createUniform(int n, long seed) {
+		var random = new Random(seed);
+		var list = new ArrayList<PathObject>();
+		for (int i = 0; i < n; i++)
+			list.add(createObject(random.nextDouble() * 2000, random.nextDouble() * 2000));
+		return list;
+	}
+
+	private static List<PathObject> createJitteredGrid(int width, int height, long seed) {
+		var random = new Random(seed);
+		var list = new ArrayList<PathObject>();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				list.add(createObject(x * 12 + random.nextDouble() * 3, y * 12 + random.nextDouble() * 3));
+		}
+		return list;
+	}
+
+	private static List<PathObject> createClusters(int n, long seed) {
+		var random = new Random(seed);
+		var list = new ArrayList<PathObject>();
+		for (int i = 0; i < n; i++) {
+			// Dense clusters separated by large empty regions
+			int c = random.nextInt(4);
+			list.add(createObject((c % 2) * 3000 + random.nextGaussian() * 80, (c / 2) * 1500 + random.nextGaussian() * 40));
+		}
+		return list;
+	}
+
+	private static List<PathObject> createStrip(int n, long seed) {
+		var random = new Random(seed);
+		var list = new ArrayList<PathObject>();
+		for (int i = 0; i < n; i++)
+			list.add(createObject(random.nextDouble() * 20000, random.nextDouble() * 30));
+		return list;
+	}
+
+	private static void checkTiledMatchesSubdivision(List<PathObject> pathObjects, int pointsPerTile) {
+		var subdivision = DelaunayTools.createFromCentroids(pathObjects, false);
+		var group = DelaunayTools.createTiledConnectionGroup(pathObjects, false, null, pointsPerTile);
+
+		assertEquals(pathObjects.size(), group.size());
+		for (var pathObject : pathObjects) {
+			assertEquals(new HashSet<>(subdivision.getNeighbors(pathObject)), new HashSet<>(group.getConnectedObjects(pathObject)));
+		}
+	}
+
+	@Test
+	public void test_tiledUniform() {
+		var pathObjects = createUniform(3000, 1L);
+		checkTiledMatchesSubdivision(pathObjects, 200);
+		checkTiledMatchesSubdivision(pathObjects, 50);
+	}
+
+	@Test
+	public void test_tiledJitteredGrid() {
+		checkTiledMatchesSubdivision(createJitteredGrid(60, 40, 2L), 150);
+	}
+
+	@Test
+	public void test_tiledClusters() {
+		checkTiledMatchesSubdivision(createClusters(2000, 3L), 100);
+	}
+
+	@Test
+	public void test_tiledStrip() {
+		checkTiledMatchesSubdivision(createStrip(1500, 4L), 100);
+	}
+
+	@Test
+	public void test_tiledSingleTile() {
+		checkTiledMatchesSubdivision(createUniform(500, 5L), DelaunayTools.DEFAULT_TILED_POINTS);
+	}
+
+	@Test
+	public void test_tiledPredicate() {
+		var pathObjects = createUniform(1000, 6L);
+		double maxDistance = 60;
+		var group = DelaunayTools.createTiledConnectionGroup(pathObjects, false, DelaunayTools.centroidDistancePredicate(maxDistance, false), 100);
+		var subdivision = DelaunayTools.createFromCentroids(pathObjects, false);
+		for (var pathObject : pathObjects) {
+			var expected = new HashSet<PathObject>();
+			for (var neighbor : subdivision.getNeighbors(pathObject)) {
+				double dx = neighbor.getROI().getCentroidX() - pathObject.getROI().getCentroidX();
+				double dy = neighbor.getROI().getCentroidY() - pathObject.getROI().getCentroidY();
+				if (Math.hypot(dx, dy) <= maxDistance)
+					expected.add(neighbor);
+			}
+			assertEquals(expected, new HashSet<>(group.getConnectedObjects(pathObject)));
+		}
+	}
+
+	@Test
+	public void test_tiledDuplicates() {
+		var pathObjects = createUniform(400, 7L);
+		var duplicate = createObject(pathObjects.get(0).getROI().getCentroidX(), pathObjects.get(0).getROI().getCentroidY());
+		pathObjects.add(duplicate);
+		var group = DelaunayTools.createTiledConnectionGroup(pathObjects, false, null, 50);
+		assertEquals(400, group.size());
+		assertTrue(group.getConnectedObjects(duplicate).isEmpty());
+	}
+
+}
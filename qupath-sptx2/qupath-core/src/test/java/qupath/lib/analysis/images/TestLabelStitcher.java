@@ -0,0 +1,279 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.analysis.images;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.locationtech.jts.geom.Geometry;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Test tiled conversion of labelled images gives the same objects as tracing the whole image.
+ */
+public class TestLabelStitcher {
+
+	private static final int WIDTH = 203;
+	private static final int HEIGHT = 157;
+
+	/**
+	 * Create a label image with overlapping ellipses, a label split into two distant parts and a label with a hole.
+	 */
+	private static SimpleImage createLabels() {
+		var rng = new Random(42);
+		float[] pixels = new float[WIDTH * HEIGHT];
+		int label = 0;
+		for (int i = 0; i < 60; i++) {
+			label++;
+			double cx = rng.nextDouble() * WIDTH;
+			double cy = rng.nextDouble() * HEIGHT;
+			double rx = 2 + rng.nextDouble() * 20;
+			double ry = 2 + rng.nextDouble() * 20;
+			for (int y = 0; y < HEIGHT; y++) {
+				for (int x = 0; x < WIDTH; x++) {
+					double dx = (x - cx) / rx;
+					double dy = (y - cy) / ry;
+					if (dx*dx + dy*dy <= 1)
+						pixels[y * WIDTH + x] = label;
+				}
+			}
+		}
+		// Two parts of one label, in different tiles
+		label++;
+		fill(pixels, 0, 0, 5, 5, label);
+		fill(pixels, WIDTH-5, HEIGHT-5, 5, 5, label);
+		// A ring, crossing seams
+		label++;
+		fill(pixels, 60, 60, 40, 40, label);
+		fill(pixels, 70, 70, 20, 20, 0);
+		return SimpleImages.createFloatImage(pixels, WIDTH, HEIGHT);
+	}
+
+	private static void fill(float[] pixels, int x, int y, int w, int h, float value) {
+		for (int yy = y; yy < y + h; yy++) {
+			for (int xx = x; xx < x + w; xx++)
+				pixels[yy * WIDTH + xx] = value;
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {1, 7, 32, 64, 1000})
+	void testSameAsContourTracing(int tileSize) {
+		var image = createLabels();
+		var expected = ContourTracing.createROIs(image, null, 1, -1);
+		var geometries = LabelStitcher.createGeometries(image, null, tileSize, 1);
+
+		assertEquals(expected.size(), geometries.size());
+		for (var entry : expected.entrySet()) {
+			int label = entry.getKey().intValue();
+			var geometry = geometries.get(label);
+			assertNotNull(geometry, "Missing label " + label);
+			assertSameGeometry(entry.getValue().getGeometry(), geometry);
+		}
+	}
+
+	@Test
+	void testRegion() {
+		var image = createLabels();
+		var request = RegionRequest.createInstance("", 2.0, 100, 50, WIDTH * 2, HEIGHT * 2);
+		var geometries = LabelStitcher.createGeometries(image, request, 16, 1);
+		var traced = LabelStitcher.traceLabels(image, request, 1);
+		assertEquals(geometries.keySet(), traced.keySet());
+		for (var entry : geometries.entrySet()) {
+			int label = entry.getKey();
+			var expected = ContourTracing.createTracedGeometry(image, label, label, request);
+			assertSameGeometry(expected, entry.getValue());
+			assertSameGeometry(expected, traced.get(label));
+		}
+	}
+
+	@Test
+	void testCreateObjects() {
+		var image = createLabels();
+		var creator = ContourTracing.createNumberedObjectFunction(r -> PathObjects.createDetectionObject(r));
+		var expected = ContourTracing.createObjects(image, null, 1, -1, creator);
+		var objects = LabelStitcher.createObjects(image, null, 25, 1, creator);
+		assertEquals(expected.size(), objects.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getName(), objects.get(i).getName());
+			assertEquals(expected.get(i).getROI().getArea(), objects.get(i).getROI().getArea(), 1e-6);
+		}
+	}
+
+	@Test
+	void testServer() throws IOException {
+		// Tiles of 64 x 48 do not divide the image, so the last row and column of tiles are smaller
+		var image = createLabels();
+		var server = new LabelServer(image, 64, 48);
+		var creator = ContourTracing.createNumberedObjectFunction(r -> PathObjects.createDetectionObject(r));
+		var expected = ContourTracing.createObjects(image, null, 1, -1, creator);
+		int parallelism = ThreadTools.getParallelism();
+		try {
+			for (int n : new int[] {1, 4}) {
+				ThreadTools.setParallelism(n);
+				assertSameObjects(expected, LabelStitcher.createObjects(server, null, 1, 1, creator));
+			}
+		} finally {
+			ThreadTools.setParallelism(parallelism);
+		}
+		// Band 0 is a single label covering the image
+		var objects = LabelStitcher.createObjects(server, null, 0, 1, creator);
+		assertEquals(1, objects.size());
+		assertEquals(WIDTH * HEIGHT, objects.get(0).getROI().getArea(), 1e-6);
+		assertThrows(IOException.class, () -> LabelStitcher.createObjects(server, null, 2, 1, creator));
+	}
+
+	@Test
+	void testServerDownsampled() throws IOException {
+		// The server has no level at the requested downsample, so tiles are generated from a pyramid
+		var server = new LabelServer(createLabels(), 64, 48);
+		var region = RegionRequest.createInstance(server, 2.0);
+		var pyramid = ImageServers.pyramidalize(server, 2.0);
+		var image = ContourTracing.extractBand(pyramid.readRegion(region.updatePath(pyramid.getPath())).getRaster(), 1);
+		var creator = ContourTracing.createNumberedObjectFunction(r -> PathObjects.createDetectionObject(r));
+		var expected = ContourTracing.createObjects(image, region, 1, -1, creator);
+		var objects = LabelStitcher.createObjects(server, region, 1, 1, creator);
+		assertSameObjects(expected, objects);
+		// Objects are in full resolution coordinates
+		var bounds = objects.stream().mapToDouble(p -> p.getROI().getBoundsX() + p.getROI().getBoundsWidth()).max().getAsDouble();
+		assertTrue(bounds > WIDTH - 4 && bounds <= WIDTH + 1);
+	}
+
+	@Test
+	void testEmpty() {
+		var image = SimpleImages.createFloatImage(new float[100], 10, 10);
+		assertTrue(LabelStitcher.createGeometries(image, null, 4, 1).isEmpty());
+		assertThrows(IllegalArgumentException.class, () -> LabelStitcher.createGeometries(image, null, 0, 1));
+	}
+
+	private static void assertSameObjects(List<PathObject> expected, List<PathObject> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getName(), actual.get(i).getName());
+			assertSameGeometry(expected.get(i).getROI().getGeometry(), actual.get(i).getROI().getGeometry());
+		}
+	}
+
+	private static void assertSameGeometry(Geometry expected, Geometry actual) {
+		assertEquals(expected.getArea(), actual.getArea(), 1e-6);
+		assertEquals(0, expected.symDifference(actual).getArea(), 1e-6);
+		assertTrue(actual.isValid());
+	}
+
+	/**
+	 * In-memory server with a constant first band and the labels in its second band, read in tiles of a given size.
+	 */
+	private static class LabelServer extends AbstractTileableImageServer {
+
+		private final SimpleImage labels;
+		private final ImageServerMetadata metadata;
+
+		LabelServer(SimpleImage labels, int tileWidth, int tileHeight) {
+			this.labels = labels;
+			this.metadata = new ImageServerMetadata.Builder()
+					.width(labels.getWidth())
+					.height(labels.getHeight())
+					.preferredTileSize(tileWidth, tileHeight)
+					.levelsFromDownsamples(1.0)
+					.pixelType(PixelType.INT32)
+					.channels(ImageChannel.getDefaultChannelList(2))
+					.build();
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			if (tileRequest.getDownsample() != 1.0)
+				throw new IOException("Unexpected tile request " + tileRequest);
+			int w = tileRequest.getTileWidth();
+			int h = tileRequest.getTileHeight();
+			var raster = Raster.createBandedRaster(DataBuffer.TYPE_INT, w, h, 2, null);
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					raster.setSample(x, y, 0, 1);
+					raster.setSample(x, y, 1, (int)labels.getValue(tileRequest.getImageX() + x, tileRequest.getImageY() + y));
+				}
+			}
+			return new BufferedImage(ColorModelFactory.getDummyColorModel(32), raster, false, null);
+		}
+
+		/**
+		 * Labels must not be interpolated when a pyramid is generated.
+		 */
+		@Override
+		protected boolean allowSmoothInterpolation() {
+			return false;
+		}
+
+		@Override
+		public ImageServerMetadata getOriginalMetadata() {
+			return metadata;
+		}
+
+		@Override
+		protected ServerBuilder<BufferedImage> createServerBuilder() {
+			return null;
+		}
+
+		@Override
+		protected String createID() {
+			return UUID.randomUUID().toString();
+		}
+
+		@Override
+		public Collection<URI> getURIs() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String getServerType() {
+			return "Label test server";
+		}
+
+	}
+
+}
@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2021 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.analysis.DelaunayTools;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestCompactPathObjectConnectionGroup {
+
+	private static final double SPACING = 10;
+
+	private static List<PathObject> createGrid(int width, int height) {
+		var list = new ArrayList<PathObject>();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				list.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(x * SPACING, y * SPACING, 4, 4, ImagePlane.getDefaultPlane())));
+			}
+		}
+		return list;
+	}
+
+	private static List<PathObject> createRandom(int n, long seed) {
+		var random = new Random(seed);
+		var list = new ArrayList<PathObject>();
+		for (int i = 0; i < n; i++) {
+			list.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(random.nextDouble() * 500, random.nextDouble() * 500, 2, 2, ImagePlane.getDefaultPlane())));
+		}
+		return list;
+	}
+
+	@Test
+	public void test_radiusGraph() {
+		var objects = createGrid(10, 8);
+		var group = CompactPathObjectConnectionGroup.createRadiusGraph(objects, SPACING * 1.05);
+
+		assertEquals(objects.size(), group.size());
+		// Interior, edge and corner objects
+		assertEquals(4, group.getDegree(group.getIndex(objects.get(3 * 10 + 4))));
+		assertEquals(3, group.getDegree(group.getIndex(objects.get(3))));
+		assertEquals(2, group.getDegree(group.getIndex(objects.get(0))));
+		assertEquals(2 * (9 * 8 + 10 * 7), group.getEdgeCount());
+
+		for (int i = 0; i < group.size(); i++) {
+			for (int e = group.getNeighborStart(i); e < group.getNeighborEnd(i); e++)
+				assertEquals(SPACING, group.getDistance(e), 1e-6);
+		}
+
+		var neighbors = new HashSet<>(group.getConnectedObjects(objects.get(3 * 10 + 4)));
+		assertEquals(new HashSet<>(List.of(objects.get(2 * 10 + 4), objects.get(4 * 10 + 4), objects.get(3 * 10 + 3), objects.get(3 * 10 + 5))), neighbors);
+	}
+
+	@Test
+	public void test_nearestNeighborGraph() {
+		var objects = createRandom(500, 1L);
+		int k = 6;
+		var group = CompactPathObjectConnectionGroup.createNearestNeighborGraph(objects, k);
+
+		for (int i = 0; i < group.size(); i++) {
+			var pathObject = group.getPathObject(i);
+			assertEquals(k, group.getDegree(i));
+
+			// Compare with a brute force search
+			var distances = new ArrayList<Double>();
+			for (var other : objects) {
+				if (other != pathObject)
+					distances.add(centroidDistance(pathObject, other));
+			}
+			distances.sort(null);
+			for (int r = 0; r < k; r++)
+				assertEquals(distances.get(r), group.getDistance(group.getNeighborStart(i) + r), 1e-3);
+		}
+	}
+
+	@Test
+	public void test_fromConnectionGroup() {
+		var objects = createRandom(300, 2L);
+		var radiusGroup = CompactPathObjectConnectionGroup.createRadiusGraph(objects, 40);
+		var defaultGroup = new DefaultPathObjectConnectionGroup(radiusGroup);
+		var group = CompactPathObjectConnectionGroup.fromConnectionGroup(defaultGroup);
+
+		assertEquals(defaultGroup.getPathObjects().size(), group.size());
+		for (var pathObject : objects) {
+			assertTrue(group.containsObject(pathObject));
+			assertEquals(defaultGroup.getConnectedObjects(pathObject), group.getConnectedObjects(pathObject));
+		}
+		assertFalse(group.containsObject(PathObjects.createDetectionObject(ROIs.createRectangleROI(0, 0, 1, 1, ImagePlane.getDefaultPlane()))));
+
+		var connections = new PathObjectConnections();
+		connections.addGroup(group);
+		assertEquals(defaultGroup.getConnectedObjects(objects.get(5)), connections.getConnections(objects.get(5)));
+	}
+
+	@Test
+	public void test_fromSubdivision() {
+		var objects = createRandom(400, 3L);
+		var subdivision = DelaunayTools.newBuilder(objects).build();
+		var group = subdivision.createConnectionGroup(null);
+
+		assertEquals(objects.size(), group.size());
+		for (var pathObject : objects) {
+			assertEquals(new HashSet<>(subdivision.getNeighbors(pathObject)), new HashSet<>(group.getConnectedObjects(pathObject)));
+			// Sorted by distance
+			int i = group.getIndex(pathObject);
+			for (int e = group.getNeighborStart(i) + 1; e < group.getNeighborEnd(i); e++)
+				assertTrue(group.getDistance(e - 1) <= group.getDistance(e));
+		}
+
+		var filtered = subdivision.createConnectionGroup(DelaunayTools.centroidDistancePredicate(30, true));
+		for (int i = 0; i < filtered.size(); i++) {
+			for (int e = filtered.getNeighborStart(i); e < filtered.getNeighborEnd(i); e++)
+				assertTrue(filtered.getDistance(e) <= 30 + 1e-6);
+		}
+	}
+
+	@Test
+	public void test_serialization() throws IOException, ClassNotFoundException {
+		var objects = createRandom(200, 4L);
+		var group = CompactPathObjectConnectionGroup.createNearestNeighborGraph(objects, 4);
+
+		var bos = new ByteArrayOutputStream();
+		try (var stream = new ObjectOutputStream(bos)) {
+			stream.writeObject(group);
+		}
+		CompactPathObjectConnectionGroup group2;
+		try (var stream = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+			group2 = (CompactPathObjectConnectionGroup)stream.readObject();
+		}
+
+		assertEquals(group.size(), group2.size());
+		assertArrayEquals(group.getNeighborOffsets(), group2.getNeighborOffsets());
+		assertArrayEquals(group.getNeighborIndices(), group2.getNeighborIndices());
+		assertArrayEquals(group.getDistances(), group2.getDistances());
+		for (int i = 0; i < group2.size(); i++) {
+			var pathObject = group2.getPathObject(i);
+			assertEquals(group.getPathObject(i).getID(), pathObject.getID());
+			assertEquals(group2.getDegree(i), group2.getConnectedObjects(pathObject).size());
+		}
+	}
+
+	private static double centroidDistance(PathObject p1, PathObject p2) {
+		return Math.hypot(p1.getROI().getCentroidX() - p2.getROI().getCentroidX(), p1.getROI().getCentroidY() - p2.getROI().getCentroidY());
+	}
+
+}
@@ -42,8 +42,8 @@ import org.slf4j.LoggerFactory;
 import qupath.ext.biop.cmd.VirtualEnvironmentRunner;
 import qupath.lib.analysis.features.ObjectMeasurements;
 import qupath.lib.analysis.images.ContourTracing;
+import qupath.lib.analysis.images.LabelStitcher;
 import qupath.lib.analysis.images.SimpleImage;
-import qupath.lib.analysis.images.SimpleImages;
 import qupath.lib.common.ColorTools;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.geom.ImmutableDimension;
@@ -80,6 +80,8 @@ import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -104,7 +106,7 @@ import java.util.stream.Collectors;
  *
  * @author Olivier Burri
  */
-public class Cellpose2D {
+public class Cellpose2D implements AutoCloseable {
 
     private final static Logger logger = LoggerFactory.getLogger(Cellpose2D.class);
 
@@ -161,6 +163,11 @@ public class Cellpose2D {
 
     protected int nThreads = -1;
 
+    // Persistent worker, used instead of temp files if tiles can be in flight
+    protected int tilesInFlight = 0;
+    protected boolean standInWorker = false;
+    private CellposeWorker worker;
+
     /**
      * Optionally submit runnable to a thread pool. This limits the parallelization used by parallel streams.
      * @param runnable
@@ -419,17 +426,22 @@ public class Cellpose2D {
 
         Objects.requireNonNull(parents);
 
-        // Define temporary folder to work in
-        cellposeTempFolder = getCellposeTempFolder();
+        // Tiles go to the persistent worker, if we have one, otherwise through a temp folder
+        boolean useWorker = tilesInFlight > 0;
 
-        boolean mkdirs = cellposeTempFolder.mkdirs();
-        if (!mkdirs)
-            logger.info("Folder creation of {} was interrupted. Either the folder exists or there was a problem.", cellposeTempFolder);
-        try {
-            FileUtils.cleanDirectory(cellposeTempFolder);
-        } catch (IOException e) {
-            logger.error("Could not clean temp directory {}", cellposeTempFolder);
-            logger.error("Message: ", e);
+        if (!useWorker) {
+            // Define temporary folder to work in
+            cellposeTempFolder = getCellposeTempFolder();
+
+            boolean mkdirs = cellposeTempFolder.mkdirs();
+            if (!mkdirs)
+                logger.info("Folder creation of {} was interrupted. Either the folder exists or there was a problem.", cellposeTempFolder);
+            try {
+                FileUtils.cleanDirectory(cellposeTempFolder);
+            } catch (IOException e) {
+                logger.error("Could not clean temp directory {}", cellposeTempFolder);
+                logger.error("Message: ", e);
+            }
         }
 
         PixelCalibration resolution = imageData.getServer().getPixelCalibration();
@@ -510,7 +522,10 @@ public class Cellpose2D {
 
 
             // Keep a reference to the images here while they are being saved
-            logger.info("Saving images for {} tiles", tiles.size());
+            if (useWorker)
+                logger.info("Sending {} tiles to the cellpose worker", tiles.size());
+            else
+                logger.info("Saving images for {} tiles", tiles.size());
 
             // Save each tile to an image and keep a reference to it
             var individualTiles = tiles.parallelStream()
@@ -528,9 +543,14 @@ public class Cellpose2D {
                         */
                         try {
                             RegionRequest requestPadded = t;
+                            if (useWorker)
+                                return submitTile(opWithPreprocessing, imageData, requestPadded);
                             return saveTileImage(opWithPreprocessing, imageData, requestPadded);
                         } catch (IOException e) {
                             e.printStackTrace();
+                        } catch (InterruptedException e) {
+                            logger.warn("Interrupted while sending tile {}", t);
+                            Thread.currentThread().interrupt();
                         }
                         return null;
                     })
@@ -538,11 +558,13 @@ public class Cellpose2D {
             return new PathTile(parent, individualTiles);
         }).collect(Collectors.toList());
 
-        // Here the files are saved, and we can run cellpose.
-        try {
-            runCellpose();
-        } catch (IOException | InterruptedException e) {
-            logger.error("Failed to Run Cellpose", e);
+        // Here the files are saved, and we can run cellpose. The worker is already busy with the tiles.
+        if (!useWorker) {
+            try {
+                runCellpose();
+            } catch (IOException | InterruptedException e) {
+                logger.error("Failed to Run Cellpose", e);
+            }
         }
 
         // Recover all the images from CellPose to get the masks
@@ -552,6 +574,16 @@ public class Cellpose2D {
             // Read each image
             List<CandidateObject> allCandidates = Collections.synchronizedList(new ArrayList<>());
             tileMap.getTileFiles().parallelStream().forEach(tilefile -> {
+                if (tilefile == null)
+                    return;
+                if (tilefile.getCandidates() != null) {
+                    try {
+                        allCandidates.addAll(tilefile.getCandidates().join().stream().filter(c -> parent.getROI().getGeometry().intersects(c.geometry)).collect(Collectors.toList()));
+                    } catch (CompletionException e) {
+                        logger.error("Cellpose worker failed for tile {}: {}", tilefile.getTile(), e.getCause().getMessage());
+                    }
+                    return;
+                }
                 File ori = tilefile.getFile();
                 File maskFile = new File(ori.getParent(), FilenameUtils.removeExtension(ori.getName()) + "_cp_masks.tif");
                 if (maskFile.exists()) {
@@ -647,6 +679,102 @@ public class Cellpose2D {
 
     }
 
+    /**
+     * Sends a region request to the persistent worker. The objects are traced as soon as its mask is back.
+     *
+     * @param op        the operations to apply on the image before sending it (32-bit, channel extraction, preprocessing)
+     * @param imageData the current ImageData
+     * @param request   the region we want to segment
+     * @return a simple object that contains the request and the associated objects, once available
+     * @throws IOException          an error in case the worker has stopped or the tile could not be read
+     * @throws InterruptedException in case the thread was interrupted while waiting for the worker
+     */
+    private TileFile submitTile(ImageDataOp op, ImageData<BufferedImage> imageData, RegionRequest request) throws IOException, InterruptedException {
+        // The pixels are copied when the tile is sent, so the Mat can be released straight after
+        try (Mat mat = op.apply(imageData, request)) {
+            var candidates = getWorker().submit(mat)
+                    .thenApplyAsync(labels -> createCandidates(labels, request));
+            return new TileFile(request, candidates);
+        }
+    }
+
+    /**
+     * Get the persistent worker, starting it if needed. It stays alive until {@link #close()} is called.
+     *
+     * @return the running worker
+     * @throws IOException in case the worker could not be started
+     */
+    private synchronized CellposeWorker getWorker() throws IOException {
+        if (worker != null && !worker.isAlive()) {
+            logger.warn("Cellpose worker has stopped, starting a new one");
+            closeWorker();
+        }
+        if (worker == null) {
+            if (standInWorker) {
+                worker = CellposeWorker.standIn(tilesInFlight);
+            } else {
+                VirtualEnvironmentRunner veRunner = new VirtualEnvironmentRunner(cellposeSetup.getEnvironmentNameOrPath(), cellposeSetup.getEnvironmentType(), this.getClass().getSimpleName() + "-worker");
+
+                // This is the list of commands after the 'python' call
+                List<String> cellposeArguments = new ArrayList<>(Arrays.asList("-W", "ignore", getWorkerScript().getAbsolutePath()));
+
+                cellposeArguments.add("--pretrained_model");
+                cellposeArguments.add("" + this.model);
+
+                this.parameters.forEach((parameter, value) -> {
+                    cellposeArguments.add("--" + parameter);
+                    if (value != null) {
+                        cellposeArguments.add(value);
+                    }
+                });
+
+                cellposeArguments.add("--use_gpu");
+
+                veRunner.setArguments(cellposeArguments);
+                worker = CellposeWorker.start(veRunner, tilesInFlight);
+            }
+        }
+        return worker;
+    }
+
+    /**
+     * Copies the worker script out of the extension jar, so that python can run it
+     *
+     * @return the script file, deleted when QuPath exits
+     * @throws IOException in case the script could not be copied
+     */
+    private static File getWorkerScript() throws IOException {
+        File script = File.createTempFile("cellpose_worker", ".py");
+        script.deleteOnExit();
+        try (var stream = Cellpose2D.class.getResourceAsStream("cellpose_worker.py")) {
+            if (stream == null)
+                throw new IOException("Cellpose worker script is missing from the extension");
+            FileUtils.copyInputStreamToFile(stream, script);
+        }
+        return script;
+    }
+
+    private void closeWorker() {
+        try {
+            worker.close();
+        } catch (IOException e) {
+            logger.warn("Error closing the cellpose worker: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while closing the cellpose worker");
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+    }
+
+    /**
+     * Stops the persistent worker, if one was started. A new one is started by the next detection.
+     */
+    @Override
+    public synchronized void close() {
+        if (worker != null)
+            closeWorker();
+    }
+
     private File getCellposeTempFolder() {
         return new File(Projects.getBaseDirectory(QPEx.getQuPath().getProject()), "cellpose-temp");
     }
@@ -1316,45 +1444,47 @@ public class Cellpose2D {
     private Collection<CandidateObject> readObjectsFromFile(File maskFile, RegionRequest region) throws IOException {
         BufferedImage bfImage = ImageIO.read(maskFile);
         SimpleImage image = ContourTracing.extractBand(bfImage.getRaster(), 0);
-        float[] pixels = SimpleImages.getPixels(image, true);
+        return createCandidates(image, region);
+    }
 
-        float maxValue = 1;
-        for (float p : pixels) {
-            if (p > maxValue)
-                maxValue = p;
-        }
-        int maxLabel = (int)maxValue;
-
-        Map<Number, CandidateObject> candidates = new TreeMap<>();
-        float lastLabel = Float.NaN;
-        for (float p : pixels) {
-            if (p >= 1 && p <= maxLabel && p != lastLabel && !candidates.containsKey(p)) {
-                Geometry geometry = ContourTracing.createTracedGeometry(image, p, p, region);
-                if (geometry != null && !geometry.isEmpty())
-                    candidates.put(p, new CandidateObject(geometry));
-                lastLabel = p;
-            }
-        }
+    private static Collection<CandidateObject> createCandidates(SimpleImage image, RegionRequest region) {
+        // Each label is traced within its bounding box, rather than over the whole tile
         // Ignore the IDs, because they will be the same across different images, and we don't really need them
-        return candidates.values();
+        return LabelStitcher.traceLabels(image, region, 1).values().stream()
+                .filter(g -> g != null && !g.isEmpty())
+                .map(CandidateObject::new)
+                .collect(Collectors.toList());
     }
 
     /**
      * Static class to hold the correspondence between a RegionRequest and a saved file, so that we can place the detected ROIs in the right place.
+     * With the persistent worker, there is no file but the objects that will be traced from the returned mask.
      */
     private static class TileFile {
         private final RegionRequest request;
         private final File file;
+        private final CompletableFuture<Collection<CandidateObject>> candidates;
 
         TileFile(RegionRequest request, File tempFile) {
             this.request = request;
             this.file = tempFile;
+            this.candidates = null;
+        }
+
+        TileFile(RegionRequest request, CompletableFuture<Collection<CandidateObject>> candidates) {
+            this.request = request;
+            this.file = null;
+            this.candidates = candidates;
         }
 
         public File getFile() {
             return file;
         }
 
+        public CompletableFuture<Collection<CandidateObject>> getCandidates() {
+            return candidates;
+        }
+
         public RegionRequest getTile() {
             return request;
         }
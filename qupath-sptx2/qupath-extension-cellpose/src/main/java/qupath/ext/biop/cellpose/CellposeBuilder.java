@@ -111,6 +111,9 @@ public class CellposeBuilder {
     private LinkedHashMap<String, String> cellposeParameters = new LinkedHashMap<>();
     private int nThreads = -1;
 
+    private int tilesInFlight = 0;
+    private boolean standInWorker = false;
+
 
     /**
      * can create a cellpose builder from a serialized JSON version of this builder.
@@ -735,6 +738,32 @@ public class CellposeBuilder {
         return this.addParameter("no_norm");
     }
 
+    /**
+     * Keep a single cellpose process running and send it the tiles over a pipe, instead of saving every tile
+     * to the temp folder and starting cellpose for each detection. Masks come back over the same pipe, and the
+     * process is reused until {@link Cellpose2D#close()} is called.
+     *
+     * @param tilesInFlight how many tiles can be sent before their masks are received, 0 to use temp files (default)
+     * @return this builder
+     */
+    public CellposeBuilder persistentWorker(int tilesInFlight) {
+        this.tilesInFlight = tilesInFlight;
+        return this;
+    }
+
+    /**
+     * Replace cellpose by {@link StandInCellposeWorker}, a simple thresholding that speaks the same protocol as the
+     * persistent worker. Useful to test the worker mode without a Python environment.
+     *
+     * @return this builder
+     */
+    public CellposeBuilder standInWorker() {
+        this.standInWorker = true;
+        if (this.tilesInFlight <= 0)
+            this.tilesInFlight = 4;
+        return this;
+    }
+
     /**
      * Create a {@link Cellpose2D}, all ready for detection.
      *
@@ -746,6 +775,10 @@ public class CellposeBuilder {
         // Give it the number of threads to use
         cellpose.nThreads = nThreads;
 
+        // Send tiles to a persistent worker rather than through files
+        cellpose.tilesInFlight = tilesInFlight;
+        cellpose.standInWorker = standInWorker;
+
         // Check the model. If it is a file, then it is a custom model
         File file = new File(this.modelNameOrPath);
         if (file.exists()) {
@@ -0,0 +1,273 @@
+/*-
+ * Copyright 2020-2021 BioImaging & Optics Platform BIOP, Ecole Polytechnique Fédérale de Lausanne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.biop.cellpose;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.cmd.VirtualEnvironmentRunner;
+import qupath.lib.analysis.images.SimpleImage;
+import qupath.lib.analysis.images.SimpleImages;
+import qupath.opencv.tools.OpenCVTools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client of a long-lived segmentation process, which receives tiles and returns label masks over a pipe.
+ * <p>
+ * All numbers are big-endian. Once its model is loaded, the worker writes the 4 bytes {@code CPW1}; anything it
+ * writes before that (e.g. by the environment activation) is logged and skipped.
+ * <ul>
+ *     <li>A tile is sent as {@code id, width, height, channels} (32-bit integers) followed by
+ *     {@code width * height * channels} 32-bit floats, pixel-interleaved in row-major order.</li>
+ *     <li>Its mask comes back as {@code id, width, height} followed by {@code width * height} 32-bit integer labels,
+ *     0 being the background.</li>
+ *     <li>An error is reported as {@code id, -1, 0, length} followed by {@code length} UTF-8 bytes of a message:
+ *     the width is negative and the height is 0, since there is no mask.</li>
+ * </ul>
+ * The worker exits when its input is closed.
+ * <p>
+ * Several tiles may be sent before their masks are read back, so that the worker does not wait for the next tile.
+ * Masks are matched to tiles by id, and may come back in any order.
+ */
+public class CellposeWorker implements AutoCloseable {
+
+    private final static Logger logger = LoggerFactory.getLogger(CellposeWorker.class);
+
+    private static final byte[] MAGIC = "CPW1".getBytes(StandardCharsets.US_ASCII);
+
+    private final Process process;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    private final Semaphore inFlight;
+    private final Map<Integer, CompletableFuture<SimpleImage>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Thread reader;
+
+    private volatile Throwable failure;
+
+    private CellposeWorker(InputStream fromWorker, OutputStream toWorker, int tilesInFlight, Process process) {
+        this.in = new DataInputStream(new BufferedInputStream(fromWorker, 1 << 20));
+        this.out = new DataOutputStream(new BufferedOutputStream(toWorker, 1 << 20));
+        this.inFlight = new Semaphore(Math.max(1, tilesInFlight));
+        this.process = process;
+        this.reader = new Thread(this::readMasks, "cellpose-worker-reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Start a worker process.
+     *
+     * @param runner        the runner, with its arguments set to the worker command
+     * @param tilesInFlight maximum number of tiles sent before their masks are received
+     * @return the worker
+     * @throws IOException in case the process could not be started
+     */
+    public static CellposeWorker start(VirtualEnvironmentRunner runner, int tilesInFlight) throws IOException {
+        Process process = runner.startProcess();
+        return new CellposeWorker(process.getInputStream(), process.getOutputStream(), tilesInFlight, process);
+    }
+
+    /**
+     * Start a {@link StandInCellposeWorker} process, which uses the same framing as a real worker but needs no
+     * Python environment.
+     *
+     * @param tilesInFlight maximum number of tiles sent before their masks are received
+     * @return the worker
+     * @throws IOException in case the process could not be started
+     */
+    public static CellposeWorker standIn(int tilesInFlight) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classPath;
+        try {
+            classPath = Paths.get(StandInCellposeWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IOException("Cannot locate the stand-in worker class", e);
+        }
+        Process process = new ProcessBuilder(java, "-cp", classPath, StandInCellposeWorker.class.getName())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        return new CellposeWorker(process.getInputStream(), process.getOutputStream(), tilesInFlight, process);
+    }
+
+    /**
+     * @return true if tiles can still be submitted
+     */
+    public boolean isAlive() {
+        return failure == null && process.isAlive();
+    }
+
+    /**
+     * Send a tile to the worker. This blocks while the maximum number of tiles is in flight.
+     *
+     * @param mat the tile, converted to 32-bit if needed
+     * @return the label mask of the tile, as soon as the worker returns it
+     * @throws IOException          in case the worker has stopped
+     * @throws InterruptedException in case the thread is interrupted while waiting for a free slot
+     */
+    public CompletableFuture<SimpleImage> submit(Mat mat) throws IOException, InterruptedException {
+        int width = mat.cols();
+        int height = mat.rows();
+        int channels = mat.channels();
+        float[] pixels = OpenCVTools.extractFloats(mat);
+        ByteBuffer buffer = ByteBuffer.allocate(pixels.length * Float.BYTES);
+        buffer.asFloatBuffer().put(pixels);
+
+        while (!inFlight.tryAcquire(100, TimeUnit.MILLISECONDS))
+            checkAlive();
+
+        int id = nextId.getAndIncrement();
+        CompletableFuture<SimpleImage> future = new CompletableFuture<>();
+        pending.put(id, future);
+        try {
+            synchronized (out) {
+                checkAlive();
+                out.writeInt(id);
+                out.writeInt(width);
+                out.writeInt(height);
+                out.writeInt(channels);
+                out.write(buffer.array());
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(id);
+            inFlight.release();
+            throw e;
+        }
+        // The reader may have failed all pending tiles just before this one was added
+        if (failure != null && pending.remove(id) != null)
+            future.completeExceptionally(failure);
+        return future;
+    }
+
+    private void checkAlive() throws IOException {
+        if (failure != null)
+            throw new IOException("Cellpose worker stopped: " + failure.getMessage(), failure);
+        if (!process.isAlive())
+            throw new IOException("Cellpose worker exited with value " + process.exitValue());
+    }
+
+    /**
+     * Reads masks until the worker closes its output, completing the matching tiles.
+     */
+    private void readMasks() {
+        try {
+            awaitHandshake();
+            while (true) {
+                int id;
+                try {
+                    id = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int width = in.readInt();
+                int height = in.readInt();
+                CompletableFuture<SimpleImage> future = pending.remove(id);
+                if (width < 0) {
+                    byte[] message = new byte[in.readInt()];
+                    in.readFully(message);
+                    if (future != null)
+                        future.completeExceptionally(new IOException(new String(message, StandardCharsets.UTF_8)));
+                } else {
+                    byte[] bytes = new byte[width * height * Integer.BYTES];
+                    in.readFully(bytes);
+                    float[] labels = new float[width * height];
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    for (int i = 0; i < labels.length; i++)
+                        labels[i] = buffer.getInt();
+                    if (future != null)
+                        future.complete(SimpleImages.createFloatImage(labels, width, height));
+                }
+                if (future == null)
+                    logger.warn("Received a mask for unknown tile {}", id);
+                else
+                    inFlight.release();
+            }
+            failure = new EOFException("Cellpose worker closed its output");
+        } catch (Throwable t) {
+            failure = t;
+        }
+        for (Integer id : new ArrayList<>(pending.keySet())) {
+            CompletableFuture<SimpleImage> future = pending.remove(id);
+            if (future != null)
+                future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Skips and logs anything written by the worker before it is ready.
+     */
+    private void awaitHandshake() throws IOException {
+        ByteArrayOutputStream skipped = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < MAGIC.length) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Cellpose worker exited before it was ready");
+            if (b == MAGIC[matched]) {
+                matched++;
+                continue;
+            }
+            skipped.write(MAGIC, 0, matched);
+            matched = b == MAGIC[0] ? 1 : 0;
+            if (matched == 0)
+                skipped.write(b);
+        }
+        if (skipped.size() > 0)
+            logger.info("Cellpose worker: {}", skipped.toString(StandardCharsets.UTF_8).trim());
+        logger.info("Cellpose worker ready");
+    }
+
+    /**
+     * Close the input of the worker, so that it exits once the tiles in flight are done, and wait for it.
+     */
+    @Override
+    public void close() throws IOException, InterruptedException {
+        try {
+            synchronized (out) {
+                out.close();
+            }
+        } finally {
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                logger.warn("Cellpose worker did not exit, destroying it");
+                process.destroyForcibly();
+            }
+            reader.join(TimeUnit.SECONDS.toMillis(30));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*-
+ * Copyright 2020-2021 BioImaging & Optics Platform BIOP, Ecole Polytechnique Fédérale de Lausanne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.biop.cellpose;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stand-in for the cellpose worker, speaking the framing described in {@link CellposeWorker}.
+ * <p>
+ * Instead of running a model, it labels the 4-connected components of the pixels above the mean of the first channel.
+ * Tiles with non-finite values in the first channel are answered with an error, as a failing model would be.
+ * It only depends on the JDK, so that it can be started as a separate Java process to test the worker mode
+ * without a Python environment.
+ */
+public class StandInCellposeWorker {
+
+    /**
+     * Serve tiles on the standard input and output until the input is closed.
+     *
+     * @param args unused
+     * @throws IOException in case of a broken pipe
+     */
+    public static void main(String[] args) throws IOException {
+        serve(System.in, System.out);
+    }
+
+    /**
+     * Serve tiles until the input is closed.
+     *
+     * @param input  stream of tiles
+     * @param output stream of label masks
+     * @throws IOException in case of a broken pipe
+     */
+    public static void serve(InputStream input, OutputStream output) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 20));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 1 << 20));
+
+        out.write("CPW1".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        while (true) {
+            int id;
+            try {
+                id = in.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int channels = in.readInt();
+            byte[] bytes = new byte[width * height * channels * Float.BYTES];
+            in.readFully(bytes);
+
+            float[] pixels = new float[width * height];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = buffer.getFloat((i * channels) * Float.BYTES);
+
+            String error = null;
+            for (float p : pixels) {
+                if (!Float.isFinite(p)) {
+                    error = "Tile " + id + " has non-finite values";
+                    break;
+                }
+            }
+            if (error != null) {
+                byte[] message = error.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(id);
+                out.writeInt(-1);
+                out.writeInt(0);
+                out.writeInt(message.length);
+                out.write(message);
+                out.flush();
+                continue;
+            }
+
+            int[] labels = label(pixels, width, height);
+
+            ByteBuffer result = ByteBuffer.allocate(labels.length * Integer.BYTES);
+            result.asIntBuffer().put(labels);
+            out.writeInt(id);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.write(result.array());
+            out.flush();
+        }
+        out.close();
+    }
+
+    /**
+     * Label the 4-connected components of the pixels above the mean.
+     */
+    private static int[] label(float[] pixels, int width, int height) {
+        double mean = 0;
+        for (float p : pixels)
+            mean += p;
+        mean /= Math.max(1, pixels.length);
+
+        int[] labels = new int[pixels.length];
+        int[] queue = new int[pixels.length];
+        int nLabels = 0;
+        for (int start = 0; start < pixels.length; start++) {
+            if (labels[start] != 0 || !(pixels[start] > mean))
+                continue;
+            int label = ++nLabels;
+            labels[start] = label;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = start;
+            while (head < tail) {
+                int i = queue[head++];
+                int x = i % width;
+                int y = i / width;
+                if (x > 0 && labels[i - 1] == 0 && pixels[i - 1] > mean) {
+                    labels[i - 1] = label;
+                    queue[tail++] = i - 1;
+                }
+                if (x < width - 1 && labels[i + 1] == 0 && pixels[i + 1] > mean) {
+                    labels[i + 1] = label;
+                    queue[tail++] = i + 1;
+                }
+                if (y > 0 && labels[i - width] == 0 && pixels[i - width] > mean) {
+                    labels[i - width] = label;
+                    queue[tail++] = i - width;
+                }
+                if (y < height - 1 && labels[i + width] == 0 && pixels[i + width] > mean) {
+                    labels[i + width] = label;
+                    queue[tail++] = i + width;
+                }
+            }
+        }
+        return labels;
+    }
+}
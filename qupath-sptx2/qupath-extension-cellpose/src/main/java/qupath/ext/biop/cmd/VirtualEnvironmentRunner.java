@@ -115,14 +115,42 @@ public class VirtualEnvironmentRunner {
     }
 
     /**
-     * This builds, runs the command and outputs it to the logger as it is being run
+     * Starts the command without waiting for it, for processes that talk to QuPath over their standard input and output.
+     * The standard error is written to the logger as it is being produced.
      * @throws IOException // In case there is an issue starting the process
-     * @throws InterruptedException // In case there is an issue after the process is started
-     * @return a string list containing the log of the command
+     * @return the running process
      */
-    public String[] runCommand() throws IOException, InterruptedException {
+    public Process startProcess() throws IOException {
 
-        List<String> logResults = new ArrayList<>();
+        ProcessBuilder pb = new ProcessBuilder(getShellCommand());
+
+        Process p = pb.start();
+
+        Thread t = new Thread(Thread.currentThread().getName() + "-" + p.hashCode()) {
+            @Override
+            public void run() {
+                BufferedReader stdErr = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+                try {
+                    for (String line = stdErr.readLine(); line != null; ) {
+                        logger.info("{}: {}", name, line);
+                        line = stdErr.readLine();
+                    }
+                } catch (IOException e) {
+                    logger.warn(e.getMessage());
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+
+        return p;
+    }
+
+    /**
+     * Builds the full command to give to the {@link ProcessBuilder}, and logs it in a form that can be copy-pasted
+     * @return the command, starting with the shell
+     */
+    private List<String> getShellCommand() {
 
         // Get how to start the command, based on the VENV Type
         List<String> command = getActivationCommand();
@@ -174,6 +202,21 @@ public class VirtualEnvironmentRunner {
         logger.info("Executing command:\n{}", executionString.substring(1, executionString.length()-1));
         logger.info("This command should run directly if copy-pasted into your shell");
 
+        return shell;
+    }
+
+    /**
+     * This builds, runs the command and outputs it to the logger as it is being run
+     * @throws IOException // In case there is an issue starting the process
+     * @throws InterruptedException // In case there is an issue after the process is started
+     * @return a string list containing the log of the command
+     */
+    public String[] runCommand() throws IOException, InterruptedException {
+
+        List<String> logResults = new ArrayList<>();
+
+        List<String> shell = getShellCommand();
+
         // Now the cmd line is ready
         ProcessBuilder pb = new ProcessBuilder(shell).redirectErrorStream(true);
 
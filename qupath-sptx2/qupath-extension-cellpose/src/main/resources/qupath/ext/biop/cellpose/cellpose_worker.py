@@ -0,0 +1,85 @@
+import argparse
+import os
+import struct
+import sys
+
+import numpy as np
+
+# Persistent cellpose worker for QuPath: the model is loaded once, then tiles are read from the standard input
+# and label masks written to the standard output, as described in CellposeWorker.java.
+# Takes the same flags as 'python -m cellpose' for prediction; flags it does not use are ignored.
+
+parser = argparse.ArgumentParser(description='Cellpose worker reading tiles from stdin and writing masks to stdout')
+parser.add_argument('--pretrained_model', default='cyto2', help='name of a built-in model or path to a custom model')
+parser.add_argument('--diameter', type=float, default=0., help='object diameter in pixels, 0 to estimate it')
+parser.add_argument('--chan', type=int, default=0)
+parser.add_argument('--chan2', type=int, default=0)
+parser.add_argument('--flow_threshold', type=float, default=0.4)
+parser.add_argument('--cellprob_threshold', type=float, default=0.)
+parser.add_argument('--no_norm', action='store_true')
+parser.add_argument('--exclude_on_edges', action='store_true')
+parser.add_argument('--use_gpu', action='store_true')
+
+args, ignored = parser.parse_known_args()
+
+# Keep the standard output for the frames, anything printed goes to the log
+frames_out = sys.stdout.buffer
+frames_in = sys.stdin.buffer
+sys.stdout = sys.stderr
+
+if ignored:
+    print('Ignoring arguments', ignored)
+
+from cellpose import models, utils
+
+if os.path.exists(args.pretrained_model):
+    model = models.CellposeModel(gpu=args.use_gpu, pretrained_model=args.pretrained_model)
+    diameter = args.diameter if args.diameter > 0 else model.diam_labels
+else:
+    model = models.Cellpose(gpu=args.use_gpu, model_type=args.pretrained_model)
+    diameter = args.diameter if args.diameter > 0 else None
+
+
+def read_exactly(n):
+    data = bytearray()
+    while len(data) < n:
+        chunk = frames_in.read(n - len(data))
+        if not chunk:
+            return None
+        data.extend(chunk)
+    return bytes(data)
+
+
+frames_out.write(b'CPW1')
+frames_out.flush()
+
+while True:
+    header = read_exactly(16)
+    if header is None:
+        break
+    tile_id, width, height, channels = struct.unpack('>iiii', header)
+    data = read_exactly(4 * width * height * channels)
+    if data is None:
+        break
+
+    image = np.frombuffer(data, dtype='>f4').astype(np.float32).reshape(height, width, channels)
+    if channels == 1:
+        image = image[..., 0]
+
+    try:
+        masks = model.eval(image,
+                           channels=[args.chan, args.chan2],
+                           diameter=diameter,
+                           flow_threshold=args.flow_threshold,
+                           cellprob_threshold=args.cellprob_threshold,
+                           normalize=not args.no_norm)[0]
+        if args.exclude_on_edges:
+            masks = utils.remove_edge_masks(masks)
+        frames_out.write(struct.pack('>iii', tile_id, width, height))
+        frames_out.write(np.ascontiguousarray(masks, dtype='>i4').tobytes())
+    except Exception as e:
+        print('Tile', tile_id, 'failed:', e)
+        message = str(e).encode('utf-8')
+        frames_out.write(struct.pack('>iiii', tile_id, -1, 0, len(message)))
+        frames_out.write(message)
+    frames_out.flush()
@@ -0,0 +1,110 @@
+/*-
+ * Copyright 2020-2021 BioImaging & Optics Platform BIOP, Ecole Polytechnique Fédérale de Lausanne
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.biop.cellpose;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.Test;
+import qupath.lib.analysis.images.SimpleImage;
+import qupath.opencv.tools.OpenCVTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the worker mode end to end, against a {@link StandInCellposeWorker} process.
+ */
+public class TestCellposeWorker {
+
+    /**
+     * A tile with {@code nObjects} bright pixels on its second row, 2 pixels apart, and a second channel
+     * that is bright everywhere, which the stand-in ignores.
+     */
+    private static Mat createTile(int nObjects, int height) {
+        int width = 2 * nObjects + 1;
+        float[] pixels = new float[width * height * 2];
+        for (int i = 0; i < width * height; i++)
+            pixels[i * 2 + 1] = 100;
+        for (int j = 0; j < nObjects; j++)
+            pixels[(width + 2 * j + 1) * 2] = 10;
+        Mat mat = new Mat(height, width, opencv_core.CV_32FC2);
+        OpenCVTools.putPixelsFloat(mat, pixels);
+        return mat;
+    }
+
+    private static void checkMask(SimpleImage mask, int nObjects, int height) {
+        assertEquals(2 * nObjects + 1, mask.getWidth());
+        assertEquals(height, mask.getHeight());
+        var labels = new HashSet<Float>();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < mask.getWidth(); x++) {
+                float label = mask.getValue(x, y);
+                boolean bright = y == 1 && x % 2 == 1;
+                assertEquals(bright, label != 0);
+                if (bright)
+                    assertTrue(labels.add(label));
+            }
+        }
+        assertEquals(nObjects, labels.size());
+    }
+
+    @Test
+    public void testMasks() throws Exception {
+        var worker = CellposeWorker.standIn(3);
+        try {
+            // Submit every tile before reading any mask back, so that several are in flight
+            List<CompletableFuture<SimpleImage>> futures = new ArrayList<>();
+            for (int k = 0; k < 10; k++)
+                futures.add(worker.submit(createTile(k + 1, 3 + k % 4)));
+            for (int k = 0; k < 10; k++)
+                checkMask(futures.get(k).get(30, TimeUnit.SECONDS), k + 1, 3 + k % 4);
+            assertTrue(worker.isAlive());
+        } finally {
+            worker.close();
+        }
+        assertFalse(worker.isAlive());
+        assertThrows(IOException.class, () -> worker.submit(createTile(1, 3)));
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        try (var worker = CellposeWorker.standIn(2)) {
+            var before = worker.submit(createTile(2, 4));
+            var tile = createTile(2, 4);
+            float[] pixels = OpenCVTools.extractFloats(tile);
+            pixels[0] = Float.NaN;
+            OpenCVTools.putPixelsFloat(tile, pixels);
+            var failed = worker.submit(tile);
+            var after = worker.submit(createTile(3, 5));
+
+            // Only the failed tile is completed with the error, and the worker goes on
+            var e = assertThrows(ExecutionException.class, () -> failed.get(30, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IOException);
+            assertTrue(e.getCause().getMessage().contains("non-finite"));
+            checkMask(before.get(30, TimeUnit.SECONDS), 2, 4);
+            checkMask(after.get(30, TimeUnit.SECONDS), 3, 5);
+            assertTrue(worker.isAlive());
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Sparse multi-resolution count pyramid over a square bin grid (e.g. Visium HD 2/8/16 &micro;m bins).
+ * <p>
+ * Only the finest level is read from disk. Coarser levels are built on request by summing blocks of base bins,
+ * so no file is read twice and only the levels that are used are held in memory. Rows of every level are keyed
+ * by their packed (array_row, array_col) on that level's grid.
+ * <p>
+ * Bin geometry comes from an affine map fitted from the base grid to full-resolution pixels, so bins of any level
+ * can be placed without a per-bin position table.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class BinnedCountPyramid {
+
+	final private static Logger logger = LoggerFactory.getLogger(BinnedCountPyramid.class);
+
+	/**
+	 * Bin sizes, in microns, written by Space Ranger for Visium HD.
+	 */
+	final public static List<Integer> VISIUM_HD_BIN_SIZES = List.of(2, 8, 16);
+
+	final private static SidecarCache.Codec<double[]> AFFINE_CODEC = new SidecarCache.Codec<double[]>() {
+
+		@Override
+		public void write(final double[] affine, final SidecarCache.Writer writer) {
+			writer.putDoubles("affine", affine);
+		}
+
+		@Override
+		public double[] read(final SidecarCache.Entry entry) throws IOException {
+			return entry.getDoubleArray("affine");
+		}
+
+	};
+
+	final private int baseBinSize;
+	final private double[] affine;
+	final private Map<Integer, FeatureMatrix> levels = new HashMap<>();
+
+	/**
+	 * Create a pyramid.
+	 * @param baseBinSize bin size of the base level, in microns
+	 * @param base base counts, with rows keyed by packed (array_row, array_col)
+	 * @param affine map from base (array_col, array_row) to pixels: x = a0 + a1*col + a2*row, y = a3 + a4*col + a5*row
+	 */
+	public BinnedCountPyramid(final int baseBinSize, final FeatureMatrix base, final double[] affine) {
+		this.baseBinSize = baseBinSize;
+		this.affine = affine;
+		levels.put(baseBinSize, base);
+	}
+
+	/**
+	 * @return bin size of the base level, in microns
+	 */
+	public int getBaseBinSize() {
+		return baseBinSize;
+	}
+
+	/**
+	 * Get the counts at a bin size, summing base bins if the level has not been built yet.
+	 * @param binSize bin size in microns, a multiple of the base bin size
+	 * @return counts with rows keyed by packed (array_row, array_col) on the grid of this bin size
+	 */
+	public synchronized FeatureMatrix getLevel(final int binSize) {
+		if (binSize < baseBinSize || binSize % baseBinSize != 0)
+			throw new IllegalArgumentException("Bin size " + binSize + " is not a multiple of " + baseBinSize);
+		FeatureMatrix level = levels.get(binSize);
+		if (level == null) {
+			level = aggregate(levels.get(baseBinSize), binSize / baseBinSize, binSize);
+			levels.put(binSize, level);
+			logger.info("Built {} um level: {} bins, {} non-zero counts", binSize, level.getRowCount(), level.getNonZeroCount());
+		}
+		return level;
+	}
+
+	private static FeatureMatrix aggregate(final FeatureMatrix base, final int factor, final int binSize) {
+		final int n = base.getRowCount();
+		final long[] coarseKeys = new long[n];
+		for (int r = 0; r < n; r++) {
+			final long key = base.getRowKey(r);
+			coarseKeys[r] = LongIntHashMap.pack(LongIntHashMap.hi(key) / factor, LongIntHashMap.lo(key) / factor);
+		}
+
+		final int[] order = CellTable.orderByPackedKey(coarseKeys);
+		final int[] rowTargets = new int[n];
+		int nBins = 0;
+		for (int i = 0; i < n; i++) {
+			if (i == 0 || coarseKeys[order[i]] != coarseKeys[order[i-1]])
+				nBins++;
+			rowTargets[order[i]] = nBins - 1;
+		}
+
+		final long[] keys = new long[nBins];
+		for (int r = 0; r < n; r++)
+			keys[rowTargets[r]] = coarseKeys[r];
+		final String[] names = new String[nBins];
+		for (int b = 0; b < nBins; b++)
+			names[b] = formatBarcode(binSize, LongIntHashMap.hi(keys[b]), LongIntHashMap.lo(keys[b]));
+
+		return base.sumRows(rowTargets, names, keys);
+	}
+
+	/**
+	 * Get the centre of a bin in full-resolution pixels.
+	 * @param binSize
+	 * @param key packed (array_row, array_col) on the grid of this bin size
+	 * @param xy array of length 2 receiving (x, y)
+	 */
+	public void getCentre(final int binSize, final long key, final double[] xy) {
+		final int factor = binSize / baseBinSize;
+		final double row = LongIntHashMap.hi(key) * factor + 0.5 * (factor - 1);
+		final double col = LongIntHashMap.lo(key) * factor + 0.5 * (factor - 1);
+		xy[0] = affine[0] + affine[1] * col + affine[2] * row;
+		xy[1] = affine[3] + affine[4] * col + affine[5] * row;
+	}
+
+	/**
+	 * Create the outline of a bin, following the rotation of the bin grid on the image.
+	 * @param binSize
+	 * @param key packed (array_row, array_col) on the grid of this bin size
+	 * @param plane
+	 * @return a polygon ROI in full-resolution pixels
+	 */
+	public ROI createBinROI(final int binSize, final long key, final ImagePlane plane) {
+		final int factor = binSize / baseBinSize;
+		final double row0 = LongIntHashMap.hi(key) * factor - 0.5;
+		final double col0 = LongIntHashMap.lo(key) * factor - 0.5;
+		final double[][] corners = {{row0, col0}, {row0, col0 + factor}, {row0 + factor, col0 + factor}, {row0 + factor, col0}};
+		final Point2[] points = new Point2[corners.length];
+		for (int i = 0; i < corners.length; i++) {
+			final double row = corners[i][0], col = corners[i][1];
+			points[i] = new Point2(affine[0] + affine[1] * col + affine[2] * row, affine[3] + affine[4] * col + affine[5] * row);
+		}
+		return ROIs.createPolygonROI(List.of(points), plane);
+	}
+
+	/**
+	 * @param binSize
+	 * @param row
+	 * @param col
+	 * @return the Space Ranger barcode of a bin, e.g. "s_008um_00012_00345-1"
+	 */
+	public static String formatBarcode(final int binSize, final int row, final int col) {
+		return String.format("s_%03dum_%05d_%05d-1", binSize, row, col);
+	}
+
+	/**
+	 * @param barcode Space Ranger bin barcode, e.g. "s_002um_00012_00345-1"
+	 * @return packed (array_row, array_col)
+	 */
+	public static long parseBarcode(final String barcode) {
+		final String[] fields = barcode.split("[_-]");
+		if (fields.length < 4)
+			throw new IllegalArgumentException("Not a binned barcode: " + barcode);
+		return LongIntHashMap.pack(Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+	}
+
+	/**
+	 * Read the 2 &micro;m level of a Space Ranger {@code binned_outputs} directory (or its parent {@code outs} directory).
+	 * The base counts and the fitted grid-to-pixel map are cached as sidecars.
+	 * <p>
+	 * Bin positions are read from {@code square_002um/spatial/tissue_positions.csv(.gz)}.
+	 * @param binnedDir
+	 * @param cache
+	 * @return the pyramid, holding only the base level
+	 * @throws Exception
+	 */
+	public static BinnedCountPyramid readVisiumHd(final File binnedDir, final SidecarCache cache) throws Exception {
+		final File dir = new File(binnedDir, "binned_outputs").isDirectory()? new File(binnedDir, "binned_outputs"): binnedDir;
+		final int baseBinSize = VISIUM_HD_BIN_SIZES.get(0);
+		final File baseDir = new File(dir, String.format("square_%03dum", baseBinSize));
+		final File matrixDir = new File(baseDir, "filtered_feature_bc_matrix");
+		if (!matrixDir.isDirectory())
+			throw new IOException("Missing " + matrixDir);
+
+		final File positionsFile = getPositionsFile(new File(baseDir, "spatial"));
+
+		final FeatureMatrix base = cache.load("visiumhd-bins", FeatureMatrix.get10xSources(matrixDir), FeatureMatrix.CODEC, () -> {
+			final FeatureMatrix matrix = FeatureMatrix.read10x(matrixDir);
+			final long[] keys = new long[matrix.getRowCount()];
+			for (int r = 0; r < keys.length; r++)
+				keys[r] = parseBarcode(matrix.getRowName(r));
+			return matrix.withRowKeys(keys);
+		});
+		final double[] affine = cache.load("visiumhd-affine", List.of(positionsFile), AFFINE_CODEC, () -> fitGridToPixels(positionsFile));
+
+		logger.info("Read {} um bins: {} bins, {} features, {} non-zero counts", baseBinSize, base.getRowCount(), base.getFeatureCount(), base.getNonZeroCount());
+		return new BinnedCountPyramid(baseBinSize, base, affine);
+	}
+
+	private static File getPositionsFile(final File spatialDir) throws IOException {
+		for (String name: List.of("tissue_positions.csv", "tissue_positions.csv.gz", "tissue_positions_list.csv")) {
+			final File file = new File(spatialDir, name);
+			if (file.isFile())
+				return file;
+		}
+		if (new File(spatialDir, "tissue_positions.parquet").isFile())
+			throw new IOException("Only tissue_positions.parquet was found in " + spatialDir + ", please export it to tissue_positions.csv");
+		throw new IOException("Missing tissue_positions.csv in " + spatialDir);
+	}
+
+	/**
+	 * Fit the affine map from (array_col, array_row) to full-resolution pixels by least squares over every bin,
+	 * parsing the positions file in parallel.
+	 * "barcode","in_tissue","array_row","array_col","pxl_row_in_fullres","pxl_col_in_fullres"
+	 * @param positionsFile
+	 * @return x = a0 + a1*col + a2*row, y = a3 + a4*col + a5*row
+	 * @throws Exception
+	 */
+	static double[] fitGridToPixels(final File positionsFile) throws Exception {
+		final String header = ChunkedTextParser.readFirstLine(positionsFile);
+		if (header == null)
+			throw new IOException(positionsFile.getName() + " is empty");
+
+		final ChunkedTextParser parser = new ChunkedTextParser(positionsFile).skipHeader(header.startsWith("barcode"));
+		final int nWorkers = parser.getWorkerCount();
+
+		// Per worker: the upper triangle of [1 col row]^T [1 col row], then [1 col row]^T x and [1 col row]^T y
+		final double[][] sums = new double[nWorkers][12];
+		final ByteFields[] fields = new ByteFields[nWorkers];
+		for (int w = 0; w < nWorkers; w++)
+			fields[w] = new ByteFields(',', 6);
+
+		parser.parse((buf, from, to, worker) -> {
+			final ByteFields f = fields[worker];
+			final double[] s = sums[worker];
+			int p = from;
+			while (p < to) {
+				final int e = ByteFields.lineEnd(buf, p, to);
+				if (f.split(buf, p, e) >= 6) {
+					final double row = f.getInt(2), col = f.getInt(3);
+					final double y = f.getDouble(4), x = f.getDouble(5);
+					s[0]++;
+					s[1] += col;
+					s[2] += row;
+					s[3] += col * col;
+					s[4] += col * row;
+					s[5] += row * row;
+					s[6] += x;
+					s[7] += x * col;
+					s[8] += x * row;
+					s[9] += y;
+					s[10] += y * col;
+					s[11] += y * row;
+				}
+				p = e + 1;
+			}
+		});
+
+		final double[] t = new double[12];
+		for (final double[] s: sums)
+			for (int k = 0; k < t.length; k++)
+				t[k] += s[k];
+		if (t[0] < 3)
+			throw new IOException("Too few bins in " + positionsFile.getName() + " to place the bin grid");
+
+		final double[][] normal = {{t[0], t[1], t[2]}, {t[1], t[3], t[4]}, {t[2], t[4], t[5]}};
+		final double[] ax = solve3(normal, new double[] {t[6], t[7], t[8]});
+		final double[] ay = solve3(normal, new double[] {t[9], t[10], t[11]});
+		logger.info("Bin grid: x = {} + {} col + {} row, y = {} + {} col + {} row", ax[0], ax[1], ax[2], ay[0], ay[1], ay[2]);
+		return new double[] {ax[0], ax[1], ax[2], ay[0], ay[1], ay[2]};
+	}
+
+	private static double[] solve3(final double[][] m, final double[] b) throws IOException {
+		final double det = det3(m);
+		if (Math.abs(det) < 1e-12)
+			throw new IOException("Bin positions do not span a grid");
+		final double[] result = new double[3];
+		for (int c = 0; c < 3; c++) {
+			final double[][] mc = new double[3][];
+			for (int r = 0; r < 3; r++) {
+				mc[r] = m[r].clone();
+				mc[r][c] = b[r];
+			}
+			result[c] = det3(mc) / det;
+		}
+		return result;
+	}
+
+	private static double det3(final double[][] m) {
+		return m[0][0] * (m[1][1] * m[2][2] - m[1][2] * m[2][1])
+				- m[0][1] * (m[1][0] * m[2][2] - m[1][2] * m[2][0])
+				+ m[0][2] * (m[1][0] * m[2][1] - m[1][1] * m[2][0]);
+	}
+
+}
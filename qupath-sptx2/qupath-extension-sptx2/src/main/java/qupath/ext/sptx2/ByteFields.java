@@ -0,0 +1,300 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Allocation-free field splitting and number parsing over a line stored in a byte array.
+ * <p>
+ * One instance is meant to be reused by a single thread for every line of a chunk.
+ * Surrounding double quotes are stripped from fields (no escaped quotes are expected in the vendor outputs).
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class ByteFields {
+
+	private byte[] buf;
+	private int[] start;
+	private int[] end;
+	private int count = 0;
+	final private byte delimiter;
+
+	/**
+	 * Create a field splitter.
+	 * @param delimiter field delimiter, e.g. ',' or '\t'
+	 * @param maxFields initial field capacity (grows as required)
+	 */
+	public ByteFields(final char delimiter, final int maxFields) {
+		this.delimiter = (byte)delimiter;
+		this.start = new int[Math.max(1, maxFields)];
+		this.end = new int[Math.max(1, maxFields)];
+	}
+
+	/**
+	 * Find the end of the line starting at {@code from}.
+	 * @param buf
+	 * @param from
+	 * @param to
+	 * @return index of the terminating '\n', or {@code to} if there is none
+	 */
+	public static int lineEnd(final byte[] buf, final int from, final int to) {
+		int i = from;
+		while (i < to && buf[i] != '\n')
+			i++;
+		return i;
+	}
+
+	/**
+	 * Split {@code buf[from, to)} into fields. A trailing '\r' is ignored.
+	 * @param buf
+	 * @param from
+	 * @param to
+	 * @return the number of fields
+	 */
+	public int split(final byte[] buf, final int from, int to) {
+		this.buf = buf;
+		if (to > from && buf[to-1] == '\r')
+			to--;
+		count = 0;
+		int s = from;
+		for (int i = from; i <= to; i++) {
+			if (i == to || buf[i] == delimiter) {
+				if (count == start.length) {
+					start = java.util.Arrays.copyOf(start, count * 2);
+					end = java.util.Arrays.copyOf(end, count * 2);
+				}
+				int a = s, b = i;
+				if (b - a >= 2 && buf[a] == '"' && buf[b-1] == '"') {
+					a++;
+					b--;
+				}
+				start[count] = a;
+				end[count] = b;
+				count++;
+				s = i + 1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of fields of the last split line
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @param i field index
+	 * @return start offset of the field in the current buffer
+	 */
+	public int start(final int i) {
+		return start[i];
+	}
+
+	/**
+	 * @param i field index
+	 * @return end offset (exclusive) of the field in the current buffer
+	 */
+	public int end(final int i) {
+		return end[i];
+	}
+
+	/**
+	 * @param i field index
+	 * @return the field length in bytes
+	 */
+	public int length(final int i) {
+		return end[i] - start[i];
+	}
+
+	/**
+	 * @return the buffer of the last split line
+	 */
+	public byte[] buffer() {
+		return buf;
+	}
+
+	/**
+	 * Create a String from a field. This allocates, so avoid it in inner loops.
+	 * @param i
+	 * @return
+	 */
+	public String getString(final int i) {
+		return new String(buf, start[i], end[i] - start[i], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param i
+	 * @param prefix ASCII prefix
+	 * @return true if the field starts with the prefix
+	 */
+	public boolean startsWith(final int i, final byte[] prefix) {
+		if (end[i] - start[i] < prefix.length)
+			return false;
+		for (int k = 0; k < prefix.length; k++) {
+			if (buf[start[i]+k] != prefix[k])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param i
+	 * @param value ASCII value
+	 * @return true if the field equals the value
+	 */
+	public boolean equalsBytes(final int i, final byte[] value) {
+		return end[i] - start[i] == value.length && startsWith(i, value);
+	}
+
+	/**
+	 * Parse a field as a (possibly negative) integer.
+	 * @param i
+	 * @return
+	 * @throws NumberFormatException if the field is not an integer
+	 */
+	public int getInt(final int i) {
+		return (int)getLong(i);
+	}
+
+	/**
+	 * Parse a field as a (possibly negative) long.
+	 * @param i
+	 * @return
+	 * @throws NumberFormatException if the field is not an integer
+	 */
+	public long getLong(final int i) {
+		int p = start[i];
+		final int e = end[i];
+		if (p == e)
+			throw new NumberFormatException("Empty field " + i);
+		boolean neg = false;
+		if (buf[p] == '-' || buf[p] == '+') {
+			neg = buf[p] == '-';
+			p++;
+		}
+		long v = 0;
+		for (; p < e; p++) {
+			final int d = buf[p] - '0';
+			if (d < 0 || d > 9) {
+				// Tolerate integers written as floating point (e.g. "12.0")
+				if (buf[p] == '.')
+					break;
+				throw new NumberFormatException("Not an integer: " + getString(i));
+			}
+			v = v * 10 + d;
+		}
+		return neg ? -v : v;
+	}
+
+	/**
+	 * Parse a field as a double. Plain decimal and scientific notation are handled without allocation,
+	 * anything else (e.g. 'NaN', 'Inf') falls back to {@link Double#parseDouble(String)}.
+	 * @param i
+	 * @return
+	 */
+	public double getDouble(final int i) {
+		int p = start[i];
+		final int e = end[i];
+		if (p == e)
+			return Double.NaN;
+		boolean neg = false;
+		if (buf[p] == '-' || buf[p] == '+') {
+			neg = buf[p] == '-';
+			p++;
+		}
+		long mantissa = 0;
+		int scale = 0;
+		int digits = 0;
+		boolean dot = false;
+		for (; p < e; p++) {
+			final byte c = buf[p];
+			if (c >= '0' && c <= '9') {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					digits += mantissa == 0 ? 0 : 1;
+					if (dot)
+						scale--;
+				} else if (!dot)
+					scale++;
+			} else if (c == '.' && !dot)
+				dot = true;
+			else
+				break;
+		}
+		if (p < e) {
+			if (buf[p] != 'e' && buf[p] != 'E')
+				return Double.parseDouble(getString(i));
+			p++;
+			boolean expNeg = false;
+			if (p < e && (buf[p] == '-' || buf[p] == '+')) {
+				expNeg = buf[p] == '-';
+				p++;
+			}
+			int exp = 0;
+			for (; p < e; p++) {
+				final int d = buf[p] - '0';
+				if (d < 0 || d > 9)
+					return Double.parseDouble(getString(i));
+				exp = exp * 10 + d;
+			}
+			scale += expNeg ? -exp : exp;
+		}
+		double v = mantissa;
+		if (scale < 0)
+			v = scale >= -22 ? v / POW10[-scale] : v / Math.pow(10, -scale);
+		else if (scale > 0)
+			v = scale <= 22 ? v * POW10[scale] : v * Math.pow(10, scale);
+		return neg ? -v : v;
+	}
+
+	final private static double[] POW10 = new double[23];
+
+	static {
+		POW10[0] = 1.0;
+		for (int k = 1; k < POW10.length; k++)
+			POW10[k] = POW10[k-1] * 10.0;
+	}
+
+	/**
+	 * Hash of the bytes of a field, consistent with {@link #hash(byte[], int, int)}.
+	 * @param i
+	 * @return
+	 */
+	public int hash(final int i) {
+		return hash(buf, start[i], end[i]);
+	}
+
+	/**
+	 * Hash of a byte range.
+	 * @param buf
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public static int hash(final byte[] buf, final int from, final int to) {
+		int h = 1;
+		for (int k = from; k < to; k++)
+			h = 31 * h + buf[k];
+		return h;
+	}
+
+}
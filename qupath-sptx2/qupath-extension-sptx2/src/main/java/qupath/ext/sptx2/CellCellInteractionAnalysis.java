@@ -69,7 +69,6 @@ import qupath.imagej.tools.IJTools;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.dialogs.Dialogs;
-import qupath.lib.gui.measure.ObservableMeasurementTableData;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
@@ -108,9 +107,10 @@ import org.json.JSONObject;
  *
  */
 public class CellCellInteractionAnalysis extends AbstractDetectionPlugin<BufferedImage> {
-	final private static Logger logger = LoggerFactory.getLogger(XeniumAnnotation.class);
+	final private static Logger logger = LoggerFactory.getLogger(CellCellInteractionAnalysis.class);
 	final private StringProperty CCIAnalLRPFileProp = PathPrefs.createPersistentPreference("CCIAnalLRPFile", ""); 
 	final private StringProperty CCIAnalVendorProp = PathPrefs.createPersistentPreference("CCIAnalVendor", ""); 
+	final private StringProperty CCIAnalPermFileProp = PathPrefs.createPersistentPreference("CCIAnalPermFile", ""); 
 	// final private StringProperty CCIAnalSummaryProp = PathPrefs.createPersistentPreference("CCIAnalOper", "mean"); 
 
 	private final List<String> summaryApproachList = new ArrayList<>(List.of("sum", "mean", "max"));
@@ -130,6 +130,12 @@ public class CellCellInteractionAnalysis extends AbstractDetectionPlugin<Buffere
 			.addTitleParameter("Cell-Cell Interaction Analysis")
 			.addStringParameter("lrpfile", "Ligand-Receptor Pair list file", CCIAnalLRPFileProp.get(), "Ligand-Receptor Pair list file")
 			.addChoiceParameter("vendor", "Vendor", CCIAnalVendorProp.get(), vendorlList, "Choose the vendor that should be used for object classification")
+			.addEmptyParameter("")
+			.addIntParameter("nPermutations", "Number of permutations (0: no test)", 0, null, "Number of cluster label shuffles of the permutation test between cell classes, 0 to skip the test")
+			.addIntParameter("seed", "Random seed", 1, null, "Seed of the label shuffles")
+			.addDoubleParameter("minExprFraction", "Minimal fraction of expressing cells", 0.1, null, "A pair is scored 0 for two classes when the ligand or the receptor is expressed in fewer cells of its class")
+			.addDoubleParameter("maxPValue", "Maximal p-value reported", 1.0, null, "Only write ligand-receptor pairs and class pairs up to this p-value")
+			.addStringParameter("permFile", "Permutation test result file (.tsv)", CCIAnalPermFileProp.get(), "Table of scores and p-values for every ligand-receptor pair and pair of touching cell classes")
 			
 			// .addChoiceParameter("summary", "summary approach", CCIAnalSummaryProp.get(), summaryApproachList, "Summary")
 			;
@@ -143,18 +149,13 @@ public class CellCellInteractionAnalysis extends AbstractDetectionPlugin<Buffere
 		public Collection<PathObject> runDetection(final ImageData<BufferedImage> imageData, final ParameterList params, final ROI pathROI) throws IOException {
 			CCIAnalLRPFileProp.set(params.getStringParameterValue("lrpfile"));
 			CCIAnalVendorProp.set((String)params.getChoiceParameterValue("vendor"));
+			CCIAnalPermFileProp.set(params.getStringParameterValue("permFile"));
 			// CCIAnalSummaryProp.set(params.getChoiceParameterValue("summary").toString());
 			
 			final PathObjectHierarchy hierarchy = imageData.getHierarchy();
-			final ObservableMeasurementTableData model = new ObservableMeasurementTableData();
-			model.setImageData(imageData, imageData == null ? Collections.emptyList() : hierarchy.getObjects(null, PathDetectionObject.class));
 			final PathObjectConnections connections = (PathObjectConnections) imageData.getProperty("OBJECT_CONNECTIONS");
 			
 			try {
-				/*
-	             * Generate cell masks with their labels
-	             */
-				
 				final List<PathObject> selectedAnnotationPathObjectList = new ArrayList<>();
 				
 				for (PathObject pathObject : hierarchy.getSelectionModel().getSelectedObjects()) {
@@ -164,108 +165,39 @@ public class CellCellInteractionAnalysis extends AbstractDetectionPlugin<Buffere
 				
 				if(selectedAnnotationPathObjectList.isEmpty()) throw new Exception("Missed selected annotations");
 				
+				final int nPermutations = params.getIntParameterValue("nPermutations");
+				if(nPermutations > 0 && params.getStringParameterValue("permFile").isBlank()) throw new Exception("permFile is blank");
 				
-				final List<String> availGeneList = model.getAllNames().stream().filter(c -> c.startsWith((String)params.getChoiceParameterValue("vendor")+":cell_transcript:")).collect(Collectors.toList());
+				final String vendor = (String)params.getChoiceParameterValue("vendor");
+				final List<String[]> lrpList = CellInteractionEngine.readPairs(new File(params.getStringParameterValue("lrpfile")));
 				
-				final List<List<String>> lrpList = new ArrayList<>();
+				final List<PathObject> cellPathObjectList = new ArrayList<>();
+				for(PathObject p: selectedAnnotationPathObjectList) cellPathObjectList.addAll(p.getChildObjects());
 				
-				final String lprFilePath = params.getStringParameterValue("lrpfile");
-				final FileReader lrpFileReader = new FileReader(new File(lprFilePath));
-				final BufferedReader lrpReader = new BufferedReader(lrpFileReader);
-				lrpReader.readLine();
-				String lrpNextRecord;
+				/*
+				 * Extract ligand and receptor expression once, then score every cell over a primitive neighbour array
+				 */
 				
-				while ((lrpNextRecord = lrpReader.readLine()) != null) {
-		        	final String[] lrpNextRecordArray = lrpNextRecord.split(",");
-		        	final String ligand = lrpNextRecordArray[1].replaceAll("\"", "");
-		        	final String receptor = lrpNextRecordArray[2].replaceAll("\"", "");
-		        		
-		        	if(availGeneList.contains((String)params.getChoiceParameterValue("vendor")+":cell_transcript:"+ligand) && availGeneList.contains((String)params.getChoiceParameterValue("vendor")+":cell_transcript:"+receptor))
-		        		lrpList.add(Arrays.asList(ligand, receptor));
-				}
+				final CellInteractionEngine engine = CellInteractionEngine.build(cellPathObjectList, connections, lrpList, vendor+":cell_transcript:", GeneExpressionStore.getStore(imageData));
+				engine.writeMeasurements(vendor+":cell_cci:");
 				
-				lrpReader.close();
+				logger.info("Scored {} ligand-receptor pairs over {} cells", engine.getPairCount(), engine.getCellCount());
 				
-				selectedAnnotationPathObjectList.parallelStream().forEach(p -> {
-				// for(PathObject p: selectedAnnotationPathObjectList) {
-					// for(PathObject c: p.getChildObjects()) {
-					p.getChildObjects().parallelStream().forEach(c -> { 
-						final List<PathObject> connectedObj = connections.getConnections(c);
-						final MeasurementList cMeasList = c.getMeasurementList();
-						final List<String> cgList = cMeasList.getMeasurementNames().stream().filter(g -> g.startsWith((String)params.getChoiceParameterValue("vendor")+":cell_transcript:")).collect(Collectors.toList());
-						
-//						if(lrpList.stream().map(g -> cMeasList.get((String)params.getChoiceParameterValue("vendor")+":cell_transcript:"+g.get(0))).anyMatch(g -> g.isNaN())) continue;
-//						if(cgList.stream().map(g -> cMeasList.get(g)).anyMatch(g -> g.isNaN())) continue;
-						if(lrpList.stream().map(g -> cMeasList.get((String)params.getChoiceParameterValue("vendor")+":cell_transcript:"+g.get(0))).anyMatch(g -> g.isNaN())) return;
-						if(cgList.stream().map(g -> cMeasList.get(g)).anyMatch(g -> g.isNaN())) return;
-						
-						final double cgSum = cgList.stream().map(g -> cMeasList.get(g)).mapToDouble(Double::doubleValue).sum();
-						final Map<String, Double> cgMap = cgList.stream().collect(Collectors.toMap(g -> g, g -> cMeasList.get(g)/cgSum));
-						
-						lrpList.stream().forEach(g -> {cMeasList.put((String)params.getChoiceParameterValue("vendor")+":cell_cci:"+g.get(0)+"_"+g.get(1), 0);});
-						
-						// for(PathObject d: connectedObj) {
-						connectedObj.parallelStream().forEach(d -> {
-							final MeasurementList dMeasList = d.getMeasurementList();
-							final List<String> dgList = dMeasList.getMeasurementNames().stream().filter(g -> g.startsWith((String)params.getChoiceParameterValue("vendor")+":cell_transcript:")).collect(Collectors.toList());
-							
-//							if(lrpList.stream().map(g -> dMeasList.get((String)params.getChoiceParameterValue("vendor")+":cell_transcript:"+g.get(1))).anyMatch(g -> g.isNaN())) continue;
-//							if(dgList.stream().map(g -> dMeasList.get(g)).anyMatch(g -> g.isNaN())) continue;
-							if(lrpList.stream().map(g -> dMeasList.get((String)params.getChoiceParameterValue("vendor")+":cell_transcript:"+g.get(1))).anyMatch(g -> g.isNaN())) return;
-							if(dgList.stream().map(g -> dMeasList.get(g)).anyMatch(g -> g.isNaN())) return;
-							
-							final double dgSum = dgList.stream().map(g -> dMeasList.get(g)).mapToDouble(Double::doubleValue).sum();
-							final Map<String, Double> dgMap = dgList.stream().collect(Collectors.toMap(g -> g, g -> dMeasList.get(g)/dgSum));
-							
-							// for(List<String> lrp: lrpList) {
-							lrpList.parallelStream().forEach(lrp -> {
-								final Double cv = cgMap.get((String)params.getChoiceParameterValue("vendor")+":cell_transcript:"+lrp.get(0));
-								final Double dv = dgMap.get((String)params.getChoiceParameterValue("vendor")+":cell_transcript:"+lrp.get(1));
-								
-								// if(cv.isNaN() || dv.isNaN()) continue;
-								if(cv.isNaN() || dv.isNaN()) return;
-								
-								synchronized (cMeasList) {
-									final Double ov = cMeasList.get((String)params.getChoiceParameterValue("vendor")+":cell_cci:"+lrp.get(0)+"_"+lrp.get(1));
-									
-									if(ov.isNaN()) {
-										cMeasList.put((String)params.getChoiceParameterValue("vendor")+":cell_cci:"+lrp.get(0)+"_"+lrp.get(1), cv*dv);
-									}
-									else {
-//										if(params.getChoiceParameterValue("summary").equals(summaryApproachList.get(2))) { 
-//											if(cv*dv > ov.doubleValue()) {
-//												cMeasList.put((String)params.getChoiceParameterValue("vendor")+":cell_cci:"+lrp.get(0)+"_"+lrp.get(1), cv*dv);
-//											}
-//											
-//										}
-//										else {
-											cMeasList.put((String)params.getChoiceParameterValue("vendor")+":cell_cci:"+lrp.get(0)+"_"+lrp.get(1), ov.doubleValue()+(cv*dv));
-//										}
-									}
-							    }
-							// }
-							});
-							
-							dMeasList.close();
-						// }
-						});
-						
-//						if(params.getChoiceParameterValue("summary").equals(summaryApproachList.get(1))) { 
-							
-//							for(List<String> lrp: lrpList) {
-//								final Double ov = cMeasList.get((String)params.getChoiceParameterValue("vendor")+":cell_cci:"+lrp.get(0)+"_"+lrp.get(1));
-//								
-//								synchronized (cMeasList) {
-//									if(!ov.isNaN()) cMeasList.put((String)params.getChoiceParameterValue("vendor")+":cell_cci:"+lrp.get(0)+"_"+lrp.get(1), ov/connectedObj.size());
-//							    }
-//							}
-//						}
-//						
-						cMeasList.close();
-					// }
-					});
-				});
-//				}
+				/*
+				 * Permutation test between cell classes, written as a table rather than as measurements
+				 */
+				
+				if(nPermutations > 0) {
+					final LigandReceptorPermutationTest test = new LigandReceptorPermutationTest(engine, 
+							p -> p.getPathClass() == null? null: p.getPathClass().toString(), 
+							params.getDoubleParameterValue("minExprFraction"));
+					if(test.getClusterNames().length == 0) throw new Exception("No classified cells with ligand and receptor expression");
+					
+					test.run(nPermutations, params.getIntParameterValue("seed"));
+					final int nRows = test.writeTable(new File(params.getStringParameterValue("permFile")), params.getDoubleParameterValue("maxPValue"));
+					
+					logger.info("Ran {} permutations over {} cells in {} classes, wrote {} rows to {}", test.getPermutationCount(), test.getCellCount(), test.getClusterNames().length, nRows, params.getStringParameterValue("permFile"));
+				}
 	            
 		        hierarchy.getSelectionModel().setSelectedObject(null);
 				
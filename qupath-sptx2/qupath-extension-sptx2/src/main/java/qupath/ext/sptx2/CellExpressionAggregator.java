@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Sums per-cell transcript counts into target objects (e.g. spots), in parallel.
+ * <p>
+ * Counts are read from a {@link GeneExpressionStore} when it holds the cell, and otherwise from measurements
+ * named {@code <prefix><gene>}. Values are rounded to whole counts.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class CellExpressionAggregator {
+
+	final private GeneExpressionStore store;
+	final private String prefix;
+
+	final private FeatureDictionary dictionary = new FeatureDictionary();
+	private TranscriptCountTable counts;
+
+	/**
+	 * Create an aggregator.
+	 * @param store sparse store to read from, or null; ignored unless its prefix matches
+	 * @param prefix measurement name prefix of the cell counts, e.g. "xenium:cell_transcript:"
+	 */
+	public CellExpressionAggregator(final GeneExpressionStore store, final String prefix) {
+		this.store = store != null && prefix.equals(store.getPrefix())? store: null;
+		this.prefix = prefix;
+		if (this.store != null) {
+			// Store columns become dictionary ids
+			for (String gene: this.store.getGenes())
+				dictionary.intern(gene);
+		}
+	}
+
+	/**
+	 * Sum the counts of every cell into its target.
+	 * @param cells
+	 * @param cellTargets target index for every cell, or -1 to skip the cell
+	 * @param nTargets number of targets
+	 */
+	public void aggregate(final List<PathObject> cells, final int[] cellTargets, final int nTargets) {
+		final int nWorkers = ThreadTools.getParallelism();
+		final int nCells = cells.size();
+		final TranscriptCountTable table = new TranscriptCountTable(nTargets, nWorkers);
+
+		IntStream.range(0, nWorkers).parallel().forEach(w -> {
+			final Map<String, Integer> featureIds = new HashMap<>();
+			final int from = (int)((long)nCells * w / nWorkers);
+			final int to = (int)((long)nCells * (w + 1) / nWorkers);
+			for (int i = from; i < to; i++) {
+				final int target = cellTargets[i];
+				if (target < 0)
+					continue;
+				final PathObject cell = cells.get(i);
+
+				final int row = store == null? -1: store.getRow(cell);
+				if (row >= 0) {
+					store.forEachInRow(row, (gene, value) -> {
+						final int count = Math.round(value);
+						if (count > 0)
+							table.add(w, target, gene, count);
+					});
+					continue;
+				}
+
+				final MeasurementList measList = cell.getMeasurementList();
+				final List<String> names = measList.getMeasurementNames();
+				final double[] values = measList.values();
+				for (int m = 0; m < Math.min(names.size(), values.length); m++) {
+					final String name = names.get(m);
+					if (!name.startsWith(prefix) || !(values[m] >= 0.5))
+						continue;
+					final int feature = featureIds.computeIfAbsent(name, n -> dictionary.intern(n.substring(prefix.length())));
+					table.add(w, target, feature, (int)Math.round(values[m]));
+				}
+			}
+		});
+
+		table.compact();
+		counts = table;
+	}
+
+	/**
+	 * @return the features seen by the last aggregation
+	 */
+	public FeatureDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * @return per-target counts of the last aggregation
+	 */
+	public TranscriptCountTable getCounts() {
+		return counts;
+	}
+
+}
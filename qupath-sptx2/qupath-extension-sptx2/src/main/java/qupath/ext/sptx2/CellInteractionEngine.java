@@ -0,0 +1,393 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+
+/**
+ * Ligand-receptor scoring over a cell neighbourhood graph.
+ * <p>
+ * Expression of the ligand and receptor genes is extracted once into a dense row-major float matrix, normalised
+ * by the total transcript count of each cell, and ligand-receptor pairs are resolved to column indices. Neighbours
+ * are held as primitive CSR arrays. The score of a pair for a sender cell is the sum over its neighbours of
+ * (ligand of the sender) &times; (receptor of the neighbour).
+ * <p>
+ * Rows 0 to {@link #getCellCount()}-1 are the scored cells; neighbours outside that list follow them, so that
+ * their expression is available as receivers.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class CellInteractionEngine {
+
+	final private List<PathObject> nodes;
+	final private int nCells;
+
+	final private int nGenes;
+	final private float[] expression;
+	final private boolean[] validSender;
+	final private boolean[] validReceiver;
+
+	final private String[] pairNames;
+	final private int[] pairLigands;
+	final private int[] pairReceptors;
+
+	final private int[] adjPtr;
+	final private int[] adjInd;
+
+	private CellInteractionEngine(final List<PathObject> nodes, final int nCells, final int nGenes, final float[] expression,
+			final boolean[] validSender, final boolean[] validReceiver,
+			final String[] pairNames, final int[] pairLigands, final int[] pairReceptors, final int[] adjPtr, final int[] adjInd) {
+		this.nodes = nodes;
+		this.nCells = nCells;
+		this.nGenes = nGenes;
+		this.expression = expression;
+		this.validSender = validSender;
+		this.validReceiver = validReceiver;
+		this.pairNames = pairNames;
+		this.pairLigands = pairLigands;
+		this.pairReceptors = pairReceptors;
+		this.adjPtr = adjPtr;
+		this.adjInd = adjInd;
+	}
+
+	/**
+	 * Read ligand-receptor pairs from a CSV file with a header, ligands in the second column and receptors in the third.
+	 * @param file
+	 * @return (ligand, receptor) pairs, in file order
+	 * @throws IOException
+	 */
+	public static List<String[]> readPairs(final File file) throws IOException {
+		final List<String[]> pairs = new ArrayList<>();
+		try (BufferedReader lrpReader = new BufferedReader(new FileReader(file))) {
+			lrpReader.readLine();
+			String lrpNextRecord;
+			while ((lrpNextRecord = lrpReader.readLine()) != null) {
+				final String[] lrpNextRecordArray = lrpNextRecord.split(",");
+				if (lrpNextRecordArray.length < 3)
+					continue;
+				pairs.add(new String[] {lrpNextRecordArray[1].replaceAll("\"", ""), lrpNextRecordArray[2].replaceAll("\"", "")});
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * Build the engine.
+	 * @param cells cells to score
+	 * @param connections neighbourhood graph
+	 * @param pairs (ligand, receptor) pairs; pairs with a gene that no cell has are dropped
+	 * @param prefix measurement name prefix of the cell counts, e.g. "xenium:cell_transcript:"
+	 * @param store sparse store to read from, or null; ignored unless its prefix matches
+	 * @return
+	 */
+	public static CellInteractionEngine build(final List<PathObject> cells, final PathObjectConnections connections, final List<String[]> pairs,
+			final String prefix, final GeneExpressionStore store) {
+		final GeneExpressionStore cellStore = store != null && prefix.equals(store.getPrefix())? store: null;
+
+		/*
+		 * Index cells first, then the neighbours reached from them
+		 */
+
+		final NeighbourGraph graph = NeighbourGraph.build(cells, connections, true);
+		final int nCells = graph.getCellCount();
+		final List<PathObject> nodes = graph.getNodes();
+		final int[] adjPtr = graph.getPointers();
+		final int[] adjInd = graph.getNeighbours();
+
+		/*
+		 * Resolve the genes of all pairs to columns and extract them once, normalised by the cell totals
+		 */
+
+		final Map<String, Integer> geneColumns = new LinkedHashMap<>();
+		for (String[] pair: pairs) {
+			geneColumns.putIfAbsent(pair[0], geneColumns.size());
+			geneColumns.putIfAbsent(pair[1], geneColumns.size());
+		}
+		final int nAllGenes = geneColumns.size();
+		final int[] storeToColumn;
+		if (cellStore != null) {
+			storeToColumn = new int[cellStore.nGenes()];
+			for (int g = 0; g < storeToColumn.length; g++)
+				storeToColumn[g] = geneColumns.getOrDefault(cellStore.getGenes().get(g), -1);
+		} else {
+			storeToColumn = null;
+		}
+
+		final int nNodes = nodes.size();
+		final float[] dense = new float[nNodes * nAllGenes];
+		final boolean[][] seen = new boolean[ThreadTools.getParallelism()][nAllGenes];
+		final int nWorkers = seen.length;
+
+		IntStream.range(0, nWorkers).parallel().forEach(w -> {
+			final Map<String, Integer> nameColumns = new HashMap<>();
+			final boolean[] workerSeen = seen[w];
+			final int from = (int)((long)nNodes * w / nWorkers);
+			final int to = (int)((long)nNodes * (w + 1) / nWorkers);
+			for (int i = from; i < to; i++) {
+				final PathObject pathObject = nodes.get(i);
+				final int offset = i * nAllGenes;
+				final int row = cellStore == null? -1: cellStore.getRow(pathObject);
+				final double[] total = new double[1];
+				if (row >= 0) {
+					cellStore.forEachInRow(row, (gene, value) -> {
+						total[0] += value;
+						final int c = storeToColumn[gene];
+						if (c >= 0)
+							dense[offset + c] = value;
+					});
+				} else {
+					// Genes absent from the measurement list stay NaN, and make the cell unusable for pairs that need them
+					Arrays.fill(dense, offset, offset + nAllGenes, Float.NaN);
+					final MeasurementList measList = pathObject.getMeasurementList();
+					final List<String> names = measList.getMeasurementNames();
+					final double[] values = measList.values();
+					for (int m = 0; m < Math.min(names.size(), values.length); m++) {
+						final String name = names.get(m);
+						if (!name.startsWith(prefix))
+							continue;
+						total[0] += values[m];
+						final int c = nameColumns.computeIfAbsent(name, n -> geneColumns.getOrDefault(n.substring(prefix.length()), -1));
+						if (c >= 0) {
+							dense[offset + c] = (float)values[m];
+							workerSeen[c] = true;
+						}
+					}
+				}
+				final double sum = total[0];
+				for (int c = 0; c < nAllGenes; c++) {
+					if (Double.isNaN(sum))
+						dense[offset + c] = Float.NaN;
+					else if (!Float.isNaN(dense[offset + c]))
+						dense[offset + c] = sum > 0? (float)(dense[offset + c] / sum): 0f;
+				}
+			}
+		});
+
+		final boolean[] available = new boolean[nAllGenes];
+		if (storeToColumn != null) {
+			for (int c: storeToColumn)
+				if (c >= 0)
+					available[c] = true;
+		}
+		for (boolean[] workerSeen: seen)
+			for (int c = 0; c < nAllGenes; c++)
+				available[c] |= workerSeen[c];
+
+		final List<String> pairNameList = new ArrayList<>();
+		final List<int[]> pairColumnList = new ArrayList<>();
+		for (String[] pair: pairs) {
+			final int l = geneColumns.get(pair[0]);
+			final int r = geneColumns.get(pair[1]);
+			if (available[l] && available[r]) {
+				pairNameList.add(pair[0] + "_" + pair[1]);
+				pairColumnList.add(new int[] {l, r});
+			}
+		}
+		final int[] pairLigands = pairColumnList.stream().mapToInt(p -> p[0]).toArray();
+		final int[] pairReceptors = pairColumnList.stream().mapToInt(p -> p[1]).toArray();
+
+		final boolean[] validSender = new boolean[nNodes];
+		final boolean[] validReceiver = new boolean[nNodes];
+		IntStream.range(0, nNodes).parallel().forEach(i -> {
+			final int offset = i * nAllGenes;
+			boolean sender = true, receiver = true;
+			for (int p = 0; p < pairLigands.length; p++) {
+				sender &= !Float.isNaN(dense[offset + pairLigands[p]]);
+				receiver &= !Float.isNaN(dense[offset + pairReceptors[p]]);
+			}
+			validSender[i] = sender;
+			validReceiver[i] = receiver;
+		});
+
+		return new CellInteractionEngine(nodes, nCells, nAllGenes, dense, validSender, validReceiver,
+				pairNameList.toArray(new String[0]), pairLigands, pairReceptors, adjPtr, adjInd);
+	}
+
+	/**
+	 * @return number of scored cells
+	 */
+	public int getCellCount() {
+		return nCells;
+	}
+
+	/**
+	 * @param i
+	 * @return the object of a cell or neighbour row
+	 */
+	public PathObject getPathObject(final int i) {
+		return nodes.get(i);
+	}
+
+	/**
+	 * @return number of ligand-receptor pairs kept
+	 */
+	public int getPairCount() {
+		return pairNames.length;
+	}
+
+	/**
+	 * @param p
+	 * @return "ligand_receptor"
+	 */
+	public String getPairName(final int p) {
+		return pairNames[p];
+	}
+
+	/**
+	 * @param i
+	 * @return true if the cell has every ligand of the kept pairs
+	 */
+	public boolean isValidSender(final int i) {
+		return validSender[i];
+	}
+
+	/**
+	 * @param i
+	 * @return true if the cell has every receptor of the kept pairs
+	 */
+	public boolean isValidReceiver(final int i) {
+		return validReceiver[i];
+	}
+
+	/**
+	 * @param i
+	 * @param p
+	 * @return normalised ligand expression of pair p in row i
+	 */
+	public float getLigand(final int i, final int p) {
+		return expression[i * nGenes + pairLigands[p]];
+	}
+
+	/**
+	 * @param i
+	 * @param p
+	 * @return normalised receptor expression of pair p in row i
+	 */
+	public float getReceptor(final int i, final int p) {
+		return expression[i * nGenes + pairReceptors[p]];
+	}
+
+	/**
+	 * @param p
+	 * @return expression column of the ligand of pair p
+	 */
+	public int getLigandColumn(final int p) {
+		return pairLigands[p];
+	}
+
+	/**
+	 * @param p
+	 * @return expression column of the receptor of pair p
+	 */
+	public int getReceptorColumn(final int p) {
+		return pairReceptors[p];
+	}
+
+	/**
+	 * @return number of expression columns
+	 */
+	public int getColumnCount() {
+		return nGenes;
+	}
+
+	/**
+	 * @param i
+	 * @param column
+	 * @return normalised expression of one column in row i
+	 */
+	public float getExpression(final int i, final int column) {
+		return expression[i * nGenes + column];
+	}
+
+	/**
+	 * @return CSR row offsets of the neighbours of every cell, of length {@link #getCellCount()}+1
+	 */
+	public int[] getNeighbourPointers() {
+		return adjPtr;
+	}
+
+	/**
+	 * @return neighbour rows, cell by cell
+	 */
+	public int[] getNeighbours() {
+		return adjInd;
+	}
+
+	/**
+	 * Score every pair for one cell.
+	 * @param cell
+	 * @param scores array of length {@link #getPairCount()} receiving the scores
+	 * @return false if the cell is not a valid sender, in which case scores are left untouched
+	 */
+	public boolean score(final int cell, final double[] scores) {
+		if (!validSender[cell])
+			return false;
+		Arrays.fill(scores, 0);
+		final int cOffset = cell * nGenes;
+		for (int k = adjPtr[cell]; k < adjPtr[cell+1]; k++) {
+			final int d = adjInd[k];
+			if (!validReceiver[d])
+				continue;
+			final int dOffset = d * nGenes;
+			for (int p = 0; p < scores.length; p++)
+				scores[p] += expression[cOffset + pairLigands[p]] * expression[dOffset + pairReceptors[p]];
+		}
+		return true;
+	}
+
+	/**
+	 * Score every cell and write the scores as measurements named {@code <prefix><ligand>_<receptor>}.
+	 * Cells are split into one block per worker, each with its own accumulator, and every measurement list is
+	 * written by a single thread.
+	 * @param prefix e.g. "xenium:cell_cci:"
+	 */
+	public void writeMeasurements(final String prefix) {
+		final String[] names = Arrays.stream(pairNames).map(n -> prefix + n).toArray(String[]::new);
+		final int nWorkers = ThreadTools.getParallelism();
+		IntStream.range(0, nWorkers).parallel().forEach(w -> {
+			final double[] scores = new double[pairNames.length];
+			final int from = (int)((long)nCells * w / nWorkers);
+			final int to = (int)((long)nCells * (w + 1) / nWorkers);
+			for (int i = from; i < to; i++) {
+				if (!score(i, scores))
+					continue;
+				final MeasurementList measList = nodes.get(i).getMeasurementList();
+				for (int p = 0; p < names.length; p++)
+					measList.put(names[p], scores[p]);
+				measList.close();
+			}
+		});
+	}
+
+}
@@ -0,0 +1,357 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Distance of target-class cells to the nearest opponent-class cell, over a cell neighbourhood graph.
+ * <p>
+ * Layer 0 holds the target cells with an opponent neighbour, and layer k the target cells with a neighbour in
+ * layer k-1. All layers come from one multi-source breadth-first search over primitive CSR arrays, with the
+ * classes of the cells resolved once. A geodesic mode runs the same search as Dijkstra with centroid distances
+ * as edge weights, and a Euclidean mode takes the straight-line distance to the nearest opponent centroid.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class CellLayerSearch {
+
+	final private int nCells;
+	final private boolean[] target;
+	final private boolean[] opponent;
+	final private double[] x;
+	final private double[] y;
+
+	final private int[] adjPtr;
+	final private int[] adjInd;
+
+	// Transposed graph restricted to the cells: the cells listing cell i as a neighbour
+	final private int[] inPtr;
+	final private int[] inInd;
+
+	final private Set<String> targetClasses;
+	final private Set<String> opponentClasses;
+	final private Map<PathClass, Integer> classCache;
+
+	private CellLayerSearch(final int nCells, final boolean[] target, final boolean[] opponent, final double[] x, final double[] y,
+			final int[] adjPtr, final int[] adjInd, final Set<String> targetClasses, final Set<String> opponentClasses, final Map<PathClass, Integer> classCache) {
+		this.nCells = nCells;
+		this.target = target;
+		this.opponent = opponent;
+		this.x = x;
+		this.y = y;
+		this.adjPtr = adjPtr;
+		this.adjInd = adjInd;
+		this.targetClasses = targetClasses;
+		this.opponentClasses = opponentClasses;
+		this.classCache = classCache;
+
+		this.inPtr = new int[nCells + 1];
+		for (int e = 0; e < adjPtr[nCells]; e++) {
+			if (adjInd[e] < nCells)
+				inPtr[adjInd[e] + 1]++;
+		}
+		for (int i = 0; i < nCells; i++)
+			inPtr[i+1] += inPtr[i];
+		this.inInd = new int[inPtr[nCells]];
+		final int[] fill = Arrays.copyOf(inPtr, nCells);
+		for (int i = 0; i < nCells; i++) {
+			for (int e = adjPtr[i]; e < adjPtr[i+1]; e++) {
+				final int j = adjInd[e];
+				if (j < nCells)
+					inInd[fill[j]++] = i;
+			}
+		}
+	}
+
+	/**
+	 * Build the search graph.
+	 * @param cells cells to label
+	 * @param connections neighbourhood graph
+	 * @param targetClasses names of the target classes, compared without whitespace
+	 * @param opponentClasses names of the opponent classes, compared without whitespace
+	 * @return
+	 */
+	public static CellLayerSearch build(final List<PathObject> cells, final PathObjectConnections connections,
+			final Collection<String> targetClasses, final Collection<String> opponentClasses) {
+		final int nCells = cells.size();
+		final Set<String> targets = targetClasses.stream().map(CellLayerSearch::normalise).collect(Collectors.toCollection(HashSet::new));
+		final Set<String> opponents = opponentClasses.stream().map(CellLayerSearch::normalise).collect(Collectors.toCollection(HashSet::new));
+
+		/*
+		 * Index cells first, then the neighbours reached from them
+		 */
+
+		final NeighbourGraph graph = NeighbourGraph.build(cells, connections, true);
+		final List<PathObject> nodes = graph.getNodes();
+		final int[] adjPtr = graph.getPointers();
+		final int[] adjInd = graph.getNeighbours();
+
+		/*
+		 * Resolve classes once per PathClass rather than once per visit
+		 */
+
+		final int nNodes = nodes.size();
+		final boolean[] target = new boolean[nNodes];
+		final boolean[] opponent = new boolean[nNodes];
+		final double[] x = new double[nNodes];
+		final double[] y = new double[nNodes];
+		final Map<PathClass, Integer> classCache = new IdentityHashMap<>();
+		for (int i = 0; i < nNodes; i++) {
+			final PathObject pathObject = nodes.get(i);
+			final int category = category(pathObject.getPathClass(), targets, opponents, classCache);
+			target[i] = (category & 1) != 0;
+			opponent[i] = (category & 2) != 0;
+			final ROI roi = pathObject.getROI();
+			x[i] = roi == null? Double.NaN: roi.getCentroidX();
+			y[i] = roi == null? Double.NaN: roi.getCentroidY();
+		}
+
+		return new CellLayerSearch(nCells, target, opponent, x, y, adjPtr, adjInd, targets, opponents, classCache);
+	}
+
+	private static String normalise(final String name) {
+		return name.replaceAll("\\s", "");
+	}
+
+	private static int category(final PathClass pathClass, final Set<String> targets, final Set<String> opponents, final Map<PathClass, Integer> cache) {
+		if (pathClass == null)
+			return 0;
+		return cache.computeIfAbsent(pathClass, c -> {
+			final String name = normalise(c.toString());
+			return (targets.contains(name)? 1: 0) | (opponents.contains(name)? 2: 0);
+		});
+	}
+
+	/**
+	 * @return number of cells
+	 */
+	public int getCellCount() {
+		return nCells;
+	}
+
+	/**
+	 * @param i
+	 * @return true if the cell belongs to a target class
+	 */
+	public boolean isTarget(final int i) {
+		return target[i];
+	}
+
+	/**
+	 * Hop distance of every target cell to the nearest opponent neighbour, through target cells.
+	 * @param maxLayers number of layers to label, or 0 (or less) for all
+	 * @return layer of every cell, -1 for cells not reached or not of a target class
+	 */
+	public int[] getLayers(final int maxLayers) {
+		final int limit = maxLayers > 0? maxLayers: Integer.MAX_VALUE;
+		final int[] layers = new int[nCells];
+		Arrays.fill(layers, -1);
+
+		final int[] queue = new int[nCells];
+		int tail = 0;
+		for (int i = 0; i < nCells; i++) {
+			if (target[i] && hasOpponentNeighbour(i)) {
+				layers[i] = 0;
+				queue[tail++] = i;
+			}
+		}
+
+		for (int head = 0; head < tail; head++) {
+			final int u = queue[head];
+			final int next = layers[u] + 1;
+			if (next >= limit)
+				break;
+			for (int e = inPtr[u]; e < inPtr[u+1]; e++) {
+				final int v = inInd[e];
+				if (target[v] && layers[v] < 0) {
+					layers[v] = next;
+					queue[tail++] = v;
+				}
+			}
+		}
+		return layers;
+	}
+
+	/**
+	 * Shortest path length from every target cell to an opponent neighbour, through target cells,
+	 * with centroid-to-centroid distances as edge lengths.
+	 * @return distance of every cell in pixels, NaN for cells not reached or not of a target class
+	 */
+	public double[] getGeodesicDistances() {
+		final double[] dist = new double[nCells];
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		final DistanceHeap heap = new DistanceHeap(Math.max(16, nCells));
+
+		for (int i = 0; i < nCells; i++) {
+			if (!target[i])
+				continue;
+			double d = Double.POSITIVE_INFINITY;
+			for (int e = adjPtr[i]; e < adjPtr[i+1]; e++) {
+				final int j = adjInd[e];
+				if (opponent[j])
+					d = Math.min(d, Math.hypot(x[j] - x[i], y[j] - y[i]));
+			}
+			if (d < Double.POSITIVE_INFINITY) {
+				dist[i] = d;
+				heap.push(d, i);
+			}
+		}
+
+		while (!heap.isEmpty()) {
+			final double d = heap.peekKey();
+			final int u = heap.pop();
+			if (d > dist[u])
+				continue;
+			for (int e = inPtr[u]; e < inPtr[u+1]; e++) {
+				final int v = inInd[e];
+				if (!target[v])
+					continue;
+				final double dv = d + Math.hypot(x[v] - x[u], y[v] - y[u]);
+				if (dv < dist[v]) {
+					dist[v] = dv;
+					heap.push(dv, v);
+				}
+			}
+		}
+
+		for (int i = 0; i < nCells; i++) {
+			if (dist[i] == Double.POSITIVE_INFINITY)
+				dist[i] = Double.NaN;
+		}
+		return dist;
+	}
+
+	/**
+	 * Straight-line distance from every target cell to the nearest opponent centroid.
+	 * @param candidates objects to search for opponents, e.g. all detections; only those of an opponent class are used
+	 * @return distance of every cell in pixels, NaN for cells not of a target class or if there is no opponent
+	 */
+	public double[] getEuclideanDistances(final Collection<PathObject> candidates) {
+		final List<PathObject> opponents = new ArrayList<>();
+		synchronized (classCache) {
+			for (PathObject pathObject: candidates) {
+				if (pathObject.getROI() != null && (category(pathObject.getPathClass(), targetClasses, opponentClasses, classCache) & 2) != 0)
+					opponents.add(pathObject);
+			}
+		}
+
+		final double[] ox = new double[opponents.size()];
+		final double[] oy = new double[opponents.size()];
+		for (int k = 0; k < ox.length; k++) {
+			ox[k] = opponents.get(k).getROI().getCentroidX();
+			oy[k] = opponents.get(k).getROI().getCentroidY();
+		}
+		final PointGrid grid = new PointGrid(ox, oy);
+
+		final double[] dist = new double[nCells];
+		IntStream.range(0, nCells).parallel().forEach(i -> {
+			final int j = target[i] && !Double.isNaN(x[i])? grid.nearest(x[i], y[i], -1): -1;
+			dist[i] = j < 0? Double.NaN: Math.hypot(ox[j] - x[i], oy[j] - y[i]);
+		});
+		return dist;
+	}
+
+	private boolean hasOpponentNeighbour(final int i) {
+		for (int e = adjPtr[i]; e < adjPtr[i+1]; e++) {
+			if (opponent[adjInd[e]])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Binary min-heap of (distance, cell) entries, with stale entries skipped by the caller.
+	 */
+	private static class DistanceHeap {
+
+		private double[] keys;
+		private int[] values;
+		private int size = 0;
+
+		DistanceHeap(final int capacity) {
+			keys = new double[capacity];
+			values = new int[capacity];
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		double peekKey() {
+			return keys[0];
+		}
+
+		void push(final double key, final int value) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			int k = size++;
+			while (k > 0) {
+				final int parent = (k - 1) >>> 1;
+				if (keys[parent] <= key)
+					break;
+				keys[k] = keys[parent];
+				values[k] = values[parent];
+				k = parent;
+			}
+			keys[k] = key;
+			values[k] = value;
+		}
+
+		int pop() {
+			final int top = values[0];
+			final double key = keys[--size];
+			final int value = values[size];
+			int k = 0;
+			while (true) {
+				int child = 2 * k + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && keys[child + 1] < keys[child])
+					child++;
+				if (key <= keys[child])
+					break;
+				keys[k] = keys[child];
+				values[k] = values[child];
+				k = child;
+			}
+			keys[k] = key;
+			values[k] = value;
+			return top;
+		}
+
+	}
+
+}
@@ -0,0 +1,381 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Parsed per-cell records of a vendor output: a 64-bit cell key, the cell position in full-resolution image
+ * pixels, an optional cluster id and any number of named numeric columns.
+ * <p>
+ * Tables are plain arrays, so they can be written to and memory-mapped from a {@link SidecarCache}.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class CellTable {
+
+	/**
+	 * Cluster id of cells without a cluster.
+	 */
+	public static final int NO_CLUSTER = -1;
+
+	/**
+	 * Sidecar codec for cell tables.
+	 */
+	public static final SidecarCache.Codec<CellTable> CODEC = new SidecarCache.Codec<CellTable>() {
+
+		@Override
+		public void write(final CellTable table, final SidecarCache.Writer writer) {
+			writer.putLongs("keys", table.keys)
+				.putDoubles("x", table.x)
+				.putDoubles("y", table.y)
+				.putInts("clusters", table.clusters)
+				.putStrings("columns", table.columns.keySet().toArray(new String[0]));
+			for (Map.Entry<String, double[]> e : table.columns.entrySet())
+				writer.putDoubles("column:" + e.getKey(), e.getValue());
+		}
+
+		@Override
+		public CellTable read(final SidecarCache.Entry entry) throws IOException {
+			final Map<String, double[]> columns = new LinkedHashMap<>();
+			for (String name : entry.getStrings("columns"))
+				columns.put(name, entry.getDoubleArray("column:" + name));
+			return new CellTable(entry.getLongArray("keys"), entry.getDoubleArray("x"), entry.getDoubleArray("y"), entry.getIntArray("clusters"), columns);
+		}
+
+	};
+
+	final private long[] keys;
+	final private double[] x;
+	final private double[] y;
+	final private int[] clusters;
+	final private Map<String, double[]> columns;
+
+	/**
+	 * Create a table. All arrays must have the same length.
+	 * @param keys cell keys
+	 * @param x x positions in full-resolution pixels
+	 * @param y y positions in full-resolution pixels
+	 * @param clusters cluster ids, or {@link #NO_CLUSTER}
+	 * @param columns further numeric columns, in display order
+	 */
+	public CellTable(final long[] keys, final double[] x, final double[] y, final int[] clusters, final Map<String, double[]> columns) {
+		this.keys = keys;
+		this.x = x;
+		this.y = y;
+		this.clusters = clusters;
+		this.columns = columns;
+	}
+
+	/**
+	 * @return number of cells
+	 */
+	public int size() {
+		return keys.length;
+	}
+
+	/**
+	 * @param i
+	 * @return the key of a cell
+	 */
+	public long getKey(final int i) {
+		return keys[i];
+	}
+
+	/**
+	 * @param i
+	 * @return the x position of a cell in full-resolution pixels
+	 */
+	public double getX(final int i) {
+		return x[i];
+	}
+
+	/**
+	 * @param i
+	 * @return the y position of a cell in full-resolution pixels
+	 */
+	public double getY(final int i) {
+		return y[i];
+	}
+
+	/**
+	 * @param i
+	 * @return the cluster id of a cell, or {@link #NO_CLUSTER}
+	 */
+	public int getCluster(final int i) {
+		return clusters[i];
+	}
+
+	/**
+	 * @param name
+	 * @return all values of a named column, or null if there is no such column
+	 */
+	public double[] getColumn(final String name) {
+		return columns.get(name);
+	}
+
+	/**
+	 * Find the object containing every cell, in parallel.
+	 * @param locator
+	 * @return object index for every cell, or -1
+	 */
+	public int[] locate(final PointLocator locator) {
+		final int[] result = new int[keys.length];
+		IntStream.range(0, keys.length).parallel().forEach(i -> result[i] = locator.locate(x[i], y[i]));
+		return result;
+	}
+
+	/**
+	 * Read Xenium {@code cells.csv.gz} and {@code analysis/clustering/gene_expression_graphclust/clusters.csv}.
+	 * Cell positions are converted from microns to DAPI pixels and mapped through the affine transform, while
+	 * the original centroids are kept as the {@code x_centroid} and {@code y_centroid} columns.
+	 * @param xeniumDir
+	 * @param dapiImageHeightMicrons
+	 * @param dapiImagePixelSizeMicrons
+	 * @param affineMtx first two rows of the DAPI to image affine transform
+	 * @return
+	 * @throws IOException
+	 */
+	public static CellTable readXenium(final File xeniumDir, final double dapiImageHeightMicrons, final double dapiImagePixelSizeMicrons, final double[] affineMtx) throws IOException {
+		final LongIntHashMap cellToCluster = new LongIntHashMap(1 << 16, NO_CLUSTER);
+		try (BufferedReader clusterReader = new BufferedReader(new FileReader(getXeniumClusterFile(xeniumDir)))) {
+			clusterReader.readLine();
+			String clusterNextRecord;
+			while ((clusterNextRecord = clusterReader.readLine()) != null) {
+				final String[] clusterNextRecordArray = clusterNextRecord.split(",");
+				cellToCluster.put(Integer.parseInt(clusterNextRecordArray[0]), Integer.parseInt(clusterNextRecordArray[1]));
+			}
+		}
+
+		// "cell_id","x_centroid","y_centroid","transcript_counts","control_probe_counts","control_codeword_counts","total_counts","cell_area","nucleus_area"
+		final String[] columnNames = {"x_centroid", "y_centroid", "transcript_counts", "control_probe_counts", "control_codeword_counts", "total_counts", "cell_area", "nucleus_area"};
+
+		int n = 0;
+		long[] keys = new long[1 << 16];
+		double[][] values = new double[columnNames.length][keys.length];
+
+		try (BufferedReader singleCellReader = new BufferedReader(new InputStreamReader(ChunkedTextParser.openStream(new File(xeniumDir, "cells.csv.gz")), StandardCharsets.UTF_8))) {
+			singleCellReader.readLine();
+			String singleCellNextRecord;
+			while ((singleCellNextRecord = singleCellReader.readLine()) != null) {
+				final String[] singleCellNextRecordArray = singleCellNextRecord.split(",");
+				if (n == keys.length) {
+					keys = Arrays.copyOf(keys, n * 2);
+					for (int c = 0; c < columnNames.length; c++)
+						values[c] = Arrays.copyOf(values[c], n * 2);
+				}
+				keys[n] = Integer.parseInt(singleCellNextRecordArray[0]);
+				for (int c = 0; c < columnNames.length; c++)
+					values[c][n] = Double.parseDouble(singleCellNextRecordArray[c + 1]);
+				n++;
+			}
+		}
+
+		final double[] x = new double[n];
+		final double[] y = new double[n];
+		final int[] clusters = new int[n];
+		for (int i = 0; i < n; i++) {
+			final double dx = values[0][i] / dapiImagePixelSizeMicrons;
+			final double dy = (dapiImageHeightMicrons - values[1][i]) / dapiImagePixelSizeMicrons;
+			x[i] = affineMtx[0] * dx + affineMtx[1] * dy + affineMtx[2];
+			y[i] = affineMtx[3] * dx + affineMtx[4] * dy + affineMtx[5];
+			clusters[i] = cellToCluster.get(keys[i]);
+		}
+
+		final Map<String, double[]> columns = new LinkedHashMap<>();
+		for (int c = 0; c < columnNames.length; c++)
+			columns.put(columnNames[c], Arrays.copyOf(values[c], n));
+		return new CellTable(Arrays.copyOf(keys, n), x, y, clusters, columns);
+	}
+
+	/**
+	 * @param xeniumDir
+	 * @return the source files read by {@link #readXenium(File, double, double, double[])}, including the affine transform
+	 */
+	public static List<File> getXeniumSources(final File xeniumDir) {
+		return List.of(new File(xeniumDir, "cells.csv.gz"), getXeniumClusterFile(xeniumDir), new File(xeniumDir, "affine_matrix.json"));
+	}
+
+	private static File getXeniumClusterFile(final File xeniumDir) {
+		return xeniumDir.toPath().resolve("analysis").resolve("clustering").resolve("gene_expression_graphclust").resolve("clusters.csv").toFile();
+	}
+
+	/**
+	 * Read a CosMx {@code *metadata_file.csv}, with cell keys packed from (fov, cell_ID).
+	 * Global cell centres are shifted so that the top-left FOV of {@code *fov_positions_file.csv} is at the image origin.
+	 * Rows are parsed in parallel chunks and returned grouped by FOV, ordered by cell id within each FOV.
+	 * @param metadataFile
+	 * @param fovPositionsFile
+	 * @return
+	 * @throws Exception
+	 */
+	public static CellTable readCosmx(final File metadataFile, final File fovPositionsFile) throws Exception {
+		final double[] globalMin = readCosmxFovOrigin(fovPositionsFile);
+
+		// "fov","cell_ID","Area","AspectRatio","CenterX_local_px","CenterY_local_px","CenterX_global_px","CenterY_global_px",...
+		final List<String> headers = Arrays.asList(ChunkedTextParser.readFirstLine(metadataFile).replaceAll("\"", "").split(","));
+		final int fovCol = columnIndex(headers, "fov", 0);
+		final int cellCol = columnIndex(headers, "cell_ID", 1);
+		final int xCol = columnIndex(headers, "CenterX_global_px", 6);
+		final int yCol = columnIndex(headers, "CenterY_global_px", 7);
+		final int minFields = Math.max(Math.max(fovCol, cellCol), Math.max(xCol, yCol)) + 1;
+
+		final ChunkedTextParser parser = new ChunkedTextParser(metadataFile).skipHeader(true);
+		final CellBlock[] blocks = new CellBlock[parser.getWorkerCount()];
+		final ByteFields[] fields = new ByteFields[parser.getWorkerCount()];
+		for (int w = 0; w < blocks.length; w++) {
+			blocks[w] = new CellBlock();
+			fields[w] = new ByteFields(',', headers.size());
+		}
+
+		parser.parse((buf, from, to, worker) -> {
+			final ByteFields f = fields[worker];
+			final CellBlock block = blocks[worker];
+			int p = from;
+			while (p < to) {
+				final int e = ByteFields.lineEnd(buf, p, to);
+				if (f.split(buf, p, e) >= minFields)
+					block.add(LongIntHashMap.pack(f.getInt(fovCol), f.getInt(cellCol)), f.getDouble(xCol) - globalMin[0], f.getDouble(yCol) - globalMin[1]);
+				p = e + 1;
+			}
+		});
+
+		int n = 0;
+		for (CellBlock block : blocks)
+			n += block.n;
+		final long[] unorderedKeys = new long[n];
+		final double[] unorderedX = new double[n];
+		final double[] unorderedY = new double[n];
+		n = 0;
+		for (CellBlock block : blocks) {
+			System.arraycopy(block.keys, 0, unorderedKeys, n, block.n);
+			System.arraycopy(block.x, 0, unorderedX, n, block.n);
+			System.arraycopy(block.y, 0, unorderedY, n, block.n);
+			n += block.n;
+		}
+
+		final int[] order = orderByPackedKey(unorderedKeys);
+		final long[] keys = new long[n];
+		final double[] x = new double[n];
+		final double[] y = new double[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = unorderedKeys[order[i]];
+			x[i] = unorderedX[order[i]];
+			y[i] = unorderedY[order[i]];
+		}
+
+		final int[] clusters = new int[n];
+		Arrays.fill(clusters, NO_CLUSTER);
+		return new CellTable(keys, x, y, clusters, new LinkedHashMap<>());
+	}
+
+	static double[] readCosmxFovOrigin(final File fovPositionsFile) throws IOException {
+		int x_global_min = -1;
+		int y_global_min = -1;
+
+		try (BufferedReader fovPosBufferedReader = new BufferedReader(new FileReader(fovPositionsFile))) {
+			fovPosBufferedReader.readLine();
+			String fovPosNextRecord;
+			while ((fovPosNextRecord = fovPosBufferedReader.readLine()) != null) {
+				// "fov","x_global_px","y_global_px"
+				final String[] fovPosNextRecordArray = fovPosNextRecord.split(",");
+				final int x_global_px = (int)(0.5+Double.parseDouble(fovPosNextRecordArray[1]));
+				final int y_global_px = (int)(0.5+Double.parseDouble(fovPosNextRecordArray[2]));
+				if(x_global_min == -1 || x_global_px < x_global_min) x_global_min = x_global_px;
+				if(y_global_min == -1 || y_global_px < y_global_min) y_global_min = y_global_px;
+			}
+		}
+		return new double[] {x_global_min, y_global_min};
+	}
+
+	private static int columnIndex(final List<String> headers, final String name, final int defaultIndex) {
+		final int i = headers.indexOf(name);
+		return i < 0? defaultIndex: i;
+	}
+
+	/**
+	 * Order packed (hi, lo) keys by hi and then by lo, e.g. CosMx cells by FOV and then by cell id.
+	 * Keys are bucketed by hi with a counting sort, and the buckets are sorted concurrently.
+	 * @param keys
+	 * @return indices into keys, in key order
+	 */
+	static int[] orderByPackedKey(final long[] keys) {
+		final int n = keys.length;
+		final int[] his = new int[n];
+		for (int i = 0; i < n; i++)
+			his[i] = LongIntHashMap.hi(keys[i]);
+		final int[] distinct = Arrays.stream(his).sorted().distinct().toArray();
+
+		final int[] bucketPtr = new int[distinct.length + 1];
+		final int[] buckets = new int[n];
+		for (int i = 0; i < n; i++) {
+			buckets[i] = Arrays.binarySearch(distinct, his[i]);
+			bucketPtr[buckets[i] + 1]++;
+		}
+		for (int b = 0; b < distinct.length; b++)
+			bucketPtr[b+1] += bucketPtr[b];
+
+		final int[] fill = Arrays.copyOf(bucketPtr, distinct.length);
+		final int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[fill[buckets[i]]++] = i;
+
+		IntStream.range(0, distinct.length).parallel().forEach(b -> {
+			final int from = bucketPtr[b], to = bucketPtr[b+1];
+			final long[] sorted = new long[to - from];
+			for (int i = from; i < to; i++)
+				sorted[i - from] = LongIntHashMap.pack(LongIntHashMap.lo(keys[order[i]]), order[i]);
+			Arrays.sort(sorted);
+			for (int i = from; i < to; i++)
+				order[i] = LongIntHashMap.lo(sorted[i - from]);
+		});
+		return order;
+	}
+
+	private static class CellBlock {
+
+		private int n = 0;
+		private long[] keys = new long[1 << 12];
+		private double[] x = new double[keys.length];
+		private double[] y = new double[keys.length];
+
+		void add(final long key, final double cx, final double cy) {
+			if (n == keys.length) {
+				keys = Arrays.copyOf(keys, n * 2);
+				x = Arrays.copyOf(x, n * 2);
+				y = Arrays.copyOf(y, n * 2);
+			}
+			keys[n] = key;
+			x[n] = cx;
+			y[n++] = cy;
+		}
+
+	}
+
+}
@@ -0,0 +1,303 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Parallel chunked parser for large (optionally gzipped) delimited text files.
+ * <p>
+ * A single reader thread decompresses the input into large byte chunks that always end on a line boundary,
+ * and a fixed pool of workers hands each chunk to a {@link ChunkHandler}.
+ * Chunk buffers are recycled, so the number of bytes in flight is bounded by {@code nWorkers * 2} chunks
+ * no matter how large the file is.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class ChunkedTextParser {
+
+	final private static Logger logger = LoggerFactory.getLogger(ChunkedTextParser.class);
+
+	final private static int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Callback receiving one chunk of complete lines.
+	 */
+	public static interface ChunkHandler {
+
+		/**
+		 * Handle the lines stored in {@code buf[from, to)}. The range always ends with a complete line
+		 * (the final line of the file may lack its trailing newline).
+		 *
+		 * @param buf the chunk buffer; only valid for the duration of the call
+		 * @param from first byte (inclusive)
+		 * @param to last byte (exclusive)
+		 * @param worker index of the calling worker, in the range [0, nWorkers)
+		 * @throws Exception
+		 */
+		void handle(byte[] buf, int from, int to, int worker) throws Exception;
+
+	}
+
+	/**
+	 * Callback receiving one chunk of complete lines along with its position in the file,
+	 * for content that spans consecutive lines (e.g. polygon vertices).
+	 */
+	public static interface SequencedChunkHandler {
+
+		/**
+		 * Handle the lines stored in {@code buf[from, to)}, as for {@link ChunkHandler#handle(byte[], int, int, int)}.
+		 *
+		 * @param buf the chunk buffer; only valid for the duration of the call
+		 * @param from first byte (inclusive)
+		 * @param to last byte (exclusive)
+		 * @param worker index of the calling worker, in the range [0, nWorkers)
+		 * @param sequence index of the chunk in the file, starting from 0; chunks may be handled in any order
+		 * @throws Exception
+		 */
+		void handle(byte[] buf, int from, int to, int worker, long sequence) throws Exception;
+
+	}
+
+	private static class Chunk {
+
+		final private byte[] buf;
+		private int length = 0;
+		private long sequence = 0;
+
+		Chunk(final int size) {
+			buf = new byte[size];
+		}
+
+	}
+
+	final private static Chunk POISON = new Chunk(0);
+
+	final private File file;
+	final private int nWorkers;
+	final private int chunkSize;
+	private int skipLines = 0;
+
+	/**
+	 * Create a parser using the default QuPath parallelism.
+	 * @param file input file; decompressed on the fly if the name ends with .gz
+	 */
+	public ChunkedTextParser(final File file) {
+		this(file, ThreadTools.getParallelism(), DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Create a parser.
+	 * @param file input file; decompressed on the fly if the name ends with .gz
+	 * @param nWorkers number of worker threads
+	 * @param chunkSize approximate chunk size in bytes; must be larger than the longest line
+	 */
+	public ChunkedTextParser(final File file, final int nWorkers, final int chunkSize) {
+		this.file = file;
+		this.nWorkers = Math.max(1, nWorkers);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Skip the first line of the file (e.g. a CSV header).
+	 * @param skipHeader
+	 * @return this parser
+	 */
+	public ChunkedTextParser skipHeader(final boolean skipHeader) {
+		return skipLines(skipHeader ? 1 : 0);
+	}
+
+	/**
+	 * Skip the first lines of the file (e.g. comments and a size line).
+	 * @param skipLines
+	 * @return this parser
+	 */
+	public ChunkedTextParser skipLines(final int skipLines) {
+		this.skipLines = skipLines;
+		return this;
+	}
+
+	/**
+	 * @return the number of workers that will call the handler; worker indices range over [0, nWorkers)
+	 */
+	public int getWorkerCount() {
+		return nWorkers;
+	}
+
+	/**
+	 * Read the first line of a (optionally gzipped) text file.
+	 * @param file
+	 * @return the first line, or null if the file is empty
+	 * @throws IOException
+	 */
+	public static String readFirstLine(final File file) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(openStream(file), StandardCharsets.UTF_8))) {
+			return reader.readLine();
+		}
+	}
+
+	static InputStream openStream(final File file) throws IOException {
+		final InputStream is = new FileInputStream(file);
+		if (file.getName().toLowerCase().endsWith(".gz"))
+			return new GZIPInputStream(is, 1 << 16);
+		return new BufferedInputStream(is, 1 << 16);
+	}
+
+	/**
+	 * Parse the whole file, blocking until every chunk has been handled.
+	 * @param handler
+	 * @throws Exception the first exception thrown by the reader or by any worker
+	 */
+	public void parse(final ChunkHandler handler) throws Exception {
+		parseSequenced((buf, from, to, worker, sequence) -> handler.handle(buf, from, to, worker));
+	}
+
+	/**
+	 * Parse the whole file, blocking until every chunk has been handled, passing the position of each chunk.
+	 * @param handler
+	 * @throws Exception the first exception thrown by the reader or by any worker
+	 */
+	public void parseSequenced(final SequencedChunkHandler handler) throws Exception {
+		final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(nWorkers * 2);
+		final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(nWorkers * 2 + nWorkers);
+		for (int i = 0; i < nWorkers * 2; i++)
+			free.add(new Chunk(chunkSize));
+
+		final ExecutorService pool = Executors.newFixedThreadPool(nWorkers, ThreadTools.createThreadFactory("sptx2-parser-", true));
+		final List<Future<?>> futures = new ArrayList<>();
+
+		try {
+			for (int w = 0; w < nWorkers; w++) {
+				final int worker = w;
+				futures.add(pool.submit(() -> {
+					while (true) {
+						final Chunk chunk = full.take();
+						if (chunk == POISON)
+							return null;
+						try {
+							handler.handle(chunk.buf, 0, chunk.length, worker, chunk.sequence);
+						} finally {
+							free.put(chunk);
+						}
+					}
+				}));
+			}
+
+			try {
+				readChunks(free, full, futures);
+			} finally {
+				for (int w = 0; w < nWorkers; w++)
+					full.put(POISON);
+			}
+
+			for (Future<?> f : futures)
+				f.get();
+		} catch (Exception e) {
+			for (Future<?> f : futures)
+				f.cancel(true);
+			throw e;
+		} finally {
+			pool.shutdownNow();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private void readChunks(final BlockingQueue<Chunk> free, final BlockingQueue<Chunk> full, final List<Future<?>> futures) throws Exception {
+		try (InputStream is = openStream(file)) {
+			for (int i = 0; i < skipLines; i++) {
+				int b;
+				while ((b = is.read()) != -1 && b != '\n');
+			}
+
+			byte[] carry = new byte[0];
+			int carryLength = 0;
+			long nChunks = 0;
+
+			while (true) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedException("Parsing of " + file.getName() + " interrupted");
+
+				Chunk chunk = null;
+				while (chunk == null) {
+					chunk = free.poll(100, TimeUnit.MILLISECONDS);
+					// Fail fast if a worker died while we were waiting for a buffer
+					for (Future<?> f : futures) {
+						if (f.isDone())
+							f.get();
+					}
+				}
+
+				System.arraycopy(carry, 0, chunk.buf, 0, carryLength);
+				int length = carryLength;
+				int n = 0;
+				while (length < chunk.buf.length && (n = is.read(chunk.buf, length, chunk.buf.length - length)) != -1)
+					length += n;
+
+				final boolean eof = n == -1;
+
+				int end = length;
+				if (!eof) {
+					while (end > 0 && chunk.buf[end-1] != '\n')
+						end--;
+					if (end == 0)
+						throw new IOException("Line longer than chunk size (" + chunkSize + " bytes) in " + file.getName());
+				}
+
+				carryLength = length - end;
+				if (carryLength > carry.length)
+					carry = new byte[Math.max(carryLength, 1 << 16)];
+				System.arraycopy(chunk.buf, end, carry, 0, carryLength);
+
+				chunk.length = end;
+				if (end > 0) {
+					chunk.sequence = nChunks;
+					full.put(chunk);
+					nChunks++;
+				} else
+					free.put(chunk);
+
+				if (eof)
+					break;
+			}
+			logger.debug("Read {} chunks from {}", nChunks, file.getName());
+		}
+	}
+
+}
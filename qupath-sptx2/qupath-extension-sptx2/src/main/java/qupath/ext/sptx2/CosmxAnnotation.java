@@ -31,7 +31,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.locationtech.jts.geom.Geometry;
@@ -103,19 +105,21 @@ public class CosmxAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 		params = new ParameterList()
 			.addTitleParameter("NanoString Cosmx Data Loader")
 			.addStringParameter("cosmxDir", "Cosmx directory", cosmxAntnCosmxFldrProp.get(), "Cosmx Out Directory")
-//			.addBooleanParameter("fromTranscriptFile", "Load directly from transcript raw data file? (default: false)", false, "Load data from transcript file directly? (default: false)")
+			.addBooleanParameter("fromTranscriptFile", "Load directly from transcript raw data file? (default: false)", false, "Load data from transcript file directly? (default: false)")
 			.addBooleanParameter("consolToAnnot", "Consolidate transcript data to Visium-style spots? (default: false)", false, "Consolidate Transcript Data to Annotations? (default: false)")
 			.addEmptyParameter("")
 			.addBooleanParameter("inclGeneExpr", "Include Gene Expression? (default: true)", true, "Include Gene Expression? (default: true)")		
 //			.addBooleanParameter("inclBlankCodeword", "Include Blank Codeword? (default: false)", false, "Include Blank Codeword? (default: false)")		
 //			.addBooleanParameter("inclNegCtrlCodeword", "Include Negative Control Codeword? (default: false)", false, "Include Negative Control Codeword? (default: false)")		
 			.addBooleanParameter("inclNegCtrlProbe", "Include Negative Control Probe? (default: false)", false, "Include Negative Control Probe? (default: false)")		
+			.addBooleanParameter("sparseStore", "Keep cell gene expression in a sparse store instead of measurements? (default: false)", false, "Keep cell gene expression in a sparse store, shown as virtual measurements, instead of one measurement per gene per cell? (default: false)")		
 			.addEmptyParameter("")
-//			.addEmptyParameter("Options for loading raw transcript data")
-//			.addDoubleParameter("qv", "Minimal Q-Value", 0.0, null, "Minimal Q-Value")		
-//			.addBooleanParameter("transcriptOnNucleusOnly", "Only the transcripts overlapped on nucleus? (default: true)", true, "Only the transcripts overlapped on nucleus? (default: true)")		
-//			.addBooleanParameter("transcriptBelongsToCell", "Only the transcripts belongs to a cell (based on DAPI)? (default: true)", true, "Only the transcripts belongs to a cell? (default: true)")		
-//			.addEmptyParameter("")
+			.addEmptyParameter("Options for loading raw transcript data")
+			.addDoubleParameter("qv", "Minimal Q-Value", 0.0, null, "Minimal Q-Value")		
+			.addBooleanParameter("transcriptOnNucleusOnly", "Only the transcripts overlapped on nucleus? (default: true)", true, "Only the transcripts overlapped on nucleus? (default: true)")		
+			.addBooleanParameter("transcriptBelongsToCell", "Only the transcripts belongs to a cell (based on DAPI)? (default: true)", true, "Only the transcripts belongs to a cell? (default: true)")		
+			.addEmptyParameter("")
+			.addBooleanParameter("rasterAssignment", "Assign transcripts through a tiled label raster? (default: false)", false, "Assign transcripts through a lazily rasterised label raster at the downsampling below, instead of exact geometry tests? (default: false)")		
 			.addIntParameter("maskDownsampling", "Downsampling for transcript to cell assignment", 2, null, "Downsampling for cell-transciptome assignment")			
 			;
 	}
@@ -155,90 +159,25 @@ public class CosmxAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 				
 				if(selectedAnnotationPathObjectList.isEmpty()) throw new Exception("Missed selected annotations");
 
-				final int maskDownsampling = params.getIntParameterValue("maskDownsampling");;
-				final int maskWidth = (int)Math.round(imageData.getServer().getWidth()/maskDownsampling);
-				final int maskHeight = (int)Math.round(imageData.getServer().getHeight()/maskDownsampling);	
-				
-				
-				
+				final int maskDownsampling = params.getIntParameterValue("maskDownsampling");
 				
-				final BufferedImage annotPathObjectImageMask = new BufferedImage(maskWidth, maskHeight, BufferedImage.TYPE_INT_RGB);
 				final List<PathObject> annotPathObjectList = new ArrayList<PathObject>();						
-				
-				final Graphics2D annotPathObjectG2D = annotPathObjectImageMask.createGraphics();				
-				annotPathObjectG2D.setBackground(new Color(0, 0, 0));
-				annotPathObjectG2D.clearRect(0, 0, maskWidth, maskHeight);
-				
-				annotPathObjectG2D.setClip(0, 0, maskWidth, maskHeight);
-				annotPathObjectG2D.scale(1.0/maskDownsampling, 1.0/maskDownsampling);					    
-				
-				
-				
-				
-				
-				final BufferedImage pathObjectImageMask = new BufferedImage(maskWidth, maskHeight, BufferedImage.TYPE_INT_RGB);
 				final List<PathObject> pathObjectList = new ArrayList<PathObject>();						
 				
-				final Graphics2D pathObjectG2D = pathObjectImageMask.createGraphics();				
-				pathObjectG2D.setBackground(new Color(0, 0, 0));
-				pathObjectG2D.clearRect(0, 0, maskWidth, maskHeight);
+				for(PathObject p: selectedAnnotationPathObjectList) {
+					annotPathObjectList.add(p);
+					pathObjectList.addAll(p.getChildObjects());
+				}
 				
-				pathObjectG2D.setClip(0, 0, maskWidth, maskHeight);
-				pathObjectG2D.scale(1.0/maskDownsampling, 1.0/maskDownsampling);
+				/*
+				 * Assign points to objects through a spatial index over their ROIs, optionally via lazily rasterised label tiles
+				 */
 				
-				try {
-					int annotPathObjectCount = 1;
-					int pathObjectCount = 1;
-					
-					for(PathObject p: selectedAnnotationPathObjectList) {
-						
-						
-						annotPathObjectList.add(p);
-					    
-					    final int pb0 = (annotPathObjectCount & 0xff) >> 0; // b
-					    final int pb1 = (annotPathObjectCount & 0xff00) >> 8; // g
-					    final int pb2 = (annotPathObjectCount & 0xff0000) >> 16; // r
-					    final Color pMaskColor = new Color(pb2, pb1, pb0); // r, g, b
-				    
-					    final ROI pRoi = p.getROI();
-						final Shape pShape = pRoi.getShape();
-						
-						annotPathObjectG2D.setColor(pMaskColor);
-						annotPathObjectG2D.fill(pShape);
-						
-						annotPathObjectCount ++;
-					    if(annotPathObjectCount == 0xffffff) {
-					    	throw new Exception("annotation count overflow!");
-					    }
-						
-						for(PathObject c: p.getChildObjects()) {
-							pathObjectList.add(c);
-						    
-						    final int b0 = (pathObjectCount & 0xff) >> 0; // b
-						    final int b1 = (pathObjectCount & 0xff00) >> 8; // g
-						    final int b2 = (pathObjectCount & 0xff0000) >> 16; // r
-						    final Color maskColor = new Color(b2, b1, b0); // r, g, b
-					    
-						    final ROI roi = c.getROI();
-							final Shape shape = roi.getShape();
-							
-							pathObjectG2D.setColor(maskColor);
-							pathObjectG2D.fill(shape);
-							
-							pathObjectCount ++;
-						    if(pathObjectCount == 0xffffff) {
-						    	throw new Exception("Cell count overflow!");
-						    }
-						}
-					}	
-				}
-				catch(Exception e) {
-					throw e;
-				}
-				finally {
-					annotPathObjectG2D.dispose();	
-					pathObjectG2D.dispose();	
-				}
+				final PathObjectPointLocator annotPathObjectIndex = new PathObjectPointLocator(annotPathObjectList);
+				final PathObjectPointLocator pathObjectIndex = new PathObjectPointLocator(pathObjectList);
+				
+				final PointLocator annotPathObjectLocator = params.getBooleanParameterValue("rasterAssignment")? annotPathObjectIndex.createTiledRaster(maskDownsampling, 512): annotPathObjectIndex;
+				final PointLocator pathObjectLocator = params.getBooleanParameterValue("rasterAssignment")? pathObjectIndex.createTiledRaster(maskDownsampling, 512): pathObjectIndex;
 				
 	            /*
 	             * Read single cell data
@@ -265,106 +204,42 @@ public class CosmxAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 //				
 //				clusterReader.close();
 				
-				final HashMap<String, PathObject> cellToPathObjHashMap = new HashMap<>();
-			
-//				final String singleCellFilePath = java.nio.file.Paths.get(params.getStringParameterValue("cosmxDir"), "cells.csv.gz").toString();
-//				final GZIPInputStream singleCellGzipStream = new GZIPInputStream(new FileInputStream(singleCellFilePath));
-//				final BufferedReader singleCellGzipReader = new BufferedReader(new InputStreamReader(singleCellGzipStream));
-//				singleCellGzipReader.readLine();
-//				String singleCellNextRecord;
-				
 				final File cosmxDir = new File(params.getStringParameterValue("cosmxDir"));
 				
-				
-				
-				
-				
-				
-				
 				final FileFilter cosmxFovPosFileFilter = new WildcardFileFilter("*fov_positions_file.csv");
 				final File[] cosmxFovPosFileList = cosmxDir.listFiles(cosmxFovPosFileFilter);
 				if(cosmxFovPosFileList.length != 1) throw new Exception("*fov_positions_file.csv error");
 				
-				final FileReader fovPosFileReader = new FileReader(new File(cosmxFovPosFileList[0].toString()));
-				final BufferedReader fovPosBufferedReader = new BufferedReader(fovPosFileReader);
-				fovPosBufferedReader.readLine();
-				String fovPosNextRecord;
-				
-				int x_global_min = -1;
-				int y_global_min = -1;
-				
-		        while ((fovPosNextRecord = fovPosBufferedReader.readLine()) != null) {
-		        	final String[] fovPosNextRecordArray = fovPosNextRecord.split(",");
-		        	// "fov","x_global_px","y_global_px"
-		        	
-		        	final int x_global_px = (int)(0.5+Double.parseDouble(fovPosNextRecordArray[1]));
-		        	final int y_global_px = (int)(0.5+Double.parseDouble(fovPosNextRecordArray[2]));
-		        	
-		        	if(x_global_min == -1 || x_global_px < x_global_min) x_global_min = x_global_px;
-		        	if(y_global_min == -1 || y_global_px < y_global_min) y_global_min = y_global_px;
-		        }
-				
-		        fovPosBufferedReader.close();
-				
-				
-				
-				
-				
 				final FileFilter cosmxMetadataFileFilter = new WildcardFileFilter("*metadata_file.csv");
 				final File[] cosmxMetadataFileList = cosmxDir.listFiles(cosmxMetadataFileFilter);
 				if(cosmxMetadataFileList.length != 1) throw new Exception("*metadata_file.csv error");
 				
-				final FileReader singleCellFileReader = new FileReader(new File(cosmxMetadataFileList[0].toString()));
-				final BufferedReader singleCellBufferedReader = new BufferedReader(singleCellFileReader);
-				singleCellBufferedReader.readLine();
-				String singleCellNextRecord;
+				/*
+				 * Parsed cells and the expression matrix are cached as sidecars in the project directory, 
+				 * so that reloading the same CosMx output skips parsing
+				 */
 				
-		        while ((singleCellNextRecord = singleCellBufferedReader.readLine()) != null) {
-				        
-		        	final String[] singleCellNextRecordArray = singleCellNextRecord.split(",");
-		        	
-		        	// "fov","cell_ID","Area","AspectRatio","CenterX_local_px","CenterY_local_px","CenterX_global_px","CenterY_global_px","Width","Height","Mean.MembraneStain","Max.MembraneStain",
-
-		        	
-		        	final int fov = Integer.parseInt(singleCellNextRecordArray[0].replaceAll("\"", ""));
-		        	final int cellId = Integer.parseInt(singleCellNextRecordArray[1].replaceAll("\"", ""));
-		        	
-//		        	final double transcriptCounts = Double.parseDouble(singleCellNextRecordArray[3]);
-//		        	final double controlProbeCounts = Double.parseDouble(singleCellNextRecordArray[4]);
-//		        	final double controlCodewordCounts = Double.parseDouble(singleCellNextRecordArray[5]);
-//		        	final double totalCounts = Double.parseDouble(singleCellNextRecordArray[6]);
-//		        	final double cellArea = Double.parseDouble(singleCellNextRecordArray[7]);
-//		        	final double nucleusArea = Double.parseDouble(singleCellNextRecordArray[8]);
-		        	
-		        	final double cx = Double.parseDouble(singleCellNextRecordArray[6]);
-		        	final double cy = Double.parseDouble(singleCellNextRecordArray[7]);
-		        	
-		        	final double dx = cx-x_global_min;
-		        	final double dy = cy-y_global_min;
-		        	
-//		        	final double aX = affineMtx[0] * dx + affineMtx[1] * dy + affineMtx[2] * 1.0;
-//		        	final double aY = affineMtx[3] * dx + affineMtx[4] * dy + affineMtx[5] * 1.0;
-		     
-//		        	final int fX = (int)Math.round(aX / maskDownsampling);
-//		        	final int fY = (int)Math.round(aY / maskDownsampling);
+				final SidecarCache sidecarCache = SidecarCache.forCurrentProject();
+				
+				final CellTable cellTable = sidecarCache.load("cosmx-cells", List.of(cosmxMetadataFileList[0], cosmxFovPosFileList[0]), CellTable.CODEC, 
+						() -> CellTable.readCosmx(cosmxMetadataFileList[0], cosmxFovPosFileList[0]));
+				
+				final int[] cellTargets = cellTable.locate(pathObjectLocator);
+				final LongIntHashMap cellToPathObjIndex = new LongIntHashMap(cellTable.size());
+				
+		        for(int i = 0; i < cellTable.size(); i ++) {
+		        	final int pathObjectId = cellTargets[i];
 		        	
-		        	final int fX = (int)(0.5+dx/maskDownsampling);
-		        	final int fY = (int)(0.5+dy/maskDownsampling);
+		        	if(pathObjectId < 0) continue; // This location doesn't have a cell.
 		        	
-		        	if(fX < 0 || fX >= pathObjectImageMask.getWidth() || fY < 0 || fY >= pathObjectImageMask.getHeight()) continue;
+		        	final int fov = LongIntHashMap.hi(cellTable.getKey(i));
+		        	final int cellId = LongIntHashMap.lo(cellTable.getKey(i));
 		        	
-		        	final int v = pathObjectImageMask.getRGB(fX, fY);
-		        	final int d0 = v&0xff;
-		        	final int d1 = (v>>8)&0xff;
-		        	final int d2 = (v>>16)&0xff;
-					final int r = d2*0x10000+d1*0x100+d0;
-				    
-		        	if(r == 0) continue; // This location doesn't have a cell.
-			        	
-		        	final int pathObjectId = r - 1;  // pathObjectId starts at 1, since 0 means background
+		        	final double dx = cellTable.getX(i);
+		        	final double dy = cellTable.getY(i);
 			        	
 		        	final PathObject cellPathObject = pathObjectList.get(pathObjectId);
-		        	cellToPathObjHashMap.put(String.valueOf(cellId)+"_"+String.valueOf(fov), cellPathObject);
+		        	cellToPathObjIndex.put(cellTable.getKey(i), pathObjectId);
 		        	
 //		        	final Integer clusterId = cellToClusterHashMap.get(cellId);
 		        	
@@ -422,8 +297,6 @@ public class CosmxAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 	        	
 	        	
 	        	
-		        	
-		        singleCellBufferedReader.close();
 				
 				
 				/*
@@ -522,54 +395,91 @@ public class CosmxAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 			        
 			        
 			        
-		        final FileFilter cosmxExprMatFileFilter = new WildcardFileFilter("*exprMat_file.csv");
-				final File[] cosmxExprMatFileList = cosmxDir.listFiles(cosmxExprMatFileFilter);
-				if(cosmxExprMatFileList.length != 1) throw new Exception("*exprMat_file.csv");
+		        if(!params.getBooleanParameterValue("fromTranscriptFile")) {
+					final FileFilter cosmxExprMatFileFilter = new WildcardFileFilter("*exprMat_file.csv");
+					final File[] cosmxExprMatFileList = cosmxDir.listFiles(cosmxExprMatFileFilter);
+					if(cosmxExprMatFileList.length != 1) throw new Exception("*exprMat_file.csv");
+				
+					final FeatureMatrix exprMat = sidecarCache.load("cosmx-exprmat", List.of(cosmxExprMatFileList[0]), FeatureMatrix.CODEC, 
+							() -> FeatureMatrix.readCosmxExprMat(cosmxExprMatFileList[0]));
+				
+					final FeatureDictionary featureDictionary = new FeatureDictionary();
+					final int[] featureToDictId = new int[exprMat.getFeatureCount()];
+					for(int f = 0; f < exprMat.getFeatureCount(); f ++) {
+						final boolean included = params.getBooleanParameterValue("inclNegCtrlProbe") || !exprMat.getFeatureName(f).startsWith("NegPrb");
+						featureToDictId[f] = included? featureDictionary.intern(exprMat.getFeatureName(f)): -1;
+					}
+				
+					final List<PathObject> exprMatPathObjectList = new ArrayList<>();
+					final int[] pathObjectToTarget = new int[pathObjectList.size()];
+					Arrays.fill(pathObjectToTarget, -1);
+					final int[] rowToTarget = new int[exprMat.getRowCount()];
+					final int[] rowToAnnot = new int[exprMat.getRowCount()];
+					final Map<PathObject, Integer> annotPathObjectIndexMap = new IdentityHashMap<>();
+					for(int a = 0; a < annotPathObjectList.size(); a ++) annotPathObjectIndexMap.put(annotPathObjectList.get(a), a);
+				
+					for(int r = 0; r < exprMat.getRowCount(); r ++) {
+						final int pathObjectId = cellToPathObjIndex.get(exprMat.getRowKey(r));
+						if(pathObjectId < 0) {
+							rowToTarget[r] = -1;
+							rowToAnnot[r] = -1;
+							continue;
+						}
+						if(pathObjectToTarget[pathObjectId] < 0) {
+							pathObjectToTarget[pathObjectId] = exprMatPathObjectList.size();
+							exprMatPathObjectList.add(pathObjectList.get(pathObjectId));
+						}
+						rowToTarget[r] = pathObjectToTarget[pathObjectId];
+						rowToAnnot[r] = annotPathObjectIndexMap.getOrDefault(pathObjectList.get(pathObjectId).getParent(), -1);
+					}
 				
-				final FileReader exprMatFileReader = new FileReader(new File(cosmxExprMatFileList[0].toString()));
-				final BufferedReader exprMatBufferedReader = new BufferedReader(exprMatFileReader);
-				final String[] exprMatHeaders = exprMatBufferedReader.readLine().split(",");
+					final TranscriptCountTable exprMatTable = exprMat.toCountTable(rowToTarget, exprMatPathObjectList.size(), featureToDictId);
 				
-				String exprMatNextRecord;
-		        while ((exprMatNextRecord = exprMatBufferedReader.readLine()) != null) {
-		        	final String[] exprMatNextRecordArray = exprMatNextRecord.split(",");
-		        	
-		        	final int fov = Integer.parseInt(exprMatNextRecordArray[0].replaceAll("\"", ""));
-		        	final int cellId = Integer.parseInt(exprMatNextRecordArray[1].replaceAll("\"", ""));
+					if(params.getBooleanParameterValue("sparseStore"))
+						GeneExpressionStore.setStore(imageData, GeneExpressionStore.fromCountTable("cosmx:cell_transcript:", exprMatTable, exprMatPathObjectList, featureDictionary));
+					else
+						exprMatTable.writeMeasurements(exprMatPathObjectList, featureDictionary, "cosmx:cell_transcript:", true);
+				
+					if(params.getBooleanParameterValue("consolToAnnot")) {
+						final TranscriptCountTable spotTable = exprMat.toCountTable(rowToAnnot, annotPathObjectList.size(), featureToDictId);
+						spotTable.writeMeasurements(annotPathObjectList, featureDictionary, "cosmx:spot_transcript:", true);
+					}
+		        }
+		        else {
 		        	
-		        	if(cellToPathObjHashMap.containsKey(String.valueOf(cellId)+"_"+String.valueOf(fov))) {
-		        		final PathObject c = cellToPathObjHashMap.get(String.valueOf(cellId)+"_"+String.valueOf(fov));
-			        	final MeasurementList pathObjMeasList = c.getMeasurementList();
-		        		
-		        		for(int i = 2; i < exprMatNextRecordArray.length; i ++) {
-			        		if(!params.getBooleanParameterValue("inclNegCtrlProbe") && (exprMatHeaders[i].replaceAll("\"", "").startsWith("NegPrb"))) continue;
-			        		
-			        		pathObjMeasList.put("cosmx:cell_transcript:"+exprMatHeaders[i].replaceAll("\"", ""), Double.parseDouble(exprMatNextRecordArray[i]));  
-			        	}
-		        		
-		        		pathObjMeasList.close();
-		        		
-		        		
-		        		
-		        		
-		        		if(params.getBooleanParameterValue("consolToAnnot") && hierarchy.getRootObject() != c.getParent()) {
-			        		
-			        		final MeasurementList parentPathObjMeasList = c.getParent().getMeasurementList();
-			        		
-			        		for(int f = 0; f < (exprMatNextRecordArray.length-2); f ++) {	
-			        			if(!params.getBooleanParameterValue("inclNegCtrlProbe") && (exprMatNextRecordArray[f].replaceAll("\"", "").startsWith("NegPrb"))) continue;
-			        			
-			        			final double oldVal = 
-			        					parentPathObjMeasList.containsKey("cosmx:spot_transcript:"+exprMatNextRecordArray[f])? 
-			        					parentPathObjMeasList.get("cosmx:spot_transcript:"+exprMatNextRecordArray[f]): 
-			        					0.0;
-			        	
-				        		parentPathObjMeasList.put("cosmx:spot_transcript:"+exprMatNextRecordArray[f], Double.parseDouble(exprMatNextRecordArray[f])+oldVal);  
-				        	}
-			        		
-				        	parentPathObjMeasList.close();
-			        	}
-			        }
+					/*
+		             * Read transcript data
+		             * "fov","cell_ID","cell","x_local_px","y_local_px","x_global_px","y_global_px","z","target","CellComp"
+		             */	        
+					
+					final FileFilter cosmxTxFileFilter = new WildcardFileFilter("*tx_file.csv*");
+					final File[] cosmxTxFileList = cosmxDir.listFiles(cosmxTxFileFilter);
+					if(cosmxTxFileList.length != 1) throw new Exception("*tx_file.csv error");
+					
+					final CosmxTranscriptIngest transcriptIngest = new CosmxTranscriptIngest(cosmxFovPosFileList[0])
+							.featureTypes(
+									params.getBooleanParameterValue("inclGeneExpr"), 
+									params.getBooleanParameterValue("inclNegCtrlProbe"))
+							.transcriptFilters(
+									params.getDoubleParameterValue("qv"), 
+									params.getBooleanParameterValue("transcriptOnNucleusOnly"), 
+									params.getBooleanParameterValue("transcriptBelongsToCell"));
+					
+					transcriptIngest.ingest(
+							cosmxTxFileList[0], 
+							pathObjectLocator, pathObjectList.size(), 
+							annotPathObjectLocator, annotPathObjectList.size());
+					
+					/*
+					 * Write all counts in one pass, touching each measurement list once
+					 */
+					
+					if(params.getBooleanParameterValue("sparseStore"))
+						GeneExpressionStore.setStore(imageData, GeneExpressionStore.fromCountTable("cosmx:cell_transcript:", transcriptIngest.getCellCounts(), pathObjectList, transcriptIngest.getDictionary()));
+					else
+						transcriptIngest.getCellCounts().writeMeasurements(pathObjectList, transcriptIngest.getDictionary(), "cosmx:cell_transcript:");
+					if(params.getBooleanParameterValue("consolToAnnot"))
+						transcriptIngest.getAnnotationCounts().writeMeasurements(annotPathObjectList, transcriptIngest.getDictionary(), "cosmx:spot_transcript:");
 		        }
 		        
 		        
@@ -618,119 +528,6 @@ public class CosmxAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 			        
 			        
 			        
-//				}
-//		        else {    
-//			        
-//					/*
-//		             * Read transcript data
-//		             * "transcript_id","cell_id","overlaps_nucleus","feature_name","x_location","y_location","z_location","qv"
-//		             */	        
-//		        	
-//					final String transcriptFilePath = java.nio.file.Paths.get(params.getStringParameterValue("cosmxDir"), "transcripts.csv.gz").toString();
-//					
-//					final GZIPInputStream transcriptGzipStream = new GZIPInputStream(new FileInputStream(transcriptFilePath));
-//					final CSVReader transcriptGzipReader = new CSVReader(new InputStreamReader(transcriptGzipStream));
-//					
-//					transcriptGzipReader.readNext();
-//			        
-//			        String[] transcriptNextRecord;
-//			        while ((transcriptNextRecord = transcriptGzipReader.readNext()) != null) {
-//			        	final double qv = Double.parseDouble(transcriptNextRecord[7]);
-//			        	final int overlaps_nucleus = Integer.parseInt(transcriptNextRecord[2]);
-//			        	final int cellId = Integer.parseInt(transcriptNextRecord[1]);
-//			        	
-//			        	if(params.getBooleanParameterValue("transcriptOnNucleusOnly") && overlaps_nucleus == 0) continue;
-//			        	if(qv < params.getDoubleParameterValue("qv")) continue;
-//			        	if(params.getBooleanParameterValue("transcriptBelongsToCell") && cellId == -1) continue;
-//			        	if(!params.getBooleanParameterValue("inclBlankCodeword") && transcriptNextRecord[3].startsWith("BLANK_")) continue;
-//			        	if(!params.getBooleanParameterValue("inclNegCtrlCodeword") && transcriptNextRecord[3].startsWith("NegControlCodeword_")) continue;
-//			        	if(!params.getBooleanParameterValue("inclNegCtrlProbe") && transcriptNextRecord[3].startsWith("NegControlProbe_")) continue;
-//			        	if(!params.getBooleanParameterValue("inclGeneExpr") && !transcriptNextRecord[3].startsWith("BLANK_") && !transcriptNextRecord[3].startsWith("NegControlCodeword_") && !transcriptNextRecord[3].startsWith("NegControlProbe_")) continue;
-//			        	
-//			        	
-//			        			
-//			        	final double cx = Double.parseDouble(transcriptNextRecord[4]);
-//			        	final double cy = Double.parseDouble(transcriptNextRecord[5]);
-//			        	
-//			        	final double dx = cx/dapiImagePixelSizeMicrons;
-//			        	final double dy = (dapiImageHeightMicrons-cy)/dapiImagePixelSizeMicrons;
-//			        	
-//			        	final double aX = affineMtx[0] * dx + affineMtx[1] * dy + affineMtx[2] * 1.0;
-//			        	final double aY = affineMtx[3] * dx + affineMtx[4] * dy + affineMtx[5] * 1.0;
-//			     
-//			        	final int fX = (int)Math.round(aX / maskDownsampling);
-//			        	final int fY = (int)Math.round(aY / maskDownsampling);
-//			        	
-//			        	final int cv = pathObjectImageMask.getRGB(fX, fY);
-//			        	final int cd0 = cv&0xff;
-//			        	final int cd1 = (cv>>8)&0xff;
-//			        	final int cd2 = (cv>>16)&0xff;
-//						final int cr = cd2*0x10000+cd1*0x100+cd0;
-//						
-//			        	if(cr != 0) { // This location doesn't have a cell.
-//				        	final int pathObjectId = cr - 1;  // pathObjectId starts at 1, since 0 means background
-//				        	
-//				        	final PathObject cellPathObject = pathObjectList.get(pathObjectId);
-//				        	
-//				        	final MeasurementList pathObjMeasList = cellPathObject.getMeasurementList();
-//		
-//				        	if(pathObjMeasList.containsNamedMeasurement("cosmx:cell_transcript:"+transcriptNextRecord[3])) {
-//				        		final double transcriptCount = pathObjMeasList.getMeasurementValue("cosmx:cell_transcript:"+transcriptNextRecord[3]);
-//				        		pathObjMeasList.putMeasurement("cosmx:cell_transcript:"+transcriptNextRecord[3], transcriptCount+1.0);
-//				        	}
-//				        	else {
-//				        		pathObjMeasList.putMeasurement("cosmx:"+transcriptNextRecord[3], 1.0); 		        
-//				        	}
-//				        	
-//				        	pathObjMeasList.close();
-//			        	}
-//			        	
-//			        	
-//			        	
-//			        	final int av = annotPathObjectImageMask.getRGB(fX, fY);
-//			        	final int ad0 = av&0xff;
-//			        	final int ad1 = (av>>8)&0xff;
-//			        	final int ad2 = (av>>16)&0xff;
-//						final int ar = ad2*0x10000+ad1*0x100+ad0;
-//						
-//						
-//			        	if(ar != 0) { // This location doesn't have a cell.
-//				        	final int annotPathObjectId = ar - 1;  // pathObjectId starts at 1, since 0 means background
-//				        	
-//				        	final PathObject annotPathObject = annotPathObjectList.get(annotPathObjectId);
-//				        	
-//				        	final MeasurementList annotPathObjMeasList = annotPathObject.getMeasurementList();
-//		
-//				        	if(annotPathObjMeasList.containsNamedMeasurement("cosmx:spot_transcript:"+transcriptNextRecord[3])) {
-//				        		final double transcriptCount = annotPathObjMeasList.getMeasurementValue("cosmx:spot_transcript:"+transcriptNextRecord[3]);
-//				        		annotPathObjMeasList.putMeasurement("cosmx:spot_transcript:"+transcriptNextRecord[3], transcriptCount+1.0);
-//				        	}
-//				        	else {
-//				        		annotPathObjMeasList.putMeasurement("cosmx:spot_transcript:"+transcriptNextRecord[3], 1.0); 		        
-//				        	}
-//				        	
-//				        	annotPathObjMeasList.close();
-//			        	}        	
-//	
-//			        	
-//			        	
-//			        	
-//			        	
-//			        	
-//			        	
-//			        	
-//			        	
-//			        	
-//			        	
-//			        	
-//			        	
-//			        }
-//			        
-//			        transcriptGzipReader.close();
-//			
-//					
-//					
-//		        }	
 			        
 			    
 //		        
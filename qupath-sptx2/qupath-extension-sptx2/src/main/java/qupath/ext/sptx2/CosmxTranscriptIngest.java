@@ -0,0 +1,255 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parallel ingest of a CosMx {@code *tx_file.csv(.gz)} file into per-cell and per-annotation count tables.
+ * <p>
+ * "fov","cell_ID","cell","x_local_px","y_local_px","x_global_px","y_global_px","z","target","CellComp"
+ * <p>
+ * Molecule positions are FOV-local and are placed with {@code *fov_positions_file.csv}, in the same frame as
+ * the cell centres of {@link CellTable#readCosmx(File, File)}.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class CosmxTranscriptIngest {
+
+	final private static Logger logger = LoggerFactory.getLogger(CosmxTranscriptIngest.class);
+
+	final private static byte[] NUCLEAR = "Nuclear".getBytes(StandardCharsets.US_ASCII);
+
+	private boolean inclGeneExpr = true;
+	private boolean inclNegCtrlProbe = false;
+	private double minQv = 0.0;
+	private boolean onNucleusOnly = true;
+	private boolean belongsToCellOnly = true;
+
+	final private double[] fovX;
+	final private double[] fovY;
+
+	private FeatureDictionary dictionary;
+	private TranscriptCountTable cellCounts;
+	private TranscriptCountTable annotCounts;
+
+	/**
+	 * Create an ingest placing FOVs with a CosMx {@code *fov_positions_file.csv}.
+	 * @param fovPositionsFile
+	 * @throws IOException
+	 */
+	public CosmxTranscriptIngest(final File fovPositionsFile) throws IOException {
+		final double[] origin = CellTable.readCosmxFovOrigin(fovPositionsFile);
+
+		int maxFov = -1;
+		double[] x = new double[0];
+		double[] y = new double[0];
+		try (BufferedReader fovPosBufferedReader = new BufferedReader(new FileReader(fovPositionsFile))) {
+			fovPosBufferedReader.readLine();
+			String fovPosNextRecord;
+			while ((fovPosNextRecord = fovPosBufferedReader.readLine()) != null) {
+				// "fov","x_global_px","y_global_px"
+				final String[] fovPosNextRecordArray = fovPosNextRecord.split(",");
+				final int fov = Integer.parseInt(fovPosNextRecordArray[0].replaceAll("\"", ""));
+				if (fov > maxFov) {
+					x = Arrays.copyOf(x, fov + 1);
+					y = Arrays.copyOf(y, fov + 1);
+					Arrays.fill(x, maxFov + 1, fov + 1, Double.NaN);
+					Arrays.fill(y, maxFov + 1, fov + 1, Double.NaN);
+					maxFov = fov;
+				}
+				x[fov] = Double.parseDouble(fovPosNextRecordArray[1]) - origin[0];
+				y[fov] = Double.parseDouble(fovPosNextRecordArray[2]) - origin[1];
+			}
+		}
+		fovX = x;
+		fovY = y;
+	}
+
+	/**
+	 * Set which feature categories are counted.
+	 * Negative probes ("NegPrb") and system controls ("SystemControl", "FalseCode") are both treated as negative controls.
+	 * @param inclGeneExpr
+	 * @param inclNegCtrlProbe
+	 * @return this ingest
+	 */
+	public CosmxTranscriptIngest featureTypes(final boolean inclGeneExpr, final boolean inclNegCtrlProbe) {
+		this.inclGeneExpr = inclGeneExpr;
+		this.inclNegCtrlProbe = inclNegCtrlProbe;
+		return this;
+	}
+
+	/**
+	 * Set the per-transcript filters.
+	 * @param minQv minimal Q-value; ignored if the file has no "qv" column
+	 * @param onNucleusOnly only count transcripts in the nuclear compartment
+	 * @param belongsToCellOnly only count transcripts assigned to a cell by CosMx
+	 * @return this ingest
+	 */
+	public CosmxTranscriptIngest transcriptFilters(final double minQv, final boolean onNucleusOnly, final boolean belongsToCellOnly) {
+		this.minQv = minQv;
+		this.onNucleusOnly = onNucleusOnly;
+		this.belongsToCellOnly = belongsToCellOnly;
+		return this;
+	}
+
+	private boolean isFeatureIncluded(final String name) {
+		if (name.startsWith("NegPrb") || name.startsWith("SystemControl") || name.startsWith("FalseCode"))
+			return inclNegCtrlProbe;
+		return inclGeneExpr;
+	}
+
+	/**
+	 * Parse the transcript file and count every accepted transcript in the cell and annotation containing it.
+	 * @param transcriptFile
+	 * @param cellLocator locator returning cell indices
+	 * @param nCells number of cells addressed by the cell locator
+	 * @param annotLocator locator returning annotation indices
+	 * @param nAnnots number of annotations addressed by the annotation locator
+	 * @throws Exception
+	 */
+	public void ingest(final File transcriptFile, final PointLocator cellLocator, final int nCells, final PointLocator annotLocator, final int nAnnots) throws Exception {
+		final String header = ChunkedTextParser.readFirstLine(transcriptFile);
+		if (header == null)
+			throw new Exception(transcriptFile.getName() + " is empty");
+
+		final List<String> columns = Arrays.asList(header.replace("\"", "").trim().split(","));
+		final int colFov = columnIndex(columns, "fov", 0);
+		final int colCellId = columnIndex(columns, "cell_ID", 1);
+		final int colX = columnIndex(columns, "x_local_px", 3);
+		final int colY = columnIndex(columns, "y_local_px", 4);
+		final int colTarget = columnIndex(columns, "target", 8);
+		final int colCellComp = columnIndex(columns, "CellComp", 9);
+		final int colQv = columns.indexOf("qv");
+		if (colQv < 0 && minQv > 0)
+			logger.warn("{} has no qv column, the Q-value filter is ignored", transcriptFile.getName());
+
+		final int minFields = Math.max(Math.max(Math.max(colFov, colCellId), Math.max(colX, colY)), Math.max(Math.max(colTarget, colCellComp), colQv)) + 1;
+
+		final ChunkedTextParser parser = new ChunkedTextParser(transcriptFile).skipHeader(true);
+		final int nWorkers = parser.getWorkerCount();
+
+		dictionary = new FeatureDictionary(this::isFeatureIncluded);
+		cellCounts = new TranscriptCountTable(nCells, nWorkers);
+		annotCounts = new TranscriptCountTable(nAnnots, nWorkers);
+
+		final FeatureDictionary.Lookup[] lookups = new FeatureDictionary.Lookup[nWorkers];
+		final ByteFields[] fields = new ByteFields[nWorkers];
+		for (int w = 0; w < nWorkers; w++) {
+			lookups[w] = dictionary.createLookup();
+			fields[w] = new ByteFields(',', columns.size());
+		}
+
+		final AtomicLong nAccepted = new AtomicLong();
+		final AtomicLong nUnplaced = new AtomicLong();
+
+		parser.parse((buf, from, to, worker) -> {
+			final ByteFields f = fields[worker];
+			final FeatureDictionary.Lookup lookup = lookups[worker];
+			long accepted = 0;
+			long unplaced = 0;
+
+			int p = from;
+			while (p < to) {
+				final int e = ByteFields.lineEnd(buf, p, to);
+				if (f.split(buf, p, e) >= minFields) {
+					if (accepted(f, colCellId, colCellComp, colQv)) {
+						final int feature = lookup.lookup(buf, f.start(colTarget), f.end(colTarget));
+						if (feature >= 0) {
+							final int fov = f.getInt(colFov);
+							if (fov < 0 || fov >= fovX.length || Double.isNaN(fovX[fov])) {
+								unplaced++;
+							} else {
+								final double x = fovX[fov] + f.getDouble(colX);
+								final double y = fovY[fov] + f.getDouble(colY);
+
+								final int cell = cellLocator.locate(x, y);
+								if (cell >= 0)
+									cellCounts.increment(worker, cell, feature);
+
+								final int annot = annotLocator.locate(x, y);
+								if (annot >= 0)
+									annotCounts.increment(worker, annot, feature);
+
+								accepted++;
+							}
+						}
+					}
+				}
+				p = e + 1;
+			}
+			nAccepted.addAndGet(accepted);
+			nUnplaced.addAndGet(unplaced);
+		});
+
+		cellCounts.compact();
+		annotCounts.compact();
+
+		if (nUnplaced.get() > 0)
+			logger.warn("Skipped {} transcripts of FOVs missing from the FOV positions", nUnplaced.get());
+		logger.info("Counted {} transcripts of {} features from {}", nAccepted.get(), dictionary.size(), transcriptFile.getName());
+	}
+
+	private boolean accepted(final ByteFields f, final int colCellId, final int colCellComp, final int colQv) {
+		if (onNucleusOnly && !f.equalsBytes(colCellComp, NUCLEAR))
+			return false;
+		if (colQv >= 0 && f.getDouble(colQv) < minQv)
+			return false;
+		if (belongsToCellOnly && f.getInt(colCellId) == 0)
+			return false;
+		return true;
+	}
+
+	private static int columnIndex(final List<String> columns, final String name, final int defaultIndex) {
+		final int ind = columns.indexOf(name);
+		return ind < 0 ? defaultIndex : ind;
+	}
+
+	/**
+	 * @return the features seen by the last ingest
+	 */
+	public FeatureDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * @return per-cell counts of the last ingest
+	 */
+	public TranscriptCountTable getCellCounts() {
+		return cellCounts;
+	}
+
+	/**
+	 * @return per-annotation counts of the last ingest
+	 */
+	public TranscriptCountTable getAnnotationCounts() {
+		return annotCounts;
+	}
+
+}
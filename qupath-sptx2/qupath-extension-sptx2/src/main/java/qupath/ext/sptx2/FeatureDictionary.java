@@ -0,0 +1,187 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Interns feature (gene) names to dense integer ids.
+ * <p>
+ * The dictionary itself is shared and synchronized, but every worker parses through its own {@link Lookup},
+ * which caches byte-slice to id mappings so the shared map (and a String allocation) is only hit the first
+ * time a worker meets a feature.
+ * An optional filter decides once per feature whether it should be counted.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class FeatureDictionary {
+
+	final private Map<String, Integer> ids = new HashMap<>();
+	final private List<String> names = new ArrayList<>();
+	private boolean[] included = new boolean[64];
+	final private Predicate<String> filter;
+
+	/**
+	 * Create a dictionary accepting every feature.
+	 */
+	public FeatureDictionary() {
+		this(null);
+	}
+
+	/**
+	 * Create a dictionary with a feature filter.
+	 * @param filter returns true for features that should be counted; null to accept all
+	 */
+	public FeatureDictionary(final Predicate<String> filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Get the id of a feature, adding it if required.
+	 * @param name
+	 * @return
+	 */
+	public synchronized int intern(final String name) {
+		final Integer id = ids.get(name);
+		if (id != null)
+			return id;
+		final int newId = names.size();
+		ids.put(name, newId);
+		names.add(name);
+		if (newId == included.length)
+			included = Arrays.copyOf(included, newId * 2);
+		included[newId] = filter == null || filter.test(name);
+		return newId;
+	}
+
+	/**
+	 * @param name
+	 * @return the id of the feature, or -1 if it is unknown
+	 */
+	public synchronized int getId(final String name) {
+		final Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param id
+	 * @return true if the feature passes the filter
+	 */
+	public synchronized boolean isIncluded(final int id) {
+		return included[id];
+	}
+
+	/**
+	 * @return the number of features seen so far
+	 */
+	public synchronized int size() {
+		return names.size();
+	}
+
+	/**
+	 * @param id
+	 * @return the feature name
+	 */
+	public synchronized String getName(final int id) {
+		return names.get(id);
+	}
+
+	/**
+	 * @return a snapshot of all feature names, indexed by id
+	 */
+	public synchronized List<String> getNames() {
+		return new ArrayList<>(names);
+	}
+
+	/**
+	 * @return a new thread-confined lookup cache
+	 */
+	public Lookup createLookup() {
+		return new Lookup();
+	}
+
+	/**
+	 * Thread-confined byte-slice cache in front of the shared dictionary.
+	 * Ids are returned negated-minus-one (i.e. {@code -id-1}) for features rejected by the filter,
+	 * so callers can test inclusion without another lookup.
+	 */
+	public class Lookup {
+
+		private byte[][] keys = new byte[256][];
+		private int[] values = new int[256];
+		private int size = 0;
+
+		/**
+		 * Look up a byte slice.
+		 * @param buf
+		 * @param from
+		 * @param to
+		 * @return the feature id if included, otherwise {@code -id-1}
+		 */
+		public int lookup(final byte[] buf, final int from, final int to) {
+			final int mask = keys.length - 1;
+			int slot = mix(ByteFields.hash(buf, from, to)) & mask;
+			while (true) {
+				final byte[] key = keys[slot];
+				if (key == null)
+					break;
+				if (key.length == to - from && Arrays.equals(key, 0, key.length, buf, from, to))
+					return values[slot];
+				slot = (slot + 1) & mask;
+			}
+			final String name = new String(buf, from, to - from, StandardCharsets.UTF_8);
+			final int id = intern(name);
+			final int value = isIncluded(id) ? id : -id-1;
+			keys[slot] = Arrays.copyOfRange(buf, from, to);
+			values[slot] = value;
+			if (++size * 2 > keys.length)
+				rehash();
+			return value;
+		}
+
+		private void rehash() {
+			final byte[][] oldKeys = keys;
+			final int[] oldValues = values;
+			keys = new byte[oldKeys.length * 2][];
+			values = new int[oldKeys.length * 2];
+			final int mask = keys.length - 1;
+			for (int k = 0; k < oldKeys.length; k++) {
+				if (oldKeys[k] == null)
+					continue;
+				int slot = mix(ByteFields.hash(oldKeys[k], 0, oldKeys[k].length)) & mask;
+				while (keys[slot] != null)
+					slot = (slot + 1) & mask;
+				keys[slot] = oldKeys[k];
+				values[slot] = oldValues[k];
+			}
+		}
+
+	}
+
+	private static int mix(final int h) {
+		return h ^ (h >>> 16);
+	}
+
+}
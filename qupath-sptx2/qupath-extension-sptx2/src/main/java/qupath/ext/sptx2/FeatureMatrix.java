@@ -0,0 +1,385 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Parsed, unfiltered (row &times; feature) count matrix of a vendor output, stored row-compressed.
+ * <p>
+ * Rows are identified by a name (e.g. a 10x barcode) and a 64-bit key (e.g. a packed CosMx fov and cell id).
+ * Feature filters and the mapping of rows to objects are applied afterwards by {@link #toCountTable(int[], int, int[])},
+ * so the same parsed matrix can be cached once in a {@link SidecarCache} and reused with any settings.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class FeatureMatrix {
+
+	/**
+	 * Sidecar codec for feature matrices.
+	 */
+	public static final SidecarCache.Codec<FeatureMatrix> CODEC = new SidecarCache.Codec<FeatureMatrix>() {
+
+		@Override
+		public void write(final FeatureMatrix matrix, final SidecarCache.Writer writer) {
+			writer.putStrings("rowNames", matrix.rowNames)
+				.putLongs("rowKeys", matrix.rowKeys)
+				.putStrings("featureIds", matrix.featureIds)
+				.putStrings("featureNames", matrix.featureNames)
+				.putStrings("featureTypes", matrix.featureTypes)
+				.putInts("rowPtr", matrix.rowPtr)
+				.putInts("features", matrix.features)
+				.putInts("counts", matrix.counts);
+		}
+
+		@Override
+		public FeatureMatrix read(final SidecarCache.Entry entry) throws IOException {
+			return new FeatureMatrix(
+					entry.getStrings("rowNames"), entry.getLongArray("rowKeys"),
+					entry.getStrings("featureIds"), entry.getStrings("featureNames"), entry.getStrings("featureTypes"),
+					entry.getIntArray("rowPtr"), entry.getIntArray("features"), entry.getIntArray("counts"));
+		}
+
+	};
+
+	final private String[] rowNames;
+	final private long[] rowKeys;
+	final private String[] featureIds;
+	final private String[] featureNames;
+	final private String[] featureTypes;
+	final private int[] rowPtr;
+	final private int[] features;
+	final private int[] counts;
+
+	/**
+	 * Create a matrix.
+	 * @param rowNames name of every row
+	 * @param rowKeys key of every row
+	 * @param featureIds id of every feature
+	 * @param featureNames name of every feature
+	 * @param featureTypes type of every feature, e.g. "Gene Expression"
+	 * @param rowPtr row offsets into features and counts, of length nRows+1
+	 * @param features feature index of every non-zero entry, row by row
+	 * @param counts count of every non-zero entry, row by row
+	 */
+	public FeatureMatrix(final String[] rowNames, final long[] rowKeys, final String[] featureIds, final String[] featureNames, final String[] featureTypes,
+			final int[] rowPtr, final int[] features, final int[] counts) {
+		this.rowNames = rowNames;
+		this.rowKeys = rowKeys;
+		this.featureIds = featureIds;
+		this.featureNames = featureNames;
+		this.featureTypes = featureTypes;
+		this.rowPtr = rowPtr;
+		this.features = features;
+		this.counts = counts;
+	}
+
+	/**
+	 * @return number of rows
+	 */
+	public int getRowCount() {
+		return rowPtr.length - 1;
+	}
+
+	/**
+	 * @return number of features
+	 */
+	public int getFeatureCount() {
+		return featureNames.length;
+	}
+
+	/**
+	 * @param row
+	 * @return the name of a row
+	 */
+	public String getRowName(final int row) {
+		return rowNames[row];
+	}
+
+	/**
+	 * @param row
+	 * @return the key of a row
+	 */
+	public long getRowKey(final int row) {
+		return rowKeys[row];
+	}
+
+	/**
+	 * @param feature
+	 * @return the name of a feature
+	 */
+	public String getFeatureName(final int feature) {
+		return featureNames[feature];
+	}
+
+	/**
+	 * @param feature
+	 * @return the type of a feature
+	 */
+	public String getFeatureType(final int feature) {
+		return featureTypes[feature];
+	}
+
+	/**
+	 * @return number of non-zero entries
+	 */
+	public int getNonZeroCount() {
+		return rowPtr[rowPtr.length - 1];
+	}
+
+	/**
+	 * Gather the counts into a table over target objects, in parallel.
+	 * Rows mapping to the same target are summed.
+	 * @param rowTargets target index for every row, or -1 to skip the row
+	 * @param nTargets number of targets
+	 * @param featureMap output feature id for every feature, or -1 to skip the feature
+	 * @return the compacted table
+	 */
+	public TranscriptCountTable toCountTable(final int[] rowTargets, final int nTargets, final int[] featureMap) {
+		final int nWorkers = ThreadTools.getParallelism();
+		final int nRows = getRowCount();
+		final TranscriptCountTable table = new TranscriptCountTable(nTargets, nWorkers);
+		IntStream.range(0, nWorkers).parallel().forEach(w -> {
+			final int from = (int)((long)nRows * w / nWorkers);
+			final int to = (int)((long)nRows * (w + 1) / nWorkers);
+			for (int r = from; r < to; r++) {
+				final int target = rowTargets[r];
+				if (target < 0)
+					continue;
+				for (int i = rowPtr[r]; i < rowPtr[r+1]; i++) {
+					final int feature = featureMap[features[i]];
+					if (feature >= 0)
+						table.add(w, target, feature, counts[i]);
+				}
+			}
+		});
+		table.compact();
+		return table;
+	}
+
+	/**
+	 * Sum rows into a new matrix with the same features.
+	 * @param rowTargets output row for every row, or -1 to drop the row
+	 * @param rowNames name of every output row
+	 * @param rowKeys key of every output row
+	 * @return the summed matrix
+	 */
+	public FeatureMatrix sumRows(final int[] rowTargets, final String[] rowNames, final long[] rowKeys) {
+		final TranscriptCountTable table = toCountTable(rowTargets, rowNames.length, IntStream.range(0, getFeatureCount()).toArray());
+		return new FeatureMatrix(rowNames, rowKeys, featureIds, featureNames, featureTypes,
+				table.getRowPointers(), table.getFeatures(), table.getCounts());
+	}
+
+	/**
+	 * @param rowKeys key of every row
+	 * @return a matrix sharing the names and entries of this one, with new row keys
+	 */
+	public FeatureMatrix withRowKeys(final long[] rowKeys) {
+		return new FeatureMatrix(rowNames, rowKeys, featureIds, featureNames, featureTypes, rowPtr, features, counts);
+	}
+
+	/**
+	 * Read a 10x feature-barcode matrix directory ({@code barcodes.tsv.gz}, {@code features.tsv.gz}, {@code matrix.mtx.gz}),
+	 * with one row per barcode. Row keys are the barcodes parsed as integers where possible, otherwise the row index.
+	 * @param matrixDir
+	 * @return
+	 * @throws Exception
+	 */
+	public static FeatureMatrix read10x(final File matrixDir) throws Exception {
+		final List<String> barcodeList = new ArrayList<>();
+		try (BufferedReader barcodeReader = new BufferedReader(new InputStreamReader(ChunkedTextParser.openStream(new File(matrixDir, "barcodes.tsv.gz")), StandardCharsets.UTF_8))) {
+			String barcodeNextRecord;
+			while ((barcodeNextRecord = barcodeReader.readLine()) != null)
+				barcodeList.add(barcodeNextRecord);
+		}
+
+		final List<String> featureIdList = new ArrayList<>();
+		final List<String> featureNameList = new ArrayList<>();
+		final List<String> featureTypeList = new ArrayList<>();
+		try (BufferedReader featureReader = new BufferedReader(new InputStreamReader(ChunkedTextParser.openStream(new File(matrixDir, "features.tsv.gz")), StandardCharsets.UTF_8))) {
+			String featureNextRecord;
+			while ((featureNextRecord = featureReader.readLine()) != null) {
+				final String[] featureNextRecordArray = featureNextRecord.split("\t");
+				featureIdList.add(featureNextRecordArray[0]);
+				featureNameList.add(featureNextRecordArray[1]);
+				featureTypeList.add(featureNextRecordArray[2]);
+			}
+		}
+
+		final int nBarcodes = barcodeList.size();
+		final long[] rowKeys = new long[nBarcodes];
+		for (int b = 0; b < nBarcodes; b++) {
+			try {
+				rowKeys[b] = Long.parseLong(barcodeList.get(b));
+			} catch (NumberFormatException e) {
+				rowKeys[b] = b;
+			}
+		}
+
+		// Matrix rows are features and columns are barcodes, so transpose while streaming
+		final int[] identityFeatures = IntStream.range(0, featureNameList.size()).toArray();
+		final int[] identityBarcodes = IntStream.range(0, nBarcodes).toArray();
+		final TranscriptCountTable table = new MatrixMarketReader(new File(matrixDir, "matrix.mtx.gz")).read(identityFeatures, identityBarcodes, nBarcodes);
+
+		return new FeatureMatrix(
+				barcodeList.toArray(new String[0]), rowKeys,
+				featureIdList.toArray(new String[0]), featureNameList.toArray(new String[0]), featureTypeList.toArray(new String[0]),
+				table.getRowPointers(), table.getFeatures(), table.getCounts());
+	}
+
+	/**
+	 * @param matrixDir
+	 * @return the source files read by {@link #read10x(File)}
+	 */
+	public static List<File> get10xSources(final File matrixDir) {
+		return List.of(new File(matrixDir, "barcodes.tsv.gz"), new File(matrixDir, "features.tsv.gz"), new File(matrixDir, "matrix.mtx.gz"));
+	}
+
+	/**
+	 * Read a CosMx {@code *exprMat_file.csv} ("fov","cell_ID",gene...), with one row per cell.
+	 * Row keys pack (fov, cell_ID) as in {@link CellTable#readCosmx(File, File)}; features whose names start
+	 * with "NegPrb" get the type "Negative Control Probe", all others "Gene Expression".
+	 * <p>
+	 * The file is parsed in parallel chunks, each worker collecting the non-zero entries of its rows in primitive
+	 * buffers. The rows are then split by FOV, ordered by cell id within each FOV, and gathered concurrently.
+	 * @param exprMatFile
+	 * @return
+	 * @throws Exception
+	 */
+	public static FeatureMatrix readCosmxExprMat(final File exprMatFile) throws Exception {
+		final String[] exprMatHeaders = ChunkedTextParser.readFirstLine(exprMatFile).split(",");
+		final String[] featureNames = Arrays.stream(exprMatHeaders).skip(2).map(h -> h.replaceAll("\"", "")).toArray(String[]::new);
+		final String[] featureTypes = Arrays.stream(featureNames).map(f -> f.startsWith("NegPrb")? "Negative Control Probe": "Gene Expression").toArray(String[]::new);
+
+		final ChunkedTextParser parser = new ChunkedTextParser(exprMatFile).skipHeader(true);
+		final RowBlock[] blocks = new RowBlock[parser.getWorkerCount()];
+		final ByteFields[] fields = new ByteFields[parser.getWorkerCount()];
+		for (int w = 0; w < blocks.length; w++) {
+			blocks[w] = new RowBlock();
+			fields[w] = new ByteFields(',', exprMatHeaders.length);
+		}
+
+		parser.parse((buf, from, to, worker) -> {
+			final ByteFields f = fields[worker];
+			final RowBlock block = blocks[worker];
+			int p = from;
+			while (p < to) {
+				final int e = ByteFields.lineEnd(buf, p, to);
+				final int n = f.split(buf, p, e);
+				if (n >= 2) {
+					block.startRow(LongIntHashMap.pack(f.getInt(0), f.getInt(1)));
+					for (int i = 2; i < n; i++) {
+						// Most entries are a single '0', so skip those before parsing
+						if (f.length(i) == 1 && buf[f.start(i)] == '0')
+							continue;
+						final int count = (int)f.getLong(i);
+						if (count != 0)
+							block.add(i - 2, count);
+					}
+				}
+				p = e + 1;
+			}
+		});
+
+		// Concatenate the worker blocks, then permute rows into (fov, cell_ID) order
+		int nRows = 0;
+		int nnz = 0;
+		for (RowBlock block : blocks) {
+			nRows += block.nRows;
+			nnz += block.nnz;
+		}
+		final long[] unorderedKeys = new long[nRows];
+		final int[] unorderedPtr = new int[nRows + 1];
+		final int[] unorderedFeatures = new int[nnz];
+		final int[] unorderedCounts = new int[nnz];
+		int r0 = 0;
+		int i0 = 0;
+		for (RowBlock block : blocks) {
+			System.arraycopy(block.keys, 0, unorderedKeys, r0, block.nRows);
+			for (int r = 0; r < block.nRows; r++)
+				unorderedPtr[r0 + r + 1] = unorderedPtr[r0 + r] + block.lengths[r];
+			System.arraycopy(block.features, 0, unorderedFeatures, i0, block.nnz);
+			System.arraycopy(block.counts, 0, unorderedCounts, i0, block.nnz);
+			r0 += block.nRows;
+			i0 += block.nnz;
+		}
+
+		final int[] order = CellTable.orderByPackedKey(unorderedKeys);
+		final long[] rowKeys = new long[nRows];
+		final int[] rowPtr = new int[nRows + 1];
+		for (int r = 0; r < nRows; r++) {
+			rowKeys[r] = unorderedKeys[order[r]];
+			rowPtr[r+1] = rowPtr[r] + unorderedPtr[order[r]+1] - unorderedPtr[order[r]];
+		}
+		final int[] features = new int[nnz];
+		final int[] counts = new int[nnz];
+		IntStream.range(0, nRows).parallel().forEach(r -> {
+			final int from = unorderedPtr[order[r]];
+			System.arraycopy(unorderedFeatures, from, features, rowPtr[r], rowPtr[r+1] - rowPtr[r]);
+			System.arraycopy(unorderedCounts, from, counts, rowPtr[r], rowPtr[r+1] - rowPtr[r]);
+		});
+
+		final String[] rowNames = new String[nRows];
+		for (int r = 0; r < nRows; r++)
+			rowNames[r] = LongIntHashMap.lo(rowKeys[r]) + "_" + LongIntHashMap.hi(rowKeys[r]);
+
+		return new FeatureMatrix(rowNames, rowKeys, featureNames, featureNames, featureTypes, rowPtr, features, counts);
+	}
+
+	private static class RowBlock {
+
+		private int nRows = 0;
+		private long[] keys = new long[1 << 12];
+		private int[] lengths = new int[keys.length];
+		private int nnz = 0;
+		private int[] features = new int[1 << 16];
+		private int[] counts = new int[features.length];
+
+		void startRow(final long key) {
+			if (nRows == keys.length) {
+				keys = Arrays.copyOf(keys, nRows * 2);
+				lengths = Arrays.copyOf(lengths, nRows * 2);
+			}
+			keys[nRows] = key;
+			lengths[nRows++] = 0;
+		}
+
+		void add(final int feature, final int count) {
+			if (nnz == features.length) {
+				features = Arrays.copyOf(features, nnz * 2);
+				counts = Arrays.copyOf(counts, nnz * 2);
+			}
+			features[nnz] = feature;
+			counts[nnz++] = count;
+			lengths[nRows-1]++;
+		}
+
+	}
+
+}
@@ -0,0 +1,665 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.measure.ObservableMeasurementTableData;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Sparse (cells &times; genes) expression matrix stored alongside the object hierarchy.
+ * <p>
+ * Values are held in compressed sparse row form, with rows keyed by {@link PathObject#getID()}, so memory is
+ * proportional to the number of non-zero entries rather than to panel size &times; cell count.
+ * The store is attached to the {@link ImageData} as a property and exposed to the measurement table as
+ * virtual measurements named {@code <prefix><gene>} (e.g. "xenium:cell_transcript:EPCAM").
+ * <p>
+ * Because extension classes are not written to .qpdata files, the store is persisted as a binary file in the
+ * project entry directory, and reloaded when the image is opened (see {@link SpTx2Extension}) or on first access.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class GeneExpressionStore {
+
+	final private static Logger logger = LoggerFactory.getLogger(GeneExpressionStore.class);
+
+	/**
+	 * {@link ImageData} property key under which the store is attached.
+	 */
+	final public static String KEY_GENE_EXPRESSION = "SPTX2_GENE_EXPRESSION";
+
+	final private static String STORE_FILE_NAME = "sptx2_gene_expression.bin";
+
+	final private static long FILE_MAGIC = 0x5350545832475845L; // "SPTX2GXE"
+
+	final private String prefix;
+	final private String[] genes;
+	final private Map<String, Integer> geneIndex = new HashMap<>();
+
+	// Rows sorted by object id
+	final private long[] idMsb;
+	final private long[] idLsb;
+
+	final private int[] rowPtr;
+	final private int[] colInd;
+	final private float[] values;
+
+	// Column-compressed transpose, built on demand for per-gene queries
+	private int[] colPtr = null;
+	private int[] rowInd = null;
+	private float[] colValues = null;
+
+	private GeneExpressionStore(final String prefix, final String[] genes, final long[] idMsb, final long[] idLsb, final int[] rowPtr, final int[] colInd, final float[] values) {
+		this.prefix = prefix;
+		this.genes = genes;
+		for (int g = 0; g < genes.length; g++)
+			geneIndex.put(genes[g], g);
+		this.idMsb = idMsb;
+		this.idLsb = idLsb;
+		this.rowPtr = rowPtr;
+		this.colInd = colInd;
+		this.values = values;
+	}
+
+	/**
+	 * @return the measurement name prefix, e.g. "xenium:cell_transcript:"
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * @return the gene names, in column order
+	 */
+	public List<String> getGenes() {
+		return Collections.unmodifiableList(Arrays.asList(genes));
+	}
+
+	/**
+	 * @param gene
+	 * @return the column of a gene, or -1 if it is unknown
+	 */
+	public int getGeneIndex(final String gene) {
+		final Integer g = geneIndex.get(gene);
+		return g == null ? -1 : g;
+	}
+
+	/**
+	 * @return number of genes (columns)
+	 */
+	public int nGenes() {
+		return genes.length;
+	}
+
+	/**
+	 * @return number of objects (rows)
+	 */
+	public int nObjects() {
+		return idMsb.length;
+	}
+
+	/**
+	 * @return number of stored non-zero values
+	 */
+	public int nNonZero() {
+		return values.length;
+	}
+
+	/**
+	 * @param pathObject
+	 * @return the row of an object, or -1 if the object has no expression data
+	 */
+	public int getRow(final PathObject pathObject) {
+		final UUID id = pathObject.getID();
+		final long msb = id.getMostSignificantBits();
+		final long lsb = id.getLeastSignificantBits();
+		int lo = 0, hi = idMsb.length - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int c = compare(idMsb[mid], idLsb[mid], msb, lsb);
+			if (c < 0)
+				lo = mid + 1;
+			else if (c > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param pathObject
+	 * @return true if the store has a row for the object
+	 */
+	public boolean contains(final PathObject pathObject) {
+		return getRow(pathObject) >= 0;
+	}
+
+	/**
+	 * Get a single value.
+	 * @param row
+	 * @param gene column index
+	 * @return the value, or 0 if not stored
+	 */
+	public float getValue(final int row, final int gene) {
+		final int ind = Arrays.binarySearch(colInd, rowPtr[row], rowPtr[row+1], gene);
+		return ind < 0 ? 0f : values[ind];
+	}
+
+	/**
+	 * Get a single value.
+	 * @param pathObject
+	 * @param gene column index
+	 * @return the value, 0 if not stored, or NaN if the object has no row
+	 */
+	public double getValue(final PathObject pathObject, final int gene) {
+		final int row = getRow(pathObject);
+		return row < 0 ? Double.NaN : getValue(row, gene);
+	}
+
+	/**
+	 * Get a single value.
+	 * @param pathObject
+	 * @param gene gene name
+	 * @return the value, 0 if not stored, or NaN if the object or gene is unknown
+	 */
+	public double getValue(final PathObject pathObject, final String gene) {
+		final int g = getGeneIndex(gene);
+		return g < 0 ? Double.NaN : getValue(pathObject, g);
+	}
+
+	/**
+	 * Copy the expression vector of one object into a dense array.
+	 * @param row
+	 * @param dense array of length {@link #nGenes()}, or null to allocate one
+	 * @return the dense vector
+	 */
+	public float[] getDenseRow(final int row, float[] dense) {
+		if (dense == null)
+			dense = new float[genes.length];
+		else
+			Arrays.fill(dense, 0f);
+		for (int i = rowPtr[row]; i < rowPtr[row+1]; i++)
+			dense[colInd[i]] = values[i];
+		return dense;
+	}
+
+	/**
+	 * @param pathObject
+	 * @return the dense expression vector of an object, or null if it has no row
+	 */
+	public float[] getExpressionVector(final PathObject pathObject) {
+		final int row = getRow(pathObject);
+		return row < 0 ? null : getDenseRow(row, null);
+	}
+
+	/**
+	 * Visit the non-zero entries of a row without allocation.
+	 * @param row
+	 * @param visitor
+	 */
+	public void forEachInRow(final int row, final EntryVisitor visitor) {
+		for (int i = rowPtr[row]; i < rowPtr[row+1]; i++)
+			visitor.visit(colInd[i], values[i]);
+	}
+
+	/**
+	 * Visit the non-zero entries of a gene column without allocation.
+	 * The column index is built on first use.
+	 * @param gene
+	 * @param visitor receives (row, value)
+	 */
+	public void forEachInColumn(final int gene, final EntryVisitor visitor) {
+		ensureColumns();
+		for (int i = colPtr[gene]; i < colPtr[gene+1]; i++)
+			visitor.visit(rowInd[i], colValues[i]);
+	}
+
+	/**
+	 * Callback for sparse entries.
+	 */
+	public static interface EntryVisitor {
+
+		/**
+		 * @param index gene column (for rows) or row (for columns)
+		 * @param value
+		 */
+		void visit(int index, float value);
+
+	}
+
+	/**
+	 * Get the per-object values of one gene, for a list of objects.
+	 * @param pathObjects
+	 * @param gene
+	 * @return values in the order of the objects; NaN for objects without a row
+	 */
+	public double[] getGeneColumn(final List<? extends PathObject> pathObjects, final String gene) {
+		final int g = getGeneIndex(gene);
+		final double[] result = new double[pathObjects.size()];
+		IntStream.range(0, result.length).parallel().forEach(i -> {
+			final int row = getRow(pathObjects.get(i));
+			result[i] = row < 0 || g < 0 ? Double.NaN : getValue(row, g);
+		});
+		return result;
+	}
+
+	/**
+	 * Get the genes with the highest values in one object.
+	 * @param pathObject
+	 * @param k
+	 * @return up to k gene names, highest first
+	 */
+	public List<String> getTopGenes(final PathObject pathObject, final int k) {
+		final int row = getRow(pathObject);
+		if (row < 0)
+			return Collections.emptyList();
+		final Integer[] order = IntStream.range(rowPtr[row], rowPtr[row+1]).boxed().toArray(Integer[]::new);
+		Arrays.sort(order, (a, b) -> Float.compare(values[b], values[a]));
+		final List<String> result = new ArrayList<>();
+		for (int i = 0; i < Math.min(k, order.length); i++)
+			result.add(genes[colInd[order[i]]]);
+		return result;
+	}
+
+	private synchronized void ensureColumns() {
+		if (colPtr != null)
+			return;
+		final int[] ptr = new int[genes.length + 1];
+		for (int c : colInd)
+			ptr[c+1]++;
+		for (int g = 0; g < genes.length; g++)
+			ptr[g+1] += ptr[g];
+		final int[] fill = Arrays.copyOf(ptr, genes.length);
+		final int[] rows = new int[colInd.length];
+		final float[] vals = new float[colInd.length];
+		for (int r = 0; r < idMsb.length; r++) {
+			for (int i = rowPtr[r]; i < rowPtr[r+1]; i++) {
+				final int pos = fill[colInd[i]]++;
+				rows[pos] = r;
+				vals[pos] = values[i];
+			}
+		}
+		rowInd = rows;
+		colValues = vals;
+		colPtr = ptr;
+	}
+
+	/**
+	 * Create virtual measurement functions for every gene, named {@code <prefix><gene>}.
+	 * @return
+	 */
+	public Map<String, ToDoubleFunction<PathObject>> createVirtualMeasurements() {
+		final Map<String, ToDoubleFunction<PathObject>> map = new LinkedHashMap<>();
+		for (int g = 0; g < genes.length; g++) {
+			final int gene = g;
+			map.put(prefix + genes[g], p -> getValue(p, gene));
+		}
+		return map;
+	}
+
+	/**
+	 * Attach the store to an image, replacing any previous store, and publish its virtual measurements.
+	 * If the image belongs to the current project, the store is also written to the project entry directory.
+	 * @param imageData
+	 * @param store
+	 */
+	public static void setStore(final ImageData<?> imageData, final GeneExpressionStore store) {
+		imageData.setProperty(KEY_GENE_EXPRESSION, store);
+		publishVirtualMeasurements(imageData, store);
+
+		final File file = getEntryFile(imageData, STORE_FILE_NAME);
+		if (file != null) {
+			try {
+				store.write(file);
+			} catch (IOException e) {
+				logger.warn("Unable to write gene expression store: {}", e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Get the store attached to an image, loading it from the project entry directory if required.
+	 * @param imageData
+	 * @return the store, or null if there is none
+	 */
+	public static GeneExpressionStore getStore(final ImageData<?> imageData) {
+		if (imageData == null)
+			return null;
+		final Object store = imageData.getProperty(KEY_GENE_EXPRESSION);
+		if (store instanceof GeneExpressionStore)
+			return (GeneExpressionStore)store;
+
+		final File file = getEntryFile(imageData, STORE_FILE_NAME);
+		if (file == null || !file.isFile())
+			return null;
+		try {
+			final GeneExpressionStore loaded = read(file);
+			imageData.setProperty(KEY_GENE_EXPRESSION, loaded);
+			publishVirtualMeasurements(imageData, loaded);
+			return loaded;
+		} catch (IOException e) {
+			logger.warn("Unable to read gene expression store: {}", e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Publish the virtual measurements of a store, replacing those of any previous store with the same prefix
+	 * and keeping the others.
+	 * @param imageData
+	 * @param store
+	 */
+	static void publishVirtualMeasurements(final ImageData<?> imageData, final GeneExpressionStore store) {
+		final Map<String, ToDoubleFunction<PathObject>> map = new LinkedHashMap<>();
+		for (Map.Entry<String, ToDoubleFunction<PathObject>> entry : ObservableMeasurementTableData.getVirtualMeasurements(imageData).entrySet()) {
+			if (!entry.getKey().startsWith(store.getPrefix()))
+				map.put(entry.getKey(), entry.getValue());
+		}
+		map.putAll(store.createVirtualMeasurements());
+		ObservableMeasurementTableData.setVirtualMeasurements(imageData, map);
+	}
+
+	/**
+	 * @param imageData
+	 * @param fileName
+	 * @return a file in the project entry directory of the image, or null if the image is not in the current project
+	 */
+	static File getEntryFile(final ImageData<?> imageData, final String fileName) {
+		final QuPathGUI qupath = QuPathGUI.getInstance();
+		if (qupath == null)
+			return null;
+		final Project<?> project = qupath.getProject();
+		if (project == null)
+			return null;
+		@SuppressWarnings("unchecked")
+		final ProjectImageEntry<?> entry = ((Project<Object>)project).getEntry((ImageData<Object>)imageData);
+		if (entry == null)
+			return null;
+		return entry.getEntryPath().resolve(fileName).toFile();
+	}
+
+	/**
+	 * Write the store in a compact binary form.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(final File file) throws IOException {
+		file.getParentFile().mkdirs();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeLong(FILE_MAGIC);
+			out.writeLong(1); // version
+			out.writeUTF(prefix);
+			out.writeInt(genes.length);
+			for (String g : genes)
+				out.writeUTF(g);
+			out.writeInt(idMsb.length);
+			out.writeInt(values.length);
+			for (int r = 0; r < idMsb.length; r++) {
+				out.writeLong(idMsb[r]);
+				out.writeLong(idLsb[r]);
+			}
+			for (int p : rowPtr)
+				out.writeInt(p);
+			for (int c : colInd)
+				out.writeInt(c);
+			for (float v : values)
+				out.writeFloat(v);
+		}
+	}
+
+	/**
+	 * Read a store written by {@link #write(File)}.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static GeneExpressionStore read(final File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readLong() != FILE_MAGIC)
+				throw new IOException(file.getName() + " is not a gene expression store");
+			final long version = in.readLong();
+			if (version != 1)
+				throw new IOException("Unsupported gene expression store version " + version);
+			final String prefix = in.readUTF();
+			final String[] genes = new String[in.readInt()];
+			for (int g = 0; g < genes.length; g++)
+				genes[g] = in.readUTF();
+			final int nRows = in.readInt();
+			final int nnz = in.readInt();
+			final long[] msb = new long[nRows];
+			final long[] lsb = new long[nRows];
+			for (int r = 0; r < nRows; r++) {
+				msb[r] = in.readLong();
+				lsb[r] = in.readLong();
+			}
+			final int[] rowPtr = new int[nRows + 1];
+			for (int r = 0; r <= nRows; r++)
+				rowPtr[r] = in.readInt();
+			final int[] colInd = new int[nnz];
+			for (int i = 0; i < nnz; i++)
+				colInd[i] = in.readInt();
+			final float[] values = new float[nnz];
+			for (int i = 0; i < nnz; i++)
+				values[i] = in.readFloat();
+			return new GeneExpressionStore(prefix, genes, msb, lsb, rowPtr, colInd, values);
+		}
+	}
+
+	private static int compare(final long msb1, final long lsb1, final long msb2, final long lsb2) {
+		final int c = Long.compare(msb1, msb2);
+		return c != 0 ? c : Long.compare(lsb1, lsb2);
+	}
+
+	/**
+	 * Create a store from a compacted count table, keeping only the features accepted by the dictionary filter.
+	 * @param prefix measurement name prefix
+	 * @param table compacted table
+	 * @param targets objects, indexed by table row
+	 * @param dictionary feature names
+	 * @return
+	 */
+	public static GeneExpressionStore fromCountTable(final String prefix, final TranscriptCountTable table, final List<PathObject> targets, final FeatureDictionary dictionary) {
+		final List<String> names = dictionary.getNames();
+		final int[] remap = new int[names.size()];
+		final List<String> genes = new ArrayList<>();
+		for (int f = 0; f < names.size(); f++) {
+			if (dictionary.isIncluded(f)) {
+				remap[f] = genes.size();
+				genes.add(names.get(f));
+			} else
+				remap[f] = -1;
+		}
+
+		final Builder builder = new Builder(prefix, genes);
+		final int[] ptr = table.getRowPointers();
+		final int[] features = table.getFeatures();
+		final int[] counts = table.getCounts();
+		int[] cols = new int[16];
+		float[] vals = new float[16];
+		for (int r = 0; r < table.getTargetCount(); r++) {
+			final int n = ptr[r+1] - ptr[r];
+			if (n == 0)
+				continue;
+			if (n > cols.length) {
+				cols = new int[n];
+				vals = new float[n];
+			}
+			int k = 0;
+			for (int i = ptr[r]; i < ptr[r+1]; i++) {
+				if (remap[features[i]] < 0)
+					continue;
+				cols[k] = remap[features[i]];
+				vals[k++] = counts[i];
+			}
+			builder.addRow(targets.get(r), cols, vals, k);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Incremental builder. Rows may be added in any order and from several threads; entries within a row
+	 * may be unsorted, and repeated genes within a row are summed.
+	 */
+	public static class Builder {
+
+		final private String prefix;
+		final private String[] genes;
+
+		private long[] msb = new long[1024];
+		private long[] lsb = new long[1024];
+		private int[] rowPtr = new int[1025];
+		private int[] colInd = new int[4096];
+		private float[] values = new float[4096];
+		private int nRows = 0;
+
+		/**
+		 * @param prefix measurement name prefix, e.g. "cosmx:cell_transcript:"
+		 * @param genes gene names, in column order
+		 */
+		public Builder(final String prefix, final List<String> genes) {
+			this.prefix = prefix;
+			this.genes = genes.toArray(String[]::new);
+		}
+
+		/**
+		 * Add the non-zero values of one object. Zero values are dropped.
+		 * @param pathObject
+		 * @param genes column indices
+		 * @param vals values
+		 * @param n number of entries to read from the arrays
+		 */
+		public synchronized void addRow(final PathObject pathObject, final int[] genes, final float[] vals, final int n) {
+			if (nRows == msb.length) {
+				msb = Arrays.copyOf(msb, nRows * 2);
+				lsb = Arrays.copyOf(lsb, nRows * 2);
+				rowPtr = Arrays.copyOf(rowPtr, nRows * 2 + 1);
+			}
+			final int start = rowPtr[nRows];
+			if (start + n > colInd.length) {
+				final int capacity = Math.max(colInd.length * 2, start + n);
+				colInd = Arrays.copyOf(colInd, capacity);
+				values = Arrays.copyOf(values, capacity);
+			}
+			int k = start;
+			for (int i = 0; i < n; i++) {
+				if (vals[i] == 0f)
+					continue;
+				colInd[k] = genes[i];
+				values[k++] = vals[i];
+			}
+			final UUID id = pathObject.getID();
+			msb[nRows] = id.getMostSignificantBits();
+			lsb[nRows] = id.getLeastSignificantBits();
+			rowPtr[++nRows] = k;
+		}
+
+		/**
+		 * @return a new store; rows are sorted by object id and entries by gene
+		 */
+		public synchronized GeneExpressionStore build() {
+			final Integer[] order = IntStream.range(0, nRows).boxed().toArray(Integer[]::new);
+			Arrays.parallelSort(order, (a, b) -> compare(msb[a], lsb[a], msb[b], lsb[b]));
+
+			// Merge duplicate rows for the same object, then sort and sum entries within each row
+			final List<Integer> rowStarts = new ArrayList<>();
+			for (int i = 0; i < nRows; i++) {
+				if (i == 0 || compare(msb[order[i-1]], lsb[order[i-1]], msb[order[i]], lsb[order[i]]) != 0)
+					rowStarts.add(i);
+			}
+			final int nUnique = rowStarts.size();
+			rowStarts.add(nRows);
+
+			final long[] outMsb = new long[nUnique];
+			final long[] outLsb = new long[nUnique];
+			final int[][] rowCols = new int[nUnique][];
+			final float[][] rowVals = new float[nUnique][];
+
+			IntStream.range(0, nUnique).parallel().forEach(u -> {
+				final int first = order[rowStarts.get(u)];
+				outMsb[u] = msb[first];
+				outLsb[u] = lsb[first];
+				int len = 0;
+				for (int i = rowStarts.get(u); i < rowStarts.get(u+1); i++)
+					len += rowPtr[order[i]+1] - rowPtr[order[i]];
+				final long[] packed = new long[len];
+				int k = 0;
+				for (int i = rowStarts.get(u); i < rowStarts.get(u+1); i++) {
+					final int r = order[i];
+					for (int j = rowPtr[r]; j < rowPtr[r+1]; j++)
+						packed[k++] = ((long)colInd[j] << 32) | (Float.floatToRawIntBits(values[j]) & 0xffffffffL);
+				}
+				Arrays.sort(packed);
+				int n = 0;
+				final int[] cols = new int[len];
+				final float[] vals = new float[len];
+				for (int j = 0; j < len; j++) {
+					final int c = (int)(packed[j] >>> 32);
+					final float v = Float.intBitsToFloat((int)packed[j]);
+					if (n > 0 && cols[n-1] == c)
+						vals[n-1] += v;
+					else {
+						cols[n] = c;
+						vals[n++] = v;
+					}
+				}
+				rowCols[u] = Arrays.copyOf(cols, n);
+				rowVals[u] = Arrays.copyOf(vals, n);
+			});
+
+			final int[] outPtr = new int[nUnique + 1];
+			for (int u = 0; u < nUnique; u++)
+				outPtr[u+1] = outPtr[u] + rowCols[u].length;
+			final int[] outCols = new int[outPtr[nUnique]];
+			final float[] outVals = new float[outPtr[nUnique]];
+			for (int u = 0; u < nUnique; u++) {
+				System.arraycopy(rowCols[u], 0, outCols, outPtr[u], rowCols[u].length);
+				System.arraycopy(rowVals[u], 0, outVals, outPtr[u], rowVals[u].length);
+			}
+			return new GeneExpressionStore(prefix, genes, outMsb, outLsb, outPtr, outCols, outVals);
+		}
+
+	}
+
+}
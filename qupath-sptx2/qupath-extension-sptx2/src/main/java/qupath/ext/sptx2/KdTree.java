@@ -0,0 +1,281 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Implicit 2D k-d tree over a fixed set of points, for k-nearest-neighbour and fixed-radius queries.
+ * <p>
+ * The tree is a permutation of the point indices: every range [lo, hi) holds its median point at the middle
+ * position, with the smaller half before it along the split axis, so no node objects are allocated. Unlike
+ * {@link PointGrid}, query cost does not depend on how evenly the points are spread. Queries only read the
+ * tree and may run concurrently, each thread with its own {@link Neighbours} buffer.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class KdTree {
+
+	final private static int LEAF_SIZE = 8;
+
+	final private double[] x;
+	final private double[] y;
+	final private int[] order;
+	final private boolean[] splitX;
+
+	/**
+	 * Build the tree.
+	 * @param x
+	 * @param y
+	 */
+	public KdTree(final double[] x, final double[] y) {
+		this.x = x;
+		this.y = y;
+		order = new int[x.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		splitX = new boolean[x.length];
+		build(0, order.length);
+	}
+
+	private void build(final int lo, final int hi) {
+		if (hi - lo <= LEAF_SIZE)
+			return;
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int k = lo; k < hi; k++) {
+			final int i = order[k];
+			minX = Math.min(minX, x[i]);
+			maxX = Math.max(maxX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		final boolean alongX = maxX - minX >= maxY - minY;
+		final int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, alongX? x: y);
+		splitX[mid] = alongX;
+		build(lo, mid);
+		build(mid + 1, hi);
+	}
+
+	/**
+	 * Quickselect, so that order[k] holds the point of rank k along one axis within [left, right].
+	 */
+	private void select(int left, int right, final int k, final double[] v) {
+		while (right > left) {
+			final double pivot = v[order[(left + right) >>> 1]];
+			int i = left, j = right;
+			while (i <= j) {
+				while (v[order[i]] < pivot)
+					i++;
+				while (v[order[j]] > pivot)
+					j--;
+				if (i <= j) {
+					final int t = order[i];
+					order[i] = order[j];
+					order[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * @return number of indexed points
+	 */
+	public int size() {
+		return order.length;
+	}
+
+	/**
+	 * Find the k points nearest to a location.
+	 * @param qx
+	 * @param qy
+	 * @param exclude index of a point to ignore (e.g. the query point itself), or -1
+	 * @param neighbours buffer receiving the result, sorted by increasing distance; its capacity is k
+	 */
+	public void nearest(final double qx, final double qy, final int exclude, final Neighbours neighbours) {
+		neighbours.size = 0;
+		nearest(0, order.length, qx, qy, exclude, neighbours);
+		neighbours.sort();
+	}
+
+	private void nearest(final int lo, final int hi, final double qx, final double qy, final int exclude, final Neighbours neighbours) {
+		if (hi - lo <= LEAF_SIZE) {
+			for (int k = lo; k < hi; k++)
+				offer(order[k], qx, qy, exclude, neighbours);
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final int p = order[mid];
+		offer(p, qx, qy, exclude, neighbours);
+		final double diff = splitX[mid]? qx - x[p]: qy - y[p];
+		if (diff < 0) {
+			nearest(lo, mid, qx, qy, exclude, neighbours);
+			if (diff * diff < neighbours.worst())
+				nearest(mid + 1, hi, qx, qy, exclude, neighbours);
+		} else {
+			nearest(mid + 1, hi, qx, qy, exclude, neighbours);
+			if (diff * diff < neighbours.worst())
+				nearest(lo, mid, qx, qy, exclude, neighbours);
+		}
+	}
+
+	private void offer(final int i, final double qx, final double qy, final int exclude, final Neighbours neighbours) {
+		if (i == exclude)
+			return;
+		final double dx = x[i] - qx, dy = y[i] - qy;
+		neighbours.offer(i, dx * dx + dy * dy);
+	}
+
+	/**
+	 * Visit every point within a radius of a location.
+	 * @param qx
+	 * @param qy
+	 * @param radius
+	 * @param consumer receives point indices, in no particular order
+	 */
+	public void forEachWithin(final double qx, final double qy, final double radius, final IntConsumer consumer) {
+		forEachWithin(0, order.length, qx, qy, radius * radius, consumer);
+	}
+
+	private void forEachWithin(final int lo, final int hi, final double qx, final double qy, final double r2, final IntConsumer consumer) {
+		if (hi - lo <= LEAF_SIZE) {
+			for (int k = lo; k < hi; k++)
+				accept(order[k], qx, qy, r2, consumer);
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final int p = order[mid];
+		accept(p, qx, qy, r2, consumer);
+		final double diff = splitX[mid]? qx - x[p]: qy - y[p];
+		if (diff < 0 || diff * diff <= r2)
+			forEachWithin(lo, mid, qx, qy, r2, consumer);
+		if (diff >= 0 || diff * diff <= r2)
+			forEachWithin(mid + 1, hi, qx, qy, r2, consumer);
+	}
+
+	private void accept(final int i, final double qx, final double qy, final double r2, final IntConsumer consumer) {
+		final double dx = x[i] - qx, dy = y[i] - qy;
+		if (dx * dx + dy * dy <= r2)
+			consumer.accept(i);
+	}
+
+	/**
+	 * Bounded max-heap of the nearest points found so far, reusable across queries.
+	 */
+	public static class Neighbours {
+
+		final private int[] indices;
+		final private double[] distances;
+		private int size = 0;
+
+		/**
+		 * @param k maximal number of neighbours
+		 */
+		public Neighbours(final int k) {
+			indices = new int[k];
+			distances = new double[k];
+		}
+
+		/**
+		 * @return number of neighbours found
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @param r rank, from 0 for the nearest
+		 * @return point index
+		 */
+		public int getIndex(final int r) {
+			return indices[r];
+		}
+
+		/**
+		 * @param r rank, from 0 for the nearest
+		 * @return distance to the query location
+		 */
+		public double getDistance(final int r) {
+			return Math.sqrt(distances[r]);
+		}
+
+		double worst() {
+			return size < indices.length? Double.POSITIVE_INFINITY: distances[0];
+		}
+
+		void offer(final int index, final double d2) {
+			if (size < indices.length) {
+				int c = size++;
+				while (c > 0) {
+					final int parent = (c - 1) >>> 1;
+					if (distances[parent] >= d2)
+						break;
+					indices[c] = indices[parent];
+					distances[c] = distances[parent];
+					c = parent;
+				}
+				indices[c] = index;
+				distances[c] = d2;
+			} else if (indices.length > 0 && d2 < distances[0]) {
+				siftDown(0, index, d2, size);
+			}
+		}
+
+		private void siftDown(int c, final int index, final double d2, final int n) {
+			while (true) {
+				int child = 2 * c + 1;
+				if (child >= n)
+					break;
+				if (child + 1 < n && distances[child + 1] > distances[child])
+					child++;
+				if (distances[child] <= d2)
+					break;
+				indices[c] = indices[child];
+				distances[c] = distances[child];
+				c = child;
+			}
+			indices[c] = index;
+			distances[c] = d2;
+		}
+
+		/**
+		 * Heap sort in place, nearest first.
+		 */
+		void sort() {
+			for (int n = size - 1; n > 0; n--) {
+				final int index = indices[n];
+				final double d2 = distances[n];
+				indices[n] = indices[0];
+				distances[n] = distances[0];
+				siftDown(0, index, d2, n);
+			}
+		}
+
+	}
+
+}
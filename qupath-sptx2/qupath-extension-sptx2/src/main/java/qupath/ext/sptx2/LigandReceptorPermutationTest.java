@@ -0,0 +1,350 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.objects.PathObject;
+
+/**
+ * CellPhoneDB-style permutation test of ligand-receptor pairs between cell clusters.
+ * <p>
+ * The score of a pair for clusters (A, B) is the mean of the cluster mean ligand expression in A and the cluster
+ * mean receptor expression in B, and is 0 when either gene is expressed in too few cells of its cluster. Only
+ * cluster pairs that touch in the neighbour graph of the {@link CellInteractionEngine} are tested. The null
+ * distribution is obtained by shuffling the cluster labels across the cells of the graph; as cluster sizes do not
+ * change, each permutation only needs one pass over the cells to sum the gene columns of the kept pairs.
+ * <p>
+ * Permutations run on all cores with preallocated label, sum and count buffers per worker. Each permutation draws
+ * from its own {@link SplittableRandom} derived from the seed and the permutation index, so results are reproducible
+ * for a given seed whatever the number of workers.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class LigandReceptorPermutationTest {
+
+	final private CellInteractionEngine engine;
+
+	final private int[] rows;
+	final private int[] labels;
+	final private String[] clusterNames;
+	final private int[] clusterSizes;
+	final private long[] contacts;
+
+	final private int[] columns;
+	final private int[] pairLigands;
+	final private int[] pairReceptors;
+
+	final private double minExpressedFraction;
+
+	private double[] observed;
+	private double[] pValues;
+	private int nPermutations;
+
+	/**
+	 * Prepare a test over the scored cells of an engine.
+	 * @param engine
+	 * @param clusterOf cluster name of a cell, or null to leave the cell out
+	 * @param minExpressedFraction minimal fraction of cells of a cluster expressing a gene for a non-zero score, e.g. 0.1
+	 */
+	public LigandReceptorPermutationTest(final CellInteractionEngine engine, final Function<PathObject, String> clusterOf, final double minExpressedFraction) {
+		this.engine = engine;
+		this.minExpressedFraction = minExpressedFraction;
+
+		final int nCells = engine.getCellCount();
+
+		/*
+		 * Label the cells having every ligand and receptor
+		 */
+
+		final Map<String, Integer> clusterIds = new LinkedHashMap<>();
+		final int[] rowToIndex = new int[nCells];
+		final List<Integer> rowList = new ArrayList<>();
+		final List<Integer> labelList = new ArrayList<>();
+		for (int i = 0; i < nCells; i++) {
+			rowToIndex[i] = -1;
+			if (!engine.isValidSender(i) || !engine.isValidReceiver(i))
+				continue;
+			final String cluster = clusterOf.apply(engine.getPathObject(i));
+			if (cluster == null)
+				continue;
+			rowToIndex[i] = rowList.size();
+			rowList.add(i);
+			labelList.add(clusterIds.computeIfAbsent(cluster, c -> clusterIds.size()));
+		}
+
+		this.rows = rowList.stream().mapToInt(Integer::intValue).toArray();
+		this.labels = labelList.stream().mapToInt(Integer::intValue).toArray();
+		this.clusterNames = clusterIds.keySet().toArray(new String[0]);
+
+		final int nClusters = clusterNames.length;
+		this.clusterSizes = new int[nClusters];
+		for (final int label: labels)
+			clusterSizes[label]++;
+
+		/*
+		 * Count graph edges between clusters; only those cluster pairs are tested
+		 */
+
+		this.contacts = new long[nClusters * nClusters];
+		final int[] adjPtr = engine.getNeighbourPointers();
+		final int[] adjInd = engine.getNeighbours();
+		for (int k = 0; k < rows.length; k++) {
+			final int i = rows[k];
+			for (int e = adjPtr[i]; e < adjPtr[i + 1]; e++) {
+				final int j = adjInd[e];
+				if (j < nCells && rowToIndex[j] >= 0)
+					contacts[labels[k] * nClusters + labels[rowToIndex[j]]]++;
+			}
+		}
+
+		/*
+		 * Map the pairs to a compact list of the gene columns they use
+		 */
+
+		final int nPairs = engine.getPairCount();
+		final int[] columnToCompact = new int[engine.getColumnCount()];
+		Arrays.fill(columnToCompact, -1);
+		final List<Integer> columnList = new ArrayList<>();
+		this.pairLigands = new int[nPairs];
+		this.pairReceptors = new int[nPairs];
+		for (int p = 0; p < nPairs; p++) {
+			for (final int column: new int[] {engine.getLigandColumn(p), engine.getReceptorColumn(p)}) {
+				if (columnToCompact[column] < 0) {
+					columnToCompact[column] = columnList.size();
+					columnList.add(column);
+				}
+			}
+			pairLigands[p] = columnToCompact[engine.getLigandColumn(p)];
+			pairReceptors[p] = columnToCompact[engine.getReceptorColumn(p)];
+		}
+		this.columns = columnList.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Score the observed labels and run the permutations.
+	 * @param nPermutations number of label shuffles, e.g. 1000
+	 * @param seed
+	 */
+	public void run(final int nPermutations, final long seed) {
+		final int nClusters = clusterNames.length;
+		final int nPairs = pairLigands.length;
+		final int nColumns = columns.length;
+		final int nCells = rows.length;
+
+		// Dense copy of the used columns of the tested cells, row-major
+		final float[] values = new float[nCells * nColumns];
+		IntStream.range(0, nCells).parallel().forEach(k -> {
+			for (int c = 0; c < nColumns; c++)
+				values[k * nColumns + c] = engine.getExpression(rows[k], columns[c]);
+		});
+
+		/*
+		 * Observed scores; the expressed-fraction filter is taken from the observed labels only
+		 */
+
+		final double[] means = new double[nClusters * nColumns];
+		final int[] expressed = new int[nClusters * nColumns];
+		for (int k = 0; k < nCells; k++) {
+			final int offset = labels[k] * nColumns;
+			for (int c = 0; c < nColumns; c++) {
+				final float v = values[k * nColumns + c];
+				means[offset + c] += v;
+				if (v > 0)
+					expressed[offset + c]++;
+			}
+		}
+		final boolean[] enough = new boolean[nClusters * nColumns];
+		for (int a = 0; a < nClusters; a++) {
+			for (int c = 0; c < nColumns; c++) {
+				means[a * nColumns + c] /= clusterSizes[a];
+				enough[a * nColumns + c] = expressed[a * nColumns + c] >= minExpressedFraction * clusterSizes[a];
+			}
+		}
+
+		// Index of the (sender, receiver, pair) scores
+		final int[] tested = IntStream.range(0, nClusters * nClusters).filter(ab -> contacts[ab] > 0).toArray();
+		final double[] observed = new double[nClusters * nClusters * nPairs];
+		Arrays.fill(observed, Double.NaN);
+		for (final int ab: tested) {
+			final int a = ab / nClusters, b = ab % nClusters;
+			for (int p = 0; p < nPairs; p++) {
+				final int l = a * nColumns + pairLigands[p], r = b * nColumns + pairReceptors[p];
+				observed[ab * nPairs + p] = enough[l] && enough[r]? 0.5 * (means[l] + means[r]): 0;
+			}
+		}
+
+		/*
+		 * Permutations, spread over the workers with preallocated buffers
+		 */
+
+		final int nWorkers = Math.max(1, Math.min(ThreadTools.getParallelism(), nPermutations));
+		final int[][] exceed = new int[nWorkers][observed.length];
+		final AtomicInteger done = new AtomicInteger();
+
+		IntStream.range(0, nWorkers).parallel().forEach(w -> {
+			final int[] shuffled = new int[nCells];
+			final double[] sums = new double[nClusters * nColumns];
+			final int[] count = exceed[w];
+			final int from = (int)((long)nPermutations * w / nWorkers);
+			final int to = (int)((long)nPermutations * (w + 1) / nWorkers);
+
+			for (int n = from; n < to; n++) {
+				if (Thread.currentThread().isInterrupted())
+					return;
+
+				// Each permutation shuffles the observed labels with its own generator, whichever worker runs it
+				final SplittableRandom random = new SplittableRandom(seed ^ (n * 0x9E3779B97F4A7C15L));
+				System.arraycopy(labels, 0, shuffled, 0, nCells);
+				for (int k = nCells - 1; k > 0; k--) {
+					final int swap = random.nextInt(k + 1);
+					final int t = shuffled[k];
+					shuffled[k] = shuffled[swap];
+					shuffled[swap] = t;
+				}
+
+				Arrays.fill(sums, 0);
+				for (int k = 0; k < nCells; k++) {
+					final int offset = shuffled[k] * nColumns;
+					final int rowOffset = k * nColumns;
+					for (int c = 0; c < nColumns; c++)
+						sums[offset + c] += values[rowOffset + c];
+				}
+				for (int a = 0; a < nClusters; a++) {
+					final double scale = 1.0 / clusterSizes[a];
+					for (int c = 0; c < nColumns; c++)
+						sums[a * nColumns + c] *= scale;
+				}
+
+				for (final int ab: tested) {
+					final int a = ab / nClusters, b = ab % nClusters;
+					final int base = ab * nPairs;
+					for (int p = 0; p < nPairs; p++) {
+						if (0.5 * (sums[a * nColumns + pairLigands[p]] + sums[b * nColumns + pairReceptors[p]]) >= observed[base + p])
+							count[base + p]++;
+					}
+				}
+				done.incrementAndGet();
+			}
+		});
+
+		final int nDone = done.get();
+		final double[] pValues = new double[observed.length];
+		Arrays.fill(pValues, Double.NaN);
+		for (final int ab: tested) {
+			for (int p = 0; p < nPairs; p++) {
+				final int idx = ab * nPairs + p;
+				long total = 0;
+				for (int w = 0; w < nWorkers; w++)
+					total += exceed[w][idx];
+				pValues[idx] = (total + 1.0) / (nDone + 1.0);
+			}
+		}
+
+		this.observed = observed;
+		this.pValues = pValues;
+		this.nPermutations = nDone;
+	}
+
+	/**
+	 * @return cluster names, in label order
+	 */
+	public String[] getClusterNames() {
+		return clusterNames.clone();
+	}
+
+	/**
+	 * @return number of cells taking part in the test
+	 */
+	public int getCellCount() {
+		return rows.length;
+	}
+
+	/**
+	 * @return number of permutations completed by the last run
+	 */
+	public int getPermutationCount() {
+		return nPermutations;
+	}
+
+	/**
+	 * @param sender
+	 * @param receiver
+	 * @param p
+	 * @return observed score, NaN if the clusters do not touch
+	 */
+	public double getScore(final int sender, final int receiver, final int p) {
+		return observed[(sender * clusterNames.length + receiver) * pairLigands.length + p];
+	}
+
+	/**
+	 * @param sender
+	 * @param receiver
+	 * @param p
+	 * @return permutation p-value, NaN if the clusters do not touch
+	 */
+	public double getPValue(final int sender, final int receiver, final int p) {
+		return pValues[(sender * clusterNames.length + receiver) * pairLigands.length + p];
+	}
+
+	/**
+	 * Write one row per pair and touching cluster pair to a tab-separated file.
+	 * @param file
+	 * @param maxPValue only write rows with a p-value up to this, 1 for all
+	 * @return number of rows written
+	 * @throws IOException
+	 */
+	public int writeTable(final File file, final double maxPValue) throws IOException {
+		final int nClusters = clusterNames.length;
+		final int nPairs = pairLigands.length;
+		int nRows = 0;
+		try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+			writer.println("pair\tsender_cluster\treceiver_cluster\tcontacts\tscore\tp_value");
+			for (int a = 0; a < nClusters; a++) {
+				for (int b = 0; b < nClusters; b++) {
+					final long nContacts = contacts[a * nClusters + b];
+					if (nContacts == 0)
+						continue;
+					for (int p = 0; p < nPairs; p++) {
+						final double pValue = getPValue(a, b, p);
+						if (!(pValue <= maxPValue))
+							continue;
+						writer.printf(Locale.ROOT, "%s\t%s\t%s\t%d\t%.6g\t%.6g%n", engine.getPairName(p), clusterNames[a], clusterNames[b], nContacts, getScore(a, b, p), pValue);
+						nRows++;
+					}
+				}
+			}
+		}
+		return nRows;
+	}
+
+}
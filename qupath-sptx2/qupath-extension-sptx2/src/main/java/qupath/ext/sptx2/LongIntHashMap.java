@@ -0,0 +1,197 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive long keys to int values.
+ * <p>
+ * Avoids the boxing of {@code HashMap<Long, Integer>} for large keyed tables (e.g. packed (cell, gene) or
+ * (fov, cell) keys). Not thread-safe.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class LongIntHashMap {
+
+	final private static long EMPTY = Long.MIN_VALUE;
+
+	private long[] keys;
+	private int[] values;
+	private int size = 0;
+	private int mask;
+	final private int missingValue;
+
+	/**
+	 * Create a map returning -1 for missing keys.
+	 * @param expectedSize
+	 */
+	public LongIntHashMap(final int expectedSize) {
+		this(expectedSize, -1);
+	}
+
+	/**
+	 * Create a map.
+	 * @param expectedSize
+	 * @param missingValue value returned by {@link #get(long)} for missing keys
+	 */
+	public LongIntHashMap(final int expectedSize, final int missingValue) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		mask = capacity - 1;
+		this.missingValue = missingValue;
+	}
+
+	/**
+	 * Pack two ints into a single key.
+	 * @param hi
+	 * @param lo
+	 * @return
+	 */
+	public static long pack(final int hi, final int lo) {
+		return ((long)hi << 32) | (lo & 0xffffffffL);
+	}
+
+	/**
+	 * @param key
+	 * @return the high int of a packed key
+	 */
+	public static int hi(final long key) {
+		return (int)(key >>> 32);
+	}
+
+	/**
+	 * @param key
+	 * @return the low int of a packed key
+	 */
+	public static int lo(final long key) {
+		return (int)key;
+	}
+
+	private int slot(final long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		int slot = (int)(h ^ (h >>> 32)) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * @param key any value except {@link Long#MIN_VALUE}
+	 * @return the stored value, or the missing value
+	 */
+	public int get(final long key) {
+		final int slot = slot(key);
+		return keys[slot] == EMPTY ? missingValue : values[slot];
+	}
+
+	/**
+	 * @param key
+	 * @return true if the key is present
+	 */
+	public boolean containsKey(final long key) {
+		return keys[slot(key)] != EMPTY;
+	}
+
+	/**
+	 * Store a value.
+	 * @param key any value except {@link Long#MIN_VALUE}
+	 * @param value
+	 */
+	public void put(final long key, final int value) {
+		final int slot = slot(key);
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			values[slot] = value;
+			if (++size * 2 > keys.length)
+				rehash();
+		} else
+			values[slot] = value;
+	}
+
+	/**
+	 * Add to a value, treating missing keys as zero.
+	 * @param key any value except {@link Long#MIN_VALUE}
+	 * @param delta
+	 * @return the new value
+	 */
+	public int addTo(final long key, final int delta) {
+		final int slot = slot(key);
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			values[slot] = delta;
+			if (++size * 2 > keys.length)
+				rehash();
+			return delta;
+		}
+		return values[slot] += delta;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Visit every entry, in no particular order.
+	 * @param consumer
+	 */
+	public void forEach(final EntryConsumer consumer) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY)
+				consumer.accept(keys[i], values[i]);
+		}
+	}
+
+	/**
+	 * Callback for {@link LongIntHashMap#forEach(EntryConsumer)}.
+	 */
+	public static interface EntryConsumer {
+
+		/**
+		 * @param key
+		 * @param value
+		 */
+		void accept(long key, int value);
+
+	}
+
+	private void rehash() {
+		final long[] oldKeys = keys;
+		final int[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new int[oldKeys.length * 2];
+		Arrays.fill(keys, EMPTY);
+		mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == EMPTY)
+				continue;
+			final int slot = slot(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			values[slot] = oldValues[i];
+		}
+	}
+
+}
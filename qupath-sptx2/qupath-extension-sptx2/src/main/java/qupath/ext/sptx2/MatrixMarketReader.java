@@ -0,0 +1,144 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming reader for sparse MatrixMarket coordinate files (e.g. 10x {@code matrix.mtx.gz}).
+ * <p>
+ * Entries are parsed in parallel chunks and routed straight into a {@link TranscriptCountTable},
+ * so memory scales with the number of non-zero entries and a dense matrix is never allocated.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class MatrixMarketReader {
+
+	final private static Logger logger = LoggerFactory.getLogger(MatrixMarketReader.class);
+
+	final private File file;
+
+	private int nRows = -1;
+	private int nCols = -1;
+	private long nEntries = -1;
+	private int nHeaderLines = 0;
+
+	/**
+	 * Create a reader and parse the header of the file.
+	 * @param file .mtx or .mtx.gz file
+	 * @throws IOException if the header cannot be read
+	 */
+	public MatrixMarketReader(final File file) throws IOException {
+		this.file = file;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(ChunkedTextParser.openStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				nHeaderLines++;
+				if (line.startsWith("%"))
+					continue;
+				final String[] size = line.trim().split("\\s+");
+				if (size.length < 3)
+					throw new IOException("Invalid MatrixMarket size line in " + file.getName() + ": " + line);
+				nRows = Integer.parseInt(size[0]);
+				nCols = Integer.parseInt(size[1]);
+				nEntries = Long.parseLong(size[2]);
+				break;
+			}
+		}
+		if (nRows < 0)
+			throw new IOException("No MatrixMarket size line in " + file.getName());
+	}
+
+	/**
+	 * @return number of matrix rows (features, for 10x outputs)
+	 */
+	public int getRowCount() {
+		return nRows;
+	}
+
+	/**
+	 * @return number of matrix columns (barcodes, for 10x outputs)
+	 */
+	public int getColumnCount() {
+		return nCols;
+	}
+
+	/**
+	 * @return number of entries declared in the header
+	 */
+	public long getEntryCount() {
+		return nEntries;
+	}
+
+	/**
+	 * Read all entries, adding each value to row {@code columnTargets[col]} and feature {@code rowFeatures[row]}
+	 * of a new count table. Entries whose row or column maps to -1 are skipped, so feature filters should be
+	 * applied by setting the corresponding row to -1.
+	 * Several columns may map to the same target, in which case their values are summed.
+	 * @param rowFeatures feature id for every (0-based) matrix row, or -1 to skip
+	 * @param columnTargets target index for every (0-based) matrix column, or -1 to skip
+	 * @param nTargets number of targets
+	 * @return the compacted count table
+	 * @throws Exception
+	 */
+	public TranscriptCountTable read(final int[] rowFeatures, final int[] columnTargets, final int nTargets) throws Exception {
+		final ChunkedTextParser parser = new ChunkedTextParser(file).skipLines(nHeaderLines);
+		final TranscriptCountTable table = new TranscriptCountTable(nTargets, parser.getWorkerCount());
+		final ByteFields[] fields = new ByteFields[parser.getWorkerCount()];
+		for (int w = 0; w < fields.length; w++)
+			fields[w] = new ByteFields(' ', 3);
+
+		final AtomicLong nAdded = new AtomicLong();
+
+		parser.parse((buf, from, to, worker) -> {
+			final ByteFields f = fields[worker];
+			long added = 0;
+			int p = from;
+			while (p < to) {
+				final int e = ByteFields.lineEnd(buf, p, to);
+				if (f.split(buf, p, e) >= 3) {
+					final int row = f.getInt(0) - 1;
+					final int col = f.getInt(1) - 1;
+					final int feature = rowFeatures[row];
+					final int target = columnTargets[col];
+					if (feature >= 0 && target >= 0) {
+						table.add(worker, target, feature, (int)Math.round(f.getDouble(2)));
+						added++;
+					}
+				}
+				p = e + 1;
+			}
+			nAdded.addAndGet(added);
+		});
+
+		table.compact();
+
+		logger.info("Read {} of {} entries from {}", nAdded.get(), nEntries, file.getName());
+		return table;
+	}
+
+}
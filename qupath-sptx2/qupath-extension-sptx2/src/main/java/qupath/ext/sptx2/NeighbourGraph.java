@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+
+/**
+ * Neighbours of a list of cells in compressed sparse row (CSR) form, read once from {@link PathObjectConnections}.
+ * <p>
+ * Node i is cell i; the neighbours of node i are {@code getNeighbours()[getPointers()[i]]} to
+ * {@code getNeighbours()[getPointers()[i+1]-1]}. Neighbours that are not in the list are either dropped, or appended
+ * as extra nodes after the cells, without neighbours of their own.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+class NeighbourGraph {
+
+	final private List<PathObject> nodes;
+	final private int nCells;
+	final private int[] adjPtr;
+	final private int[] adjInd;
+
+	private NeighbourGraph(final List<PathObject> nodes, final int nCells, final int[] adjPtr, final int[] adjInd) {
+		this.nodes = nodes;
+		this.nCells = nCells;
+		this.adjPtr = adjPtr;
+		this.adjInd = adjInd;
+	}
+
+	/**
+	 * Index the neighbours of the cells.
+	 * @param cells cells, in node order
+	 * @param connections neighbourhood graph, or null for no neighbours
+	 * @param keepOutside if true, neighbours outside the cells become extra nodes; otherwise they are dropped,
+	 *                    as are connections of a cell to itself
+	 * @return
+	 */
+	static NeighbourGraph build(final List<PathObject> cells, final PathObjectConnections connections, final boolean keepOutside) {
+		final int nCells = cells.size();
+		@SuppressWarnings("unchecked")
+		final List<PathObject>[] neighbourLists = new List[nCells];
+		IntStream.range(0, nCells).parallel().forEach(i -> {
+			final List<PathObject> connected = connections == null? null: connections.getConnections(cells.get(i));
+			neighbourLists[i] = connected == null? Collections.emptyList(): connected;
+		});
+
+		final Map<PathObject, Integer> nodeIndex = new IdentityHashMap<>();
+		for (int i = 0; i < nCells; i++)
+			nodeIndex.put(cells.get(i), i);
+
+		if (keepOutside) {
+			// Extra nodes are numbered in the order they are reached
+			final List<PathObject> nodes = new ArrayList<>(cells);
+			final int[] adjPtr = new int[nCells + 1];
+			for (int i = 0; i < nCells; i++)
+				adjPtr[i+1] = adjPtr[i] + neighbourLists[i].size();
+			final int[] adjInd = new int[adjPtr[nCells]];
+			for (int i = 0; i < nCells; i++) {
+				int k = adjPtr[i];
+				for (PathObject d: neighbourLists[i]) {
+					Integer j = nodeIndex.get(d);
+					if (j == null) {
+						j = nodes.size();
+						nodeIndex.put(d, j);
+						nodes.add(d);
+					}
+					adjInd[k++] = j;
+				}
+			}
+			return new NeighbourGraph(nodes, nCells, adjPtr, adjInd);
+		}
+
+		final int[][] indexLists = new int[nCells][];
+		IntStream.range(0, nCells).parallel().forEach(i -> {
+			final int[] list = new int[neighbourLists[i].size()];
+			int n = 0;
+			for (PathObject d: neighbourLists[i]) {
+				final Integer j = nodeIndex.get(d);
+				if (j != null && j != i)
+					list[n++] = j;
+			}
+			indexLists[i] = n == list.length? list: Arrays.copyOf(list, n);
+		});
+
+		final int[] adjPtr = new int[nCells + 1];
+		for (int i = 0; i < nCells; i++)
+			adjPtr[i+1] = adjPtr[i] + indexLists[i].length;
+		final int[] adjInd = new int[adjPtr[nCells]];
+		for (int i = 0; i < nCells; i++) {
+			System.arraycopy(indexLists[i], 0, adjInd, adjPtr[i], indexLists[i].length);
+			indexLists[i] = null;
+		}
+		return new NeighbourGraph(cells, nCells, adjPtr, adjInd);
+	}
+
+	/**
+	 * @return cells followed by the extra nodes, if any
+	 */
+	List<PathObject> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return number of cells, i.e. of nodes with neighbours
+	 */
+	int getCellCount() {
+		return nCells;
+	}
+
+	/**
+	 * @return CSR pointers, of length {@link #getCellCount()} + 1
+	 */
+	int[] getPointers() {
+		return adjPtr;
+	}
+
+	/**
+	 * @return CSR neighbour node indices
+	 */
+	int[] getNeighbours() {
+		return adjInd;
+	}
+
+}
@@ -0,0 +1,371 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Neighbourhood enrichment and co-occurrence of cell classes.
+ * <p>
+ * Cells are reduced to a primitive class label array, their centroids and the CSR arrays of their neighbours.
+ * Enrichment compares the number of neighbour edges between every pair of classes with the same count after
+ * shuffling the labels, reported as a z-score; permutations run on all cores, each with its own
+ * {@link SplittableRandom} derived from the seed and the permutation index. Co-occurrence counts the pairs of
+ * cells within each interval of radii through a {@link PointGrid}, and reports
+ * p(class b | class a at that distance) / p(class b).
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class NeighbourhoodEnrichment {
+
+	final private String[] classNames;
+	final private int[] labels;
+	final private int[] classSizes;
+	final private double[] x;
+	final private double[] y;
+
+	final private int[] adjPtr;
+	final private int[] adjInd;
+
+	private long[] observed = null;
+	private double[] zScores = null;
+	private double[] permutedMeans = null;
+	private int nPermutations = 0;
+
+	private double[] radii = null;
+	private double[] coOccurrence = null;
+
+	private NeighbourhoodEnrichment(final String[] classNames, final int[] labels, final double[] x, final double[] y, final int[] adjPtr, final int[] adjInd) {
+		this.classNames = classNames;
+		this.labels = labels;
+		this.x = x;
+		this.y = y;
+		this.adjPtr = adjPtr;
+		this.adjInd = adjInd;
+		classSizes = new int[classNames.length];
+		for (int l: labels)
+			classSizes[l]++;
+	}
+
+	/**
+	 * Label the cells and index their neighbours.
+	 * @param cells cells to analyse
+	 * @param connections neighbourhood graph; neighbours outside the labelled cells are ignored
+	 * @param classOf class name of a cell, or null to leave the cell out
+	 * @return
+	 */
+	public static NeighbourhoodEnrichment build(final List<PathObject> cells, final PathObjectConnections connections, final Function<PathObject, String> classOf) {
+		final String[] cellClasses = new String[cells.size()];
+		IntStream.range(0, cellClasses.length).parallel().forEach(i -> cellClasses[i] = classOf.apply(cells.get(i)));
+
+		final List<String> names = new ArrayList<>();
+		final Map<String, Integer> classIds = new HashMap<>();
+		for (String name: cellClasses) {
+			if (name != null && classIds.putIfAbsent(name, -1) == null)
+				names.add(name);
+		}
+		GeneralTools.smartStringSort(names);
+		for (int c = 0; c < names.size(); c++)
+			classIds.put(names.get(c), c);
+
+		final List<PathObject> kept = new ArrayList<>();
+		final Map<PathObject, Integer> cellIndex = new IdentityHashMap<>();
+		final List<Integer> keptLabels = new ArrayList<>();
+		for (int i = 0; i < cellClasses.length; i++) {
+			if (cellClasses[i] == null || cellIndex.containsKey(cells.get(i)))
+				continue;
+			cellIndex.put(cells.get(i), kept.size());
+			kept.add(cells.get(i));
+			keptLabels.add(classIds.get(cellClasses[i]));
+		}
+		final int nCells = kept.size();
+		final int[] labels = keptLabels.stream().mapToInt(Integer::intValue).toArray();
+
+		final double[] x = new double[nCells];
+		final double[] y = new double[nCells];
+		IntStream.range(0, nCells).parallel().forEach(i -> {
+			final ROI roi = PathObjectTools.getROI(kept.get(i), true);
+			x[i] = roi.getCentroidX();
+			y[i] = roi.getCentroidY();
+		});
+
+		final NeighbourGraph graph = NeighbourGraph.build(kept, connections, false);
+		final int[] adjPtr = graph.getPointers();
+		final int[] adjInd = graph.getNeighbours();
+
+		return new NeighbourhoodEnrichment(names.toArray(new String[0]), labels, x, y, adjPtr, adjInd);
+	}
+
+	private void countEdges(final int[] cellLabels, final long[] counts) {
+		final int nClasses = classNames.length;
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < cellLabels.length; i++) {
+			final int offset = cellLabels[i] * nClasses;
+			for (int k = adjPtr[i]; k < adjPtr[i+1]; k++)
+				counts[offset + cellLabels[adjInd[k]]]++;
+		}
+	}
+
+	/**
+	 * Compute the neighbourhood enrichment z-scores.
+	 * @param nPermutations number of label shuffles
+	 * @param seed
+	 */
+	public void runEnrichment(final int nPermutations, final long seed) {
+		final int nClasses = classNames.length;
+		final int nCells = labels.length;
+		final long[] observed = new long[nClasses * nClasses];
+		countEdges(labels, observed);
+
+		final int nWorkers = Math.max(1, Math.min(ThreadTools.getParallelism(), nPermutations));
+		final double[][] sums = new double[nWorkers][observed.length];
+		final double[][] sumSquares = new double[nWorkers][observed.length];
+		final AtomicInteger done = new AtomicInteger();
+
+		IntStream.range(0, nWorkers).parallel().forEach(w -> {
+			final int[] shuffled = new int[nCells];
+			final long[] counts = new long[observed.length];
+			final double[] sum = sums[w];
+			final double[] sumSquare = sumSquares[w];
+			final int from = (int)((long)nPermutations * w / nWorkers);
+			final int to = (int)((long)nPermutations * (w + 1) / nWorkers);
+
+			for (int n = from; n < to; n++) {
+				if (Thread.currentThread().isInterrupted())
+					return;
+
+				// Seeded by the permutation index, so the z-scores do not depend on the number of workers
+				final SplittableRandom random = new SplittableRandom(seed ^ (n * 0x9E3779B97F4A7C15L));
+				System.arraycopy(labels, 0, shuffled, 0, nCells);
+				for (int k = nCells - 1; k > 0; k--) {
+					final int swap = random.nextInt(k + 1);
+					final int t = shuffled[k];
+					shuffled[k] = shuffled[swap];
+					shuffled[swap] = t;
+				}
+
+				countEdges(shuffled, counts);
+				for (int ab = 0; ab < counts.length; ab++) {
+					sum[ab] += counts[ab];
+					sumSquare[ab] += (double)counts[ab] * counts[ab];
+				}
+				done.incrementAndGet();
+			}
+		});
+
+		final int nDone = done.get();
+		final double[] means = new double[observed.length];
+		final double[] zScores = new double[observed.length];
+		for (int ab = 0; ab < observed.length; ab++) {
+			double sum = 0, sumSquare = 0;
+			for (int w = 0; w < nWorkers; w++) {
+				sum += sums[w][ab];
+				sumSquare += sumSquares[w][ab];
+			}
+			final double mean = nDone > 0? sum / nDone: Double.NaN;
+			final double variance = nDone > 1? (sumSquare - nDone * mean * mean) / (nDone - 1): Double.NaN;
+			means[ab] = mean;
+			zScores[ab] = variance > 0? (observed[ab] - mean) / Math.sqrt(variance): Double.NaN;
+		}
+
+		this.observed = observed;
+		this.permutedMeans = means;
+		this.zScores = zScores;
+		this.nPermutations = nDone;
+	}
+
+	/**
+	 * Compute the co-occurrence ratios over intervals of distance.
+	 * @param radii increasing upper bounds of the intervals, in pixels; the first interval starts at 0
+	 */
+	public void runCoOccurrence(final double[] radii) {
+		final int nClasses = classNames.length;
+		final int nCells = labels.length;
+		final int nBins = radii.length;
+		final int size = nClasses * nClasses;
+		final double maxRadius = radii[nBins - 1];
+		final double[] radiiSquared = Arrays.stream(radii).map(r -> r * r).toArray();
+		final PointGrid grid = new PointGrid(x, y, Math.max(maxRadius / 2, 1e-6));
+
+		final int nWorkers = ThreadTools.getParallelism();
+		final long[][] workerCounts = new long[nWorkers][nBins * size];
+		IntStream.range(0, nWorkers).parallel().forEach(w -> {
+			final long[] counts = workerCounts[w];
+			final int from = (int)((long)nCells * w / nWorkers);
+			final int to = (int)((long)nCells * (w + 1) / nWorkers);
+			for (int i = from; i < to; i++) {
+				if (Thread.currentThread().isInterrupted())
+					return;
+				final int cell = i;
+				final int offset = labels[i] * nClasses;
+				grid.forEachWithin(x[i], y[i], maxRadius, j -> {
+					if (j == cell)
+						return;
+					final double dx = x[j] - x[cell], dy = y[j] - y[cell];
+					final double d2 = dx * dx + dy * dy;
+					int bin = Arrays.binarySearch(radiiSquared, d2);
+					if (bin < 0)
+						bin = -bin - 1;
+					counts[bin * size + offset + labels[j]]++;
+				});
+			}
+		});
+
+		final double[] ratios = new double[nBins * size];
+		for (int bin = 0; bin < nBins; bin++) {
+			final long[] counts = new long[size];
+			for (long[] c: workerCounts)
+				for (int ab = 0; ab < size; ab++)
+					counts[ab] += c[bin * size + ab];
+			long total = 0;
+			final long[] rowTotals = new long[nClasses];
+			final long[] colTotals = new long[nClasses];
+			for (int a = 0; a < nClasses; a++) {
+				for (int b = 0; b < nClasses; b++) {
+					rowTotals[a] += counts[a * nClasses + b];
+					colTotals[b] += counts[a * nClasses + b];
+				}
+				total += rowTotals[a];
+			}
+			for (int a = 0; a < nClasses; a++) {
+				for (int b = 0; b < nClasses; b++) {
+					final double conditional = (double)counts[a * nClasses + b] / rowTotals[a];
+					final double marginal = (double)colTotals[b] / total;
+					ratios[bin * size + a * nClasses + b] = rowTotals[a] > 0 && colTotals[b] > 0? conditional / marginal: Double.NaN;
+				}
+			}
+		}
+		this.radii = radii.clone();
+		this.coOccurrence = ratios;
+	}
+
+	/**
+	 * @return class names, in label order
+	 */
+	public String[] getClassNames() {
+		return classNames.clone();
+	}
+
+	/**
+	 * @return number of labelled cells
+	 */
+	public int getCellCount() {
+		return labels.length;
+	}
+
+	/**
+	 * @return number of directed edges between labelled cells
+	 */
+	public int getEdgeCount() {
+		return adjInd.length;
+	}
+
+	/**
+	 * @return number of label shuffles completed by the last enrichment run
+	 */
+	public int getPermutationCount() {
+		return nPermutations;
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return number of edges from cells of class a to cells of class b
+	 */
+	public long getObservedCount(final int a, final int b) {
+		return observed[a * classNames.length + b];
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return enrichment z-score of class b around class a, NaN if the shuffled counts do not vary
+	 */
+	public double getZScore(final int a, final int b) {
+		return zScores[a * classNames.length + b];
+	}
+
+	/**
+	 * @param bin
+	 * @param a
+	 * @param b
+	 * @return co-occurrence ratio of class b around class a within the interval of distance
+	 */
+	public double getCoOccurrence(final int bin, final int a, final int b) {
+		return coOccurrence[(bin * classNames.length + a) * classNames.length + b];
+	}
+
+	/**
+	 * Write the enrichment as one row per pair of classes.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeEnrichment(final File file) throws IOException {
+		final int nClasses = classNames.length;
+		try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+			writer.println("class_a\tclass_b\tcells_a\tcells_b\tobserved\tpermuted_mean\tz_score");
+			for (int a = 0; a < nClasses; a++) {
+				for (int b = 0; b < nClasses; b++) {
+					final int ab = a * nClasses + b;
+					writer.printf(Locale.ROOT, "%s\t%s\t%d\t%d\t%d\t%.6g\t%.6g%n", classNames[a], classNames[b], classSizes[a], classSizes[b], observed[ab], permutedMeans[ab], zScores[ab]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the co-occurrence curves as one row per pair of classes and interval.
+	 * @param file
+	 * @param scale multiplier from pixels to the distance unit written
+	 * @throws IOException
+	 */
+	public void writeCoOccurrence(final File file, final double scale) throws IOException {
+		final int nClasses = classNames.length;
+		try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+			writer.println("class_a\tclass_b\tdistance_from\tdistance_to\tratio");
+			for (int a = 0; a < nClasses; a++) {
+				for (int b = 0; b < nClasses; b++) {
+					for (int bin = 0; bin < radii.length; bin++)
+						writer.printf(Locale.ROOT, "%s\t%s\t%.6g\t%.6g\t%.6g%n", classNames[a], classNames[b], bin == 0? 0: radii[bin-1] * scale, radii[bin] * scale, getCoOccurrence(bin, a, b));
+				}
+			}
+		}
+	}
+
+}
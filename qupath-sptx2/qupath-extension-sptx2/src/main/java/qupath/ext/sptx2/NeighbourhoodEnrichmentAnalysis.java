@@ -0,0 +1,266 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.beans.property.StringProperty;
+import javafx.collections.FXCollections;
+import javafx.scene.Scene;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.stage.Stage;
+import qupath.lib.analysis.DelaunayTools;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.AbstractDetectionPlugin;
+import qupath.lib.plugins.DetectionPluginTools;
+import qupath.lib.plugins.ObjectDetector;
+import qupath.lib.plugins.PluginRunner;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Plugin for neighbourhood enrichment and co-occurrence analysis between cell classes
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class NeighbourhoodEnrichmentAnalysis extends AbstractDetectionPlugin<BufferedImage> {
+	final private static Logger logger = LoggerFactory.getLogger(NeighbourhoodEnrichmentAnalysis.class);
+	final private StringProperty NEAnalClassPrefixProp = PathPrefs.createPersistentPreference("NEAnalClassPrefix", "");
+	final private StringProperty NEAnalEnrichFileProp = PathPrefs.createPersistentPreference("NEAnalEnrichFile", "");
+	final private StringProperty NEAnalCoocFileProp = PathPrefs.createPersistentPreference("NEAnalCoocFile", "");
+
+	private ParameterList params;
+
+	private String lastResults = null;
+
+	/**
+	 * Constructor.
+	 */
+	public NeighbourhoodEnrichmentAnalysis() {
+		params = new ParameterList()
+			.addTitleParameter("Neighbourhood Enrichment Analysis")
+			.addStringParameter("classPrefix", "Class prefix (blank: all classes)", NEAnalClassPrefixProp.get(), "Only analyse cells whose class starts with this text, e.g. xenium:cluster:")
+			.addIntParameter("nPermutations", "Number of permutations", 1000, null, "Number of class label shuffles used to compute the enrichment z-scores")
+			.addIntParameter("seed", "Random seed", 1, null, "Seed of the label shuffles")
+			.addStringParameter("enrichFile", "Enrichment result file (.tsv)", NEAnalEnrichFileProp.get(), "Table of observed neighbour counts, permuted means and z-scores for every pair of classes")
+			.addEmptyParameter("")
+			.addDoubleParameter("maxRadius", "Co-occurrence maximal radius", 100.0, GeneralTools.micrometerSymbol(), "Largest distance of the co-occurrence curves")
+			.addIntParameter("nIntervals", "Co-occurrence intervals", 10, null, "Number of equal distance intervals of the co-occurrence curves")
+			.addStringParameter("coocFile", "Co-occurrence result file (.tsv, blank: skip)", NEAnalCoocFileProp.get(), "Table of co-occurrence ratios for every pair of classes and distance interval")
+			.addBooleanParameter("show", "Show the z-score matrix", true, "Show the enrichment z-scores in a table once computed")
+			;
+	}
+
+	class AnnotationLoader implements ObjectDetector<BufferedImage> {
+
+		@Override
+		public Collection<PathObject> runDetection(final ImageData<BufferedImage> imageData, final ParameterList params, final ROI pathROI) throws IOException {
+			NEAnalClassPrefixProp.set(params.getStringParameterValue("classPrefix"));
+			NEAnalEnrichFileProp.set(params.getStringParameterValue("enrichFile"));
+			NEAnalCoocFileProp.set(params.getStringParameterValue("coocFile"));
+
+			final PathObjectHierarchy hierarchy = imageData.getHierarchy();
+
+			try {
+				final List<PathObject> selectedAnnotationPathObjectList = new ArrayList<>();
+
+				for (PathObject pathObject : hierarchy.getSelectionModel().getSelectedObjects()) {
+					if (pathObject.isAnnotation() && pathObject.hasChildren())
+						selectedAnnotationPathObjectList.add(pathObject);
+				}
+
+				if(selectedAnnotationPathObjectList.isEmpty()) throw new Exception("Missed selected annotations");
+				if(params.getStringParameterValue("enrichFile").isBlank()) throw new Exception("enrichFile is blank");
+				if(params.getIntParameterValue("nPermutations") < 2) throw new Exception("At least 2 permutations are needed");
+
+				final List<PathObject> cellPathObjectList = new ArrayList<>();
+				for(PathObject p: selectedAnnotationPathObjectList) cellPathObjectList.addAll(p.getChildObjects());
+
+				PathObjectConnections connections = (PathObjectConnections) imageData.getProperty("OBJECT_CONNECTIONS");
+				if(connections == null) {
+					logger.info("No object connections found, computing a Delaunay triangulation of {} cells", cellPathObjectList.size());
+					connections = new PathObjectConnections();
+					connections.addGroup(DelaunayTools.createTiledConnectionGroup(cellPathObjectList, true, null));
+				}
+
+				final String classPrefix = params.getStringParameterValue("classPrefix").strip();
+				final NeighbourhoodEnrichment enrichment = NeighbourhoodEnrichment.build(cellPathObjectList, connections, p -> {
+					if(p.getPathClass() == null) return null;
+					final String name = p.getPathClass().toString();
+					return name.startsWith(classPrefix)? name: null;
+				});
+				if(enrichment.getClassNames().length == 0) throw new Exception("No classified cells");
+
+				enrichment.runEnrichment(params.getIntParameterValue("nPermutations"), params.getIntParameterValue("seed"));
+				enrichment.writeEnrichment(new File(params.getStringParameterValue("enrichFile")));
+
+				logger.info("Ran {} permutations over {} cells, {} connections and {} classes", enrichment.getPermutationCount(), enrichment.getCellCount(), enrichment.getEdgeCount(), enrichment.getClassNames().length);
+
+				/*
+				 * Co-occurrence over equal intervals, with radii converted to pixels
+				 */
+
+				if(!params.getStringParameterValue("coocFile").isBlank()) {
+					final int nIntervals = params.getIntParameterValue("nIntervals");
+					final double maxRadius = params.getDoubleParameterValue("maxRadius");
+					if(nIntervals < 1 || !(maxRadius > 0)) throw new Exception("Co-occurrence needs a positive radius and number of intervals");
+
+					final double pixelSizeMicrons = imageData.getServer().getPixelCalibration().hasPixelSizeMicrons()? imageData.getServer().getPixelCalibration().getAveragedPixelSizeMicrons(): 1.0;
+					final double[] radii = new double[nIntervals];
+					for(int k = 0; k < nIntervals; k++) radii[k] = maxRadius * (k + 1) / nIntervals / pixelSizeMicrons;
+
+					enrichment.runCoOccurrence(radii);
+					enrichment.writeCoOccurrence(new File(params.getStringParameterValue("coocFile")), pixelSizeMicrons);
+				}
+
+				if(params.getBooleanParameterValue("show")) showMatrix(enrichment);
+
+				lastResults = "Enrichment of "+enrichment.getClassNames().length+" classes written to "+params.getStringParameterValue("enrichFile");
+			}
+			catch(Exception e) {
+
+				Dialogs.showErrorMessage("Error", e.getMessage());
+
+				lastResults =  "Something went wrong: "+e.getMessage();
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			if (Thread.currentThread().isInterrupted()) {
+
+				Dialogs.showErrorMessage("Warning", "Interrupted!");
+
+				lastResults =  "Interrupted!";
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+		}
+
+
+		@Override
+		public String getLastResultsDescription() {
+			return lastResults;
+		}
+
+
+	}
+
+	/**
+	 * Show the z-scores in a table, one row per class around which the neighbours are counted.
+	 */
+	private static void showMatrix(final NeighbourhoodEnrichment enrichment) {
+		final String[] names = enrichment.getClassNames();
+		final List<String[]> rows = new ArrayList<>();
+		for(int a = 0; a < names.length; a++) {
+			final String[] row = new String[names.length + 1];
+			row[0] = names[a];
+			for(int b = 0; b < names.length; b++) row[b + 1] = GeneralTools.formatNumber(enrichment.getZScore(a, b), 2);
+			rows.add(row);
+		}
+
+		Platform.runLater(() -> {
+			final TableView<String[]> table = new TableView<>(FXCollections.observableArrayList(rows));
+			for(int c = 0; c <= names.length; c++) {
+				final int col = c;
+				final TableColumn<String[], String> column = new TableColumn<>(c == 0? "Class": names[c - 1]);
+				column.setCellValueFactory(v -> new ReadOnlyStringWrapper(v.getValue()[col]));
+				table.getColumns().add(column);
+			}
+
+			final Stage stage = new Stage();
+			final QuPathGUI qupath = QuPathGUI.getInstance();
+			if(qupath != null) stage.initOwner(qupath.getStage());
+			stage.setTitle("Neighbourhood enrichment z-scores ("+enrichment.getPermutationCount()+" permutations)");
+			stage.setScene(new Scene(table, 800, 600));
+			stage.show();
+		});
+	}
+
+	@Override
+	public ParameterList getDefaultParameterList(final ImageData<BufferedImage> imageData) {
+		return params;
+	}
+
+	@Override
+	public String getName() {
+		return "Neighbourhood Enrichment Analysis";
+	}
+
+	@Override
+	public String getLastResultsDescription() {
+		return lastResults;
+	}
+
+
+	@Override
+	public String getDescription() {
+		return "Compare neighbour counts and co-occurrence between cell classes with random labelling";
+	}
+
+
+	@Override
+	protected void addRunnableTasks(ImageData<BufferedImage> imageData, PathObject parentObject, List<Runnable> tasks) {
+		tasks.add(DetectionPluginTools.createRunnableTask(new AnnotationLoader(), getParameterList(imageData), imageData, parentObject));
+	}
+
+
+	@Override
+	protected Collection<? extends PathObject> getParentObjects(final PluginRunner<BufferedImage> runner) {
+		PathObjectHierarchy hierarchy = getHierarchy(runner);
+		if (hierarchy.getTMAGrid() == null)
+			return Collections.singleton(hierarchy.getRootObject());
+
+		return hierarchy.getSelectionModel().getSelectedObjects().stream().filter(p -> p.isTMACore()).collect(Collectors.toList());
+	}
+
+
+	@Override
+	public Collection<Class<? extends PathObject>> getSupportedParentObjectClasses() {
+		return Arrays.asList(
+				PathAnnotationObject.class,
+				TMACoreObject.class
+				);
+	}
+
+}
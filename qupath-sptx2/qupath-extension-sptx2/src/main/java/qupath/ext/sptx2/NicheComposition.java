@@ -0,0 +1,293 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Niche composition of every cell: the class fractions, and optionally the mean expression of selected genes,
+ * of its k nearest neighbours or of its neighbours within a radius.
+ * <p>
+ * Centroids are indexed once in a {@link KdTree} over the classified cells and queried in parallel, one
+ * neighbour buffer per worker. The vectors are returned as a {@link GeneExpressionStore} whose features are
+ * named {@code fraction:<class>} and {@code mean:<gene>}, so they are held as compact arrays keyed by object
+ * id and shown as virtual measurements under {@link #PREFIX}.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class NicheComposition {
+
+	final private static Logger logger = LoggerFactory.getLogger(NicheComposition.class);
+
+	/**
+	 * Prefix of the virtual measurements of the niche vectors.
+	 */
+	final public static String PREFIX = "niche:";
+
+	/**
+	 * {@link ImageData} property key under which the niche store is attached.
+	 */
+	final public static String KEY_NICHE_COMPOSITION = "SPTX2_NICHE_COMPOSITION";
+
+	final private static String STORE_FILE_NAME = "sptx2_niche_composition.bin";
+
+	final private List<PathObject> cells;
+	final private double[] x;
+	final private double[] y;
+
+	// Classified cells, which are the only neighbours
+	final private String[] classNames;
+	final private int[] neighbourCells;
+	final private int[] neighbourLabels;
+	final private KdTree tree;
+
+	private NicheComposition(final List<PathObject> cells, final double[] x, final double[] y, final String[] classNames, final int[] neighbourCells, final int[] neighbourLabels) {
+		this.cells = cells;
+		this.x = x;
+		this.y = y;
+		this.classNames = classNames;
+		this.neighbourCells = neighbourCells;
+		this.neighbourLabels = neighbourLabels;
+		final double[] nx = new double[neighbourCells.length];
+		final double[] ny = new double[neighbourCells.length];
+		for (int k = 0; k < neighbourCells.length; k++) {
+			nx[k] = x[neighbourCells[k]];
+			ny[k] = y[neighbourCells[k]];
+		}
+		tree = new KdTree(nx, ny);
+	}
+
+	/**
+	 * Index the cells.
+	 * @param cells cells for which vectors are computed
+	 * @param classOf class name of a cell, or null if it should not count as a neighbour
+	 * @return
+	 */
+	public static NicheComposition build(final List<PathObject> cells, final Function<PathObject, String> classOf) {
+		final int nCells = cells.size();
+		final double[] x = new double[nCells];
+		final double[] y = new double[nCells];
+		final String[] cellClasses = new String[nCells];
+		IntStream.range(0, nCells).parallel().forEach(i -> {
+			final ROI roi = PathObjectTools.getROI(cells.get(i), true);
+			x[i] = roi.getCentroidX();
+			y[i] = roi.getCentroidY();
+			cellClasses[i] = classOf.apply(cells.get(i));
+		});
+
+		final List<String> names = new ArrayList<>();
+		final Map<String, Integer> classIds = new HashMap<>();
+		for (String name: cellClasses) {
+			if (name != null && classIds.putIfAbsent(name, -1) == null)
+				names.add(name);
+		}
+		GeneralTools.smartStringSort(names);
+		for (int c = 0; c < names.size(); c++)
+			classIds.put(names.get(c), c);
+
+		final int[] neighbourCells = IntStream.range(0, nCells).filter(i -> cellClasses[i] != null).toArray();
+		final int[] neighbourLabels = Arrays.stream(neighbourCells).map(i -> classIds.get(cellClasses[i])).toArray();
+
+		return new NicheComposition(cells, x, y, names.toArray(new String[0]), neighbourCells, neighbourLabels);
+	}
+
+	/**
+	 * @return class names, in feature order
+	 */
+	public String[] getClassNames() {
+		return classNames.clone();
+	}
+
+	/**
+	 * @return number of classified cells that count as neighbours
+	 */
+	public int getNeighbourCount() {
+		return neighbourCells.length;
+	}
+
+	/**
+	 * Compute the niche vectors.
+	 * @param k number of nearest neighbours, used if radius is not positive
+	 * @param radius neighbourhood radius in pixels, or 0 to use k
+	 * @param genes genes whose mean neighbour expression is added, may be empty
+	 * @param expression expression of the genes, cell by cell (row-major, genes.size() columns); may be null if there are no genes
+	 * @return a store with one row per cell that has at least one neighbour
+	 */
+	public GeneExpressionStore compute(final int k, final double radius, final List<String> genes, final float[] expression) {
+		final int nClasses = classNames.length;
+		final int nGenes = genes.size();
+		final int nFeatures = nClasses + nGenes;
+		final List<String> features = new ArrayList<>(nFeatures);
+		for (String name: classNames)
+			features.add("fraction:" + name);
+		for (String gene: genes)
+			features.add("mean:" + gene);
+		final int[] columns = IntStream.range(0, nFeatures).toArray();
+
+		final GeneExpressionStore.Builder builder = new GeneExpressionStore.Builder(PREFIX, features);
+		final int nCells = cells.size();
+		final int[] cellNeighbour = new int[nCells];
+		Arrays.fill(cellNeighbour, -1);
+		for (int n = 0; n < neighbourCells.length; n++)
+			cellNeighbour[neighbourCells[n]] = n;
+
+		final int nWorkers = ThreadTools.getParallelism();
+		IntStream.range(0, nWorkers).parallel().forEach(w -> {
+			final KdTree.Neighbours neighbours = radius > 0? null: new KdTree.Neighbours(k);
+			final double[] sums = new double[nFeatures];
+			final float[] vector = new float[nFeatures];
+			final int[] found = new int[1];
+			final int from = (int)((long)nCells * w / nWorkers);
+			final int to = (int)((long)nCells * (w + 1) / nWorkers);
+
+			for (int i = from; i < to; i++) {
+				if (Thread.currentThread().isInterrupted())
+					return;
+
+				Arrays.fill(sums, 0);
+				found[0] = 0;
+				final int self = cellNeighbour[i];
+				if (neighbours != null) {
+					tree.nearest(x[i], y[i], self, neighbours);
+					for (int r = 0; r < neighbours.size(); r++)
+						add(neighbours.getIndex(r), sums, nClasses, nGenes, expression);
+					found[0] = neighbours.size();
+				} else {
+					tree.forEachWithin(x[i], y[i], radius, n -> {
+						if (n == self)
+							return;
+						add(n, sums, nClasses, nGenes, expression);
+						found[0]++;
+					});
+				}
+				if (found[0] == 0)
+					continue;
+
+				for (int f = 0; f < nFeatures; f++)
+					vector[f] = (float)(sums[f] / found[0]);
+				builder.addRow(cells.get(i), columns, vector, nFeatures);
+			}
+		});
+
+		return builder.build();
+	}
+
+	private void add(final int n, final double[] sums, final int nClasses, final int nGenes, final float[] expression) {
+		sums[neighbourLabels[n]] += 1;
+		if (nGenes > 0) {
+			final int offset = neighbourCells[n] * nGenes;
+			for (int g = 0; g < nGenes; g++)
+				sums[nClasses + g] += expression[offset + g];
+		}
+	}
+
+	/**
+	 * Read the expression of selected genes for a list of cells.
+	 * @param cells
+	 * @param genes
+	 * @param prefix measurement name prefix of the cell counts, e.g. "xenium:cell_transcript:"
+	 * @param store sparse store to read from, or null; if its prefix does not match, the measurement lists are read instead
+	 * @return row-major values, 0 where a gene is missing
+	 */
+	public static float[] readExpression(final List<PathObject> cells, final List<String> genes, final String prefix, final GeneExpressionStore store) {
+		final GeneExpressionStore cellStore = store != null && prefix.equals(store.getPrefix())? store: null;
+		final int nGenes = genes.size();
+		final float[] expression = new float[cells.size() * nGenes];
+		final int[] storeGenes = cellStore == null? null: genes.stream().mapToInt(cellStore::getGeneIndex).toArray();
+		IntStream.range(0, cells.size()).parallel().forEach(i -> {
+			final PathObject cell = cells.get(i);
+			final int row = cellStore == null? -1: cellStore.getRow(cell);
+			for (int g = 0; g < nGenes; g++) {
+				double v;
+				if (cellStore != null)
+					v = row < 0 || storeGenes[g] < 0? 0: cellStore.getValue(row, storeGenes[g]);
+				else
+					v = cell.getMeasurementList().get(prefix + genes.get(g));
+				expression[i * nGenes + g] = Double.isNaN(v)? 0f: (float)v;
+			}
+		});
+		return expression;
+	}
+
+	/**
+	 * Attach the niche store to an image, replacing any previous one, and publish its virtual measurements.
+	 * If the image belongs to the current project, the store is also written to the project entry directory.
+	 * @param imageData
+	 * @param store
+	 */
+	public static void setStore(final ImageData<?> imageData, final GeneExpressionStore store) {
+		imageData.setProperty(KEY_NICHE_COMPOSITION, store);
+		GeneExpressionStore.publishVirtualMeasurements(imageData, store);
+
+		final File file = GeneExpressionStore.getEntryFile(imageData, STORE_FILE_NAME);
+		if (file != null) {
+			try {
+				store.write(file);
+			} catch (IOException e) {
+				logger.warn("Unable to write niche composition store: {}", e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Get the niche store attached to an image, loading it from the project entry directory if required.
+	 * This is also done when the image is opened (see {@link SpTx2Extension}), so that the niche columns are shown in measurement tables.
+	 * @param imageData
+	 * @return the store, or null if there is none
+	 */
+	public static GeneExpressionStore getStore(final ImageData<?> imageData) {
+		if (imageData == null)
+			return null;
+		final Object store = imageData.getProperty(KEY_NICHE_COMPOSITION);
+		if (store instanceof GeneExpressionStore)
+			return (GeneExpressionStore)store;
+
+		final File file = GeneExpressionStore.getEntryFile(imageData, STORE_FILE_NAME);
+		if (file == null || !file.isFile())
+			return null;
+		try {
+			final GeneExpressionStore loaded = GeneExpressionStore.read(file);
+			imageData.setProperty(KEY_NICHE_COMPOSITION, loaded);
+			GeneExpressionStore.publishVirtualMeasurements(imageData, loaded);
+			return loaded;
+		} catch (IOException e) {
+			logger.warn("Unable to read niche composition store: {}", e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+}
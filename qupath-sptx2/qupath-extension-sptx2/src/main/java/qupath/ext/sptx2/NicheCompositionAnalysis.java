@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.beans.property.StringProperty;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.AbstractDetectionPlugin;
+import qupath.lib.plugins.DetectionPluginTools;
+import qupath.lib.plugins.ObjectDetector;
+import qupath.lib.plugins.PluginRunner;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Plugin attaching to every cell the class composition, and optionally the mean gene expression, of its neighbourhood
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class NicheCompositionAnalysis extends AbstractDetectionPlugin<BufferedImage> {
+	final private static Logger logger = LoggerFactory.getLogger(NicheCompositionAnalysis.class);
+	final private StringProperty nicheAnalClassPrefixProp = PathPrefs.createPersistentPreference("nicheAnalClassPrefix", "");
+	final private StringProperty nicheAnalModeProp = PathPrefs.createPersistentPreference("nicheAnalMode", "k nearest neighbours");
+	final private StringProperty nicheAnalVendorProp = PathPrefs.createPersistentPreference("nicheAnalVendor", "xenium");
+	final private StringProperty nicheAnalGenesProp = PathPrefs.createPersistentPreference("nicheAnalGenes", "");
+
+	private ParameterList params;
+
+	final private List<String> modeList = Arrays.asList("k nearest neighbours", "radius");
+
+	final private List<String> vendorlList = Arrays.asList("xenium", "cosmx");
+
+	private String lastResults = null;
+
+	/**
+	 * Constructor.
+	 */
+	public NicheCompositionAnalysis() {
+		params = new ParameterList()
+			.addTitleParameter("Niche Composition Analysis")
+			.addStringParameter("classPrefix", "Class prefix (blank: all classes)", nicheAnalClassPrefixProp.get(), "Only count neighbours whose class starts with this text, e.g. xenium:cluster:")
+			.addChoiceParameter("mode", "Neighbourhood", nicheAnalModeProp.get(), modeList, "Use the k nearest neighbours of every cell, or all neighbours within a radius")
+			.addIntParameter("k", "Number of nearest neighbours", 15, null, "Neighbourhood size in k nearest neighbours mode")
+			.addDoubleParameter("radius", "Radius", 50.0, GeneralTools.micrometerSymbol(), "Neighbourhood radius in radius mode")
+			.addEmptyParameter("")
+			.addChoiceParameter("vendor", "Vendor", nicheAnalVendorProp.get(), vendorlList, "Choose the vendor of the cell transcript measurements")
+			.addStringParameter("genes", "Genes (comma separated, blank: none)", nicheAnalGenesProp.get(), "Also compute the mean expression of these genes over the neighbourhood")
+			;
+	}
+
+	class AnnotationLoader implements ObjectDetector<BufferedImage> {
+
+		@Override
+		public Collection<PathObject> runDetection(final ImageData<BufferedImage> imageData, final ParameterList params, final ROI pathROI) throws IOException {
+			nicheAnalClassPrefixProp.set(params.getStringParameterValue("classPrefix"));
+			nicheAnalModeProp.set((String)params.getChoiceParameterValue("mode"));
+			nicheAnalVendorProp.set((String)params.getChoiceParameterValue("vendor"));
+			nicheAnalGenesProp.set(params.getStringParameterValue("genes"));
+
+			final PathObjectHierarchy hierarchy = imageData.getHierarchy();
+
+			try {
+				final List<PathObject> selectedAnnotationPathObjectList = new ArrayList<>();
+
+				for (PathObject pathObject : hierarchy.getSelectionModel().getSelectedObjects()) {
+					if (pathObject.isAnnotation() && pathObject.hasChildren())
+						selectedAnnotationPathObjectList.add(pathObject);
+				}
+
+				if(selectedAnnotationPathObjectList.isEmpty()) throw new Exception("Missed selected annotations");
+
+				final boolean useRadius = params.getChoiceParameterValue("mode").equals("radius");
+				final int k = params.getIntParameterValue("k");
+				final double radiusMicrons = params.getDoubleParameterValue("radius");
+				if(!useRadius && k < 1) throw new Exception("k must be at least 1");
+				if(useRadius && !(radiusMicrons > 0)) throw new Exception("Radius must be positive");
+
+				final List<PathObject> cellPathObjectList = new ArrayList<>();
+				for(PathObject p: selectedAnnotationPathObjectList) cellPathObjectList.addAll(p.getChildObjects());
+
+				final String classPrefix = params.getStringParameterValue("classPrefix").strip();
+				final NicheComposition niche = NicheComposition.build(cellPathObjectList, p -> {
+					if(p.getPathClass() == null) return null;
+					final String name = p.getPathClass().toString();
+					return name.startsWith(classPrefix)? name: null;
+				});
+				if(niche.getNeighbourCount() == 0) throw new Exception("No classified cells");
+
+				/*
+				 * Expression of the selected genes, from the sparse store if it holds them, else from the measurements
+				 */
+
+				final List<String> genes = new ArrayList<>(new LinkedHashSet<>(Arrays.stream(params.getStringParameterValue("genes").split(","))
+						.map(String::strip)
+						.filter(s -> !s.isEmpty())
+						.collect(Collectors.toList())));
+				final float[] expression = genes.isEmpty()? null: NicheComposition.readExpression(cellPathObjectList, genes,
+						params.getChoiceParameterValue("vendor")+":cell_transcript:", GeneExpressionStore.getStore(imageData));
+
+				final double pixelSizeMicrons = imageData.getServer().getPixelCalibration().hasPixelSizeMicrons()? imageData.getServer().getPixelCalibration().getAveragedPixelSizeMicrons(): 1.0;
+				final GeneExpressionStore store = niche.compute(k, useRadius? radiusMicrons / pixelSizeMicrons: 0, genes, expression);
+
+				if(!Thread.currentThread().isInterrupted()) NicheComposition.setStore(imageData, store);
+
+				logger.info("Computed niche vectors of {} cells over {} classes and {} genes", store.nObjects(), niche.getClassNames().length, genes.size());
+
+				lastResults = "Niche vectors of "+store.nObjects()+" cells added under "+NicheComposition.PREFIX;
+			}
+			catch(Exception e) {
+
+				Dialogs.showErrorMessage("Error", e.getMessage());
+
+				lastResults =  "Something went wrong: "+e.getMessage();
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			if (Thread.currentThread().isInterrupted()) {
+
+				Dialogs.showErrorMessage("Warning", "Interrupted!");
+
+				lastResults =  "Interrupted!";
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+		}
+
+
+		@Override
+		public String getLastResultsDescription() {
+			return lastResults;
+		}
+
+
+	}
+
+	@Override
+	public ParameterList getDefaultParameterList(final ImageData<BufferedImage> imageData) {
+		return params;
+	}
+
+	@Override
+	public String getName() {
+		return "Niche Composition Analysis";
+	}
+
+	@Override
+	public String getLastResultsDescription() {
+		return lastResults;
+	}
+
+
+	@Override
+	public String getDescription() {
+		return "Attach to every cell the class fractions and mean gene expression of its nearest neighbours";
+	}
+
+
+	@Override
+	protected void addRunnableTasks(ImageData<BufferedImage> imageData, PathObject parentObject, List<Runnable> tasks) {
+		tasks.add(DetectionPluginTools.createRunnableTask(new AnnotationLoader(), getParameterList(imageData), imageData, parentObject));
+	}
+
+
+	@Override
+	protected Collection<? extends PathObject> getParentObjects(final PluginRunner<BufferedImage> runner) {
+		PathObjectHierarchy hierarchy = getHierarchy(runner);
+		if (hierarchy.getTMAGrid() == null)
+			return Collections.singleton(hierarchy.getRootObject());
+
+		return hierarchy.getSelectionModel().getSelectedObjects().stream().filter(p -> p.isTMACore()).collect(Collectors.toList());
+	}
+
+
+	@Override
+	public Collection<Class<? extends PathObject>> getSupportedParentObjectClasses() {
+		return Arrays.asList(
+				PathAnnotationObject.class,
+				TMACoreObject.class
+				);
+	}
+
+}
@@ -0,0 +1,349 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.imgscalr.Scalr;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Export of square image patches centred on objects, encoded as image files and handed to a {@link PatchSink}:
+ * one file per object in a directory per group, or packed into {@link ShardWriter} shards.
+ * <p>
+ * Objects are grouped by image tile, and every tile is read once as the bounding box of its patches, which are
+ * then cropped in memory. A pool of readers feeds a bounded queue drained by a fixed pool of writers, so at most
+ * a few tiles and {@code queueCapacity} patches are held in memory and encoding overlaps with reading.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class PatchExporter {
+
+	final private static Logger logger = LoggerFactory.getLogger(PatchExporter.class);
+
+	final private static int MIN_TILE_SIZE = 1024;
+
+	// Sort keys pack the tile row and column above a 24-bit object index
+	final private static int INDEX_MASK = (1 << 24) - 1;
+
+	/**
+	 * Destination of the encoded patches. Called concurrently by the writer threads.
+	 */
+	public static interface PatchSink extends Closeable {
+
+		/**
+		 * @param pathObject object the patch is centred on
+		 * @param group name of the group of the object, e.g. the id of its parent annotation
+		 * @param bytes encoded image
+		 * @throws IOException
+		 */
+		void write(PathObject pathObject, String group, byte[] bytes) throws IOException;
+
+	}
+
+	private static class Patch {
+
+		final private PathObject pathObject;
+		final private String group;
+		final private BufferedImage image;
+
+		Patch(final PathObject pathObject, final String group, final BufferedImage image) {
+			this.pathObject = pathObject;
+			this.group = group;
+			this.image = image;
+		}
+
+	}
+
+	final private static Patch POISON = new Patch(null, null, null);
+
+	final private ImageServer<BufferedImage> server;
+	final private int patchSize;
+	final private int outputSize;
+	final private String format;
+	private int tileSize;
+	private int nReaders = ThreadTools.getParallelism();
+	private int nWriters = Math.max(2, ThreadTools.getParallelism() / 2);
+	private int queueCapacity = 256;
+
+	/**
+	 * @param server image to read, at full resolution
+	 * @param patchSize patch width and height in full resolution pixels
+	 * @param outputSize width of the written patches if they should be rescaled, or 0 to write them as read
+	 * @param format image file format and extension, e.g. png
+	 */
+	public PatchExporter(final ImageServer<BufferedImage> server, final int patchSize, final int outputSize, final String format) {
+		this.server = server;
+		this.patchSize = patchSize;
+		this.outputSize = outputSize;
+		this.format = format;
+		this.tileSize = Math.max(MIN_TILE_SIZE, Math.max(server.getMetadata().getPreferredTileWidth(), server.getMetadata().getPreferredTileHeight()));
+	}
+
+	/**
+	 * @param tileSize side of the square tiles by which objects are grouped, in full resolution pixels
+	 * @return this exporter
+	 */
+	public PatchExporter tileSize(final int tileSize) {
+		this.tileSize = Math.max(patchSize, tileSize);
+		return this;
+	}
+
+	/**
+	 * @param nReaders number of threads reading tiles
+	 * @param nWriters number of threads encoding and writing patches
+	 * @param queueCapacity maximal number of patches waiting to be written
+	 * @return this exporter
+	 */
+	public PatchExporter threads(final int nReaders, final int nWriters, final int queueCapacity) {
+		this.nReaders = Math.max(1, nReaders);
+		this.nWriters = Math.max(1, nWriters);
+		this.queueCapacity = Math.max(1, queueCapacity);
+		return this;
+	}
+
+	/**
+	 * Sink writing every patch to {@code <root>/<group>/<object id>.<format>}. Group directories are created on first use.
+	 * @param root
+	 * @return
+	 */
+	public PatchSink directorySink(final File root) {
+		final Map<String, File> dirs = new ConcurrentHashMap<>();
+		return new PatchSink() {
+
+			@Override
+			public void write(final PathObject pathObject, final String group, final byte[] bytes) throws IOException {
+				final File dir = dirs.computeIfAbsent(group, g -> {
+					final File d = new File(root, g);
+					return d.isDirectory() || d.mkdirs()? d: null;
+				});
+				if (dir == null)
+					throw new IOException("Unable to create " + new File(root, group));
+				Files.write(new File(dir, pathObject.getID().toString() + "." + format).toPath(), bytes);
+			}
+
+			@Override
+			public void close() {}
+
+		};
+	}
+
+	/**
+	 * Export the patches of several groups of objects.
+	 * @param groups objects by group name
+	 * @param sink destination of the encoded patches; not closed by this method
+	 * @return number of patches written
+	 * @throws Exception the first exception thrown by a reader or a writer
+	 */
+	public int export(final Map<String, List<PathObject>> groups, final PatchSink sink) throws Exception {
+		final List<PathObject> objects = new ArrayList<>();
+		final List<String> objectGroups = new ArrayList<>();
+		for (Map.Entry<String, List<PathObject>> entry: groups.entrySet()) {
+			for (PathObject pathObject: entry.getValue()) {
+				objects.add(pathObject);
+				objectGroups.add(entry.getKey());
+			}
+		}
+
+		/*
+		 * Patch origins, and objects sorted by tile in row-major order
+		 */
+
+		final int n = objects.size();
+		if (n > INDEX_MASK)
+			throw new IOException("Too many objects to export at once: " + n);
+		final int[] x0 = new int[n];
+		final int[] y0 = new int[n];
+		final long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			final ROI roi = objects.get(i).getROI();
+			x0[i] = (int)Math.floor(0.5 + roi.getCentroidX() - patchSize / 2.0);
+			y0[i] = (int)Math.floor(0.5 + roi.getCentroidY() - patchSize / 2.0);
+			final long tx = Math.max(0, Math.floorDiv((long)Math.floor(roi.getCentroidX()), tileSize) + 1);
+			final long ty = Math.max(0, Math.floorDiv((long)Math.floor(roi.getCentroidY()), tileSize) + 1);
+			keys[i] = (ty << 44) | (tx << 24) | i;
+		}
+		Arrays.parallelSort(keys);
+
+		final List<Integer> tileStarts = new ArrayList<>();
+		for (int k = 0; k < n; k++) {
+			if (k == 0 || (keys[k] >>> 24) != (keys[k-1] >>> 24))
+				tileStarts.add(k);
+		}
+		final int nTiles = tileStarts.size();
+		tileStarts.add(n);
+		final int[] order = new int[n];
+		for (int k = 0; k < n; k++)
+			order[k] = (int)(keys[k] & INDEX_MASK);
+
+		final BlockingQueue<Patch> queue = new ArrayBlockingQueue<>(queueCapacity);
+		final AtomicInteger nextTile = new AtomicInteger();
+		final AtomicInteger nWritten = new AtomicInteger();
+		final AtomicInteger nSkipped = new AtomicInteger();
+
+		final ExecutorService writerPool = Executors.newFixedThreadPool(nWriters, ThreadTools.createThreadFactory("sptx2-patch-writer-", true));
+		final ExecutorService readerPool = Executors.newFixedThreadPool(nReaders, ThreadTools.createThreadFactory("sptx2-patch-reader-", true));
+		final List<Future<?>> writers = new ArrayList<>();
+		final List<Future<?>> readers = new ArrayList<>();
+
+		try {
+			for (int w = 0; w < nWriters; w++) {
+				writers.add(writerPool.submit(() -> {
+					final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+					while (true) {
+						final Patch patch = queue.take();
+						if (patch == POISON)
+							return null;
+						buffer.reset();
+						if (!ImageIO.write(patch.image, format, buffer))
+							throw new IOException("No image writer for format " + format);
+						sink.write(patch.pathObject, patch.group, buffer.toByteArray());
+						nWritten.incrementAndGet();
+					}
+				}));
+			}
+
+			for (int r = 0; r < nReaders; r++) {
+				readers.add(readerPool.submit(() -> {
+					int t;
+					while ((t = nextTile.getAndIncrement()) < nTiles) {
+						if (Thread.currentThread().isInterrupted())
+							throw new InterruptedException("Patch export interrupted");
+						readTile(order, tileStarts.get(t), tileStarts.get(t+1), x0, y0, objects, objectGroups, queue, writers, nSkipped);
+					}
+					return null;
+				}));
+			}
+
+			try {
+				for (Future<?> f : readers)
+					f.get();
+			} finally {
+				for (int w = 0; w < nWriters; w++)
+					offer(queue, POISON, writers);
+			}
+
+			for (Future<?> f : writers)
+				f.get();
+		} catch (Exception e) {
+			for (Future<?> f : readers)
+				f.cancel(true);
+			for (Future<?> f : writers)
+				f.cancel(true);
+			throw e;
+		} finally {
+			readerPool.shutdownNow();
+			writerPool.shutdownNow();
+			readerPool.awaitTermination(1, TimeUnit.MINUTES);
+			writerPool.awaitTermination(1, TimeUnit.MINUTES);
+		}
+
+		if (nSkipped.get() > 0)
+			logger.warn("Skipped {} patches lying outside the image", nSkipped.get());
+		logger.info("Wrote {} patches from {} tiles", nWritten.get(), nTiles);
+		return nWritten.get();
+	}
+
+	/**
+	 * Read the bounding box of the patches of one tile, clipped to the image, and queue a copy of every patch.
+	 * Parts of a patch outside the image are left blank.
+	 */
+	private void readTile(final int[] order, final int from, final int to, final int[] x0, final int[] y0, final List<PathObject> objects, final List<String> objectGroups,
+			final BlockingQueue<Patch> queue, final List<Future<?>> writers, final AtomicInteger nSkipped) throws Exception {
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (int k = from; k < to; k++) {
+			final int i = order[k];
+			minX = Math.min(minX, x0[i]);
+			minY = Math.min(minY, y0[i]);
+			maxX = Math.max(maxX, x0[i] + patchSize);
+			maxY = Math.max(maxY, y0[i] + patchSize);
+		}
+		minX = Math.max(0, minX);
+		minY = Math.max(0, minY);
+		maxX = Math.min(server.getWidth(), maxX);
+		maxY = Math.min(server.getHeight(), maxY);
+		if (maxX <= minX || maxY <= minY) {
+			nSkipped.addAndGet(to - from);
+			return;
+		}
+
+		final BufferedImage tile = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1.0, minX, minY, maxX - minX, maxY - minY));
+		final WritableRaster tileRaster = tile.getRaster();
+
+		for (int k = from; k < to; k++) {
+			final int i = order[k];
+			final int ix = Math.max(x0[i], minX);
+			final int iy = Math.max(y0[i], minY);
+			final int iw = Math.min(x0[i] + patchSize, maxX) - ix;
+			final int ih = Math.min(y0[i] + patchSize, maxY) - iy;
+			if (iw <= 0 || ih <= 0) {
+				nSkipped.incrementAndGet();
+				continue;
+			}
+
+			final WritableRaster raster = tileRaster.createCompatibleWritableRaster(patchSize, patchSize);
+			raster.setRect(ix - x0[i], iy - y0[i], tileRaster.createChild(ix - minX, iy - minY, iw, ih, 0, 0, null));
+			BufferedImage patch = new BufferedImage(tile.getColorModel(), raster, tile.isAlphaPremultiplied(), null);
+			if (outputSize > 0)
+				patch = Scalr.resize(patch, outputSize);
+
+			offer(queue, new Patch(objects.get(i), objectGroups.get(i), patch), writers);
+		}
+	}
+
+	/**
+	 * Put a patch in the queue, failing fast if a writer died while the queue was full.
+	 */
+	private static void offer(final BlockingQueue<Patch> queue, final Patch patch, final List<Future<?>> writers) throws Exception {
+		while (!queue.offer(patch, 100, TimeUnit.MILLISECONDS)) {
+			for (Future<?> f : writers) {
+				if (f.isDone())
+					f.get();
+			}
+		}
+	}
+
+}
@@ -20,21 +20,15 @@ package qupath.ext.sptx2;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-
-import javax.imageio.ImageIO;
-import org.imgscalr.Scalr;
 
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.DoubleProperty;
@@ -56,7 +50,6 @@ import qupath.lib.plugins.DetectionPluginTools;
 import qupath.lib.plugins.ObjectDetector;
 import qupath.lib.plugins.PluginRunner;
 import qupath.lib.plugins.parameters.ParameterList;
-import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
@@ -78,6 +71,11 @@ public class PathDetectionObjectImageAcquisition extends AbstractDetectionPlugin
 	final private IntegerProperty pathDetObjImgAcqSamplingSizeProp = PathPrefs.createPersistentPreference("pathDetObjImgAcqSamplingSize", 36);
 	final private IntegerProperty pathDetObjImgAcqSamplingNumProp = PathPrefs.createPersistentPreference("pathDetObjImgAcqSamplingNum", -1);
 	final private StringProperty pathDetObjImgAcqSamplingFmtProp = PathPrefs.createPersistentPreference("pathDetObjImgAcqSamplingFmt", "");
+	final private StringProperty pathDetObjImgAcqOutputProp = PathPrefs.createPersistentPreference("pathDetObjImgAcqOutput", "image files");
+	final private IntegerProperty pathDetObjImgAcqShardSizeProp = PathPrefs.createPersistentPreference("pathDetObjImgAcqShardSize", 512);
+	final private StringProperty pathDetObjImgAcqLabelPrefixProp = PathPrefs.createPersistentPreference("pathDetObjImgAcqLabelPrefix", "");
+	
+	final private List<String> outputList = Arrays.asList("image files", "tar shards");
 	
 	
 	/**
@@ -101,7 +99,11 @@ public class PathDetectionObjectImageAcquisition extends AbstractDetectionPlugin
 			.addEmptyParameter("")
 			.addIntParameter("samplingSize", "Sampling Size", pathDetObjImgAcqSamplingSizeProp.get(), "pixel(s)", "Sampling Size")
 			.addIntParameter("samplingNum", "Maximal Sampling Number (-1 means all)", pathDetObjImgAcqSamplingNumProp.get(), "objects(s)", "Maximal Sampling Number")
-			.addStringParameter("format", "Image File Format (e.g., png, tiff, etc.) ", pathDetObjImgAcqSamplingFmtProp.get(), "Image File Format");
+			.addStringParameter("format", "Image File Format (e.g., png, tiff, etc.) ", pathDetObjImgAcqSamplingFmtProp.get(), "Image File Format")
+			.addEmptyParameter("")
+			.addChoiceParameter("output", "Output", pathDetObjImgAcqOutputProp.get(), outputList, "One image file per object in a folder per annotation, or tar shards (WebDataset layout) with an index per shard")
+			.addIntParameter("shardSize", "Maximal Shard Size", pathDetObjImgAcqShardSizeProp.get(), "MB", "Size above which a new shard is started")
+			.addStringParameter("labelPrefix", "Expression Label Prefix (blank: none)", pathDetObjImgAcqLabelPrefixProp.get(), "Add the expression measurements starting with this text to the shard labels, e.g. xenium:cell_transcript:");
 	}
 	
 	class DetectedObjectImageSampling implements ObjectDetector<BufferedImage> {
@@ -115,6 +117,9 @@ public class PathDetectionObjectImageAcquisition extends AbstractDetectionPlugin
 			pathDetObjImgAcqSamplingSizeProp.set(params.getIntParameterValue("samplingSize"));
 			pathDetObjImgAcqSamplingNumProp.set(params.getIntParameterValue("samplingNum"));
 			pathDetObjImgAcqSamplingFmtProp.set(params.getStringParameterValue("format"));
+			pathDetObjImgAcqOutputProp.set((String)params.getChoiceParameterValue("output"));
+			pathDetObjImgAcqShardSizeProp.set(params.getIntParameterValue("shardSize"));
+			pathDetObjImgAcqLabelPrefixProp.set(params.getStringParameterValue("labelPrefix"));
 					
 			final PathObjectHierarchy hierarchy = imageData.getHierarchy();
 					
@@ -129,67 +134,53 @@ public class PathDetectionObjectImageAcquisition extends AbstractDetectionPlugin
 				if(selectedAnnotationPathObjectList.isEmpty()) throw new Exception("Missed selected annotations");
 				
 				final ImageServer<BufferedImage> server = (ImageServer<BufferedImage>) imageData.getServer();
-				final String serverPath = server.getPath();
 				
 				final double imageMPP = server.getPixelCalibration().getAveragedPixelSizeMicrons();
 				
 				final double scalingFactor = params.getDoubleParameterValue("MPP") / imageMPP;
 				final int samplingFeatureSize = (int)(0.5 + scalingFactor * params.getIntParameterValue("samplingSize"));
-
-				final AtomicBoolean success = new AtomicBoolean(true);
 				
-				selectedAnnotationPathObjectList.parallelStream().forEach(sltdObj -> {
-					final List<PathObject> pathObjects = Collections.synchronizedList(new ArrayList<PathObject>(sltdObj.getChildObjects()));
+				final String format = params.getStringParameterValue("format").strip();
+				if(format.isEmpty()) throw new Exception("Image file format is blank");
+				final String fileExt = format.charAt(0) == '.'? format.substring(1): format;
+				
+				/*
+				 * Sample the objects of every annotation, grouped by annotation id, and export them together
+				 * so that tiles shared by several annotations are only read once
+				 */
+				
+				final Map<String, List<PathObject>> groups = new LinkedHashMap<>();
+				for(PathObject sltdObj: selectedAnnotationPathObjectList) {
+					final List<PathObject> pathObjects = new ArrayList<PathObject>(sltdObj.getChildObjects());
 					Collections.shuffle(pathObjects);
 					
 					final int samplingNum = params.getIntParameterValue("samplingNum") == -1 || params.getIntParameterValue("samplingNum") > pathObjects.size()? pathObjects.size(): params.getIntParameterValue("samplingNum");
-					final List<PathObject> samplingPathObjects = Collections.synchronizedList(pathObjects.subList(0, samplingNum));
 					
-				    IntStream.range(0, samplingPathObjects.size()).parallel().forEach(i -> { 
-					// for(int i = 0; i < samplingPathObjects.size(); i ++) {
-						final PathObject objObject = pathObjects.get(i);
-						final ROI objRoi = objObject.getROI();
-						
-					    final int x0 = (int) (0.5 + objRoi.getCentroidX() - ((double)samplingFeatureSize / 2.0));
-					    final int y0 = (int) (0.5 + objRoi.getCentroidY() - ((double)samplingFeatureSize / 2.0));
-					    final RegionRequest objRegion = RegionRequest.createInstance(serverPath, 1.0, x0, y0, samplingFeatureSize, samplingFeatureSize);
-						
-						try {
-							final BufferedImage img = (BufferedImage)server.readBufferedImage(objRegion);
-							
-							 final BufferedImage scaledImg = 
-									params.getBooleanParameterValue("dontResampling")?
-									img:
-									Scalr.resize(img, params.getIntParameterValue("samplingSize"));
-									
-							final Path locationPath = Paths.get(params.getStringParameterValue("distFolder"));
-							if(!Files.exists(locationPath)) new File(locationPath.toString()).mkdirs();
-							
-							// final Path labelPath = Paths.get(params.getStringParameterValue("distFolder"), params.getStringParameterValue("prefix")+sltdObj.getID().toString());
-							final Path labelPath = Paths.get(params.getStringParameterValue("distFolder"), sltdObj.getID().toString());
-							if(!Files.exists(labelPath)) new File(labelPath.toString()).mkdirs();
-
-							final String format = params.getStringParameterValue("format").strip();
-							final String fileExt = format.charAt(0) == '.'? format.substring(1): format;	
-							
-							final Path imageFilePath = Paths.get(labelPath.toString(), objObject.getID().toString()+"."+fileExt);
-							final File imageFile = new File(imageFilePath.toString());	
-							
-					        ImageIO.write(scaledImg, fileExt, imageFile);
-						} 
-						catch (IOException e) {
-							success.set(false);
-							// payloadSuccess.set(false);
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-					});
-					// }
+					// groups.put(params.getStringParameterValue("prefix")+sltdObj.getID().toString(), pathObjects.subList(0, samplingNum));
+					groups.put(sltdObj.getID().toString(), pathObjects.subList(0, samplingNum));
+				}
 				
-				});
+				final File distFolder = new File(params.getStringParameterValue("distFolder"));
+				final PatchExporter exporter = new PatchExporter(server, samplingFeatureSize, 
+						params.getBooleanParameterValue("dontResampling")? 0: params.getIntParameterValue("samplingSize"), fileExt);
+				
+				final int nWritten;
+				if(params.getChoiceParameterValue("output").equals("tar shards")) {
+					if(params.getIntParameterValue("shardSize") < 1) throw new Exception("Shard size must be at least 1 MB");
+					
+					final String labelPrefix = params.getStringParameterValue("labelPrefix").strip();
+					try(ShardWriter shardWriter = new ShardWriter(distFolder, fileExt, params.getIntParameterValue("shardSize") * 1024L * 1024L,
+							labelPrefix.isEmpty()? null: ShardWriter.expressionLabeler(labelPrefix, GeneExpressionStore.getStore(imageData)))) {
+						nWritten = exporter.export(groups, shardWriter);
+					}
+				}
+				else {
+					try(PatchExporter.PatchSink sink = exporter.directorySink(distFolder)) {
+						nWritten = exporter.export(groups, sink);
+					}
+				}
 				
-				if(!success.get()) throw new Exception("Something went wron");
-				// success.set(true);
+				lastResults = nWritten+" object images written to "+distFolder;
 		    }
 		    catch (Exception e) {
 				// TODO Auto-generated catch block
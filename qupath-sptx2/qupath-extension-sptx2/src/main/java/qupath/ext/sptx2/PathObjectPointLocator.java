@@ -0,0 +1,221 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Location;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Point-to-object assignment backed by an STRtree over object ROIs.
+ * <p>
+ * Candidates are found through the tree and confirmed with prepared-geometry containment tests, so there is
+ * no label-count ceiling and memory scales with the number of objects rather than with slide area.
+ * Where several objects contain a point, the one with the lowest index wins.
+ * For very dense point sets, {@link #createTiledRaster(double, int)} offers an approximate lookup through
+ * integer label tiles that are rasterised on first use.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class PathObjectPointLocator implements PointLocator {
+
+	final private static GeometryFactory factory = new GeometryFactory();
+
+	final private STRtree tree = new STRtree();
+	final private Geometry[] geometries;
+	final private PreparedGeometry[] prepared;
+
+	/**
+	 * Index the ROIs of a list of objects. Objects without an area ROI are never returned.
+	 * @param pathObjects
+	 */
+	public PathObjectPointLocator(final List<? extends PathObject> pathObjects) {
+		geometries = new Geometry[pathObjects.size()];
+		prepared = new PreparedGeometry[pathObjects.size()];
+		IntStream.range(0, geometries.length).parallel().forEach(i -> {
+			final ROI roi = pathObjects.get(i).getROI();
+			if (roi == null || !roi.isArea())
+				return;
+			geometries[i] = roi.getGeometry();
+			prepared[i] = PreparedGeometryFactory.prepare(geometries[i]);
+		});
+		for (int i = 0; i < geometries.length; i++) {
+			if (geometries[i] != null)
+				tree.insert(geometries[i].getEnvelopeInternal(), i);
+		}
+		tree.build();
+	}
+
+	/**
+	 * @return number of indexed objects
+	 */
+	public int size() {
+		return geometries.length;
+	}
+
+	@Override
+	public int locate(final double x, final double y) {
+		final Envelope env = new Envelope(x, x, y, y);
+		final List<?> candidates = tree.query(env);
+		if (candidates.isEmpty())
+			return -1;
+		final Geometry point = factory.createPoint(new Coordinate(x, y));
+		int best = -1;
+		for (Object o : candidates) {
+			final int i = (Integer)o;
+			if ((best < 0 || i < best) && prepared[i].covers(point))
+				best = i;
+		}
+		return best;
+	}
+
+	/**
+	 * Locate many points in parallel.
+	 * @param x
+	 * @param y
+	 * @return object index for every point, or -1
+	 */
+	public int[] locateAll(final double[] x, final double[] y) {
+		final int[] result = new int[x.length];
+		IntStream.range(0, x.length).parallel().forEach(i -> result[i] = locate(x[i], y[i]));
+		return result;
+	}
+
+	/**
+	 * Test whether a rectangle lies entirely within a single object, so that every point inside it can be
+	 * accepted without further tests.
+	 * @param env
+	 * @return index of an object covering the rectangle, or -1
+	 */
+	public int locateEnvelope(final Envelope env) {
+		final Geometry rect = factory.toGeometry(env);
+		int best = -1;
+		for (Object o : tree.query(env)) {
+			final int i = (Integer)o;
+			if ((best < 0 || i < best) && prepared[i].covers(rect))
+				best = i;
+		}
+		return best;
+	}
+
+	/**
+	 * Get indices of all objects whose bounding boxes intersect a rectangle.
+	 * @param env
+	 * @return
+	 */
+	public List<Integer> query(final Envelope env) {
+		final List<Integer> result = new ArrayList<>();
+		for (Object o : tree.query(env))
+			result.add((Integer)o);
+		return result;
+	}
+
+	/**
+	 * @param i
+	 * @return the geometry of an object, or null if it has no area ROI
+	 */
+	public Geometry getGeometry(final int i) {
+		return geometries[i];
+	}
+
+	/**
+	 * Create a lookup through an integer label raster at a given downsample.
+	 * Tiles are rasterised lazily and concurrently on first access, so only regions that receive points cost memory.
+	 * @param downsample raster downsample relative to full resolution
+	 * @param tileSize tile width and height in raster pixels
+	 * @return
+	 */
+	public PointLocator createTiledRaster(final double downsample, final int tileSize) {
+		return new TiledLabelRaster(downsample, tileSize);
+	}
+
+	private class TiledLabelRaster implements PointLocator {
+
+		final private double downsample;
+		final private int tileSize;
+		final private ConcurrentHashMap<Long, int[]> tiles = new ConcurrentHashMap<>();
+
+		TiledLabelRaster(final double downsample, final int tileSize) {
+			this.downsample = downsample;
+			this.tileSize = tileSize;
+		}
+
+		@Override
+		public int locate(final double x, final double y) {
+			if (x < 0 || y < 0)
+				return -1;
+			final int px = (int)(x / downsample);
+			final int py = (int)(y / downsample);
+			final int tx = px / tileSize;
+			final int ty = py / tileSize;
+			final int[] tile = tiles.computeIfAbsent(LongIntHashMap.pack(tx, ty), k -> rasterise(tx, ty));
+			return tile[(py - ty * tileSize) * tileSize + (px - tx * tileSize)];
+		}
+
+		private int[] rasterise(final int tx, final int ty) {
+			final int[] labels = new int[tileSize * tileSize];
+			Arrays.fill(labels, -1);
+
+			final double x0 = tx * tileSize * downsample;
+			final double y0 = ty * tileSize * downsample;
+			final double size = tileSize * downsample;
+			final List<Integer> candidates = query(new Envelope(x0, x0 + size, y0, y0 + size));
+			// Fill highest index first, so that the lowest index wins as for exact lookups
+			candidates.sort((a, b) -> Integer.compare(b, a));
+
+			final Coordinate c = new Coordinate();
+			for (int i : candidates) {
+				final Envelope env = geometries[i].getEnvelopeInternal();
+				final int minX = Math.max(0, (int)Math.floor(env.getMinX() / downsample - 0.5) - tx * tileSize);
+				final int maxX = Math.min(tileSize - 1, (int)Math.ceil(env.getMaxX() / downsample - 0.5) - tx * tileSize);
+				final int minY = Math.max(0, (int)Math.floor(env.getMinY() / downsample - 0.5) - ty * tileSize);
+				final int maxY = Math.min(tileSize - 1, (int)Math.ceil(env.getMaxY() / downsample - 0.5) - ty * tileSize);
+				if (minX > maxX || minY > maxY)
+					continue;
+				final IndexedPointInAreaLocator locator = new IndexedPointInAreaLocator(geometries[i]);
+				for (int y = minY; y <= maxY; y++) {
+					c.y = (ty * tileSize + y + 0.5) * downsample;
+					for (int x = minX; x <= maxX; x++) {
+						c.x = (tx * tileSize + x + 0.5) * downsample;
+						if (locator.locate(c) != Location.EXTERIOR)
+							labels[y * tileSize + x] = i;
+					}
+				}
+			}
+			return labels;
+		}
+
+	}
+
+}
@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Uniform bucket grid over a fixed set of 2D points, for nearest-neighbour and fixed-radius queries.
+ * <p>
+ * Points are counting-sorted into cells once, so the index is three flat arrays. Queries only read the index
+ * and may run concurrently. With the default cell size each cell holds about two points, so a query touches
+ * a small, bounded number of cells whatever the density of the point set.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class PointGrid {
+
+	final private double[] x;
+	final private double[] y;
+
+	final private double minX;
+	final private double minY;
+	final private double cellSize;
+	final private int nx;
+	final private int ny;
+
+	final private int[] cellPtr;
+	final private int[] cellPoints;
+
+	/**
+	 * Create a grid with a cell size giving about two points per cell.
+	 * @param x
+	 * @param y
+	 */
+	public PointGrid(final double[] x, final double[] y) {
+		this(x, y, defaultCellSize(x, y));
+	}
+
+	/**
+	 * Create a grid.
+	 * @param x
+	 * @param y
+	 * @param cellSize cell width and height
+	 */
+	public PointGrid(final double[] x, final double[] y, final double cellSize) {
+		this.x = x;
+		this.y = y;
+
+		double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+		double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < x.length; i++) {
+			x0 = Math.min(x0, x[i]);
+			y0 = Math.min(y0, y[i]);
+			x1 = Math.max(x1, x[i]);
+			y1 = Math.max(y1, y[i]);
+		}
+		if (x.length == 0) {
+			x0 = y0 = x1 = y1 = 0;
+		}
+		this.minX = x0;
+		this.minY = y0;
+		this.cellSize = cellSize > 0 && Double.isFinite(cellSize)? cellSize: 1.0;
+		this.nx = (int)Math.min(1 << 15, Math.floor((x1 - x0) / this.cellSize) + 1);
+		this.ny = (int)Math.min(1 << 15, Math.floor((y1 - y0) / this.cellSize) + 1);
+
+		final int[] cells = new int[x.length];
+		cellPtr = new int[nx * ny + 1];
+		for (int i = 0; i < x.length; i++) {
+			cells[i] = cellY(y[i]) * nx + cellX(x[i]);
+			cellPtr[cells[i] + 1]++;
+		}
+		for (int c = 0; c < nx * ny; c++)
+			cellPtr[c+1] += cellPtr[c];
+		final int[] fill = new int[nx * ny];
+		System.arraycopy(cellPtr, 0, fill, 0, nx * ny);
+		cellPoints = new int[x.length];
+		for (int i = 0; i < x.length; i++)
+			cellPoints[fill[cells[i]]++] = i;
+	}
+
+	private static double defaultCellSize(final double[] x, final double[] y) {
+		if (x.length < 2)
+			return 1.0;
+		double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+		double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < x.length; i++) {
+			x0 = Math.min(x0, x[i]);
+			y0 = Math.min(y0, y[i]);
+			x1 = Math.max(x1, x[i]);
+			y1 = Math.max(y1, y[i]);
+		}
+		final double w = Math.max(x1 - x0, 1e-9);
+		final double h = Math.max(y1 - y0, 1e-9);
+		// Guard against degenerate (e.g. collinear) sets, which would otherwise produce tiny cells
+		return Math.max(Math.sqrt(w * h * 2.0 / x.length), Math.max(w, h) * 2.0 / x.length);
+	}
+
+	private int cellX(final double px) {
+		return Math.max(0, Math.min(nx - 1, (int)Math.floor((px - minX) / cellSize)));
+	}
+
+	private int cellY(final double py) {
+		return Math.max(0, Math.min(ny - 1, (int)Math.floor((py - minY) / cellSize)));
+	}
+
+	/**
+	 * @return number of indexed points
+	 */
+	public int size() {
+		return x.length;
+	}
+
+	/**
+	 * @return the cell size
+	 */
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * Find the indexed point nearest to a location.
+	 * @param qx
+	 * @param qy
+	 * @param exclude index of a point to ignore (e.g. the query point itself), or -1
+	 * @return index of the nearest point, or -1 if there is none
+	 */
+	public int nearest(final double qx, final double qy, final int exclude) {
+		final int cx = cellX(qx);
+		final int cy = cellY(qy);
+		final int maxRing = Math.max(nx, ny);
+
+		int best = -1;
+		double bestDist2 = Double.POSITIVE_INFINITY;
+		for (int r = 0; r <= maxRing; r++) {
+			for (int gy = Math.max(0, cy - r); gy <= Math.min(ny - 1, cy + r); gy++) {
+				// Only the border of the ring is new
+				final int step = (gy == cy - r || gy == cy + r)? 1: Math.max(1, 2 * r);
+				for (int gx = cx - r; gx <= cx + r; gx += step) {
+					if (gx < 0 || gx >= nx)
+						continue;
+					final int c = gy * nx + gx;
+					for (int k = cellPtr[c]; k < cellPtr[c+1]; k++) {
+						final int j = cellPoints[k];
+						if (j == exclude)
+							continue;
+						final double dx = x[j] - qx, dy = y[j] - qy;
+						final double d2 = dx * dx + dy * dy;
+						if (d2 < bestDist2 || (d2 == bestDist2 && j < best)) {
+							bestDist2 = d2;
+							best = j;
+						}
+					}
+				}
+			}
+			// Points outside ring r are more than r cells away
+			if (best >= 0 && bestDist2 <= (r * cellSize) * (r * cellSize))
+				break;
+		}
+		return best;
+	}
+
+	/**
+	 * Visit every indexed point within a radius of a location.
+	 * @param qx
+	 * @param qy
+	 * @param radius
+	 * @param consumer receives point indices, in no particular order
+	 */
+	public void forEachWithin(final double qx, final double qy, final double radius, final IntConsumer consumer) {
+		final double r2 = radius * radius;
+		final int gx0 = cellX(qx - radius), gx1 = cellX(qx + radius);
+		final int gy0 = cellY(qy - radius), gy1 = cellY(qy + radius);
+		for (int gy = gy0; gy <= gy1; gy++) {
+			for (int gx = gx0; gx <= gx1; gx++) {
+				final int c = gy * nx + gx;
+				for (int k = cellPtr[c]; k < cellPtr[c+1]; k++) {
+					final int j = cellPoints[k];
+					final double dx = x[j] - qx, dy = y[j] - qy;
+					if (dx * dx + dy * dy <= r2)
+						consumer.accept(j);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+/**
+ * Maps a point in full-resolution image coordinates to the index of the object containing it.
+ * Implementations must be safe to call concurrently.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public interface PointLocator {
+
+	/**
+	 * @param x full-resolution x coordinate
+	 * @param y full-resolution y coordinate
+	 * @return index of the containing object, or -1 if the point is not inside any object
+	 */
+	int locate(double x, double y);
+
+}
@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.beans.property.StringProperty;
+import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.AbstractDetectionPlugin;
+import qupath.lib.plugins.DetectionPluginTools;
+import qupath.lib.plugins.ObjectDetector;
+import qupath.lib.plugins.PluginRunner;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Plugin for loading predicted results (e.g. from {@code ganstr/predict.py}) back onto the detections
+ * <p>
+ * Replaces the qupath_load_predicted_results.groovy and qupath_load_singlecell_types.groovy scripts: the table is read
+ * by a {@link PredictionImporter}, which matches rows to detections by object id and sets their classes and measurements
+ * in parallel. The hierarchy is notified once, when the plugin completes.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class PredictionAnnotation extends AbstractDetectionPlugin<BufferedImage> {
+
+	final private static Logger logger = LoggerFactory.getLogger(PredictionAnnotation.class);
+
+	final private StringProperty predAntnFileProp = PathPrefs.createPersistentPreference("predAntnFile", "");
+	final private StringProperty predAntnIdColumnProp = PathPrefs.createPersistentPreference("predAntnIdColumn", "Object ID");
+	final private StringProperty predAntnClassColumnProp = PathPrefs.createPersistentPreference("predAntnClassColumn", "subtype");
+	final private StringProperty predAntnClassPrefixProp = PathPrefs.createPersistentPreference("predAntnClassPrefix", "prediction:subtype:");
+	final private StringProperty predAntnMeasPrefixProp = PathPrefs.createPersistentPreference("predAntnMeasPrefix", "prediction:gene_expression:");
+
+	private ParameterList params;
+
+	private String lastResults = null;
+
+	/**
+	 * Constructor.
+	 */
+	public PredictionAnnotation() {
+		params = new ParameterList()
+			.addTitleParameter("Predicted Results Loader")
+			.addStringParameter("predFile", "Prediction file", predAntnFileProp.get(), "Prediction table (.csv, .csv.gz or .npz)")
+			.addStringParameter("idColumn", "Object ID column", predAntnIdColumnProp.get(), "Name of the CSV column holding the object ids (blank: first column)")
+			.addStringParameter("classColumn", "Class column", predAntnClassColumnProp.get(), "Name of the column or array holding the classes (blank: no classes), e.g. subtype or clusterId")
+			.addStringParameter("classPrefix", "Class prefix", predAntnClassPrefixProp.get(), "Prefix of the class names, e.g. prediction:subtype: or detection_cell_type-")
+			.addBooleanParameter("inclValues", "Include values? (default: true)", true, "Import the other columns (or the expression array) as measurements? (default: true)")
+			.addStringParameter("measPrefix", "Measurement prefix", predAntnMeasPrefixProp.get(), "Prefix of the measurement names")
+			;
+	}
+
+	class AnnotationLoader implements ObjectDetector<BufferedImage> {
+
+		@Override
+		public Collection<PathObject> runDetection(final ImageData<BufferedImage> imageData, final ParameterList params, final ROI pathROI) throws IOException {
+			predAntnFileProp.set(params.getStringParameterValue("predFile"));
+			predAntnIdColumnProp.set(params.getStringParameterValue("idColumn"));
+			predAntnClassColumnProp.set(params.getStringParameterValue("classColumn"));
+			predAntnClassPrefixProp.set(params.getStringParameterValue("classPrefix"));
+			predAntnMeasPrefixProp.set(params.getStringParameterValue("measPrefix"));
+
+			final PathObjectHierarchy hierarchy = imageData.getHierarchy();
+
+			try {
+				if(params.getStringParameterValue("predFile").isBlank()) throw new Exception("predFile is blank");
+
+				final File predFile = new File(params.getStringParameterValue("predFile"));
+				if(!predFile.exists()) throw new Exception(predFile+" does not exist");
+
+				final PredictionImporter importer = new PredictionImporter(hierarchy.getDetectionObjects())
+						.classPrefix(params.getStringParameterValue("classPrefix"))
+						.measurementPrefix(params.getBooleanParameterValue("inclValues")? params.getStringParameterValue("measPrefix"): null);
+
+				importer.read(predFile, params.getStringParameterValue("idColumn"), params.getStringParameterValue("classColumn"));
+
+				if(importer.getMatchedCount() == 0) throw new Exception("No object ids of "+predFile.getName()+" match the detections");
+
+				logger.info("Loaded {} predictions from {} ({} unmatched)", importer.getMatchedCount(), predFile, importer.getUnmatchedCount());
+				lastResults = "Loaded " + importer.getMatchedCount() + " predictions, " + importer.getUnmatchedCount() + " unmatched";
+			}
+			catch(Exception e) {
+				Dialogs.showErrorMessage("Error", e.getMessage());
+
+				lastResults =  "Something went wrong: "+e.getMessage();
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			if (Thread.currentThread().isInterrupted()) {
+				Dialogs.showErrorMessage("Warning", "Interrupted!");
+
+				lastResults =  "Interrupted!";
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+		}
+
+
+		@Override
+		public String getLastResultsDescription() {
+			return lastResults;
+		}
+
+
+	}
+
+	@Override
+	public ParameterList getDefaultParameterList(final ImageData<BufferedImage> imageData) {
+		return params;
+	}
+
+	@Override
+	public String getName() {
+		return "Import Predicted Results";
+	}
+
+	@Override
+	public String getLastResultsDescription() {
+		return lastResults;
+	}
+
+
+	@Override
+	public String getDescription() {
+		return "Set the predicted classes and gene expression of the detections from a prediction table";
+	}
+
+
+	@Override
+	protected void addRunnableTasks(ImageData<BufferedImage> imageData, PathObject parentObject, List<Runnable> tasks) {
+		tasks.add(DetectionPluginTools.createRunnableTask(new AnnotationLoader(), getParameterList(imageData), imageData, parentObject));
+	}
+
+
+	@Override
+	protected Collection<? extends PathObject> getParentObjects(final PluginRunner<BufferedImage> runner) {
+		PathObjectHierarchy hierarchy = getHierarchy(runner);
+		if (hierarchy.getTMAGrid() == null)
+			return Collections.singleton(hierarchy.getRootObject());
+
+		return hierarchy.getSelectionModel().getSelectedObjects().stream().filter(p -> p.isTMACore()).collect(Collectors.toList());
+	}
+
+
+	@Override
+	public Collection<Class<? extends PathObject>> getSupportedParentObjectClasses() {
+		return Arrays.asList(
+				PathAnnotationObject.class,
+				TMACoreObject.class
+				);
+	}
+
+}
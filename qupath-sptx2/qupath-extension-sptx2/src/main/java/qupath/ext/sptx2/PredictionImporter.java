@@ -0,0 +1,483 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+
+/**
+ * Bulk importer of per-object prediction tables, such as the predicted subtypes and gene expression written by
+ * {@code ganstr/predict.py}.
+ * <p>
+ * Rows are matched to objects by their UUID ({@link PathObject#getID()}) through an index built once from the objects,
+ * and the class and values of every row are applied directly by the worker that parsed it. Two formats are read:
+ * <ul>
+ * <li>CSV (optionally gzipped) with a header, e.g. {@code Object ID,subtype,<gene>,...}, parsed in parallel chunks
+ * by a {@link ChunkedTextParser};</li>
+ * <li>NumPy {@code .npz} archives holding an {@code ids} array of UUID strings, an optional class array, and an
+ * {@code expression} matrix (one row per id) with its column names in {@code genes}. The matrix is read in blocks of
+ * rows, each applied in parallel.</li>
+ * </ul>
+ * No hierarchy event is fired here; callers notify the hierarchy once, when all tables are applied.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class PredictionImporter {
+
+	final private static Logger logger = LoggerFactory.getLogger(PredictionImporter.class);
+
+	/**
+	 * Name of the array of object ids in a .npz archive
+	 */
+	final public static String NPZ_IDS = "ids";
+
+	/**
+	 * Name of the array of value names in a .npz archive
+	 */
+	final public static String NPZ_NAMES = "genes";
+
+	/**
+	 * Name of the value matrix in a .npz archive
+	 */
+	final public static String NPZ_VALUES = "expression";
+
+	final private static int BLOCK_ROWS = 4096;
+
+	final private Map<UUID, PathObject> index;
+	final private Map<String, PathClass> pathClasses = new ConcurrentHashMap<>();
+
+	private String classPrefix = "";
+	private String measurementPrefix = null;
+
+	final private LongAdder nMatched = new LongAdder();
+	final private LongAdder nUnmatched = new LongAdder();
+
+	/**
+	 * Create an importer for a set of objects, typically all detections of a hierarchy.
+	 * @param pathObjects
+	 */
+	public PredictionImporter(final Collection<? extends PathObject> pathObjects) {
+		index = new HashMap<>((int)(pathObjects.size() / 0.75) + 1);
+		for (PathObject p : pathObjects)
+			index.put(p.getID(), p);
+	}
+
+	/**
+	 * Prefix of the class names, prepended to the value of the class column (default: none).
+	 * @param classPrefix
+	 * @return this importer
+	 */
+	public PredictionImporter classPrefix(final String classPrefix) {
+		this.classPrefix = classPrefix == null ? "" : classPrefix;
+		return this;
+	}
+
+	/**
+	 * Prefix of the measurement names, prepended to the value column names. If null (default), values are not imported.
+	 * @param measurementPrefix
+	 * @return this importer
+	 */
+	public PredictionImporter measurementPrefix(final String measurementPrefix) {
+		this.measurementPrefix = measurementPrefix;
+		return this;
+	}
+
+	/**
+	 * @return number of rows applied to an object so far
+	 */
+	public long getMatchedCount() {
+		return nMatched.sum();
+	}
+
+	/**
+	 * @return number of rows whose id matched no object so far
+	 */
+	public long getUnmatchedCount() {
+		return nUnmatched.sum();
+	}
+
+	/**
+	 * Read a prediction table, as a .npz archive or as CSV depending on the file name.
+	 * @param file
+	 * @param idColumn name of the id column of a CSV; blank for the first column
+	 * @param classColumn name of the class column or array; blank for none
+	 * @throws Exception
+	 */
+	public void read(final File file, final String idColumn, final String classColumn) throws Exception {
+		if (file.getName().toLowerCase().endsWith(".npz"))
+			readNpz(file, classColumn);
+		else
+			readCsv(file, idColumn, classColumn);
+	}
+
+	/**
+	 * Read a CSV prediction table. Every column other than the id and class columns holds values.
+	 * @param file
+	 * @param idColumn name of the id column; blank for the first column
+	 * @param classColumn name of the class column; blank for none
+	 * @throws Exception
+	 */
+	public void readCsv(final File file, final String idColumn, final String classColumn) throws Exception {
+		final String header = ChunkedTextParser.readFirstLine(file);
+		if (header == null)
+			throw new Exception(file.getName() + " is empty");
+
+		final List<String> columns = Arrays.stream(header.trim().split(",")).map(c -> c.replace("\"", "").trim()).collect(Collectors.toList());
+		final int colId = idColumn == null || idColumn.isBlank() ? 0 : columnIndex(columns, idColumn, file);
+		final int colClass = classColumn == null || classColumn.isBlank() ? -1 : columnIndex(columns, classColumn, file);
+
+		final int[] valueColumns = measurementPrefix == null ? new int[0] :
+			IntStream.range(0, columns.size()).filter(c -> c != colId && c != colClass).toArray();
+		final String[] names = Arrays.stream(valueColumns).mapToObj(c -> measurementPrefix + columns.get(c)).toArray(String[]::new);
+		final int nColumns = valueColumns.length > 0 ? columns.size() : Math.max(colId, colClass) + 1;
+
+		final ChunkedTextParser parser = new ChunkedTextParser(file).skipHeader(true);
+		final ByteFields[] fields = new ByteFields[parser.getWorkerCount()];
+		for (int w = 0; w < fields.length; w++)
+			fields[w] = new ByteFields(',', columns.size());
+
+		parser.parse((buf, from, to, worker) -> {
+			final ByteFields f = fields[worker];
+			long matched = 0, unmatched = 0;
+
+			int p = from;
+			while (p < to) {
+				final int e = ByteFields.lineEnd(buf, p, to);
+				if (e > p && f.split(buf, p, e) >= nColumns) {
+					final PathObject pathObject = index.get(parseUUID(buf, f.start(colId), f.end(colId)));
+					if (pathObject == null) {
+						unmatched++;
+					} else {
+						if (colClass >= 0)
+							pathObject.setPathClass(getPathClass(f.getString(colClass)));
+						if (names.length > 0) {
+							final MeasurementList measList = pathObject.getMeasurementList();
+							for (int k = 0; k < names.length; k++)
+								measList.put(names[k], f.getDouble(valueColumns[k]));
+							measList.close();
+						}
+						matched++;
+					}
+				}
+				p = e + 1;
+			}
+			nMatched.add(matched);
+			nUnmatched.add(unmatched);
+		});
+
+		logger.info("Read {} from {}: {} rows matched, {} unmatched", names.length > 0 ? names.length + " values" : "classes", file.getName(), getMatchedCount(), getUnmatchedCount());
+	}
+
+	/**
+	 * Read a .npz prediction archive, as written by {@code np.savez}.
+	 * @param file
+	 * @param classArray name of the class array; blank for none
+	 * @throws Exception
+	 */
+	public void readNpz(final File file, final String classArray) throws Exception {
+		try (ZipFile zip = new ZipFile(file)) {
+			/*
+			 * Resolve the ids first, the other arrays are then applied by row index
+			 */
+
+			final String[] ids;
+			try (NpyReader reader = new NpyReader(zip, NPZ_IDS)) {
+				ids = reader.readStrings(reader.getRows());
+			}
+			final int nRows = ids.length;
+			final PathObject[] pathObjects = new PathObject[nRows];
+			IntStream.range(0, nRows).parallel().forEach(i -> pathObjects[i] = index.get(parseUUID(ids[i])));
+
+			final long matched = Arrays.stream(pathObjects).filter(p -> p != null).count();
+			nMatched.add(matched);
+			nUnmatched.add(nRows - matched);
+
+			if (classArray != null && !classArray.isBlank()) {
+				try (NpyReader reader = new NpyReader(zip, classArray)) {
+					reader.checkRows(nRows);
+					final String[] values = reader.readStrings(nRows);
+					IntStream.range(0, nRows).parallel().forEach(i -> {
+						if (pathObjects[i] != null)
+							pathObjects[i].setPathClass(getPathClass(values[i]));
+					});
+				}
+			}
+
+			if (measurementPrefix != null && zip.getEntry(NPZ_VALUES + ".npy") != null) {
+				final String[] names;
+				try (NpyReader reader = new NpyReader(zip, NPZ_NAMES)) {
+					names = Arrays.stream(reader.readStrings(reader.getRows())).map(n -> measurementPrefix + n).toArray(String[]::new);
+				}
+				try (NpyReader reader = new NpyReader(zip, NPZ_VALUES)) {
+					reader.checkRows(nRows);
+					if (reader.getColumns() != names.length)
+						throw new Exception(NPZ_VALUES + " has " + reader.getColumns() + " columns, but there are " + names.length + " " + NPZ_NAMES);
+
+					final int nCols = names.length;
+					for (int r0 = 0; r0 < nRows; r0 += BLOCK_ROWS) {
+						final int first = r0;
+						final ByteBuffer block = reader.readRows(Math.min(BLOCK_ROWS, nRows - r0));
+						IntStream.range(0, block.capacity() / reader.getRowBytes()).parallel().forEach(r -> {
+							final PathObject pathObject = pathObjects[first + r];
+							if (pathObject == null)
+								return;
+							final MeasurementList measList = pathObject.getMeasurementList();
+							for (int k = 0; k < nCols; k++)
+								measList.put(names[k], reader.getDouble(block, r * nCols + k));
+							measList.close();
+						});
+					}
+				}
+			}
+
+			logger.info("Read {} rows from {}: {} matched", nRows, file.getName(), matched);
+		}
+	}
+
+	private PathClass getPathClass(final String value) {
+		return pathClasses.computeIfAbsent(value, v -> PathClass.fromString(classPrefix + v));
+	}
+
+	private static int columnIndex(final List<String> columns, final String name, final File file) throws Exception {
+		final int ind = columns.indexOf(name);
+		if (ind < 0)
+			throw new Exception("Column " + name + " not found in " + file.getName());
+		return ind;
+	}
+
+	/**
+	 * Parse a UUID in its standard 36 character form without creating a String.
+	 * @param buf
+	 * @param from
+	 * @param to
+	 * @return the UUID, or null if the bytes are not a UUID
+	 */
+	static UUID parseUUID(final byte[] buf, final int from, final int to) {
+		if (to - from != 36)
+			return null;
+		long msb = 0, lsb = 0;
+		int nDigits = 0;
+		for (int i = from; i < to; i++) {
+			final int offset = i - from;
+			if (offset == 8 || offset == 13 || offset == 18 || offset == 23) {
+				if (buf[i] != '-')
+					return null;
+				continue;
+			}
+			final int d = Character.digit(buf[i], 16);
+			if (d < 0)
+				return null;
+			if (nDigits++ < 16)
+				msb = (msb << 4) | d;
+			else
+				lsb = (lsb << 4) | d;
+		}
+		return new UUID(msb, lsb);
+	}
+
+	private static UUID parseUUID(final String id) {
+		final byte[] bytes = id.trim().getBytes(StandardCharsets.US_ASCII);
+		return parseUUID(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Sequential reader of one C-ordered .npy array of an archive.
+	 */
+	private static class NpyReader implements AutoCloseable {
+
+		final private static Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([^']*)'");
+		final private static Pattern FORTRAN = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+		final private static Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+		final private String name;
+		final private DataInputStream in;
+		final private ByteOrder order;
+		final private char kind;
+		final private int itemSize;
+		final private int rows;
+		final private int columns;
+
+		NpyReader(final ZipFile zip, final String name) throws IOException {
+			this.name = name;
+			final ZipEntry entry = zip.getEntry(name + ".npy");
+			if (entry == null)
+				throw new IOException("Array " + name + " not found in " + zip.getName());
+			final InputStream is = zip.getInputStream(entry);
+			in = new DataInputStream(is);
+
+			final byte[] magic = new byte[8];
+			in.readFully(magic);
+			if ((magic[0] & 0xff) != 0x93 || magic[1] != 'N' || magic[2] != 'U' || magic[3] != 'M' || magic[4] != 'P' || magic[5] != 'Y')
+				throw new IOException(name + " is not a .npy array");
+			final int headerLength;
+			if (magic[6] == 1) {
+				headerLength = in.readUnsignedByte() | (in.readUnsignedByte() << 8);
+			} else {
+				final byte[] len = new byte[4];
+				in.readFully(len);
+				headerLength = ByteBuffer.wrap(len).order(ByteOrder.LITTLE_ENDIAN).getInt();
+			}
+			final byte[] headerBytes = new byte[headerLength];
+			in.readFully(headerBytes);
+			final String header = new String(headerBytes, StandardCharsets.ISO_8859_1);
+
+			final Matcher descr = DESCR.matcher(header);
+			final Matcher fortran = FORTRAN.matcher(header);
+			final Matcher shape = SHAPE.matcher(header);
+			if (!descr.find() || !shape.find())
+				throw new IOException("Unreadable header of " + name + ": " + header.trim());
+			if (fortran.find() && fortran.group(1).equals("True"))
+				throw new IOException(name + " is in Fortran order, only C order is supported");
+
+			final String dtype = descr.group(1);
+			order = dtype.charAt(0) == '>' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+			kind = dtype.charAt(1);
+			final int size = Integer.parseInt(dtype.substring(2));
+			itemSize = kind == 'U' ? size * 4 : size;
+			if ("fiuSU".indexOf(kind) < 0 || (kind == 'f' && size != 4 && size != 8))
+				throw new IOException("Unsupported type " + dtype + " of " + name);
+
+			final int[] dims = Arrays.stream(shape.group(1).split(",")).map(String::trim).filter(s -> !s.isEmpty()).mapToInt(Integer::parseInt).toArray();
+			rows = dims.length == 0 ? 1 : dims[0];
+			int n = 1;
+			for (int d = 1; d < dims.length; d++)
+				n *= dims[d];
+			columns = n;
+		}
+
+		int getRows() {
+			return rows;
+		}
+
+		int getColumns() {
+			return columns;
+		}
+
+		int getRowBytes() {
+			return columns * itemSize;
+		}
+
+		void checkRows(final int nRows) throws IOException {
+			if (rows != nRows)
+				throw new IOException(name + " has " + rows + " rows, but there are " + nRows + " ids");
+		}
+
+		/**
+		 * Read the next rows into a buffer of exactly the rows' size.
+		 */
+		ByteBuffer readRows(final int nRows) throws IOException {
+			final byte[] bytes = new byte[nRows * getRowBytes()];
+			in.readFully(bytes);
+			return ByteBuffer.wrap(bytes).order(order);
+		}
+
+		/**
+		 * Get a numeric element by its index in a buffer; absolute reads, so safe to call from several threads.
+		 */
+		double getDouble(final ByteBuffer buf, final int i) {
+			final int p = i * itemSize;
+			switch (kind) {
+			case 'f':
+				return itemSize == 4 ? buf.getFloat(p) : buf.getDouble(p);
+			case 'i':
+				return getLong(buf, p);
+			case 'u':
+				return itemSize == 8 ? getLong(buf, p) : getLong(buf, p) & ((1L << (itemSize * 8)) - 1);
+			default:
+				throw new IllegalArgumentException(name + " is not numeric");
+			}
+		}
+
+		private long getLong(final ByteBuffer buf, final int p) {
+			switch (itemSize) {
+			case 1:
+				return buf.get(p);
+			case 2:
+				return buf.getShort(p);
+			case 4:
+				return buf.getInt(p);
+			default:
+				return buf.getLong(p);
+			}
+		}
+
+		/**
+		 * Read the next elements as strings; numbers are formatted as integers when they are whole.
+		 */
+		String[] readStrings(final int n) throws IOException {
+			final ByteBuffer buf = readRows(n);
+			final int nItems = n * columns;
+			final String[] values = new String[nItems];
+			if (kind == 'S' || kind == 'U') {
+				final Charset charset = kind == 'S' ? StandardCharsets.UTF_8 : (order == ByteOrder.BIG_ENDIAN ? Charset.forName("UTF-32BE") : Charset.forName("UTF-32LE"));
+				final byte[] bytes = buf.array();
+				IntStream.range(0, nItems).parallel().forEach(i -> {
+					// Strings are padded with zeros to the item size
+					final int from = i * itemSize;
+					int to = from + itemSize;
+					while (to > from && bytes[to-1] == 0)
+						to--;
+					if (kind == 'U')
+						to = from + ((to - from + 3) / 4) * 4;
+					values[i] = new String(bytes, from, to - from, charset);
+				});
+			} else {
+				IntStream.range(0, nItems).parallel().forEach(i -> {
+					final double v = getDouble(buf, i);
+					values[i] = v == Math.rint(v) ? Long.toString((long)v) : Double.toString(v);
+				});
+			}
+			return values;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+}
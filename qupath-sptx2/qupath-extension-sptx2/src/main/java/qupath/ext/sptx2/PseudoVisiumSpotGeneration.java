@@ -48,6 +48,7 @@ import java.util.zip.GZIPInputStream;
 import javax.imageio.ImageIO;
 import javax.swing.JOptionPane;
 
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -113,7 +114,7 @@ public class PseudoVisiumSpotGeneration extends AbstractDetectionPlugin<Buffered
 			.addTitleParameter("10x Pseudo Visium Spot Generator")
 			.addDoubleParameter("spotDiameter", "Spot Size", 55, GeneralTools.micrometerSymbol(), "Spot Diameter")			
 			.addDoubleParameter("minSpotDist", "Minimal Spot Distance", 100, GeneralTools.micrometerSymbol(), "Minimal Spot Distance")			
-			// .addBooleanParameter("consolToAnnot", "Consolidate transcript data to Visium-style spots? (default: false)", false, "Consolidate Transcript Data to Annotations? (default: false)")
+			.addBooleanParameter("consolToAnnot", "Consolidate transcript data to Visium-style spots? (default: false)", false, "Consolidate Transcript Data to Annotations? (default: false)")
 			.addBooleanParameter("rectGridArrangement", "Rectangular grid arrangement? (default: false)", false, "Hexagonal arrangement? (default: true)")		
 			.addBooleanParameter("rectShapeSpot", "Rectangular shape spot? (default: false)", false, "Round shape spot? (default: true)")	
 			.addChoiceParameter("vendor", "Vendor", pseVisSptVendorProp.get(), vendorlList, "Choose the vendor that should be used for object classification")
@@ -150,109 +151,99 @@ public class PseudoVisiumSpotGeneration extends AbstractDetectionPlugin<Buffered
 				
 				if(selectedAnnotationPathObjectList.isEmpty()) throw new Exception("Missed selected annotations");
 				
-				final int maskWidth = (int)Math.round(imageData.getServer().getWidth());
-				final int maskHeight = (int)Math.round(imageData.getServer().getHeight());
-				
-				final BufferedImage pathObjectImageMask = new BufferedImage(maskWidth, maskHeight, BufferedImage.TYPE_BYTE_GRAY);
-				final List<PathObject> pathObjectList = new ArrayList<PathObject>();						
-				
-				final Graphics2D pathObjectG2D = pathObjectImageMask.createGraphics();				
-				pathObjectG2D.setBackground(Color.BLACK);
-				pathObjectG2D.clearRect(0, 0, maskWidth, maskHeight);
+				final PathObjectPointLocator annotationLocator = new PathObjectPointLocator(selectedAnnotationPathObjectList);
+
+				final boolean rectShapeSpot = params.getBooleanParameterValue("rectShapeSpot");
+				final boolean rectGridArrangement = params.getBooleanParameterValue("rectGridArrangement");
+				final SpotGrid spotGrid = new SpotGrid(imageWidth, imageHeight, spotDiameterPx, minSpotDistPx, rectShapeSpot, rectGridArrangement);
 				
-				pathObjectG2D.setClip(0, 0, maskWidth, maskHeight);
+				/*
+				 * Test the lattice tile by tile in parallel: tiles away from the annotations are skipped, tiles inside 
+				 * one annotation are accepted whole, and only tiles on a boundary test their spots one by one
+				 */
 				
+				final boolean[] spotAccepted = new boolean[spotGrid.size()];
+				final int nTileRows = (spotGrid.getRowCount() + SpotGrid.TILE_SIZE - 1) / SpotGrid.TILE_SIZE;
+				final int nTileCols = (spotGrid.getMaxColumnCount() + SpotGrid.TILE_SIZE - 1) / SpotGrid.TILE_SIZE;
 				
-				for(PathObject p: selectedAnnotationPathObjectList) {
-					
-					pathObjectList.add(p);
-				    
-			
-			    
-				    final ROI roi = p.getROI();
-					final Shape shape = roi.getShape();
-					
-					pathObjectG2D.setColor(Color.WHITE);
-					pathObjectG2D.fill(shape);
-					
-			
+				IntStream.range(0, nTileRows * nTileCols).parallel().forEach(t -> {
+					final int row0 = (t / nTileCols) * SpotGrid.TILE_SIZE;
+					final int col0 = (t % nTileCols) * SpotGrid.TILE_SIZE;
+					final int row1 = Math.min(spotGrid.getRowCount(), row0 + SpotGrid.TILE_SIZE);
 					
-				}	
-				
-				pathObjectG2D.dispose();	
-
-				final int halfSpotDiameterPx = (int)Math.ceil(spotDiameterPx/2.0);
-				final int y_step = params.getBooleanParameterValue("rectShapeSpot") || params.getBooleanParameterValue("rectGridArrangement")? (int)minSpotDistPx: (int)Math.round(0.5*Math.sqrt(3)*minSpotDistPx);
-				
-				int row_count = 0;
-				int col_count = 0;
-				boolean even_row_flag = false;
-				
-				for(int y = halfSpotDiameterPx; y < imageHeight-halfSpotDiameterPx; y += y_step) {
-					int even_row_shift = even_row_flag && !params.getBooleanParameterValue("rectGridArrangement")? halfSpotDiameterPx: 0;
+					final Envelope env = new Envelope();
+					for(int r = row0; r < row1; r ++) {
+						final int col1 = Math.min(spotGrid.getColumnCount(r), col0 + SpotGrid.TILE_SIZE);
+						if(col0 >= col1) continue;
+						env.expandToInclude(spotGrid.getX(r, col0), spotGrid.getY(r));
+						env.expandToInclude(spotGrid.getX(r, col1 - 1), spotGrid.getY(r));
+					}
+					if(env.isNull() || annotationLocator.query(env).isEmpty()) return;
 					
-					for(int x = halfSpotDiameterPx+even_row_shift; x < imageWidth-halfSpotDiameterPx; x += minSpotDistPx) {
-						if(pathObjectImageMask.getRGB(x, y) == Color.WHITE.getRGB()) {
-							final ROI pathRoi = !params.getBooleanParameterValue("rectShapeSpot")? 
-								ROIs.createEllipseROI(x, y, spotDiameterPx, spotDiameterPx, null):
-								ROIs.createRectangleROI(x-halfSpotDiameterPx, y-halfSpotDiameterPx, spotDiameterPx, spotDiameterPx, null);
-								
-							final PathClass pathCls = PathClassFactory.getPathClass(params.getStringParameterValue("prefix")+"-"+Integer.toString(row_count)+"-"+Integer.toString(col_count));
-							final PathAnnotationObject pathObj = (PathAnnotationObject) PathObjects.createAnnotationObject(pathRoi, pathCls);
-							resultPathObjectList.add(pathObj); 
+					final boolean covered = annotationLocator.locateEnvelope(env) >= 0;
+					for(int r = row0; r < row1; r ++) {
+						final int col1 = Math.min(spotGrid.getColumnCount(r), col0 + SpotGrid.TILE_SIZE);
+						for(int c = col0; c < col1; c ++) {
+							if(covered || annotationLocator.locate(spotGrid.getX(r, c), spotGrid.getY(r)) >= 0)
+								spotAccepted[spotGrid.getIndex(r, c)] = true;
 						}
-
-						col_count ++;
 					}
-
-					row_count ++;
-					even_row_flag = !even_row_flag;
-				}
+				});
 				
-//				if(params.getBooleanParameterValue("consolToAnnot")) {
-//					// for(var d: hierarchy.getDetectionObjects()) {
-//					hierarchy.getDetectionObjects().parallelStream().forEach(d -> {
-//						if(d.getPathClass() != null && hierarchy.getRootObject() != d.getParent()) {
-//							final MeasurementList parentPathObjMeasList = d.getParent().getMeasurementList();
-//							final MeasurementList pathObjMeasList = d.getMeasurementList();
-//							
-//							final List<String> featNameList = pathObjMeasList.getMeasurementNames();
-//							featNameList.parallelStream().forEach(n -> {
-//							// for(var n: featNameList) {
-//								final String prefix = params.getChoiceParameterValue("vendor")+":cell_transcript:";
-//								if(n.startsWith(prefix)) {
-//									final String gene = n.substring(prefix.length());
-//									final String parentMeasName = params.getChoiceParameterValue("vendor")+":spot_transcript:"+gene;
-//									final String measName = params.getChoiceParameterValue("vendor")+":cell_transcript:"+gene;
-//									
-//									final double oldVal = 
-//											parentPathObjMeasList.containsKey(parentMeasName)? 
-//				        					parentPathObjMeasList.get(parentMeasName): 
-//				        					0.0;
-//									
-//									final double newVal = pathObjMeasList.get(measName);
-//									
-//									synchronized(parentPathObjMeasList) {
-//										parentPathObjMeasList.put(parentMeasName, newVal+oldVal);  
-//									}
-//								}
-//							// }
-//							});
-//							
-//							synchronized(parentPathObjMeasList) {
-//								parentPathObjMeasList.close();
-//							}
-//							synchronized(pathObjMeasList) {
-//								pathObjMeasList.close();
-//							}
-//						}
-//					// }
-//					});
-//				}
+				final int[] spotIndices = IntStream.range(0, spotGrid.size()).filter(i -> spotAccepted[i]).toArray();
+				final int[] latticeToSpot = new int[spotGrid.size()];
+				Arrays.fill(latticeToSpot, -1);
+				for(int s = 0; s < spotIndices.length; s ++) latticeToSpot[spotIndices[s]] = s;
 				
+				final String prefix = params.getStringParameterValue("prefix");
+				final PathObject[] spotPathObjects = new PathObject[spotIndices.length];
+				IntStream.range(0, spotIndices.length).parallel().forEach(s -> {
+					final int i = spotIndices[s];
+					final int r = spotGrid.getRow(i);
+					final double x = spotGrid.getX(r, i - spotGrid.getIndex(r, 0));
+					final double y = spotGrid.getY(r);
+					
+					final ROI pathRoi = !rectShapeSpot? 
+						ROIs.createEllipseROI(x-0.5*spotDiameterPx, y-0.5*spotDiameterPx, spotDiameterPx, spotDiameterPx, null):
+						ROIs.createRectangleROI(x-0.5*spotDiameterPx, y-0.5*spotDiameterPx, spotDiameterPx, spotDiameterPx, null);
+						
+					final PathClass pathCls = PathClassFactory.getPathClass(prefix+"-"+Integer.toString(r)+"-"+Integer.toString(i));
+					spotPathObjects[s] = PathObjects.createAnnotationObject(pathRoi, pathCls);
+				});
+				final List<PathObject> spotPathObjectList = Arrays.asList(spotPathObjects);
 				
+				/*
+				 * Consolidate cells into the spots containing their centroids, found by lattice arithmetic
+				 */
 				
+				if(params.getBooleanParameterValue("consolToAnnot")) {
+					final String vendor = (String)params.getChoiceParameterValue("vendor");
+					final List<PathObject> cellPathObjectList = new ArrayList<>(hierarchy.getDetectionObjects());
+					
+					final int[] cellToSpot = new int[cellPathObjectList.size()];
+					IntStream.range(0, cellToSpot.length).parallel().forEach(i -> {
+						final ROI roi = cellPathObjectList.get(i).getROI();
+						final int l = spotGrid.locate(roi.getCentroidX(), roi.getCentroidY());
+						cellToSpot[i] = l < 0? -1: latticeToSpot[l];
+					});
+					
+					final int[] spotCellCounts = new int[spotIndices.length];
+					for(int s: cellToSpot) if(s >= 0) spotCellCounts[s] ++;
+					
+					final CellExpressionAggregator aggregator = new CellExpressionAggregator(GeneExpressionStore.getStore(imageData), vendor+":cell_transcript:");
+					aggregator.aggregate(cellPathObjectList, cellToSpot, spotIndices.length);
+					aggregator.getCounts().writeMeasurements(spotPathObjectList, aggregator.getDictionary(), vendor+":spot_transcript:", true);
+					
+					IntStream.range(0, spotIndices.length).parallel().forEach(s -> {
+						final MeasurementList spotMeasList = spotPathObjects[s].getMeasurementList();
+						spotMeasList.put(vendor+":spot_cell_count", spotCellCounts[s]);
+						spotMeasList.close();
+					});
+					
+					logger.info("Consolidated {} cells into {} spots", Arrays.stream(spotCellCounts).sum(), spotIndices.length);
+				}
 				
+				resultPathObjectList.addAll(spotPathObjectList);
 				resultPathObjectList.addAll(hierarchy.getRootObject().getChildObjects());
 				
 				hierarchy.getSelectionModel().setSelectedObject(null);
@@ -287,6 +278,106 @@ public class PseudoVisiumSpotGeneration extends AbstractDetectionPlugin<Buffered
 		
 	}
 
+	/**
+	 * Pseudo-spot lattice over the image, with spot centres in closed form so that spots can be generated 
+	 * tile by tile and a point can be mapped to its spot without any geometry.
+	 * Spots are indexed row by row.
+	 */
+	static class SpotGrid {
+		
+		final static int TILE_SIZE = 32;
+		
+		final private int half;
+		final private int xStep;
+		final private int yStep;
+		final private int oddRowShift;
+		final private double radius;
+		final private boolean rectShapeSpot;
+		final private int[] rowOffsets;
+		
+		SpotGrid(final int imageWidth, final int imageHeight, final double spotDiameterPx, final double minSpotDistPx, final boolean rectShapeSpot, final boolean rectGridArrangement) {
+			this.half = (int)Math.ceil(spotDiameterPx/2.0);
+			this.xStep = (int)minSpotDistPx;
+			this.yStep = rectShapeSpot || rectGridArrangement? (int)minSpotDistPx: (int)Math.round(0.5*Math.sqrt(3)*minSpotDistPx);
+			if(xStep <= 0 || yStep <= 0) throw new IllegalArgumentException("Minimal spot distance is below one pixel");
+			
+			this.oddRowShift = rectGridArrangement? 0: half;
+			this.radius = 0.5*spotDiameterPx;
+			this.rectShapeSpot = rectShapeSpot;
+			
+			final int nRows = imageHeight-2*half > 0? (imageHeight-2*half-1)/yStep+1: 0;
+			rowOffsets = new int[nRows+1];
+			for(int r = 0; r < nRows; r ++) {
+				final int x0 = half+shift(r);
+				final int nCols = imageWidth-half-1-x0 >= 0? (imageWidth-half-1-x0)/xStep+1: 0;
+				rowOffsets[r+1] = rowOffsets[r]+nCols;
+			}
+		}
+		
+		private int shift(final int row) {
+			return row % 2 == 1? oddRowShift: 0;
+		}
+		
+		int size() {
+			return rowOffsets[rowOffsets.length-1];
+		}
+		
+		int getRowCount() {
+			return rowOffsets.length-1;
+		}
+		
+		int getColumnCount(final int row) {
+			return rowOffsets[row+1]-rowOffsets[row];
+		}
+		
+		int getMaxColumnCount() {
+			int max = 0;
+			for(int r = 0; r < getRowCount(); r ++) max = Math.max(max, getColumnCount(r));
+			return max;
+		}
+		
+		int getIndex(final int row, final int col) {
+			return rowOffsets[row]+col;
+		}
+		
+		int getRow(final int index) {
+			final int r = Arrays.binarySearch(rowOffsets, index);
+			if(r >= 0) {
+				// Skip empty rows sharing the same offset
+				int row = r;
+				while(row+1 < rowOffsets.length-1 && rowOffsets[row+1] == index) row ++;
+				return row;
+			}
+			return -r-2;
+		}
+		
+		double getX(final int row, final int col) {
+			return half+shift(row)+(double)col*xStep;
+		}
+		
+		double getY(final int row) {
+			return half+(double)row*yStep;
+		}
+		
+		/**
+		 * @param x
+		 * @param y
+		 * @return index of the spot covering a point, or -1
+		 */
+		int locate(final double x, final double y) {
+			final int nearestRow = (int)Math.round((y-half)/yStep);
+			for(int r = Math.max(0, nearestRow-1); r <= Math.min(getRowCount()-1, nearestRow+1); r ++) {
+				final int c = (int)Math.round((x-half-shift(r))/xStep);
+				if(c < 0 || c >= getColumnCount(r)) continue;
+				final double dx = x-getX(r, c);
+				final double dy = y-getY(r);
+				final boolean inside = rectShapeSpot? Math.abs(dx) <= radius && Math.abs(dy) <= radius: dx*dx+dy*dy <= radius*radius;
+				if(inside) return getIndex(r, c);
+			}
+			return -1;
+		}
+	}
+	
 	@Override
 	public ParameterList getDefaultParameterList(final ImageData<BufferedImage> imageData) {
 		return params;
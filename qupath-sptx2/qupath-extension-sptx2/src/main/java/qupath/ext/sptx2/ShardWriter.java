@@ -0,0 +1,254 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Patch sink packing samples into size-bounded, uncompressed tar shards in the WebDataset layout.
+ * <p>
+ * Every sample is stored as two consecutive members sharing the object id as key: {@code <id>.<format>} holding
+ * the encoded patch and {@code <id>.json} holding its label (object id, group, class, centroid and optionally
+ * expression). Shards are written sequentially through a large buffer as {@code shard-NNNNNN.tar}, each with a
+ * {@code shard-NNNNNN.tsv} index giving the byte offset and size of both members, so that readers can either
+ * stream a shard or memory-map it and slice samples directly.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class ShardWriter implements PatchExporter.PatchSink {
+
+	final private static Logger logger = LoggerFactory.getLogger(ShardWriter.class);
+
+	final private static int BLOCK = 512;
+
+	final private static int BUFFER_SIZE = 4 * 1024 * 1024;
+
+	final private static String INDEX_HEADER = "key\tgroup\tclass\tcentroid_x\tcentroid_y\timage_offset\timage_size\tlabel_offset\tlabel_size";
+
+	final private File dir;
+	final private String format;
+	final private long maxShardBytes;
+	final private Function<PathObject, JsonObject> labeler;
+
+	private int nShards = 0;
+	private long nSamples = 0;
+	private OutputStream out = null;
+	private PrintWriter index = null;
+	private long position = 0;
+
+	/**
+	 * @param dir output directory, created if needed
+	 * @param format image file extension of the encoded patches, e.g. png
+	 * @param maxShardBytes size above which a new shard is started; a shard always holds at least one sample
+	 * @param labeler extra label fields of an object, e.g. {@link #expressionLabeler(String, GeneExpressionStore)}; may be null
+	 * @throws IOException
+	 */
+	public ShardWriter(final File dir, final String format, final long maxShardBytes, final Function<PathObject, JsonObject> labeler) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create " + dir);
+		this.dir = dir;
+		this.format = format;
+		this.maxShardBytes = maxShardBytes;
+		this.labeler = labeler;
+	}
+
+	@Override
+	public void write(final PathObject pathObject, final String group, final byte[] bytes) throws IOException {
+		final String key = pathObject.getID().toString();
+		final String className = pathObject.getPathClass() == null? "": pathObject.getPathClass().toString();
+		final ROI roi = pathObject.getROI();
+
+		final JsonObject label = labeler == null? new JsonObject(): labeler.apply(pathObject);
+		label.addProperty("id", key);
+		label.addProperty("group", group);
+		label.addProperty("class", className);
+		label.addProperty("x", roi.getCentroidX());
+		label.addProperty("y", roi.getCentroidY());
+		final byte[] json = label.toString().getBytes(StandardCharsets.UTF_8);
+
+		final long sampleBytes = 2 * BLOCK + padded(bytes.length) + padded(json.length);
+
+		synchronized (this) {
+			if (out != null && position + sampleBytes + 2 * BLOCK > maxShardBytes)
+				finishShard();
+			if (out == null)
+				startShard();
+
+			final long imageOffset = position + BLOCK;
+			writeMember(key + "." + format, bytes);
+			final long labelOffset = position + BLOCK;
+			writeMember(key + ".json", json);
+
+			index.printf(Locale.ROOT, "%s\t%s\t%s\t%.3f\t%.3f\t%d\t%d\t%d\t%d\n", key, group, className, roi.getCentroidX(), roi.getCentroidY(),
+					imageOffset, bytes.length, labelOffset, json.length);
+			nSamples++;
+		}
+	}
+
+	/**
+	 * @return number of shards started so far
+	 */
+	public synchronized int getShardCount() {
+		return nShards;
+	}
+
+	/**
+	 * @return number of samples written so far
+	 */
+	public synchronized long getSampleCount() {
+		return nSamples;
+	}
+
+	/**
+	 * Finish the current shard.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null)
+			finishShard();
+		logger.info("Wrote {} samples into {} shards in {}", nSamples, nShards, dir);
+	}
+
+	private void startShard() throws IOException {
+		final String name = String.format(Locale.ROOT, "shard-%06d", nShards++);
+		out = new BufferedOutputStream(new FileOutputStream(new File(dir, name + ".tar")), BUFFER_SIZE);
+		index = new PrintWriter(new File(dir, name + ".tsv"), "UTF-8");
+		index.println(INDEX_HEADER);
+		position = 0;
+	}
+
+	private void finishShard() throws IOException {
+		// End of archive: two empty blocks
+		out.write(new byte[2 * BLOCK]);
+		out.close();
+		out = null;
+		index.close();
+		if (index.checkError())
+			throw new IOException("Unable to write the index of shard " + (nShards - 1));
+		index = null;
+	}
+
+	private void writeMember(final String name, final byte[] data) throws IOException {
+		out.write(header(name, data.length));
+		out.write(data);
+		final int padding = padded(data.length) - data.length;
+		if (padding > 0)
+			out.write(new byte[padding]);
+		position += BLOCK + padded(data.length);
+	}
+
+	private static int padded(final int length) {
+		return (length + BLOCK - 1) / BLOCK * BLOCK;
+	}
+
+	/**
+	 * POSIX ustar header of a regular file.
+	 */
+	private static byte[] header(final String name, final long size) throws IOException {
+		final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		if (nameBytes.length > 100)
+			throw new IOException("Tar member name too long: " + name);
+
+		final byte[] h = new byte[BLOCK];
+		System.arraycopy(nameBytes, 0, h, 0, nameBytes.length);
+		octal(h, 100, 8, 0644);
+		octal(h, 108, 8, 0);
+		octal(h, 116, 8, 0);
+		octal(h, 124, 12, size);
+		octal(h, 136, 12, System.currentTimeMillis() / 1000);
+		h[156] = '0';
+		System.arraycopy("ustar".getBytes(StandardCharsets.US_ASCII), 0, h, 257, 5);
+		h[263] = '0';
+		h[264] = '0';
+
+		// Checksum is computed with its own field filled with spaces
+		Arrays.fill(h, 148, 156, (byte)' ');
+		long sum = 0;
+		for (byte b: h)
+			sum += b & 0xff;
+		octal(h, 148, 7, sum);
+		return h;
+	}
+
+	/**
+	 * Zero-padded octal number followed by a NUL, filling a field of the given length.
+	 */
+	private static void octal(final byte[] h, final int offset, final int length, final long value) {
+		final String s = Long.toOctalString(value);
+		final int nDigits = length - 1;
+		for (int i = 0; i < nDigits; i++) {
+			final int k = s.length() - nDigits + i;
+			h[offset + i] = (byte)(k < 0? '0': s.charAt(k));
+		}
+		h[offset + nDigits] = 0;
+	}
+
+	/**
+	 * Label with the non-zero expression values of an object, under an "expression" field mapping gene to value.
+	 * @param prefix measurement name prefix of the expression, e.g. "xenium:cell_transcript:"
+	 * @param store sparse store to read from, or null; if its prefix does not match, the measurement lists are read instead
+	 * @return
+	 */
+	public static Function<PathObject, JsonObject> expressionLabeler(final String prefix, final GeneExpressionStore store) {
+		final GeneExpressionStore cellStore = store != null && prefix.equals(store.getPrefix())? store: null;
+		final List<String> genes = cellStore == null? null: cellStore.getGenes();
+		return pathObject -> {
+			final JsonObject expression = new JsonObject();
+			if (cellStore != null) {
+				final int row = cellStore.getRow(pathObject);
+				if (row >= 0)
+					cellStore.forEachInRow(row, (g, v) -> expression.addProperty(genes.get(g), v));
+			} else {
+				final MeasurementList measurements = pathObject.getMeasurementList();
+				final List<String> names = measurements.getMeasurementNames();
+				for (int i = 0; i < names.size(); i++) {
+					final String name = names.get(i);
+					if (!name.startsWith(prefix))
+						continue;
+					final double v = measurements.getMeasurementValue(i);
+					if (v != 0 && !Double.isNaN(v))
+						expression.addProperty(name.substring(prefix.length()), v);
+				}
+			}
+			final JsonObject label = new JsonObject();
+			label.add("expression", expression);
+			return label;
+		};
+	}
+
+}
@@ -0,0 +1,652 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.projects.Project;
+
+/**
+ * Persistent binary cache for parsed vendor outputs, stored as sidecar files in the project directory.
+ * <p>
+ * Each sidecar holds named primitive arrays, 8-byte aligned and little-endian, so that a later load can
+ * memory-map the sections and skip decompression and text parsing entirely.
+ * A sidecar is keyed by the path, size, modification time and a sampled content hash of every source file,
+ * and is silently re-created when any of them changes.
+ * Only the first and last megabyte of each source are hashed: hashing multi-gigabyte files in full would
+ * cost about as much as parsing them.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class SidecarCache {
+
+	final private static Logger logger = LoggerFactory.getLogger(SidecarCache.class);
+
+	final private static long FILE_MAGIC = 0x5350545832534443L; // "SPTX2SDC"
+	final private static int FILE_VERSION = 1;
+
+	final private static String CACHE_DIR_NAME = "sptx2-cache";
+	// A MappedByteBuffer holds at most 2 GB, so larger sections are mapped and copied in chunks
+	final private static long MAP_CHUNK_BYTES = 1L << 30;
+	final private static int HASH_SAMPLE_BYTES = 1 << 20;
+
+	final private static byte TYPE_INT = 1;
+	final private static byte TYPE_LONG = 2;
+	final private static byte TYPE_FLOAT = 3;
+	final private static byte TYPE_DOUBLE = 4;
+	final private static byte TYPE_STRING = 5;
+
+	/**
+	 * Conversion between a parsed value and the sections of a sidecar.
+	 * @param <T>
+	 */
+	public static interface Codec<T> {
+
+		/**
+		 * Add the sections describing a value.
+		 * @param value
+		 * @param writer
+		 */
+		void write(T value, Writer writer);
+
+		/**
+		 * Restore a value from its sections.
+		 * @param entry
+		 * @return
+		 * @throws IOException if a section is missing or malformed
+		 */
+		T read(Entry entry) throws IOException;
+
+	}
+
+	final private File dir;
+
+	/**
+	 * Create a cache.
+	 * @param dir directory for sidecar files, or null to disable caching
+	 */
+	public SidecarCache(final File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Create a cache in the directory of the project currently open in QuPath.
+	 * @return the cache, disabled if no project is open
+	 */
+	public static SidecarCache forCurrentProject() {
+		final QuPathGUI qupath = QuPathGUI.getInstance();
+		final Project<?> project = qupath == null? null: qupath.getProject();
+		if (project == null || project.getPath() == null)
+			return new SidecarCache(null);
+		return new SidecarCache(project.getPath().getParent().resolve(CACHE_DIR_NAME).toFile());
+	}
+
+	/**
+	 * @return true if values are read from and written to disk, false if every load parses its sources
+	 */
+	public boolean isEnabled() {
+		return dir != null;
+	}
+
+	/**
+	 * Load a value from its sidecar if the sources are unchanged, otherwise parse the sources and write a new sidecar.
+	 * Failures to read or write the sidecar are logged and fall back to parsing.
+	 * @param name sidecar name, unique for the kind of value
+	 * @param sources files the value is parsed from
+	 * @param codec
+	 * @param parser
+	 * @return the cached or parsed value
+	 * @throws Exception if parsing fails
+	 */
+	public <T> T load(final String name, final List<File> sources, final Codec<T> codec, final Callable<T> parser) throws Exception {
+		if (dir == null)
+			return parser.call();
+
+		final String key = fingerprint(sources);
+		final File file = getFile(name, sources);
+		if (file.isFile()) {
+			try (Entry entry = Entry.open(file, key)) {
+				if (entry != null) {
+					final T value = codec.read(entry);
+					logger.info("Loaded {} from {}", name, file);
+					return value;
+				}
+			} catch (IOException e) {
+				logger.warn("Unable to read {}: {}", file, e.getLocalizedMessage());
+			}
+		}
+
+		final T value = parser.call();
+		try {
+			final Writer writer = new Writer();
+			codec.write(value, writer);
+			writer.write(file, key);
+			logger.info("Cached {} in {}", name, file);
+		} catch (IOException e) {
+			logger.warn("Unable to write {}: {}", file, e.getLocalizedMessage());
+		}
+		return value;
+	}
+
+	private File getFile(final String name, final List<File> sources) throws IOException {
+		final CRC32 crc = new CRC32();
+		for (File f : sources)
+			crc.update(f.getCanonicalPath().getBytes(StandardCharsets.UTF_8));
+		return new File(dir, name + "-" + Long.toHexString(crc.getValue()) + ".bin");
+	}
+
+	/**
+	 * Build the key identifying the current state of a list of source files.
+	 * @param sources
+	 * @return
+	 * @throws IOException if a source cannot be read
+	 */
+	public static String fingerprint(final List<File> sources) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		for (File f : sources) {
+			if (!f.isFile())
+				throw new IOException("Missing source file " + f);
+			sb.append(f.getCanonicalPath()).append('|')
+				.append(f.length()).append('|')
+				.append(f.lastModified()).append('|')
+				.append(Long.toHexString(sampleHash(f))).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static long sampleHash(final File file) throws IOException {
+		final CRC32C crc = new CRC32C();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			final long length = raf.length();
+			final byte[] buf = new byte[(int)Math.min(length, HASH_SAMPLE_BYTES)];
+			raf.readFully(buf);
+			crc.update(buf);
+			if (length > HASH_SAMPLE_BYTES) {
+				raf.seek(Math.max(HASH_SAMPLE_BYTES, length - HASH_SAMPLE_BYTES));
+				final int n = (int)(length - raf.getFilePointer());
+				raf.readFully(buf, 0, n);
+				crc.update(buf, 0, n);
+			}
+		}
+		return crc.getValue();
+	}
+
+	private static long align(final long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	/**
+	 * Collects named arrays and writes them as a sidecar.
+	 */
+	public static class Writer {
+
+		final private Map<String, Object> sections = new LinkedHashMap<>();
+
+		Writer() {}
+
+		/**
+		 * @param name
+		 * @param values
+		 * @return this writer
+		 */
+		public Writer putInts(final String name, final int[] values) {
+			sections.put(name, values);
+			return this;
+		}
+
+		/**
+		 * @param name
+		 * @param values
+		 * @return this writer
+		 */
+		public Writer putLongs(final String name, final long[] values) {
+			sections.put(name, values);
+			return this;
+		}
+
+		/**
+		 * @param name
+		 * @param values
+		 * @return this writer
+		 */
+		public Writer putFloats(final String name, final float[] values) {
+			sections.put(name, values);
+			return this;
+		}
+
+		/**
+		 * @param name
+		 * @param values
+		 * @return this writer
+		 */
+		public Writer putDoubles(final String name, final double[] values) {
+			sections.put(name, values);
+			return this;
+		}
+
+		/**
+		 * @param name
+		 * @param values
+		 * @return this writer
+		 */
+		public Writer putStrings(final String name, final String[] values) {
+			sections.put(name, encodeStrings(values));
+			return this;
+		}
+
+		private static byte[] encodeStrings(final String[] values) {
+			final byte[][] encoded = new byte[values.length][];
+			int total = 0;
+			for (int i = 0; i < values.length; i++) {
+				encoded[i] = values[i].getBytes(StandardCharsets.UTF_8);
+				total += encoded[i].length;
+			}
+			final ByteBuffer buf = ByteBuffer.allocate(4 * (values.length + 2) + total).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(values.length);
+			int offset = 0;
+			buf.putInt(offset);
+			for (byte[] e : encoded)
+				buf.putInt(offset += e.length);
+			for (byte[] e : encoded)
+				buf.put(e);
+			return buf.array();
+		}
+
+		private static byte type(final Object array) {
+			if (array instanceof int[])
+				return TYPE_INT;
+			if (array instanceof long[])
+				return TYPE_LONG;
+			if (array instanceof float[])
+				return TYPE_FLOAT;
+			if (array instanceof double[])
+				return TYPE_DOUBLE;
+			return TYPE_STRING;
+		}
+
+		private static long byteLength(final Object array) {
+			if (array instanceof int[])
+				return 4L * ((int[])array).length;
+			if (array instanceof long[])
+				return 8L * ((long[])array).length;
+			if (array instanceof float[])
+				return 4L * ((float[])array).length;
+			if (array instanceof double[])
+				return 8L * ((double[])array).length;
+			return ((byte[])array).length;
+		}
+
+		private byte[] header(final String key, final long[] offsets) throws IOException {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeLong(FILE_MAGIC);
+				out.writeInt(FILE_VERSION);
+				out.writeUTF(key);
+				out.writeInt(sections.size());
+				int i = 0;
+				for (Map.Entry<String, Object> e : sections.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeByte(type(e.getValue()));
+					out.writeLong(offsets[i++]);
+					out.writeLong(byteLength(e.getValue()));
+				}
+			}
+			return bytes.toByteArray();
+		}
+
+		/**
+		 * Write all sections to a temporary file, then move it into place.
+		 * @param file
+		 * @param key
+		 * @throws IOException
+		 */
+		void write(final File file, final String key) throws IOException {
+			// The header size does not depend on the offset values, so lay out the sections after a first pass
+			final long[] offsets = new long[sections.size()];
+			long offset = align(header(key, offsets).length);
+			int i = 0;
+			for (Object array : sections.values()) {
+				offsets[i++] = offset;
+				offset = align(offset + byteLength(array));
+			}
+			final byte[] header = header(key, offsets);
+
+			file.getParentFile().mkdirs();
+			final File tempFile = new File(file.getPath() + ".tmp");
+			try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				writeFully(channel, ByteBuffer.wrap(header), 0);
+				final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+				i = 0;
+				for (Object array : sections.values())
+					writeArray(channel, buf, array, offsets[i++]);
+			}
+			try {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		private static long writeFully(final FileChannel channel, final ByteBuffer buf, long position) throws IOException {
+			while (buf.hasRemaining())
+				position += channel.write(buf, position);
+			return position;
+		}
+
+		private static void writeArray(final FileChannel channel, final ByteBuffer buf, final Object array, long position) throws IOException {
+			if (array instanceof byte[]) {
+				writeFully(channel, ByteBuffer.wrap((byte[])array), position);
+				return;
+			}
+			final int width = array instanceof int[] || array instanceof float[]? 4: 8;
+			final int n = (int)(byteLength(array) / width);
+			int i = 0;
+			while (i < n) {
+				final int m = Math.min(n - i, buf.capacity() / width);
+				buf.clear();
+				if (array instanceof int[])
+					buf.asIntBuffer().put((int[])array, i, m);
+				else if (array instanceof long[])
+					buf.asLongBuffer().put((long[])array, i, m);
+				else if (array instanceof float[])
+					buf.asFloatBuffer().put((float[])array, i, m);
+				else
+					buf.asDoubleBuffer().put((double[])array, i, m);
+				buf.limit(m * width);
+				position = writeFully(channel, buf, position);
+				i += m;
+			}
+		}
+
+	}
+
+	/**
+	 * An open sidecar, whose sections are memory-mapped on request.
+	 */
+	public static class Entry implements Closeable {
+
+		private static class Section {
+
+			final private byte type;
+			final private long offset;
+			final private long length;
+
+			Section(final byte type, final long offset, final long length) {
+				this.type = type;
+				this.offset = offset;
+				this.length = length;
+			}
+
+		}
+
+		final private FileChannel channel;
+		final private Map<String, Section> sections;
+		private long chunkBytes = MAP_CHUNK_BYTES;
+
+		private Entry(final FileChannel channel, final Map<String, Section> sections) {
+			this.channel = channel;
+			this.sections = sections;
+		}
+
+		/**
+		 * Open a sidecar.
+		 * @param file
+		 * @param key the expected key
+		 * @return the entry, or null if the file was written for a different key or format version
+		 * @throws IOException if the file is not a sidecar or cannot be read
+		 */
+		static Entry open(final File file, final String key) throws IOException {
+			final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				final DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+				if (in.readLong() != FILE_MAGIC)
+					throw new IOException("Not a sidecar file");
+				if (in.readInt() != FILE_VERSION || !key.equals(in.readUTF())) {
+					channel.close();
+					return null;
+				}
+				final int nSections = in.readInt();
+				final Map<String, Section> sections = new HashMap<>();
+				for (int i = 0; i < nSections; i++) {
+					final String name = in.readUTF();
+					final byte type = in.readByte();
+					final long offset = in.readLong();
+					final long length = in.readLong();
+					if (offset + length > channel.size())
+						throw new IOException("Truncated sidecar file");
+					sections.put(name, new Section(type, offset, length));
+				}
+				return new Entry(channel, sections);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @param name
+		 * @return true if the sidecar holds a section with the given name
+		 */
+		public boolean contains(final String name) {
+			return sections.containsKey(name);
+		}
+
+		/**
+		 * Set the size of the chunks in which sections are copied to arrays, for tests.
+		 * @param chunkBytes a positive multiple of 8 bytes, at most 2 GB
+		 */
+		void setMapChunkBytes(final long chunkBytes) {
+			if (chunkBytes <= 0 || chunkBytes % 8 != 0 || chunkBytes > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Chunk size must be a positive multiple of 8 bytes, at most 2 GB");
+			this.chunkBytes = chunkBytes;
+		}
+
+		private Section getSection(final String name, final byte type) throws IOException {
+			final Section section = sections.get(name);
+			if (section == null)
+				throw new IOException("Missing sidecar section " + name);
+			if (section.type != type)
+				throw new IOException("Unexpected type for sidecar section " + name);
+			return section;
+		}
+
+		private MappedByteBuffer map(final Section section, final long offset, final long length) throws IOException {
+			final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, section.offset + offset, length);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			return buf;
+		}
+
+		private MappedByteBuffer map(final String name, final byte type) throws IOException {
+			final Section section = getSection(name, type);
+			if (section.length > Integer.MAX_VALUE)
+				throw new IOException("Sidecar section " + name + " is too large to map as a single buffer, read it as an array");
+			return map(section, 0, section.length);
+		}
+
+		private int arrayLength(final String name, final byte type, final int width) throws IOException {
+			final long n = getSection(name, type).length / width;
+			if (n > Integer.MAX_VALUE - 8)
+				throw new IOException("Sidecar section " + name + " has too many elements for an array");
+			return (int)n;
+		}
+
+		/**
+		 * Map a section chunk by chunk, so that sections larger than 2 GB can be copied to arrays.
+		 * @param name
+		 * @param type
+		 * @param width element size in bytes
+		 * @param reader receives each chunk with the index of its first element
+		 * @throws IOException
+		 */
+		private void readChunks(final String name, final byte type, final int width, final ChunkReader reader) throws IOException {
+			final Section section = getSection(name, type);
+			int index = 0;
+			for (long offset = 0; offset < section.length; offset += chunkBytes) {
+				final MappedByteBuffer chunk = map(section, offset, Math.min(chunkBytes, section.length - offset));
+				reader.read(chunk, index);
+				index += chunk.capacity() / width;
+			}
+		}
+
+		private static interface ChunkReader {
+
+			void read(ByteBuffer chunk, int index);
+
+		}
+
+		/**
+		 * @param name
+		 * @return a memory-mapped view of an int section
+		 * @throws IOException if the section is missing, or larger than 2 GB (read it as an array instead)
+		 */
+		public IntBuffer getInts(final String name) throws IOException {
+			return map(name, TYPE_INT).asIntBuffer();
+		}
+
+		/**
+		 * @param name
+		 * @return a memory-mapped view of a long section
+		 * @throws IOException if the section is missing, or larger than 2 GB (read it as an array instead)
+		 */
+		public LongBuffer getLongs(final String name) throws IOException {
+			return map(name, TYPE_LONG).asLongBuffer();
+		}
+
+		/**
+		 * @param name
+		 * @return a memory-mapped view of a float section
+		 * @throws IOException if the section is missing, or larger than 2 GB (read it as an array instead)
+		 */
+		public FloatBuffer getFloats(final String name) throws IOException {
+			return map(name, TYPE_FLOAT).asFloatBuffer();
+		}
+
+		/**
+		 * @param name
+		 * @return a memory-mapped view of a double section
+		 * @throws IOException if the section is missing, or larger than 2 GB (read it as an array instead)
+		 */
+		public DoubleBuffer getDoubles(final String name) throws IOException {
+			return map(name, TYPE_DOUBLE).asDoubleBuffer();
+		}
+
+		/**
+		 * @param name
+		 * @return a copy of an int section
+		 * @throws IOException
+		 */
+		public int[] getIntArray(final String name) throws IOException {
+			final int[] values = new int[arrayLength(name, TYPE_INT, 4)];
+			readChunks(name, TYPE_INT, 4, (chunk, i) -> chunk.asIntBuffer().get(values, i, chunk.capacity() / 4));
+			return values;
+		}
+
+		/**
+		 * @param name
+		 * @return a copy of a long section
+		 * @throws IOException
+		 */
+		public long[] getLongArray(final String name) throws IOException {
+			final long[] values = new long[arrayLength(name, TYPE_LONG, 8)];
+			readChunks(name, TYPE_LONG, 8, (chunk, i) -> chunk.asLongBuffer().get(values, i, chunk.capacity() / 8));
+			return values;
+		}
+
+		/**
+		 * @param name
+		 * @return a copy of a float section
+		 * @throws IOException
+		 */
+		public float[] getFloatArray(final String name) throws IOException {
+			final float[] values = new float[arrayLength(name, TYPE_FLOAT, 4)];
+			readChunks(name, TYPE_FLOAT, 4, (chunk, i) -> chunk.asFloatBuffer().get(values, i, chunk.capacity() / 4));
+			return values;
+		}
+
+		/**
+		 * @param name
+		 * @return a copy of a double section
+		 * @throws IOException
+		 */
+		public double[] getDoubleArray(final String name) throws IOException {
+			final double[] values = new double[arrayLength(name, TYPE_DOUBLE, 8)];
+			readChunks(name, TYPE_DOUBLE, 8, (chunk, i) -> chunk.asDoubleBuffer().get(values, i, chunk.capacity() / 8));
+			return values;
+		}
+
+		/**
+		 * @param name
+		 * @return the strings of a string section
+		 * @throws IOException
+		 */
+		public String[] getStrings(final String name) throws IOException {
+			final ByteBuffer buf = map(name, TYPE_STRING);
+			final int n = buf.getInt(0);
+			final int base = 4 * (n + 2);
+			final String[] values = new String[n];
+			final byte[] bytes = new byte[buf.capacity() - base];
+			buf.position(base);
+			buf.get(bytes);
+			for (int i = 0; i < n; i++) {
+				final int from = buf.getInt(4 * (i + 1));
+				final int to = buf.getInt(4 * (i + 2));
+				values[i] = new String(bytes, from, to - from, StandardCharsets.UTF_8);
+			}
+			return values;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+	}
+
+}
@@ -17,8 +17,11 @@
 
 package qupath.ext.sptx2;
 
+import java.awt.image.BufferedImage;
+
 import org.controlsfx.control.action.Action;
 
+import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.IntegerProperty;
@@ -34,6 +37,7 @@ import qupath.lib.gui.extensions.QuPathExtension;
 import qupath.lib.gui.panes.PreferencePane;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.tools.MenuTools;
+import qupath.lib.images.ImageData;
 /**
  * Install SpTx as an extension.
  * 
@@ -83,6 +87,13 @@ public class SpTx2Extension implements QuPathExtension, GitHubProject {
 //        pathDetObjImgAcqSamplingFmtProp.addListener((v,o,n) -> sptxOptions.setPathDetObjImgAcqSamplingFmt(n));
 //        
         
+		// Load the gene expression and niche stores of an image when it is opened, so that their virtual measurements
+		// are shown in measurement tables before any plugin requests them
+		qupath.imageDataProperty().addListener((v, o, n) -> {
+			if (n != null)
+				qupath.submitShortTask(() -> loadStores(n));
+		});
+        
 		Menu menu = qupath.getMenu("Extensions>SpTx Analysis Toolbox", true);
 		
 //		MenuTools.addMenuItems(
@@ -126,6 +137,11 @@ public class SpTx2Extension implements QuPathExtension, GitHubProject {
 				qupath.createPluginAction("Import 10x Visium Annotation", VisiumAnnotation.class, null)
 				);
 		
+		MenuTools.addMenuItems(
+				menu,
+				qupath.createPluginAction("Import 10x Visium HD Annotation", VisiumHdAnnotation.class, null)
+				);
+		
 		MenuTools.addMenuItems(
 				menu,
 				qupath.createPluginAction("Import 10x Xenium Annotation", XeniumAnnotation.class, null)
@@ -133,9 +149,19 @@ public class SpTx2Extension implements QuPathExtension, GitHubProject {
 		
 		MenuTools.addMenuItems(
 				menu,
-				qupath.createPluginAction("Import NanoString CosMX Annotation", CosmxAnnotation.class, null)
+				qupath.createPluginAction("Import 10x Xenium Cell Boundaries", XeniumBoundaryAnnotation.class, null)
 				);
 		
+		MenuTools.addMenuItems(
+				menu,
+				qupath.createPluginAction("Import NanoString CosMX Annotation", CosmxAnnotation.class, null)
+				);
+
+		MenuTools.addMenuItems(
+				menu,
+				qupath.createPluginAction("Import Predicted Results", PredictionAnnotation.class, null)
+				);
+
 		MenuTools.addMenuItems(
 				menu,
 				qupath.createPluginAction("Spatial Analysis", SpatialAnalysis.class, null)
@@ -145,6 +171,21 @@ public class SpTx2Extension implements QuPathExtension, GitHubProject {
 				menu,
 				qupath.createPluginAction("Cell-Cell Interaction Analysis", CellCellInteractionAnalysis.class, null)
 				);
+
+		MenuTools.addMenuItems(
+				menu,
+				qupath.createPluginAction("Spatially Variable Gene Analysis", SpatiallyVariableGeneAnalysis.class, null)
+				);
+
+		MenuTools.addMenuItems(
+				menu,
+				qupath.createPluginAction("Neighbourhood Enrichment Analysis", NeighbourhoodEnrichmentAnalysis.class, null)
+				);
+
+		MenuTools.addMenuItems(
+				menu,
+				qupath.createPluginAction("Niche Composition Analysis", NicheCompositionAnalysis.class, null)
+				);
 		
 		
 		MenuTools.addMenuItems(
@@ -197,6 +238,21 @@ public class SpTx2Extension implements QuPathExtension, GitHubProject {
 //				);		
 	}
 
+	/**
+	 * Load the stores persisted in the project entry directory of an image, if they are not attached yet.
+	 * Measurement tables opened in the meantime are refreshed by a hierarchy event.
+	 * @param imageData
+	 */
+	private static void loadStores(final ImageData<BufferedImage> imageData) {
+		boolean loaded = false;
+		if (imageData.getProperty(GeneExpressionStore.KEY_GENE_EXPRESSION) == null)
+			loaded |= GeneExpressionStore.getStore(imageData) != null;
+		if (imageData.getProperty(NicheComposition.KEY_NICHE_COMPOSITION) == null)
+			loaded |= NicheComposition.getStore(imageData) != null;
+		if (loaded)
+			Platform.runLater(() -> imageData.getHierarchy().fireHierarchyChangedEvent(imageData));
+	}
+
 	@Override
 	public String getName() {
 		return "SpTx Extension";
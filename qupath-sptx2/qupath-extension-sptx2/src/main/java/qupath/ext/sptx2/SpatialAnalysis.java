@@ -105,7 +105,7 @@ import org.json.JSONObject;
  */
 public class SpatialAnalysis extends AbstractDetectionPlugin<BufferedImage> {
 	
-	final private static Logger logger = LoggerFactory.getLogger(XeniumAnnotation.class);
+	final private static Logger logger = LoggerFactory.getLogger(SpatialAnalysis.class);
 	
 	final private StringProperty sptAnalTgtClsProp = PathPrefs.createPersistentPreference("sptAnalTgtCls", ""); 
 	final private StringProperty sptAnalOptClsProp = PathPrefs.createPersistentPreference("sptAnalOptCls", ""); 
@@ -113,6 +113,7 @@ public class SpatialAnalysis extends AbstractDetectionPlugin<BufferedImage> {
 	final private StringProperty sptAnalIdProp = PathPrefs.createPersistentPreference("sptAnalId", "default"); 
 	final private IntegerProperty sptAnalLayersProp = PathPrefs.createPersistentPreference("sptAnalLayer", 10); 
 	final private List<String> vendorlList = Arrays.asList("xenium", "cosmx");
+	final private List<String> distanceModeList = Arrays.asList("None", "Euclidean", "Geodesic");
 	private ParameterList params;
 
 	private String lastResults = null;
@@ -162,7 +163,8 @@ public class SpatialAnalysis extends AbstractDetectionPlugin<BufferedImage> {
 			.addStringParameter("optCls", "Opponent Class(es)", negClsList, "Opponent Class(es)")
 			.addChoiceParameter("vendor", "Vendor", sptAnalVendorProp.get(), vendorlList, "Choose the vendor that should be used for object classification")
 			.addStringParameter("id", "Layer ID", sptAnalIdProp.get(), "Layer ID")
-			.addIntParameter("layers", "Maximal layers of detection", sptAnalLayersProp.get(), null, "Maximal layers of detection")			
+			.addIntParameter("layers", "Maximal layers of detection", sptAnalLayersProp.get(), null, "Maximal layers of detection (0: unlimited)")			
+			.addChoiceParameter("distance", "Distance measurement", distanceModeList.get(0), distanceModeList, "Also measure the distance (" + GeneralTools.micrometerSymbol() + ") to the nearest opponent cell: straight line, or along the neighbour graph through targeting cells")
 			;
 	}
 	
@@ -195,55 +197,49 @@ public class SpatialAnalysis extends AbstractDetectionPlugin<BufferedImage> {
 				
 				if(selectedAnnotationPathObjectList.isEmpty()) throw new Exception("Missed selected annotations");
 
-				final List<String> tgtClsLst = Arrays.stream(params.getStringParameterValue("tgtCls").split(",")).map(s -> s.replaceAll("\\s", "")).collect(Collectors.toList());
-				List<String> optClsLst = Arrays.stream(params.getStringParameterValue("optCls").split(",")).map(s -> s.replaceAll("\\s", "")).collect(Collectors.toList());
+				final List<String> tgtClsLst = Arrays.asList(params.getStringParameterValue("tgtCls").split(","));
+				final List<String> optClsLst = Arrays.asList(params.getStringParameterValue("optCls").split(","));
 				
-				for(int l = 0; l < params.getIntParameterValue("layers"); l ++) {
-					final int layer = l;
-					selectedAnnotationPathObjectList.parallelStream().forEach(p -> {
-					// for(PathObject p: selectedAnnotationPathObjectList) {
-						for(PathObject c: p.getChildObjects()) {
-							if(c.getMeasurementList().containsKey((String)params.getChoiceParameterValue("vendor")+":cell:layer:"+params.getStringParameterValue("id"))) continue;
-							
-							final PathClass cPthCls = c.getPathClass();
-							
-							if(cPthCls == null) continue;
-							
-							final String cCls = cPthCls.toString().replaceAll("\\s", "");;
-							
-							if(tgtClsLst.stream().anyMatch(cCls::equals)) {
-								final List<PathObject> connectedObj = connections.getConnections(c);
-								
-								for(PathObject d: connectedObj) {
-									if(layer == 0) {
-										final PathClass dPthCls = d.getPathClass();
-										if(dPthCls == null) continue;
-										
-										final String dCls = dPthCls.toString().replaceAll("\\s", "");;
-										if(optClsLst.stream().anyMatch(dCls::equals)) {
-											final MeasurementList tgtObjMeasList = c.getMeasurementList();
-											tgtObjMeasList.put((String)params.getChoiceParameterValue("vendor")+":cell:layer:"+params.getStringParameterValue("id"), layer);
-											tgtObjMeasList.close();
-											break;
-										}
-									}
-									else {
-										final MeasurementList optObjMeasList = d.getMeasurementList();
-										Double v = optObjMeasList.get((String)params.getChoiceParameterValue("vendor")+":cell:layer:"+params.getStringParameterValue("id"));
-										
-										if((!v.isNaN()) && (v.intValue() == layer-1)) {
-											final MeasurementList tgtObjMeasList = c.getMeasurementList();
-											tgtObjMeasList.put((String)params.getChoiceParameterValue("vendor")+":cell:layer:"+params.getStringParameterValue("id"), layer);
-											tgtObjMeasList.close();
-											break;
-										}	
-									}
-								}
-							}
-						}
-					});
-					// }
-				}
+				final List<PathObject> cellPathObjectList = new ArrayList<>();
+				for(PathObject p: selectedAnnotationPathObjectList) cellPathObjectList.addAll(p.getChildObjects());
+				
+				/*
+				 * One multi-source breadth-first search from the target cells touching an opponent cell
+				 */
+				
+				final CellLayerSearch search = CellLayerSearch.build(cellPathObjectList, connections, tgtClsLst, optClsLst);
+				final int[] layers = search.getLayers(params.getIntParameterValue("layers"));
+				
+				final String distMode = (String)params.getChoiceParameterValue("distance");
+				final double[] distances;
+				if(distMode.equals(distanceModeList.get(1))) 
+					distances = search.getEuclideanDistances(hierarchy.getDetectionObjects());
+				else if(distMode.equals(distanceModeList.get(2))) 
+					distances = search.getGeodesicDistances();
+				else 
+					distances = null;
+				
+				final double pixelSizeMicrons = imageData.getServer().getPixelCalibration().hasPixelSizeMicrons()? imageData.getServer().getPixelCalibration().getAveragedPixelSizeMicrons(): 1.0;
+				
+				final String vendor = (String)params.getChoiceParameterValue("vendor");
+				final String layerName = vendor+":cell:layer:"+params.getStringParameterValue("id");
+				final String distName = vendor+":cell:distance:"+params.getStringParameterValue("id");
+				
+				IntStream.range(0, cellPathObjectList.size()).parallel().forEach(i -> {
+					if(!search.isTarget(i)) return;
+					
+					final MeasurementList tgtObjMeasList = cellPathObjectList.get(i).getMeasurementList();
+					if(layers[i] >= 0) tgtObjMeasList.put(layerName, layers[i]);
+					else tgtObjMeasList.removeMeasurements(layerName);
+					
+					if(distances != null) {
+						if(!Double.isNaN(distances[i])) tgtObjMeasList.put(distName, distances[i] * pixelSizeMicrons);
+						else tgtObjMeasList.removeMeasurements(distName);
+					}
+					tgtObjMeasList.close();
+				});
+				
+				logger.info("Labelled {} of {} cells with layers", Arrays.stream(layers).filter(l -> l >= 0).count(), cellPathObjectList.size());
 				
 		        hierarchy.getSelectionModel().setSelectedObject(null);
 				
@@ -0,0 +1,515 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+
+/**
+ * Moran's I and Geary's C of every gene over a cell neighbourhood graph.
+ * <p>
+ * The graph is held as CSR arrays of weights between the analysed cells, either binary or row-standardised.
+ * Genes are read column by column from a {@link GeneExpressionStore} and only their non-zero cells are visited:
+ * with z = x - mean, the cross product sum(w_ij z_i z_j) expands into sums over the non-zero entries and the row and
+ * column sums of the weights, so the cost of a gene is its number of expressing cells times their degree.
+ * Genes are handed out to one worker per thread in small blocks, each worker holding a dense scratch vector.
+ * <p>
+ * P-values are one-sided towards positive autocorrelation (I above its expectation, C below 1), either under the
+ * normality assumption or from random relabelling of the cells.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class SpatialAutocorrelation {
+
+	final private static int GENE_BLOCK = 8;
+
+	final private GeneExpressionStore store;
+	final private int nCells;
+	final private int[] rowToCell;
+	final private double[] cellScale;
+	final private boolean logTransform;
+
+	final private int[] adjPtr;
+	final private int[] adjInd;
+	final private float[] adjWeight;
+	final private double[] rowSum;
+	final private double[] colSum;
+	final private double s0, s1, s2;
+
+	private String[] genes = new String[0];
+	private int[] nExpressing;
+	private double[] moranI, moranZ, moranP;
+	private double[] gearyC, gearyZ, gearyP;
+	private int nPermutations = 0;
+
+	private SpatialAutocorrelation(final GeneExpressionStore store, final int nCells, final int[] rowToCell, final double[] cellScale, final boolean logTransform,
+			final int[] adjPtr, final int[] adjInd, final float[] adjWeight) {
+		this.store = store;
+		this.nCells = nCells;
+		this.rowToCell = rowToCell;
+		this.cellScale = cellScale;
+		this.logTransform = logTransform;
+		this.adjPtr = adjPtr;
+		this.adjInd = adjInd;
+		this.adjWeight = adjWeight;
+
+		rowSum = new double[nCells];
+		colSum = new double[nCells];
+		for (int i = 0; i < nCells; i++) {
+			for (int k = adjPtr[i]; k < adjPtr[i+1]; k++) {
+				rowSum[i] += adjWeight[k];
+				colSum[adjInd[k]] += adjWeight[k];
+			}
+		}
+		double sum0 = 0, sum2 = 0;
+		for (int i = 0; i < nCells; i++) {
+			sum0 += rowSum[i];
+			sum2 += (rowSum[i] + colSum[i]) * (rowSum[i] + colSum[i]);
+		}
+		s0 = sum0;
+		s2 = sum2;
+		s1 = computeS1();
+	}
+
+	/**
+	 * Build the weights and index the expression of the cells.
+	 * @param cells cells to analyse
+	 * @param connections neighbourhood graph; neighbours outside the cells are ignored
+	 * @param prefix measurement name prefix of the cell counts, e.g. "xenium:cell_transcript:"
+	 * @param store sparse store to read from, or null; if its prefix does not match, the measurement lists are read instead
+	 * @param rowStandardise if true, the weights of every cell sum to 1; otherwise they are binary
+	 * @param normalise if true, counts are scaled to 10,000 per cell and log1p-transformed
+	 * @return
+	 */
+	public static SpatialAutocorrelation build(final List<PathObject> cells, final PathObjectConnections connections, final String prefix,
+			final GeneExpressionStore store, final boolean rowStandardise, final boolean normalise) {
+		final GeneExpressionStore cellStore = store != null && prefix.equals(store.getPrefix())? store: fromMeasurements(cells, prefix);
+
+		/*
+		 * Keep cells with expression data, and map store rows to them
+		 */
+
+		final int[] rows = new int[cells.size()];
+		IntStream.range(0, rows.length).parallel().forEach(i -> rows[i] = cellStore.getRow(cells.get(i)));
+
+		final List<PathObject> kept = new ArrayList<>();
+		final int[] rowToCell = new int[cellStore.nObjects()];
+		Arrays.fill(rowToCell, -1);
+		for (int i = 0; i < rows.length; i++) {
+			if (rows[i] < 0 || rowToCell[rows[i]] >= 0)
+				continue;
+			rowToCell[rows[i]] = kept.size();
+			kept.add(cells.get(i));
+		}
+		final int nCells = kept.size();
+
+		/*
+		 * Per-cell scaling to 10,000 counts
+		 */
+
+		final double[] cellScale = new double[nCells];
+		if (normalise) {
+			IntStream.range(0, nCells).parallel().forEach(i -> {
+				final double[] total = new double[1];
+				cellStore.forEachInRow(cellStore.getRow(kept.get(i)), (gene, value) -> total[0] += value);
+				cellScale[i] = total[0] > 0? 1e4 / total[0]: 0;
+			});
+		} else {
+			Arrays.fill(cellScale, 1.0);
+		}
+
+		/*
+		 * CSR weights between the kept cells
+		 */
+
+		final NeighbourGraph graph = NeighbourGraph.build(kept, connections, false);
+		final int[] adjPtr = graph.getPointers();
+		final int[] adjInd = graph.getNeighbours();
+		final float[] adjWeight = new float[adjInd.length];
+		for (int i = 0; i < nCells; i++) {
+			final int degree = adjPtr[i+1] - adjPtr[i];
+			Arrays.fill(adjWeight, adjPtr[i], adjPtr[i+1], rowStandardise? 1f / degree: 1f);
+		}
+
+		return new SpatialAutocorrelation(cellStore, nCells, rowToCell, cellScale, normalise, adjPtr, adjInd, adjWeight);
+	}
+
+	/**
+	 * Read the counts of the cells from their measurement lists into a temporary store.
+	 */
+	private static GeneExpressionStore fromMeasurements(final List<PathObject> cells, final String prefix) {
+		final Map<String, Integer> geneColumns = new LinkedHashMap<>();
+		for (PathObject cell: cells) {
+			for (String name: cell.getMeasurementList().getMeasurementNames()) {
+				if (name.startsWith(prefix))
+					geneColumns.putIfAbsent(name.substring(prefix.length()), geneColumns.size());
+			}
+		}
+		final GeneExpressionStore.Builder builder = new GeneExpressionStore.Builder(prefix, new ArrayList<>(geneColumns.keySet()));
+		IntStream.range(0, cells.size()).parallel().forEach(i -> {
+			final MeasurementList measList = cells.get(i).getMeasurementList();
+			final List<String> names = measList.getMeasurementNames();
+			final double[] values = measList.values();
+			final int n = Math.min(names.size(), values.length);
+			final int[] cols = new int[n];
+			final float[] vals = new float[n];
+			int k = 0;
+			for (int m = 0; m < n; m++) {
+				final String name = names.get(m);
+				if (!name.startsWith(prefix) || Double.isNaN(values[m]))
+					continue;
+				cols[k] = geneColumns.get(name.substring(prefix.length()));
+				vals[k++] = (float)values[m];
+			}
+			if (k > 0)
+				builder.addRow(cells.get(i), cols, vals, k);
+		});
+		return builder.build();
+	}
+
+	private double computeS1() {
+		// S1 = 1/2 sum (w_ij + w_ji)^2, looking up w_ji by binary search in sorted copies of the rows
+		final int[] sortedInd = adjInd.clone();
+		final float[] sortedWeight = adjWeight.clone();
+		IntStream.range(0, nCells).parallel().forEach(i -> {
+			final int from = adjPtr[i], to = adjPtr[i+1];
+			final long[] packed = new long[to - from];
+			for (int k = from; k < to; k++)
+				packed[k - from] = ((long)adjInd[k] << 32) | (Float.floatToRawIntBits(adjWeight[k]) & 0xffffffffL);
+			Arrays.sort(packed);
+			for (int k = from; k < to; k++) {
+				sortedInd[k] = (int)(packed[k - from] >>> 32);
+				sortedWeight[k] = Float.intBitsToFloat((int)packed[k - from]);
+			}
+		});
+		return IntStream.range(0, nCells).parallel().mapToDouble(i -> {
+			double sum = 0;
+			for (int k = adjPtr[i]; k < adjPtr[i+1]; k++) {
+				final int j = sortedInd[k];
+				final int r = Arrays.binarySearch(sortedInd, adjPtr[j], adjPtr[j+1], i);
+				final double w = sortedWeight[k] + (r >= 0? sortedWeight[r]: 0);
+				// Pairs present in both rows are visited from each side, the others only once
+				sum += r >= 0? w * w: 2 * w * w;
+			}
+			return sum;
+		}).sum() / 2;
+	}
+
+	/**
+	 * Score every gene.
+	 * @param nPermutations number of random relabellings for the p-values; 0 for p-values under normality
+	 * @param seed seed of the relabellings; each gene uses its own stream, so results do not depend on scheduling
+	 */
+	public void run(final int nPermutations, final long seed) {
+		final List<String> geneList = store.getGenes();
+		final int nGenes = geneList.size();
+		genes = geneList.toArray(String[]::new);
+		nExpressing = new int[nGenes];
+		moranI = new double[nGenes];
+		moranZ = new double[nGenes];
+		moranP = new double[nGenes];
+		gearyC = new double[nGenes];
+		gearyZ = new double[nGenes];
+		gearyP = new double[nGenes];
+		this.nPermutations = Math.max(0, nPermutations);
+
+		final double n = nCells;
+		final double expectedI = -1.0 / (n - 1);
+		final double sdI = Math.sqrt((n * n * s1 - n * s2 + 3 * s0 * s0) / ((n * n - 1) * s0 * s0) - expectedI * expectedI);
+		final double sdC = Math.sqrt(((2 * s1 + s2) * (n - 1) - 4 * s0 * s0) / (2 * (n + 1) * s0 * s0));
+
+		final AtomicInteger nextBlock = new AtomicInteger();
+		final int nWorkers = ThreadTools.getParallelism();
+		IntStream.range(0, nWorkers).parallel().forEach(w -> {
+			final double[] x = new double[nCells];
+			final int[] idx = new int[nCells];
+			final double[] val = new double[nCells];
+			final int[] permIdx = this.nPermutations > 0? new int[nCells]: null;
+			final double[] permVal = this.nPermutations > 0? new double[nCells]: null;
+			final int[] mark = this.nPermutations > 0? new int[nCells]: null;
+			final int[] stamp = new int[1];
+			final double[] terms = new double[3];
+			final int[] count = new int[1];
+
+			int block;
+			while ((block = nextBlock.getAndIncrement()) * GENE_BLOCK < nGenes) {
+				for (int g = block * GENE_BLOCK; g < Math.min(nGenes, (block + 1) * GENE_BLOCK); g++) {
+					count[0] = 0;
+					store.forEachInColumn(g, (row, value) -> {
+						final int c = rowToCell[row];
+						if (c < 0 || value == 0f)
+							return;
+						final double v = logTransform? Math.log1p(value * cellScale[c]): value * cellScale[c];
+						if (v != 0) {
+							idx[count[0]] = c;
+							val[count[0]++] = v;
+						}
+					});
+					final int k = count[0];
+					nExpressing[g] = k;
+
+					double sum = 0, sumSquares = 0;
+					for (int t = 0; t < k; t++) {
+						sum += val[t];
+						sumSquares += val[t] * val[t];
+					}
+					final double mean = sum / n;
+					final double m2 = sumSquares - n * mean * mean;
+					if (k == 0 || !(m2 > 1e-12 * sumSquares) || s0 <= 0) {
+						moranI[g] = moranZ[g] = moranP[g] = Double.NaN;
+						gearyC[g] = gearyZ[g] = gearyP[g] = Double.NaN;
+						continue;
+					}
+
+					crossTerms(idx, val, k, x, terms);
+					final double moran = computeMoran(terms, mean, m2);
+					final double geary = computeGeary(terms, m2);
+					moranI[g] = moran;
+					gearyC[g] = geary;
+					moranZ[g] = (moran - expectedI) / sdI;
+					gearyZ[g] = (geary - 1) / sdC;
+
+					if (this.nPermutations == 0) {
+						moranP[g] = upperTail(moranZ[g]);
+						gearyP[g] = upperTail(-gearyZ[g]);
+						continue;
+					}
+
+					/*
+					 * Relabel: move the non-zero values to random cells, zeros fill the rest
+					 */
+
+					final SplittableRandom random = new SplittableRandom(seed ^ (g * 0x9E3779B97F4A7C15L));
+					int nMoran = 0, nGeary = 0;
+					for (int p = 0; p < this.nPermutations; p++) {
+						if (++stamp[0] == Integer.MAX_VALUE) {
+							Arrays.fill(mark, 0);
+							stamp[0] = 1;
+						}
+						// Floyd's sampling of k distinct cells
+						int m = 0;
+						for (int j = nCells - k; j < nCells; j++) {
+							int t = random.nextInt(j + 1);
+							if (mark[t] == stamp[0])
+								t = j;
+							mark[t] = stamp[0];
+							permIdx[m++] = t;
+						}
+						System.arraycopy(val, 0, permVal, 0, k);
+						for (int j = k - 1; j > 0; j--) {
+							final int t = random.nextInt(j + 1);
+							final double tmp = permVal[j];
+							permVal[j] = permVal[t];
+							permVal[t] = tmp;
+						}
+						crossTerms(permIdx, permVal, k, x, terms);
+						if (computeMoran(terms, mean, m2) >= moran - 1e-12 * Math.abs(moran))
+							nMoran++;
+						if (computeGeary(terms, m2) <= geary + 1e-12 * Math.abs(geary))
+							nGeary++;
+					}
+					moranP[g] = (nMoran + 1.0) / (this.nPermutations + 1.0);
+					gearyP[g] = (nGeary + 1.0) / (this.nPermutations + 1.0);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sums over the non-zero entries of a gene.
+	 * terms[0] = sum_ij w_ij x_i x_j, terms[1] = sum_i (r_i + c_i) x_i, terms[2] = sum_i (r_i + c_i) x_i^2
+	 * with r and c the row and column sums of the weights.
+	 */
+	private void crossTerms(final int[] idx, final double[] val, final int k, final double[] x, final double[] terms) {
+		for (int t = 0; t < k; t++)
+			x[idx[t]] = val[t];
+		double cross = 0, linear = 0, square = 0;
+		for (int t = 0; t < k; t++) {
+			final int i = idx[t];
+			double acc = 0;
+			for (int e = adjPtr[i]; e < adjPtr[i+1]; e++)
+				acc += adjWeight[e] * x[adjInd[e]];
+			final double degree = rowSum[i] + colSum[i];
+			cross += val[t] * acc;
+			linear += degree * val[t];
+			square += degree * val[t] * val[t];
+		}
+		for (int t = 0; t < k; t++)
+			x[idx[t]] = 0;
+		terms[0] = cross;
+		terms[1] = linear;
+		terms[2] = square;
+	}
+
+	private double computeMoran(final double[] terms, final double mean, final double m2) {
+		final double zz = terms[0] - mean * terms[1] + mean * mean * s0;
+		return nCells / s0 * zz / m2;
+	}
+
+	private double computeGeary(final double[] terms, final double m2) {
+		return (nCells - 1) / (2 * s0) * (terms[2] - 2 * terms[0]) / m2;
+	}
+
+	/**
+	 * Upper tail of the standard normal distribution, from the Chebyshev approximation of erfc (relative error below 1.2e-7).
+	 */
+	static double upperTail(final double z) {
+		final double x = Math.abs(z) / Math.sqrt(2);
+		final double t = 1 / (1 + 0.5 * x);
+		final double erfc = t * Math.exp(-x * x - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418 +
+				t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587 + t * (-0.82215223 + t * 0.17087277)))))))));
+		return z >= 0? erfc / 2: 1 - erfc / 2;
+	}
+
+	/**
+	 * Benjamini-Hochberg adjustment; NaN p-values are ignored.
+	 * @param pValues
+	 * @return adjusted p-values
+	 */
+	static double[] adjustFdr(final double[] pValues) {
+		final int[] order = IntStream.range(0, pValues.length)
+				.filter(g -> !Double.isNaN(pValues[g]))
+				.boxed()
+				.sorted((a, b) -> Double.compare(pValues[b], pValues[a]))
+				.mapToInt(Integer::intValue)
+				.toArray();
+		final double[] adjusted = new double[pValues.length];
+		Arrays.fill(adjusted, Double.NaN);
+		double min = 1;
+		for (int r = 0; r < order.length; r++) {
+			final int rank = order.length - r;
+			min = Math.min(min, pValues[order[r]] * order.length / rank);
+			adjusted[order[r]] = min;
+		}
+		return adjusted;
+	}
+
+	/**
+	 * @return number of analysed cells, i.e. cells with expression data
+	 */
+	public int getCellCount() {
+		return nCells;
+	}
+
+	/**
+	 * @return number of directed edges between analysed cells
+	 */
+	public int getEdgeCount() {
+		return adjInd.length;
+	}
+
+	/**
+	 * @return number of genes scored by the last run
+	 */
+	public int getGeneCount() {
+		return genes.length;
+	}
+
+	/**
+	 * @param g
+	 * @return gene name
+	 */
+	public String getGene(final int g) {
+		return genes[g];
+	}
+
+	/**
+	 * @param g
+	 * @return Moran's I, NaN for constant genes
+	 */
+	public double getMoranI(final int g) {
+		return moranI[g];
+	}
+
+	/**
+	 * @param g
+	 * @return p-value of Moran's I
+	 */
+	public double getMoranPValue(final int g) {
+		return moranP[g];
+	}
+
+	/**
+	 * @param g
+	 * @return Geary's C, NaN for constant genes
+	 */
+	public double getGearyC(final int g) {
+		return gearyC[g];
+	}
+
+	/**
+	 * @param g
+	 * @return p-value of Geary's C
+	 */
+	public double getGearyPValue(final int g) {
+		return gearyP[g];
+	}
+
+	/**
+	 * @return number of relabellings of the last run, 0 for p-values under normality
+	 */
+	public int getPermutationCount() {
+		return nPermutations;
+	}
+
+	/**
+	 * Write one row per gene, sorted by decreasing Moran's I, with Benjamini-Hochberg adjusted p-values.
+	 * @param file
+	 * @param maxFdr only genes with a Moran's I FDR up to this value are written
+	 * @return number of genes written
+	 * @throws IOException
+	 */
+	public int writeTable(final File file, final double maxFdr) throws IOException {
+		final double[] moranFdr = adjustFdr(moranP);
+		final double[] gearyFdr = adjustFdr(gearyP);
+		final int[] order = IntStream.range(0, genes.length)
+				.boxed()
+				.sorted((a, b) -> Double.compare(Double.isNaN(moranI[b])? Double.NEGATIVE_INFINITY: moranI[b], Double.isNaN(moranI[a])? Double.NEGATIVE_INFINITY: moranI[a]))
+				.mapToInt(Integer::intValue)
+				.toArray();
+		int nRows = 0;
+		try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+			writer.println("gene\texpressing_cells\tmoran_i\tmoran_z\tmoran_p\tmoran_fdr\tgeary_c\tgeary_z\tgeary_p\tgeary_fdr");
+			for (int g: order) {
+				if (!(moranFdr[g] <= maxFdr))
+					continue;
+				writer.printf(Locale.ROOT, "%s\t%d\t%.6g\t%.6g\t%.6g\t%.6g\t%.6g\t%.6g\t%.6g\t%.6g%n", genes[g], nExpressing[g],
+						moranI[g], moranZ[g], moranP[g], moranFdr[g], gearyC[g], gearyZ[g], gearyP[g], gearyFdr[g]);
+				nRows++;
+			}
+		}
+		return nRows;
+	}
+
+}
@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.beans.property.StringProperty;
+import qupath.lib.analysis.DelaunayTools;
+import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.AbstractDetectionPlugin;
+import qupath.lib.plugins.DetectionPluginTools;
+import qupath.lib.plugins.ObjectDetector;
+import qupath.lib.plugins.PluginRunner;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Plugin for detecting spatially variable genes with Moran's I and Geary's C over the cell neighbour graph
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class SpatiallyVariableGeneAnalysis extends AbstractDetectionPlugin<BufferedImage> {
+	final private static Logger logger = LoggerFactory.getLogger(SpatiallyVariableGeneAnalysis.class);
+	final private StringProperty SVGAnalVendorProp = PathPrefs.createPersistentPreference("SVGAnalVendor", "xenium");
+	final private StringProperty SVGAnalWeightsProp = PathPrefs.createPersistentPreference("SVGAnalWeights", "row-standardised");
+	final private StringProperty SVGAnalOutFileProp = PathPrefs.createPersistentPreference("SVGAnalOutFile", "");
+
+	private ParameterList params;
+
+	final private List<String> vendorlList = Arrays.asList("xenium", "cosmx");
+
+	final private List<String> weightsList = Arrays.asList("binary", "row-standardised");
+
+	private String lastResults = null;
+
+	/**
+	 * Constructor.
+	 */
+	public SpatiallyVariableGeneAnalysis() {
+		params = new ParameterList()
+			.addTitleParameter("Spatially Variable Gene Analysis")
+			.addChoiceParameter("vendor", "Vendor", SVGAnalVendorProp.get(), vendorlList, "Choose the vendor of the cell transcript measurements")
+			.addChoiceParameter("weights", "Neighbour weights", SVGAnalWeightsProp.get(), weightsList, "Binary weights, or weights summing to 1 for every cell")
+			.addBooleanParameter("normalise", "Normalise counts (log1p of counts per 10,000)", true, "Scale every cell to 10,000 counts and apply log1p before scoring")
+			.addEmptyParameter("")
+			.addIntParameter("nPermutations", "Number of permutations (0: analytic)", 0, null, "Number of random relabellings of the cells per gene, 0 for p-values under the normality assumption")
+			.addIntParameter("seed", "Random seed", 1, null, "Seed of the relabellings")
+			.addDoubleParameter("maxFdr", "Maximal FDR reported", 1.0, null, "Only write genes up to this Benjamini-Hochberg adjusted p-value of Moran's I")
+			.addStringParameter("outFile", "Result file (.tsv)", SVGAnalOutFileProp.get(), "Table of Moran's I and Geary's C of every gene")
+			;
+	}
+
+	class AnnotationLoader implements ObjectDetector<BufferedImage> {
+
+		@Override
+		public Collection<PathObject> runDetection(final ImageData<BufferedImage> imageData, final ParameterList params, final ROI pathROI) throws IOException {
+			SVGAnalVendorProp.set((String)params.getChoiceParameterValue("vendor"));
+			SVGAnalWeightsProp.set((String)params.getChoiceParameterValue("weights"));
+			SVGAnalOutFileProp.set(params.getStringParameterValue("outFile"));
+
+			final PathObjectHierarchy hierarchy = imageData.getHierarchy();
+
+			try {
+				final List<PathObject> selectedAnnotationPathObjectList = new ArrayList<>();
+
+				for (PathObject pathObject : hierarchy.getSelectionModel().getSelectedObjects()) {
+					if (pathObject.isAnnotation() && pathObject.hasChildren())
+						selectedAnnotationPathObjectList.add(pathObject);
+				}
+
+				if(selectedAnnotationPathObjectList.isEmpty()) throw new Exception("Missed selected annotations");
+				if(params.getStringParameterValue("outFile").isBlank()) throw new Exception("outFile is blank");
+
+				final String vendor = (String)params.getChoiceParameterValue("vendor");
+
+				final List<PathObject> cellPathObjectList = new ArrayList<>();
+				for(PathObject p: selectedAnnotationPathObjectList) cellPathObjectList.addAll(p.getChildObjects());
+
+				/*
+				 * Use the existing object connections, or triangulate the cells if there are none
+				 */
+
+				PathObjectConnections connections = (PathObjectConnections) imageData.getProperty("OBJECT_CONNECTIONS");
+				if(connections == null) {
+					logger.info("No object connections found, computing a Delaunay triangulation of {} cells", cellPathObjectList.size());
+					connections = new PathObjectConnections();
+					connections.addGroup(DelaunayTools.createTiledConnectionGroup(cellPathObjectList, true, null));
+				}
+
+				final SpatialAutocorrelation autocorrelation = SpatialAutocorrelation.build(cellPathObjectList, connections, vendor+":cell_transcript:",
+						GeneExpressionStore.getStore(imageData),
+						params.getChoiceParameterValue("weights").equals("row-standardised"),
+						params.getBooleanParameterValue("normalise"));
+				if(autocorrelation.getCellCount() == 0) throw new Exception("No cells with "+vendor+" transcript counts");
+				if(autocorrelation.getEdgeCount() == 0) throw new Exception("No connections between the selected cells");
+
+				autocorrelation.run(params.getIntParameterValue("nPermutations"), params.getIntParameterValue("seed"));
+				final int nRows = autocorrelation.writeTable(new File(params.getStringParameterValue("outFile")), params.getDoubleParameterValue("maxFdr"));
+
+				logger.info("Scored {} genes over {} cells and {} connections ({} permutations), wrote {} rows to {}",
+						autocorrelation.getGeneCount(), autocorrelation.getCellCount(), autocorrelation.getEdgeCount(), autocorrelation.getPermutationCount(), nRows, params.getStringParameterValue("outFile"));
+
+				lastResults = nRows+" genes written to "+params.getStringParameterValue("outFile");
+			}
+			catch(Exception e) {
+
+				Dialogs.showErrorMessage("Error", e.getMessage());
+
+				lastResults =  "Something went wrong: "+e.getMessage();
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			if (Thread.currentThread().isInterrupted()) {
+
+				Dialogs.showErrorMessage("Warning", "Interrupted!");
+
+				lastResults =  "Interrupted!";
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+		}
+
+
+		@Override
+		public String getLastResultsDescription() {
+			return lastResults;
+		}
+
+
+	}
+
+	@Override
+	public ParameterList getDefaultParameterList(final ImageData<BufferedImage> imageData) {
+		return params;
+	}
+
+	@Override
+	public String getName() {
+		return "Spatially Variable Gene Analysis";
+	}
+
+	@Override
+	public String getLastResultsDescription() {
+		return lastResults;
+	}
+
+
+	@Override
+	public String getDescription() {
+		return "Score the spatial autocorrelation of every gene over the cell neighbour graph";
+	}
+
+
+	@Override
+	protected void addRunnableTasks(ImageData<BufferedImage> imageData, PathObject parentObject, List<Runnable> tasks) {
+		tasks.add(DetectionPluginTools.createRunnableTask(new AnnotationLoader(), getParameterList(imageData), imageData, parentObject));
+	}
+
+
+	@Override
+	protected Collection<? extends PathObject> getParentObjects(final PluginRunner<BufferedImage> runner) {
+		PathObjectHierarchy hierarchy = getHierarchy(runner);
+		if (hierarchy.getTMAGrid() == null)
+			return Collections.singleton(hierarchy.getRootObject());
+
+		return hierarchy.getSelectionModel().getSelectedObjects().stream().filter(p -> p.isTMACore()).collect(Collectors.toList());
+	}
+
+
+	@Override
+	public Collection<Class<? extends PathObject>> getSupportedParentObjectClasses() {
+		return Arrays.asList(
+				PathAnnotationObject.class,
+				TMACoreObject.class
+				);
+	}
+
+}
@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Spacing and orientation of a regular spot array (hexagonal Visium spots, square Visium HD bins),
+ * estimated from spot centres with a parallel nearest-neighbour search over a {@link PointGrid}.
+ * <p>
+ * The spacing is the median distance of each spot to its first-ring neighbours, so a few jittered or
+ * duplicated positions do not bias it the way the minimal pairwise distance does. The rotation is the
+ * circular mean of the neighbour directions folded by the symmetry of the lattice.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class SpotLattice {
+
+	/**
+	 * Relative tolerance around the nearest-neighbour distance for counting a spot as a first-ring neighbour.
+	 */
+	final private static double SHELL_TOLERANCE = 0.25;
+
+	final private static int BLOCK_SIZE = 1 << 14;
+
+	final private static int MAX_NEIGHBOURS = 8;
+
+	final private int nSpots;
+	final private double spacing;
+	final private double minDistance;
+	final private double rotation;
+	final private int symmetry;
+
+	private SpotLattice(final int nSpots, final double spacing, final double minDistance, final double rotation, final int symmetry) {
+		this.nSpots = nSpots;
+		this.spacing = spacing;
+		this.minDistance = minDistance;
+		this.rotation = rotation;
+		this.symmetry = symmetry;
+	}
+
+	/**
+	 * Estimate the lattice of a set of spot centres.
+	 * @param x
+	 * @param y
+	 * @return the lattice; spacing and rotation are NaN if there are fewer than two distinct spots
+	 */
+	public static SpotLattice estimate(final double[] x, final double[] y) {
+		final int n = x.length;
+		if (n < 2)
+			return new SpotLattice(n, Double.NaN, Double.NaN, Double.NaN, 0);
+
+		final PointGrid grid = new PointGrid(x, y);
+
+		final double[] dist = new double[n];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			final int j = grid.nearest(x[i], y[i], i);
+			dist[i] = Math.hypot(x[j] - x[i], y[j] - y[i]);
+		});
+
+		double minDistance = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < n; i++)
+			minDistance = Math.min(minDistance, dist[i]);
+
+		final double nnDistance = positiveMedian(dist);
+		if (Double.isNaN(nnDistance))
+			return new SpotLattice(n, Double.NaN, minDistance, Double.NaN, 0);
+
+		final double r0 = (1.0 - SHELL_TOLERANCE) * nnDistance;
+		final double r1 = (1.0 + SHELL_TOLERANCE) * nnDistance;
+
+		// Per block: cos and sin of 4x and 6x the neighbour angle, then a histogram of first-ring neighbour counts
+		final int nBlocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		final double[][] sums = new double[nBlocks][4 + MAX_NEIGHBOURS + 1];
+
+		IntStream.range(0, nBlocks).parallel().forEach(b -> {
+			final double[] s = sums[b];
+			final double[] acc = new double[2];
+			final int end = Math.min(n, (b + 1) * BLOCK_SIZE);
+			for (int i = b * BLOCK_SIZE; i < end; i++) {
+				final double xi = x[i], yi = y[i];
+				acc[0] = 0;
+				acc[1] = 0;
+				grid.forEachWithin(xi, yi, r1, j -> {
+					final double dx = x[j] - xi, dy = y[j] - yi;
+					final double d = Math.sqrt(dx * dx + dy * dy);
+					if (d < r0)
+						return;
+					// Powers of the unit direction vector, as complex numbers, give the folded angles without trigonometry
+					final double c1 = dx / d, s1 = dy / d;
+					final double c2 = c1 * c1 - s1 * s1, s2 = 2 * c1 * s1;
+					final double c4 = c2 * c2 - s2 * s2, s4 = 2 * c2 * s2;
+					s[0] += c4;
+					s[1] += s4;
+					s[2] += c4 * c2 - s4 * s2;
+					s[3] += s4 * c2 + c4 * s2;
+					acc[0] += d;
+					acc[1]++;
+				});
+				dist[i] = acc[1] > 0? acc[0] / acc[1]: Double.NaN;
+				s[4 + (int)Math.min(MAX_NEIGHBOURS, acc[1])]++;
+			}
+		});
+
+		final double[] total = new double[4 + MAX_NEIGHBOURS + 1];
+		for (final double[] s: sums)
+			for (int k = 0; k < total.length; k++)
+				total[k] += s[k];
+
+		// Hexagonal arrays have six first-ring neighbours, square arrays four
+		final int symmetry = medianBin(total, 4) >= 5? 6: 4;
+		final double c = symmetry == 6? total[2]: total[0];
+		final double s = symmetry == 6? total[3]: total[1];
+		final double period = 2 * Math.PI / symmetry;
+		double rotation = Math.atan2(s, c) / symmetry;
+		if (rotation < 0)
+			rotation += period;
+
+		return new SpotLattice(n, positiveMedian(dist), minDistance, rotation, symmetry);
+	}
+
+	private static double positiveMedian(final double[] values) {
+		final double[] sorted = Arrays.stream(values).filter(v -> v > 0).toArray();
+		if (sorted.length == 0)
+			return Double.NaN;
+		Arrays.parallelSort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	private static int medianBin(final double[] histogram, final int offset) {
+		double total = 0;
+		for (int k = offset; k < histogram.length; k++)
+			total += histogram[k];
+		double cumulative = 0;
+		for (int k = offset; k < histogram.length; k++) {
+			cumulative += histogram[k];
+			if (cumulative >= 0.5 * total)
+				return k - offset;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return number of spots
+	 */
+	public int size() {
+		return nSpots;
+	}
+
+	/**
+	 * @return robust centre-to-centre distance of neighbouring spots
+	 */
+	public double getSpacing() {
+		return spacing;
+	}
+
+	/**
+	 * @return minimal distance between two spots, which may be 0 for duplicated positions
+	 */
+	public double getMinDistance() {
+		return minDistance;
+	}
+
+	/**
+	 * @return angle of the first lattice direction in radians, in [0, 2&pi;/symmetry)
+	 */
+	public double getRotation() {
+		return rotation;
+	}
+
+	/**
+	 * @return 6 for hexagonal arrays, 4 for square arrays, 0 if undetermined
+	 */
+	public int getSymmetry() {
+		return symmetry;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s lattice of %d spots, spacing %.3f (min %.3f), rotation %.2f deg",
+				symmetry == 6? "Hexagonal": symmetry == 4? "Square": "Unknown", nSpots, spacing, minDistance, Math.toDegrees(rotation));
+	}
+
+}
@@ -87,6 +87,8 @@ public class StarDistCellNucleusDetection<T> extends AbstractInteractivePlugin<T
 	private static Logger logger = LoggerFactory.getLogger(StarDistCellNucleusDetection.class);
 	
 	private String resultString = null;
+	
+	private StarDist2D stardist;
 
 	@Override
 	protected void preprocess(final PluginRunner<T> pluginRunner) {
@@ -216,8 +218,9 @@ public class StarDistCellNucleusDetection<T> extends AbstractInteractivePlugin<T
 					.addStringParameter("channel", "Select detection channel (e.g., DAPI. Default: [empty] = N/A)", "")
 					.addDoubleParameter("cellExpansion", "Approximate cells based upon nucleus expansion (e.g., 5.0. Default: -1 = N/A)", -1, null, "Approximate cells based upon nucleus expansion")		
 					.addDoubleParameter("cellConstrainScale", "Constrain cell expansion using nucleus size (e.g., 1.5. Default: -1 = N/A)", -1, null, "Constrain cell expansion using nucleus size")
-					.addIntParameter("maxThread", "Max thread number (exprimental, due to GPU capacity limitation)", 1, null, "Max thread number (due to GPU constaint)")			
+					.addIntParameter("maxThread", "Max thread number (exprimental, due to GPU capacity limitation)", 1, null, "Max thread number (due to GPU constaint); annotations are processed one at a time when pipelined model instances are used")			
 					.addEmptyParameter("(Try to stay with 1. CUDA for JavaCPP in multi-threaded Java is not stable.)")			
+					.addIntParameter("pipelineModels", "Pipelined CPU model instances (0: off)", 0, null, "Number of model instances predicting tiles concurrently while other tiles are read and decoded (CPU only); overrides maxThread with 1, since each pipeline uses all the processors")
 					;
 			
 			return params;
@@ -258,6 +261,7 @@ public class StarDistCellNucleusDetection<T> extends AbstractInteractivePlugin<T
 		final boolean measureIntensity = params.getBooleanParameterValue("measureIntensity");
 		final boolean includeProbability = params.getBooleanParameterValue("includeProbability");
 		final int maxThread = params.getIntParameterValue("maxThread");
+		final int pipelineModels = params.getIntParameterValue("pipelineModels");
 //		
 //		
 //		// Try to preload Tensorflow DNN module 
@@ -274,105 +278,84 @@ public class StarDistCellNucleusDetection<T> extends AbstractInteractivePlugin<T
 //		}
 		
 		
-		semaphore = new Semaphore(maxThread);
+		// Pipelined detection sizes its pools and OpenCV threads for all the processors, so parents are run one at a time
+		if (pipelineModels > 0 && maxThread > 1)
+			logger.warn("Running one annotation at a time, since pipelined model instances are used (maxThread = {} ignored)", maxThread);
+		semaphore = new Semaphore(pipelineModels > 0 ? 1 : maxThread);
+		
+		// One detector for the whole run, shared by the parents and closed in postprocess()
+		final Path stardistModelPath = Paths.get(sptxSetup.getStardistModelLocationPath(), modelFilePath);
+		
+		final Builder stardistBuilder = StarDist2D.builder(stardistModelPath.toString())
+		        .threshold(threshold)
+		        .normalizePercentiles(normalizePercentilesLow, normalizePercentilesHigh)
+		        .pixelSize(pixelSize);
+
+        if(!channels.isBlank()) stardistBuilder.channels(channels);
+        if(cellExpansion > 0) stardistBuilder.cellExpansion(cellExpansion);
+        if(cellConstrainScale > 0) stardistBuilder.cellConstrainScale(cellConstrainScale);
+		if(measureShape) stardistBuilder.measureShape();
+		if(measureIntensity) stardistBuilder.measureIntensity();
+		if(includeProbability) stardistBuilder.includeProbability(true);
+		if(pipelineModels > 0) stardistBuilder.pipeline(pipelineModels);
+		
+		try {
+			stardist = stardistBuilder.build();
+		} catch (Exception e) {
+			logger.error("Unable to load StarDist model from " + stardistModelPath + ": " + e.getLocalizedMessage(), e);
+			return Collections.emptyList();
+		}
 		
+		final StarDist2D detector = stardist;
 		parentObjects.forEach(p -> {
 			tasks.add(() -> {
 				runDetection(
 						(ImageData<BufferedImage>) runner.getImageData(), 
 						p, 
-						modelFilePath, 
-						threshold, 
-						channels, 
-						normalizePercentilesLow, 
-						normalizePercentilesHigh, 
-						pixelSize, 
-						cellExpansion,
-						cellConstrainScale, 
-						measureShape, 
-						measureIntensity, 
-						includeProbability);
+						detector);
 			});
 		});
 		return tasks;
 	}
 	
+	@Override
+	protected void postprocess(final PluginRunner<T> pluginRunner) {
+		// Free the native model instances once every parent is done
+		if (stardist != null) {
+			try {
+				stardist.close();
+			} catch (Exception e) {
+				logger.warn("Unable to close StarDist: " + e.getLocalizedMessage(), e);
+			}
+			stardist = null;
+		}
+	}
+	
 	/**
-	 * Create and add a new annotation by expanding the ROI of the specified PathObject.
-	 * 
+	 * Detect nuclei within one parent object.
 	 * 
-	 * @param bounds
-	 * @param hierarchy
-	 * @param pathObject
-	 * @param radiusPixels
-	 * @param constrainToParent
-	 * @param removeInterior
+	 * @param imageData
+	 * @param parentObject
+	 * @param stardist detector shared by all parents of the run
 	 */
-	private static void runDetection(
-			ImageData<BufferedImage> imageData, PathObject parentObject, String modelPath,
-			double threshold, String channels, double normalizePercentilesLow, double normalizePercentilesHigh,
-			double pixelSize, double cellExpansion, double cellConstrainScale, boolean measureShape,
-			boolean measureIntensity, boolean includeProbability
-			) {
+	private static void runDetection(ImageData<BufferedImage> imageData, PathObject parentObject, StarDist2D stardist) {
 		
 		try {
-		
 			semaphore.acquire();
-			
-			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		
+		try {
 			final List<PathObject> parentObjects = new ArrayList<PathObject>();
 			parentObjects.add(parentObject);
 			
-//			final String mainPathUtf8 = STAnDSingleCellGeneExpressionPrediction.class.getProtectionDomain().getCodeSource().getLocation().getPath();
-//			final String mainPathStr = URLDecoder.decode(mainPathUtf8, "UTF-8");
-//			final String standLocation = m_standCommon.COMPILE_TIME? 
-//					m_standCommon.COMPILE_TIME_STAND_LOCATION: 
-//					m_standLocation.get();
-			
-			
-//			final Path stantConfigFilePath = Paths.get(standLocation, "stand.ini");
-//			final Wini stantConfig = new Wini(new File(stantConfigFilePath.toString()));
-//			final String stardistModelLocation = stantConfig.get("DEFAULT", "stardist_model_location", String.class);			
-//			final Path stardistModelPath = Paths.get(standLocation, stardistModelLocation, pathModel+".pb");
-			
-			;
-			
-			// final Path stardistModelPath = modelPath; // Paths.get(sptxSetup.getStardistModelLocationPath(), pathModel+".pb");
-			
-			final Path stardistModelPath = Paths.get(sptxSetup.getStardistModelLocationPath(), modelPath);
-			
-			final Builder stardistBuilder = StarDist2D.builder(stardistModelPath.toString())
-			        .threshold(threshold)
-			        .normalizePercentiles(normalizePercentilesLow, normalizePercentilesHigh)
-			        .pixelSize(pixelSize);
-	
-	        if(!channels.isBlank()) stardistBuilder.channels(channels);
-	        if(cellExpansion > 0) stardistBuilder.cellExpansion(cellExpansion);
-	        if(cellConstrainScale > 0) stardistBuilder.cellConstrainScale(cellConstrainScale);
-			if(measureShape) stardistBuilder.measureShape();
-			if(measureIntensity) stardistBuilder.measureIntensity();
-			if(includeProbability) stardistBuilder.includeProbability(true);
-			
-			final StarDist2D stardist = stardistBuilder.build();
-			
-			
-			
 			stardist.detectObjects((ImageData<BufferedImage>) imageData, parentObjects);
-			
-			
-			
-			semaphore.release();
-				
-			 
-			
-			
-
-		} catch (InterruptedException e) {
-			 // TODO Auto-generated catch block
-			 e.printStackTrace();
 		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			logger.error("StarDist detection failed: " + e.getLocalizedMessage(), e);
+		} finally {
+			semaphore.release();
 		}
 		
 	}
@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Sparse (target object &times; feature) count table filled concurrently by parser workers.
+ * <p>
+ * Each worker accumulates into its own primitive hash table, so counting needs no locking and no per-transcript
+ * allocation. {@link #compact()} then merges the workers into a row-compressed table, which can be written
+ * to the measurement lists of the targets in a single bulk pass.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class TranscriptCountTable {
+
+	final private int nTargets;
+	final private LongIntHashMap[] workerCounts;
+
+	private int[] rowPtr = null;
+	private int[] features = null;
+	private int[] counts = null;
+
+	/**
+	 * Create a table.
+	 * @param nTargets number of target objects (rows)
+	 * @param nWorkers number of concurrent writers
+	 */
+	public TranscriptCountTable(final int nTargets, final int nWorkers) {
+		this.nTargets = nTargets;
+		this.workerCounts = new LongIntHashMap[nWorkers];
+		for (int w = 0; w < nWorkers; w++)
+			workerCounts[w] = new LongIntHashMap(1 << 12, 0);
+	}
+
+	/**
+	 * Increment a count. Each worker index must only be used by one thread at a time.
+	 * @param worker
+	 * @param target
+	 * @param feature
+	 */
+	public void increment(final int worker, final int target, final int feature) {
+		workerCounts[worker].addTo(LongIntHashMap.pack(target, feature), 1);
+	}
+
+	/**
+	 * Add to a count. Each worker index must only be used by one thread at a time.
+	 * @param worker
+	 * @param target
+	 * @param feature
+	 * @param count
+	 */
+	public void add(final int worker, final int target, final int feature, final int count) {
+		workerCounts[worker].addTo(LongIntHashMap.pack(target, feature), count);
+	}
+
+	/**
+	 * @return number of rows
+	 */
+	public int getTargetCount() {
+		return nTargets;
+	}
+
+	/**
+	 * Merge the worker tables into compressed rows, with features sorted within each row.
+	 * Must be called once all workers have finished, and before any of the row accessors.
+	 */
+	public void compact() {
+		final int[] rowCounts = new int[nTargets + 1];
+		for (LongIntHashMap map : workerCounts)
+			map.forEach((k, v) -> rowCounts[LongIntHashMap.hi(k) + 1]++);
+		for (int r = 0; r < nTargets; r++)
+			rowCounts[r+1] += rowCounts[r];
+
+		// Workers may have counted the same (target, feature) pair, so fill first and de-duplicate per row
+		final int[] fill = Arrays.copyOf(rowCounts, nTargets);
+		final long[] entries = new long[rowCounts[nTargets]];
+		for (LongIntHashMap map : workerCounts) {
+			map.forEach((k, v) -> {
+				final int r = LongIntHashMap.hi(k);
+				entries[fill[r]++] = LongIntHashMap.pack(LongIntHashMap.lo(k), v);
+			});
+		}
+		Arrays.fill(workerCounts, null);
+
+		final int[] rowSizes = new int[nTargets];
+		IntStream.range(0, nTargets).parallel().forEach(r -> {
+			final int from = rowCounts[r], to = rowCounts[r+1];
+			Arrays.sort(entries, from, to);
+			int n = 0;
+			for (int i = from; i < to; i++) {
+				if (n > 0 && LongIntHashMap.hi(entries[from+n-1]) == LongIntHashMap.hi(entries[i]))
+					entries[from+n-1] = LongIntHashMap.pack(LongIntHashMap.hi(entries[i]), LongIntHashMap.lo(entries[from+n-1]) + LongIntHashMap.lo(entries[i]));
+				else
+					entries[from+(n++)] = entries[i];
+			}
+			rowSizes[r] = n;
+		});
+
+		rowPtr = new int[nTargets + 1];
+		for (int r = 0; r < nTargets; r++)
+			rowPtr[r+1] = rowPtr[r] + rowSizes[r];
+		features = new int[rowPtr[nTargets]];
+		counts = new int[rowPtr[nTargets]];
+		IntStream.range(0, nTargets).parallel().forEach(r -> {
+			for (int i = 0; i < rowSizes[r]; i++) {
+				final long e = entries[rowCounts[r]+i];
+				features[rowPtr[r]+i] = LongIntHashMap.hi(e);
+				counts[rowPtr[r]+i] = LongIntHashMap.lo(e);
+			}
+		});
+	}
+
+	/**
+	 * @return row offsets into {@link #getFeatures()} and {@link #getCounts()}, of length nTargets+1
+	 */
+	public int[] getRowPointers() {
+		return rowPtr;
+	}
+
+	/**
+	 * @return feature ids of all non-zero entries, row by row
+	 */
+	public int[] getFeatures() {
+		return features;
+	}
+
+	/**
+	 * @return counts of all non-zero entries, row by row
+	 */
+	public int[] getCounts() {
+		return counts;
+	}
+
+	/**
+	 * Write the non-zero counts of every row into the measurement list of the corresponding object.
+	 * Measurement names are built once per feature, and each measurement list is touched once.
+	 * @param targets objects, indexed by row
+	 * @param dictionary feature names
+	 * @param prefix measurement name prefix, e.g. "xenium:cell_transcript:"
+	 */
+	public void writeMeasurements(final List<PathObject> targets, final FeatureDictionary dictionary, final String prefix) {
+		writeMeasurements(targets, dictionary, prefix, false);
+	}
+
+	/**
+	 * Write the counts of every row into the measurement list of the corresponding object.
+	 * Measurement names are built once per feature, and each measurement list is touched once.
+	 * @param targets objects, indexed by row
+	 * @param dictionary feature names
+	 * @param prefix measurement name prefix, e.g. "xenium:cell_transcript:"
+	 * @param includeZeros if true, write 0 for every included feature without a count, as a dense matrix would
+	 */
+	public void writeMeasurements(final List<PathObject> targets, final FeatureDictionary dictionary, final String prefix, final boolean includeZeros) {
+		final int nFeatures = dictionary.size();
+		final String[] names = dictionary.getNames().stream().map(n -> prefix + n).toArray(String[]::new);
+		final boolean[] included = new boolean[nFeatures];
+		for (int f = 0; f < nFeatures; f++)
+			included[f] = dictionary.isIncluded(f);
+
+		IntStream.range(0, nTargets).parallel().forEach(r -> {
+			if (!includeZeros && rowPtr[r] == rowPtr[r+1])
+				return;
+			final MeasurementList measList = targets.get(r).getMeasurementList();
+			if (includeZeros) {
+				int i = rowPtr[r];
+				for (int f = 0; f < nFeatures; f++) {
+					if (i < rowPtr[r+1] && features[i] == f)
+						measList.put(names[f], counts[i++]);
+					else if (included[f])
+						measList.put(names[f], 0);
+				}
+			} else {
+				for (int i = rowPtr[r]; i < rowPtr[r+1]; i++)
+					measList.put(names[features[i]], counts[i]);
+			}
+			measList.close();
+		});
+	}
+
+}
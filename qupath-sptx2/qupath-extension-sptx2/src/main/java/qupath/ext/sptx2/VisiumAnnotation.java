@@ -33,8 +33,8 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import org.locationtech.jts.geom.Geometry;
-// import org.slf4j.Logger;
-// import org.slf4j.LoggerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.opencsv.CSVReader;
 
@@ -42,7 +42,6 @@ import ij.gui.Roi;
 import ij.plugin.filter.ThresholdToSelection;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
-import javafx.geometry.Point2D;
 import qupath.imagej.tools.IJTools;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.images.ImageData;
@@ -75,7 +74,7 @@ import qupath.lib.roi.interfaces.ROI;
  */
 public class VisiumAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 	
-	// final private static Logger logger = LoggerFactory.getLogger(SpTxVisiumAnnotation.class);
+	final private static Logger logger = LoggerFactory.getLogger(VisiumAnnotation.class);
 	
 	private ParameterList params;
 
@@ -118,7 +117,6 @@ public class VisiumAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 		        final HashMap<String, List<Integer>> spatialHMap = new HashMap<String, List<Integer>>();
 		     
 		        String[] spatgialNextRecord;
-		        List<Point2D> posList = new ArrayList<Point2D>();
 		        
 		        while ((spatgialNextRecord = spatialReader.readNext()) != null) {
 		        	List<Integer> list = new ArrayList<Integer>();
@@ -128,8 +126,6 @@ public class VisiumAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 		        	list.add(Integer.parseInt(spatgialNextRecord[4]));
 		        	list.add(Integer.parseInt(spatgialNextRecord[5]));
 		        	
-		        	posList.add(new Point2D(Double.parseDouble(spatgialNextRecord[4]), Double.parseDouble(spatgialNextRecord[5])));
-		        	
 		        	spatialHMap.put(spatgialNextRecord[0], list);
 		        }
 		        
@@ -138,16 +134,26 @@ public class VisiumAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 	        	final double spotDiameter = params.getDoubleParameterValue("spotDiameter");
 	        	final double minSpotDist = params.getDoubleParameterValue("minSpotDist");		        
 		        
-	        	double minDistPxl = -1;
-		        
-		        for(int i = 0; i < posList.size(); i ++) {
-		        	for(int j = 0; j < posList.size(); j ++) {
-		        		final double distPxl = posList.get(i).distance(posList.get(j));
-		        		minDistPxl = (i != j && (minDistPxl < 0 || distPxl < minDistPxl))? distPxl: minDistPxl;
-		        	}
-		        }
-		        
-	        	final double imagePixelSizeMicrons = params.getBooleanParameterValue("estPxlSize")? minSpotDist / minDistPxl: server.getPixelCalibration().getAveragedPixelSizeMicrons();
+	        	final double imagePixelSizeMicrons;
+	        	if(params.getBooleanParameterValue("estPxlSize")) {
+	        		final double[] spotX = new double[spatialHMap.size()];
+	        		final double[] spotY = new double[spatialHMap.size()];
+	        		int s = 0;
+	        		for(List<Integer> list: spatialHMap.values()) {
+	        			spotX[s] = list.get(4);
+	        			spotY[s] = list.get(3);
+	        			s++;
+	        		}
+	        		
+	        		final SpotLattice lattice = SpotLattice.estimate(spotX, spotY);
+	        		logger.info("{}", lattice);
+	        		
+	        		if(Double.isNaN(lattice.getSpacing())) throw new Exception("Cannot estimate the pixel size from fewer than two distinct spots");
+	        		imagePixelSizeMicrons = minSpotDist / lattice.getSpacing();
+	        	}
+	        	else {
+	        		imagePixelSizeMicrons = server.getPixelCalibration().getAveragedPixelSizeMicrons();
+	        	}
 	        	
 	        	ImageServerMetadata metadataNew = new ImageServerMetadata.Builder(server.getMetadata())
 	        			.pixelSizeMicrons(imagePixelSizeMicrons, imagePixelSizeMicrons)
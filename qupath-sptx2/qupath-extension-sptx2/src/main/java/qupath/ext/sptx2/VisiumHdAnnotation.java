@@ -0,0 +1,265 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.beans.property.StringProperty;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.AbstractDetectionPlugin;
+import qupath.lib.plugins.DetectionPluginTools;
+import qupath.lib.plugins.ObjectDetector;
+import qupath.lib.plugins.PluginRunner;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Plugin for loading 10x Visium HD binned outputs
+ * <p>
+ * The 2 &micro;m counts are read once into a {@link BinnedCountPyramid}; 8 and 16 &micro;m bins are summed from them.
+ * Tile objects are only created at the requested bin size, within the selected annotations, and up to a fixed number.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class VisiumHdAnnotation extends AbstractDetectionPlugin<BufferedImage> {
+
+	final private static Logger logger = LoggerFactory.getLogger(VisiumHdAnnotation.class);
+
+	final private StringProperty vsmHdAntnBinnedFldrProp = PathPrefs.createPersistentPreference("vsmHdAntnBinnedFldr", "");
+
+	private ParameterList params;
+
+	final private List<String> binSizeList = BinnedCountPyramid.VISIUM_HD_BIN_SIZES.stream().map(String::valueOf).collect(Collectors.toList());
+
+	private String lastResults = null;
+
+	/**
+	 * Constructor.
+	 */
+	public VisiumHdAnnotation() {
+		params = new ParameterList()
+			.addTitleParameter("10X Visium HD Data Loader")
+			.addStringParameter("binnedDir", "Binned outputs directory", vsmHdAntnBinnedFldrProp.get(), "Space Ranger binned_outputs (or outs) directory")
+			.addChoiceParameter("binSize", "Bin size (" + GeneralTools.micrometerSymbol() + ")", binSizeList.get(1), binSizeList, "Bin size of the created objects; coarser bins are summed from the 2 " + GeneralTools.micrometerSymbol() + " bins")
+			.addBooleanParameter("selectedOnly", "Only bins within the selected annotations? (default: true)", true, "Only create bins whose centres fall within the selected annotations? (default: true)")
+			.addIntParameter("maxObjects", "Maximal number of bins", 500000, null, "Maximal number of bin objects to create")
+			.addEmptyParameter("")
+			.addBooleanParameter("inclGeneExpr", "Include Gene Expression? (default: true)", true, "Include Gene Expression? (default: true)")
+			.addBooleanParameter("inclOtherFeatures", "Include other feature types? (default: false)", false, "Include features whose type is not Gene Expression? (default: false)")
+			.addBooleanParameter("sparseStore", "Keep bin gene expression in a sparse store instead of measurements? (default: true)", true, "Keep bin gene expression in a sparse store, shown as virtual measurements, instead of one measurement per gene per bin? (default: true)")
+			;
+	}
+
+	class AnnotationLoader implements ObjectDetector<BufferedImage> {
+
+		@Override
+		public Collection<PathObject> runDetection(final ImageData<BufferedImage> imageData, final ParameterList params, final ROI pathROI) throws IOException {
+			vsmHdAntnBinnedFldrProp.set(params.getStringParameterValue("binnedDir"));
+
+			final ImageServer<BufferedImage> server = imageData.getServer();
+			final PathObjectHierarchy hierarchy = imageData.getHierarchy();
+			final ArrayList<PathObject> resultPathObjectList = new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+
+			try {
+				if(params.getStringParameterValue("binnedDir").isBlank()) throw new Exception("binnedDir is blank");
+
+				final List<PathObject> selectedAnnotationPathObjectList = new ArrayList<>();
+
+				for (PathObject pathObject : hierarchy.getSelectionModel().getSelectedObjects()) {
+					if (pathObject.isAnnotation())
+						selectedAnnotationPathObjectList.add(pathObject);
+				}
+
+				final boolean selectedOnly = params.getBooleanParameterValue("selectedOnly");
+				if(selectedOnly && selectedAnnotationPathObjectList.isEmpty()) throw new Exception("Missed selected annotations");
+
+				/*
+				 * Read the 2 um bins once (cached as sidecars), and sum them up to the requested bin size
+				 */
+
+				final BinnedCountPyramid pyramid = BinnedCountPyramid.readVisiumHd(new File(params.getStringParameterValue("binnedDir")), SidecarCache.forCurrentProject());
+				final int binSize = Integer.parseInt((String)params.getChoiceParameterValue("binSize"));
+				final FeatureMatrix level = pyramid.getLevel(binSize);
+				final int nBins = level.getRowCount();
+
+				/*
+				 * Keep the bins falling within the selected annotations, or within the image
+				 */
+
+				final double[] xCentres = new double[nBins];
+				final double[] yCentres = new double[nBins];
+				IntStream.range(0, nBins).parallel().forEach(b -> {
+					final double[] xy = new double[2];
+					pyramid.getCentre(binSize, level.getRowKey(b), xy);
+					xCentres[b] = xy[0];
+					yCentres[b] = xy[1];
+				});
+
+				final int[] binLocations;
+				if(selectedOnly) {
+					binLocations = new PathObjectPointLocator(selectedAnnotationPathObjectList).locateAll(xCentres, yCentres);
+				}
+				else {
+					final int width = server.getWidth();
+					final int height = server.getHeight();
+					binLocations = IntStream.range(0, nBins).map(b -> xCentres[b] >= 0 && yCentres[b] >= 0 && xCentres[b] < width && yCentres[b] < height? 0: -1).toArray();
+				}
+
+				final int[] keptBins = IntStream.range(0, nBins).filter(b -> binLocations[b] >= 0).toArray();
+
+				final int maxObjects = params.getIntParameterValue("maxObjects");
+				if(keptBins.length > maxObjects) throw new Exception(keptBins.length+" bins of "+binSize+" um exceed the limit of "+maxObjects+" objects, please select smaller regions or a larger bin size");
+
+				/*
+				 * Create the bin objects and gather their counts
+				 */
+
+				final ImagePlane plane = ImagePlane.getDefaultPlane();
+				final PathObject[] binPathObjects = new PathObject[keptBins.length];
+				IntStream.range(0, keptBins.length).parallel().forEach(i -> {
+					final int b = keptBins[i];
+					final PathObject pathObj = PathObjects.createTileObject(pyramid.createBinROI(binSize, level.getRowKey(b), plane));
+					pathObj.setName(level.getRowName(b));
+					binPathObjects[i] = pathObj;
+				});
+				final List<PathObject> binPathObjectList = Arrays.asList(binPathObjects);
+
+				final int[] binToTarget = new int[nBins];
+				Arrays.fill(binToTarget, -1);
+				for(int i = 0; i < keptBins.length; i ++) binToTarget[keptBins[i]] = i;
+
+				final boolean inclGeneExpr = params.getBooleanParameterValue("inclGeneExpr");
+				final boolean inclOtherFeatures = params.getBooleanParameterValue("inclOtherFeatures");
+				final FeatureDictionary featureDictionary = new FeatureDictionary();
+				final int[] featureToDictId = new int[level.getFeatureCount()];
+				for(int f = 0; f < featureToDictId.length; f ++) {
+					final boolean geneExpr = "Gene Expression".equals(level.getFeatureType(f));
+					featureToDictId[f] = (geneExpr && inclGeneExpr) || (!geneExpr && inclOtherFeatures)? featureDictionary.intern(level.getFeatureName(f)): -1;
+				}
+
+				final TranscriptCountTable binTable = level.toCountTable(binToTarget, keptBins.length, featureToDictId);
+
+				if(params.getBooleanParameterValue("sparseStore"))
+					GeneExpressionStore.setStore(imageData, GeneExpressionStore.fromCountTable("visiumhd:bin_transcript:", binTable, binPathObjectList, featureDictionary));
+				else
+					binTable.writeMeasurements(binPathObjectList, featureDictionary, "visiumhd:bin_transcript:", true);
+
+				resultPathObjectList.addAll(binPathObjectList);
+
+				logger.info("Created {} bins of {} um from {}", keptBins.length, binSize, params.getStringParameterValue("binnedDir"));
+
+				hierarchy.getSelectionModel().setSelectedObject(null);
+			}
+			catch(Exception e) {
+				Dialogs.showErrorMessage("Error", e.getMessage());
+
+				lastResults =  "Something went wrong: "+e.getMessage();
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			if (Thread.currentThread().isInterrupted()) {
+				Dialogs.showErrorMessage("Warning", "Interrupted!");
+
+				lastResults =  "Interrupted!";
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			return resultPathObjectList;
+		}
+
+
+		@Override
+		public String getLastResultsDescription() {
+			return lastResults;
+		}
+
+
+	}
+
+	@Override
+	public ParameterList getDefaultParameterList(final ImageData<BufferedImage> imageData) {
+		return params;
+	}
+
+	@Override
+	public String getName() {
+		return "Import 10x Visium HD Annotation";
+	}
+
+	@Override
+	public String getLastResultsDescription() {
+		return lastResults;
+	}
+
+
+	@Override
+	public String getDescription() {
+		return "Create Visium HD bin objects at a chosen bin size, with their gene expression";
+	}
+
+
+	@Override
+	protected void addRunnableTasks(ImageData<BufferedImage> imageData, PathObject parentObject, List<Runnable> tasks) {
+		tasks.add(DetectionPluginTools.createRunnableTask(new AnnotationLoader(), getParameterList(imageData), imageData, parentObject));
+	}
+
+
+	@Override
+	protected Collection<? extends PathObject> getParentObjects(final PluginRunner<BufferedImage> runner) {
+		PathObjectHierarchy hierarchy = getHierarchy(runner);
+		if (hierarchy.getTMAGrid() == null)
+			return Collections.singleton(hierarchy.getRootObject());
+
+		return hierarchy.getSelectionModel().getSelectedObjects().stream().filter(p -> p.isTMACore()).collect(Collectors.toList());
+	}
+
+
+	@Override
+	public Collection<Class<? extends PathObject>> getSupportedParentObjectClasses() {
+		return Arrays.asList(
+				PathAnnotationObject.class,
+				TMACoreObject.class
+				);
+	}
+
+}
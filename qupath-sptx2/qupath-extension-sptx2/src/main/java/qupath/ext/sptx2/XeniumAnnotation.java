@@ -127,12 +127,14 @@ public class XeniumAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 			.addBooleanParameter("inclBlankCodeword", "Include Blank Codeword? (default: false)", false, "Include Blank Codeword? (default: false)")		
 			.addBooleanParameter("inclNegCtrlCodeword", "Include Negative Control Codeword? (default: false)", false, "Include Negative Control Codeword? (default: false)")		
 			.addBooleanParameter("inclNegCtrlProbe", "Include Negative Control Probe? (default: false)", false, "Include Negative Control Probe? (default: false)")		
+			.addBooleanParameter("sparseStore", "Keep cell gene expression in a sparse store instead of measurements? (default: false)", false, "Keep cell gene expression in a sparse store, shown as virtual measurements, instead of one measurement per gene per cell? (default: false)")		
 			.addEmptyParameter("")
 			.addEmptyParameter("Options for loading raw transcript data")
 			.addDoubleParameter("qv", "Minimal Q-Value", 0.0, null, "Minimal Q-Value")		
 			.addBooleanParameter("transcriptOnNucleusOnly", "Only the transcripts overlapped on nucleus? (default: true)", true, "Only the transcripts overlapped on nucleus? (default: true)")		
 			.addBooleanParameter("transcriptBelongsToCell", "Only the transcripts belongs to a cell (based on DAPI)? (default: true)", true, "Only the transcripts belongs to a cell? (default: true)")		
 			.addEmptyParameter("")
+			.addBooleanParameter("rasterAssignment", "Assign transcripts through a tiled label raster? (default: false)", false, "Assign transcripts through a lazily rasterised label raster at the downsampling below, instead of exact geometry tests? (default: false)")		
 			.addIntParameter("maskDownsampling", "Downsampling for transcript to cell assignment", 2, null, "Downsampling for cell-transciptome assignment")			
 			;
 	}
@@ -172,90 +174,25 @@ public class XeniumAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 				
 				if(selectedAnnotationPathObjectList.isEmpty()) throw new Exception("Missed selected annotations");
 
-				final int maskDownsampling = params.getIntParameterValue("maskDownsampling");;
-				final int maskWidth = (int)Math.round(imageData.getServer().getWidth()/maskDownsampling);
-				final int maskHeight = (int)Math.round(imageData.getServer().getHeight()/maskDownsampling);	
+				final int maskDownsampling = params.getIntParameterValue("maskDownsampling");
 				
-				
-				
-				
-				final BufferedImage annotPathObjectImageMask = new BufferedImage(maskWidth, maskHeight, BufferedImage.TYPE_INT_RGB);
 				final List<PathObject> annotPathObjectList = new ArrayList<PathObject>();						
-				
-				final Graphics2D annotPathObjectG2D = annotPathObjectImageMask.createGraphics();				
-				annotPathObjectG2D.setBackground(new Color(0, 0, 0));
-				annotPathObjectG2D.clearRect(0, 0, maskWidth, maskHeight);
-				
-				annotPathObjectG2D.setClip(0, 0, maskWidth, maskHeight);
-				annotPathObjectG2D.scale(1.0/maskDownsampling, 1.0/maskDownsampling);					    
-				
-				
-				
-				
-				
-				final BufferedImage pathObjectImageMask = new BufferedImage(maskWidth, maskHeight, BufferedImage.TYPE_INT_RGB);
 				final List<PathObject> pathObjectList = new ArrayList<PathObject>();						
 				
-				final Graphics2D pathObjectG2D = pathObjectImageMask.createGraphics();				
-				pathObjectG2D.setBackground(new Color(0, 0, 0));
-				pathObjectG2D.clearRect(0, 0, maskWidth, maskHeight);
+				for(PathObject p: selectedAnnotationPathObjectList) {
+					annotPathObjectList.add(p);
+					pathObjectList.addAll(p.getChildObjects());
+				}
 				
-				pathObjectG2D.setClip(0, 0, maskWidth, maskHeight);
-				pathObjectG2D.scale(1.0/maskDownsampling, 1.0/maskDownsampling);
+				/*
+				 * Assign points to objects through a spatial index over their ROIs, optionally via lazily rasterised label tiles
+				 */
 				
-				try {
-					int annotPathObjectCount = 1;
-					int pathObjectCount = 1;
-					
-					for(PathObject p: selectedAnnotationPathObjectList) {
-						
-						
-						annotPathObjectList.add(p);
-					    
-					    final int pb0 = (annotPathObjectCount & 0xff) >> 0; // b
-					    final int pb1 = (annotPathObjectCount & 0xff00) >> 8; // g
-					    final int pb2 = (annotPathObjectCount & 0xff0000) >> 16; // r
-					    final Color pMaskColor = new Color(pb2, pb1, pb0); // r, g, b
-				    
-					    final ROI pRoi = p.getROI();
-						final Shape pShape = pRoi.getShape();
-						
-						annotPathObjectG2D.setColor(pMaskColor);
-						annotPathObjectG2D.fill(pShape);
-						
-						annotPathObjectCount ++;
-					    if(annotPathObjectCount == 0xffffff) {
-					    	throw new Exception("annotation count overflow!");
-					    }
-						
-						for(PathObject c: p.getChildObjects()) {
-							pathObjectList.add(c);
-						    
-						    final int b0 = (pathObjectCount & 0xff) >> 0; // b
-						    final int b1 = (pathObjectCount & 0xff00) >> 8; // g
-						    final int b2 = (pathObjectCount & 0xff0000) >> 16; // r
-						    final Color maskColor = new Color(b2, b1, b0); // r, g, b
-					    
-						    final ROI roi = c.getROI();
-							final Shape shape = roi.getShape();
-							
-							pathObjectG2D.setColor(maskColor);
-							pathObjectG2D.fill(shape);
-							
-							pathObjectCount ++;
-						    if(pathObjectCount == 0xffffff) {
-						    	throw new Exception("Cell count overflow!");
-						    }
-						}
-					}	
-				}
-				catch(Exception e) {
-					throw e;
-				}
-				finally {
-					annotPathObjectG2D.dispose();	
-					pathObjectG2D.dispose();	
-				}
+				final PathObjectPointLocator annotPathObjectIndex = new PathObjectPointLocator(annotPathObjectList);
+				final PathObjectPointLocator pathObjectIndex = new PathObjectPointLocator(pathObjectList);
+				
+				final PointLocator annotPathObjectLocator = params.getBooleanParameterValue("rasterAssignment")? annotPathObjectIndex.createTiledRaster(maskDownsampling, 512): annotPathObjectIndex;
+				final PointLocator pathObjectLocator = params.getBooleanParameterValue("rasterAssignment")? pathObjectIndex.createTiledRaster(maskDownsampling, 512): pathObjectIndex;
 				
 	            /*
 	             * Read single cell data
@@ -265,70 +202,66 @@ public class XeniumAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 				
 				if(params.getStringParameterValue("xeniumDir").isBlank()) throw new Exception("singleCellFile is blank");
 				
-				final HashMap<Integer, Integer> cellToClusterHashMap = new HashMap<>();
+				/*
+				 * Parsed cells, clusters and the sparse matrix are cached as sidecars in the project directory, 
+				 * so that reloading the same Xenium output skips decompression and parsing
+				 */
+				
+				final File xeniumDir = new File(params.getStringParameterValue("xeniumDir"));
+				final SidecarCache sidecarCache = SidecarCache.forCurrentProject();
 				
-				final String clusterFilePath = java.nio.file.Paths.get(params.getStringParameterValue("xeniumDir"), "analysis", "clustering", "gene_expression_graphclust", "clusters.csv").toString();
-				final FileReader clusterFileReader = new FileReader(new File(clusterFilePath));
-				final BufferedReader clusterReader = new BufferedReader(clusterFileReader);
-				clusterReader.readLine();
-				String clusterNextRecord;
+				final CellTable cellTable = sidecarCache.load("xenium-cells", CellTable.getXeniumSources(xeniumDir), CellTable.CODEC, 
+						() -> CellTable.readXenium(xeniumDir, dapiImageHeightMicrons, dapiImagePixelSizeMicrons, affineMtx));
 				
-				while ((clusterNextRecord = clusterReader.readLine()) != null) {
-		        	final String[] clusterNextRecordArray = clusterNextRecord.split(",");
-		        	final int cellId = Integer.parseInt(clusterNextRecordArray[0]);
-		        	final int clusterId = Integer.parseInt(clusterNextRecordArray[1]);
-		        	cellToClusterHashMap.put(cellId, clusterId);
-				}
+				final double[] xCentroids = cellTable.getColumn("x_centroid");
+				final double[] yCentroids = cellTable.getColumn("y_centroid");
+				final double[] transcriptCountsColumn = cellTable.getColumn("transcript_counts");
+				final double[] controlProbeCountsColumn = cellTable.getColumn("control_probe_counts");
+				final double[] controlCodewordCountsColumn = cellTable.getColumn("control_codeword_counts");
+				final double[] totalCountsColumn = cellTable.getColumn("total_counts");
+				final double[] cellAreaColumn = cellTable.getColumn("cell_area");
+				final double[] nucleusAreaColumn = cellTable.getColumn("nucleus_area");
 				
-				clusterReader.close();
+				/*
+				 * Cells loaded by XeniumBoundaryAnnotation carry their Xenium cell id, and are matched by it instead of by location
+				 */
 				
-				final HashMap<Integer, PathObject> cellToPathObjHashMap = new HashMap<>();
-			
-				final String singleCellFilePath = java.nio.file.Paths.get(params.getStringParameterValue("xeniumDir"), "cells.csv.gz").toString();
-				final GZIPInputStream singleCellGzipStream = new GZIPInputStream(new FileInputStream(singleCellFilePath));
-				final BufferedReader singleCellGzipReader = new BufferedReader(new InputStreamReader(singleCellGzipStream));
-				singleCellGzipReader.readLine();
-				String singleCellNextRecord;
+				final LongIntHashMap pathObjIdIndex = new LongIntHashMap(pathObjectList.size());
+				for(int p = 0; p < pathObjectList.size(); p ++) {
+					final MeasurementList measList = pathObjectList.get(p).getMeasurementList();
+					if(measList.containsKey("xenium:cell:cell_id")) pathObjIdIndex.put((long)measList.get("xenium:cell:cell_id"), p);
+				}
+				final boolean matchById = pathObjIdIndex.size() > 0;
 				
-		        while ((singleCellNextRecord = singleCellGzipReader.readLine()) != null) {
-		        	final String[] singleCellNextRecordArray = singleCellNextRecord.split(",");
-		        	final int cellId = Integer.parseInt(singleCellNextRecordArray[0]);
-		        	
-		        	final double transcriptCounts = Double.parseDouble(singleCellNextRecordArray[3]);
-		        	final double controlProbeCounts = Double.parseDouble(singleCellNextRecordArray[4]);
-		        	final double controlCodewordCounts = Double.parseDouble(singleCellNextRecordArray[5]);
-		        	final double totalCounts = Double.parseDouble(singleCellNextRecordArray[6]);
-		        	final double cellArea = Double.parseDouble(singleCellNextRecordArray[7]);
-		        	final double nucleusArea = Double.parseDouble(singleCellNextRecordArray[8]);
+				final int[] cellTargets = matchById? 
+						IntStream.range(0, cellTable.size()).map(i -> pathObjIdIndex.get(cellTable.getKey(i))).toArray(): 
+						cellTable.locate(pathObjectLocator);
+				final LongIntHashMap cellToPathObjIndex = new LongIntHashMap(cellTable.size());
+				
+		        for(int i = 0; i < cellTable.size(); i ++) {
+		        	final int pathObjectId = cellTargets[i];
 		        	
-		        	final double cx = Double.parseDouble(singleCellNextRecordArray[1]);
-		        	final double cy = Double.parseDouble(singleCellNextRecordArray[2]);
+		        	if(pathObjectId < 0) continue; // This location doesn't have a cell.
 		        	
-		        	final double dx = cx/dapiImagePixelSizeMicrons;
-		        	final double dy = (dapiImageHeightMicrons-cy)/dapiImagePixelSizeMicrons;
+		        	final int cellId = (int)cellTable.getKey(i);
 		        	
-		        	final double aX = affineMtx[0] * dx + affineMtx[1] * dy + affineMtx[2] * 1.0;
-		        	final double aY = affineMtx[3] * dx + affineMtx[4] * dy + affineMtx[5] * 1.0;
-		     
-		        	final int fX = (int)Math.round(aX / maskDownsampling);
-		        	final int fY = (int)Math.round(aY / maskDownsampling);
+		        	final double transcriptCounts = transcriptCountsColumn[i];
+		        	final double controlProbeCounts = controlProbeCountsColumn[i];
+		        	final double controlCodewordCounts = controlCodewordCountsColumn[i];
+		        	final double totalCounts = totalCountsColumn[i];
+		        	final double cellArea = cellAreaColumn[i];
+		        	final double nucleusArea = nucleusAreaColumn[i];
 		        	
-		        	if(fX < 0 || fX >= pathObjectImageMask.getWidth() || fY < 0 || fY >=  pathObjectImageMask.getHeight()) continue;
+		        	final double cx = xCentroids[i];
+		        	final double cy = yCentroids[i];
 		        	
-		        	final int v = pathObjectImageMask.getRGB(fX, fY);
-		        	final int d0 = v&0xff;
-		        	final int d1 = (v>>8)&0xff;
-		        	final int d2 = (v>>16)&0xff;
-					final int r = d2*0x10000+d1*0x100+d0;
-				    
-		        	if(r == 0) continue; // This location doesn't have a cell.
-			        	
-		        	final int pathObjectId = r - 1;  // pathObjectId starts at 1, since 0 means background
+		        	final double aX = cellTable.getX(i);
+		        	final double aY = cellTable.getY(i);
 			        	
 		        	final PathObject cellPathObject = pathObjectList.get(pathObjectId);
-		        	cellToPathObjHashMap.put(cellId, cellPathObject);
+		        	cellToPathObjIndex.put(cellId, pathObjectId);
 		        	
-		        	final Integer clusterId = cellToClusterHashMap.get(cellId);
+		        	final Integer clusterId = cellTable.getCluster(i) != CellTable.NO_CLUSTER? cellTable.getCluster(i): null;
 		        	
 		        	if(clusterId != null) {
 		        		final PathClass pathCls = PathClassFactory.getPathClass("xenium:cluster:"+Integer.toString(clusterId));
@@ -339,7 +272,7 @@ public class XeniumAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 		        	final double roiY = cellPathObject.getROI().getCentroidY();
 		        	final double newDist = (new Point2D(aX, aY).distance(roiX, roiY))*pixelSizeMicrons;
 		        	final MeasurementList pathObjMeasList = cellPathObject.getMeasurementList();
-		        	if(pathObjMeasList.containsKey("xenium:cell:cell_id")) {
+		        	if(!matchById && pathObjMeasList.containsKey("xenium:cell:cell_id")) {
 		        		final double minDist = pathObjMeasList.get("xenium:cell:displacement");
 		        		if(newDist < minDist) {
 		        			pathObjMeasList.put("xenium:cell:cell_id", cellId);
@@ -378,8 +311,6 @@ public class XeniumAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 	        	
 	        	
 	        	
-		        	
-		        singleCellGzipReader.close();
 				
 				
 				/*
@@ -387,94 +318,52 @@ public class XeniumAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 	             */
 					
 		        if(!params.getBooleanParameterValue("fromTranscriptFile")) {
-					final String barcodeFilePath = java.nio.file.Paths.get(params.getStringParameterValue("xeniumDir"), "cell_feature_matrix", "barcodes.tsv.gz").toString();
-					final String featureFilePath = java.nio.file.Paths.get(params.getStringParameterValue("xeniumDir"), "cell_feature_matrix", "features.tsv.gz").toString();
-					final String matrixFilePath = java.nio.file.Paths.get(params.getStringParameterValue("xeniumDir"), "cell_feature_matrix", "matrix.mtx.gz").toString();
-					
-					final GZIPInputStream barcodeGzipStream = new GZIPInputStream(new FileInputStream(barcodeFilePath));
-					final BufferedReader barcodeGzipReader = new BufferedReader(new InputStreamReader(barcodeGzipStream));
-					
-			        final List<Integer> barcodeList = new ArrayList<>();
-			        
-			        String barcodeNextRecord;
-			        while ((barcodeNextRecord = barcodeGzipReader.readLine()) != null) {
-			        	barcodeList.add(Integer.parseInt(barcodeNextRecord));
-			        }
-			        
-			        final List<String> featureIdList = new ArrayList<>();
-			        final List<String> featureNameList = new ArrayList<>();
-			        final List<String> featureTypeList = new ArrayList<>();
+		        	final File matrixDir = new File(xeniumDir, "cell_feature_matrix");
+		        	
+		        	final FeatureMatrix featureMatrix = sidecarCache.load("xenium-matrix", FeatureMatrix.get10xSources(matrixDir), FeatureMatrix.CODEC, 
+		        			() -> FeatureMatrix.read10x(matrixDir));
 			        
-					final GZIPInputStream featureGzipStream = new GZIPInputStream(new FileInputStream(featureFilePath));
-					final BufferedReader featureGzipReader = new BufferedReader(new InputStreamReader(featureGzipStream));
+			        /*
+			         * Gather the sparse matrix into per-cell counts. Features rejected by the feature-type 
+			         * filters are mapped to -1 once here, instead of being compared for every matrix entry.
+			         */
 			        
-			        String featureNextRecord;
-			        while ((featureNextRecord = featureGzipReader.readLine()) != null) {
-			        	final String[] featureNextRecordArray = featureNextRecord.split("\t");
-			        	featureIdList.add(featureNextRecordArray[0]);
-			        	featureNameList.add(featureNextRecordArray[1]);
-			        	featureTypeList.add(featureNextRecordArray[2]);
+			        final FeatureDictionary featureDictionary = new FeatureDictionary();
+			        final int[] featureToDictId = new int[featureMatrix.getFeatureCount()];
+			        for(int f = 0; f < featureMatrix.getFeatureCount(); f ++) {
+			        	final String featureType = featureMatrix.getFeatureType(f);
+			        	final boolean included = 
+			        			featureType.compareTo("Blank Codeword") == 0? params.getBooleanParameterValue("inclBlankCodeword"):
+			        			featureType.compareTo("Gene Expression") == 0? params.getBooleanParameterValue("inclGeneExpr"):
+			        			featureType.compareTo("Negative Control Codeword") == 0? params.getBooleanParameterValue("inclNegCtrlCodeword"):
+			        			featureType.compareTo("Negative Control Probe") == 0? params.getBooleanParameterValue("inclNegCtrlProbe"):
+			        			true;
+			        	featureToDictId[f] = included? featureDictionary.intern(featureMatrix.getFeatureName(f)): -1;
 			        }
 			        
-			        final GZIPInputStream matrixGzipStream = new GZIPInputStream(new FileInputStream(matrixFilePath));
-			        final BufferedReader matrixGzipReader = new BufferedReader(new InputStreamReader(matrixGzipStream), '\t');
-					
-			        matrixGzipReader.readLine();
-			        matrixGzipReader.readLine();
-			        matrixGzipReader.readLine();
-			        
-			        final int[][] matrix = new int[featureNameList.size()][barcodeList.size()];
-			        
-			        String matrixNextRecord;
-			        while ((matrixNextRecord = matrixGzipReader.readLine()) != null) {
-			        	final String[] matrixNextRecordArray = matrixNextRecord.split(" ");
-			        	final int f = Integer.parseInt(matrixNextRecordArray[0])-1;
-			        	final int b = Integer.parseInt(matrixNextRecordArray[1])-1;
-			        	final int v = Integer.parseInt(matrixNextRecordArray[2]);
-			        	
-			        	matrix[f][b] = v;
+			        final List<PathObject> barcodePathObjectList = new ArrayList<>();
+			        final int[] pathObjectToTarget = new int[pathObjectList.size()];
+			        Arrays.fill(pathObjectToTarget, -1);
+			        final int[] barcodeToTarget = new int[featureMatrix.getRowCount()];
+			        for(int b = 0; b < featureMatrix.getRowCount(); b ++) {
+			        	final int pathObjectId = cellToPathObjIndex.get(featureMatrix.getRowKey(b));
+			        	if(pathObjectId < 0) {
+			        		barcodeToTarget[b] = -1;
+			        		continue;
+			        	}
+			        	if(pathObjectToTarget[pathObjectId] < 0) {
+			        		pathObjectToTarget[pathObjectId] = barcodePathObjectList.size();
+			        		barcodePathObjectList.add(pathObjectList.get(pathObjectId));
+			        	}
+			        	barcodeToTarget[b] = pathObjectToTarget[pathObjectId];
 			        }
 			        
+			        final TranscriptCountTable matrixTable = featureMatrix.toCountTable(barcodeToTarget, barcodePathObjectList.size(), featureToDictId);
 			        
-			        for(int b = 0; b < barcodeList.size(); b ++) {
-			        	if(cellToPathObjHashMap.containsKey(barcodeList.get(b))) {
-				        	final PathObject c = cellToPathObjHashMap.get(barcodeList.get(b));
-				        	final MeasurementList pathObjMeasList = c.getMeasurementList();
-				        	
-				        	for(int f = 0; f < featureNameList.size(); f ++) {	
-				        		if(!params.getBooleanParameterValue("inclBlankCodeword") && (featureTypeList.get(f).compareTo("Blank Codeword") == 0)) continue;
-			        			if(!params.getBooleanParameterValue("inclGeneExpr") && (featureTypeList.get(f).compareTo("Gene Expression") == 0)) continue;
-			        			if(!params.getBooleanParameterValue("inclNegCtrlCodeword") && (featureTypeList.get(f).compareTo("Negative Control Codeword") == 0)) continue;
-			        			if(!params.getBooleanParameterValue("inclNegCtrlProbe") && (featureTypeList.get(f).compareTo("Negative Control Probe") == 0)) continue;
-				        		
-			        			pathObjMeasList.put("xenium:cell_transcript:"+featureNameList.get(f), matrix[f][b]);  
-				        			 
-				        	}
-				        	
-				        	pathObjMeasList.close();
-				        	
-//				        	if(params.getBooleanParameterValue("consolToAnnot") && hierarchy.getRootObject() != c.getParent()) {
-//				        		
-//				        		final MeasurementList parentPathObjMeasList = c.getParent().getMeasurementList();
-//				        		
-//				        		for(int f = 0; f < featureNameList.size(); f ++) {	
-//				        			if(!params.getBooleanParameterValue("inclBlankCodeword") && (featureTypeList.get(f).compareTo("Blank Codeword") == 0)) continue;
-//				        			if(!params.getBooleanParameterValue("inclGeneExpr") && (featureTypeList.get(f).compareTo("Gene Expression") == 0)) continue;
-//				        			if(!params.getBooleanParameterValue("inclNegCtrlCodeword") && (featureTypeList.get(f).compareTo("Negative Control Codeword") == 0)) continue;
-//				        			if(!params.getBooleanParameterValue("inclNegCtrlProbe") && (featureTypeList.get(f).compareTo("Negative Control Probe") == 0)) continue;
-//				        			
-//				        			final double oldVal = 
-//				        					parentPathObjMeasList.containsKey("xenium:spot_transcript:"+featureNameList.get(f))? 
-//				        					parentPathObjMeasList.get("xenium:spot_transcript:"+featureNameList.get(f)): 
-//				        					0.0;
-//				        	
-//					        		parentPathObjMeasList.put("xenium:spot_transcript:"+featureNameList.get(f), matrix[f][b]+oldVal);  
-//					        	}
-//				        		
-//					        	parentPathObjMeasList.close();
-//				        	}
-			        	}
-			        }
+			        if(params.getBooleanParameterValue("sparseStore"))
+			        	GeneExpressionStore.setStore(imageData, GeneExpressionStore.fromCountTable("xenium:cell_transcript:", matrixTable, barcodePathObjectList, featureDictionary));
+			        else
+			        	matrixTable.writeMeasurements(barcodePathObjectList, featureDictionary, "xenium:cell_transcript:", true);
 				}
 		        else {    
 			        
@@ -485,105 +374,31 @@ public class XeniumAnnotation extends AbstractDetectionPlugin<BufferedImage> {
 		        	
 					final String transcriptFilePath = java.nio.file.Paths.get(params.getStringParameterValue("xeniumDir"), "transcripts.csv.gz").toString();
 					
-					final GZIPInputStream transcriptGzipStream = new GZIPInputStream(new FileInputStream(transcriptFilePath));
-					final CSVReader transcriptGzipReader = new CSVReader(new InputStreamReader(transcriptGzipStream));
+					final XeniumTranscriptIngest transcriptIngest = new XeniumTranscriptIngest(dapiImageHeightMicrons, dapiImagePixelSizeMicrons, affineMtx)
+							.featureTypes(
+									params.getBooleanParameterValue("inclGeneExpr"), 
+									params.getBooleanParameterValue("inclBlankCodeword"), 
+									params.getBooleanParameterValue("inclNegCtrlCodeword"), 
+									params.getBooleanParameterValue("inclNegCtrlProbe"))
+							.transcriptFilters(
+									params.getDoubleParameterValue("qv"), 
+									params.getBooleanParameterValue("transcriptOnNucleusOnly"), 
+									params.getBooleanParameterValue("transcriptBelongsToCell"));
 					
-					transcriptGzipReader.readNext();
-			        
-			        String[] transcriptNextRecord;
-			        while ((transcriptNextRecord = transcriptGzipReader.readNext()) != null) {
-			        	final double qv = Double.parseDouble(transcriptNextRecord[7]);
-			        	final int overlaps_nucleus = Integer.parseInt(transcriptNextRecord[2]);
-			        	final int cellId = Integer.parseInt(transcriptNextRecord[1]);
-			        	
-			        	if(params.getBooleanParameterValue("transcriptOnNucleusOnly") && overlaps_nucleus == 0) continue;
-			        	if(qv < params.getDoubleParameterValue("qv")) continue;
-			        	if(params.getBooleanParameterValue("transcriptBelongsToCell") && cellId == -1) continue;
-			        	if(!params.getBooleanParameterValue("inclBlankCodeword") && transcriptNextRecord[3].startsWith("BLANK_")) continue;
-			        	if(!params.getBooleanParameterValue("inclNegCtrlCodeword") && transcriptNextRecord[3].startsWith("NegControlCodeword_")) continue;
-			        	if(!params.getBooleanParameterValue("inclNegCtrlProbe") && transcriptNextRecord[3].startsWith("NegControlProbe_")) continue;
-			        	if(!params.getBooleanParameterValue("inclGeneExpr") && !transcriptNextRecord[3].startsWith("BLANK_") && !transcriptNextRecord[3].startsWith("NegControlCodeword_") && !transcriptNextRecord[3].startsWith("NegControlProbe_")) continue;
-			        	
-			        	
-			        			
-			        	final double cx = Double.parseDouble(transcriptNextRecord[4]);
-			        	final double cy = Double.parseDouble(transcriptNextRecord[5]);
-			        	
-			        	final double dx = cx/dapiImagePixelSizeMicrons;
-			        	final double dy = (dapiImageHeightMicrons-cy)/dapiImagePixelSizeMicrons;
-			        	
-			        	final double aX = affineMtx[0] * dx + affineMtx[1] * dy + affineMtx[2] * 1.0;
-			        	final double aY = affineMtx[3] * dx + affineMtx[4] * dy + affineMtx[5] * 1.0;
-			     
-			        	final int fX = (int)Math.round(aX / maskDownsampling);
-			        	final int fY = (int)Math.round(aY / maskDownsampling);
-			        	
-			        	final int cv = pathObjectImageMask.getRGB(fX, fY);
-			        	final int cd0 = cv&0xff;
-			        	final int cd1 = (cv>>8)&0xff;
-			        	final int cd2 = (cv>>16)&0xff;
-						final int cr = cd2*0x10000+cd1*0x100+cd0;
-						
-			        	if(cr != 0) { // This location doesn't have a cell.
-				        	final int pathObjectId = cr - 1;  // pathObjectId starts at 1, since 0 means background
-				        	
-				        	final PathObject cellPathObject = pathObjectList.get(pathObjectId);
-				        	
-				        	final MeasurementList pathObjMeasList = cellPathObject.getMeasurementList();
-		
-				        	if(pathObjMeasList.containsNamedMeasurement("xenium:cell_transcript:"+transcriptNextRecord[3])) {
-				        		final double transcriptCount = pathObjMeasList.getMeasurementValue("xenium:cell_transcript:"+transcriptNextRecord[3]);
-				        		pathObjMeasList.putMeasurement("xenium:cell_transcript:"+transcriptNextRecord[3], transcriptCount+1.0);
-				        	}
-				        	else {
-				        		pathObjMeasList.putMeasurement("xenium:"+transcriptNextRecord[3], 1.0); 		        
-				        	}
-				        	
-				        	pathObjMeasList.close();
-			        	}
-			        	
-			        	
-			        	
-			        	final int av = annotPathObjectImageMask.getRGB(fX, fY);
-			        	final int ad0 = av&0xff;
-			        	final int ad1 = (av>>8)&0xff;
-			        	final int ad2 = (av>>16)&0xff;
-						final int ar = ad2*0x10000+ad1*0x100+ad0;
-						
-						
-			        	if(ar != 0) { // This location doesn't have a cell.
-				        	final int annotPathObjectId = ar - 1;  // pathObjectId starts at 1, since 0 means background
-				        	
-				        	final PathObject annotPathObject = annotPathObjectList.get(annotPathObjectId);
-				        	
-				        	final MeasurementList annotPathObjMeasList = annotPathObject.getMeasurementList();
-		
-				        	if(annotPathObjMeasList.containsNamedMeasurement("xenium:spot_transcript:"+transcriptNextRecord[3])) {
-				        		final double transcriptCount = annotPathObjMeasList.getMeasurementValue("xenium:spot_transcript:"+transcriptNextRecord[3]);
-				        		annotPathObjMeasList.putMeasurement("xenium:spot_transcript:"+transcriptNextRecord[3], transcriptCount+1.0);
-				        	}
-				        	else {
-				        		annotPathObjMeasList.putMeasurement("xenium:spot_transcript:"+transcriptNextRecord[3], 1.0); 		        
-				        	}
-				        	
-				        	annotPathObjMeasList.close();
-			        	}        	
-	
-			        	
-			        	
-			        	
-			        	
-			        	
-			        	
-			        	
-			        	
-			        	
-			        	
-			        	
-			        	
-			        }
-			        
-			        transcriptGzipReader.close();
+					transcriptIngest.ingest(
+							new File(transcriptFilePath), 
+							pathObjectLocator, pathObjectList.size(), 
+							annotPathObjectLocator, annotPathObjectList.size());
+					
+					/*
+					 * Write all counts in one pass, touching each measurement list once
+					 */
+					
+					if(params.getBooleanParameterValue("sparseStore"))
+						GeneExpressionStore.setStore(imageData, GeneExpressionStore.fromCountTable("xenium:cell_transcript:", transcriptIngest.getCellCounts(), pathObjectList, transcriptIngest.getDictionary()));
+					else
+						transcriptIngest.getCellCounts().writeMeasurements(pathObjectList, transcriptIngest.getDictionary(), "xenium:cell_transcript:");
+					transcriptIngest.getAnnotationCounts().writeMeasurements(annotPathObjectList, transcriptIngest.getDictionary(), "xenium:spot_transcript:");
 			
 					
 					
@@ -0,0 +1,349 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Cell or nucleus boundary polygons of a Xenium output ({@code cell_boundaries.csv.gz}, {@code nucleus_boundaries.csv.gz}),
+ * with vertices in full-resolution image pixels.
+ * <p>
+ * The vertex rows are streamed through a {@link ChunkedTextParser}: each chunk is split into runs of consecutive rows
+ * sharing a cell id (and label id, if present), and the runs are joined back in file order, so that polygons cut by
+ * a chunk boundary are restored. Rows of one cell are expected to be consecutive, as written by Xenium; a cell may
+ * have several polygons when its rows carry different label ids.
+ * <p>
+ * Vertices are stored in flat arrays, indexed by cell then polygon, and ROIs are only created on request.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class XeniumBoundaries {
+
+	final private static Logger logger = LoggerFactory.getLogger(XeniumBoundaries.class);
+
+	final private long[] keys;
+	final private int[] cellPolygons;
+	final private int[] polygonVertices;
+	final private float[] x;
+	final private float[] y;
+	final private LongIntHashMap index;
+
+	private XeniumBoundaries(final long[] keys, final int[] cellPolygons, final int[] polygonVertices, final float[] x, final float[] y) {
+		this.keys = keys;
+		this.cellPolygons = cellPolygons;
+		this.polygonVertices = polygonVertices;
+		this.x = x;
+		this.y = y;
+		this.index = new LongIntHashMap(keys.length);
+		for (int i = 0; i < keys.length; i++)
+			index.put(keys[i], i);
+	}
+
+	/**
+	 * Read a boundary file. Vertices are converted from microns to DAPI pixels and mapped through the affine transform,
+	 * as for the cell centroids in {@link CellTable#readXenium(File, double, double, double[])}.
+	 * @param file cell_boundaries.csv.gz or nucleus_boundaries.csv.gz
+	 * @param dapiImageHeightMicrons
+	 * @param dapiImagePixelSizeMicrons
+	 * @param affineMtx 2x3 affine matrix, row-major
+	 * @return
+	 * @throws Exception
+	 */
+	public static XeniumBoundaries read(final File file, final double dapiImageHeightMicrons, final double dapiImagePixelSizeMicrons, final double[] affineMtx) throws Exception {
+		return read(file, dapiImageHeightMicrons, dapiImagePixelSizeMicrons, affineMtx, new ChunkedTextParser(file));
+	}
+
+	/**
+	 * Read a boundary file with a given parser, e.g. one with small chunks.
+	 * @param file
+	 * @param dapiImageHeightMicrons
+	 * @param dapiImagePixelSizeMicrons
+	 * @param affineMtx
+	 * @param parser parser of the file; its header is skipped
+	 * @return
+	 * @throws Exception
+	 */
+	static XeniumBoundaries read(final File file, final double dapiImageHeightMicrons, final double dapiImagePixelSizeMicrons, final double[] affineMtx,
+			final ChunkedTextParser parser) throws Exception {
+		final String header = ChunkedTextParser.readFirstLine(file);
+		if (header == null)
+			throw new Exception(file.getName() + " is empty");
+
+		// "cell_id","vertex_x","vertex_y"[,"label_id"]
+		final List<String> columns = Arrays.asList(header.replace("\"", "").trim().split(","));
+		final int colCellId = columnIndex(columns, "cell_id", 0);
+		final int colX = columnIndex(columns, "vertex_x", 1);
+		final int colY = columnIndex(columns, "vertex_y", 2);
+		final int colLabel = columns.indexOf("label_id");
+		final int nColumns = Math.max(colCellId, Math.max(colX, colY)) + 1;
+
+		parser.skipHeader(true);
+		final ByteFields[] fields = new ByteFields[parser.getWorkerCount()];
+		for (int w = 0; w < fields.length; w++)
+			fields[w] = new ByteFields(',', columns.size());
+
+		final Map<Long, Runs> chunks = new ConcurrentHashMap<>();
+
+		parser.parseSequenced((buf, from, to, worker, sequence) -> {
+			final ByteFields f = fields[worker];
+			final Runs runs = new Runs();
+
+			int p = from;
+			while (p < to) {
+				final int e = ByteFields.lineEnd(buf, p, to);
+				if (f.split(buf, p, e) >= nColumns) {
+					final long key = f.getLong(colCellId);
+					final int label = colLabel >= 0 && colLabel < f.size()? f.getInt(colLabel): 0;
+
+					final double dx = f.getDouble(colX)/dapiImagePixelSizeMicrons;
+					final double dy = (dapiImageHeightMicrons-f.getDouble(colY))/dapiImagePixelSizeMicrons;
+
+					runs.add(key, label,
+							(float)(affineMtx[0] * dx + affineMtx[1] * dy + affineMtx[2]),
+							(float)(affineMtx[3] * dx + affineMtx[4] * dy + affineMtx[5]));
+				}
+				p = e + 1;
+			}
+			chunks.put(sequence, runs);
+		});
+
+		/*
+		 * Join the runs in file order; a run continues the last polygon if a chunk boundary cut it
+		 */
+
+		final int nChunks = chunks.size();
+		int nVertices = 0;
+		int nRuns = 0;
+		for (long c = 0; c < nChunks; c++) {
+			final Runs runs = chunks.get(c);
+			if (runs == null)
+				throw new Exception("Missing chunk " + c + " of " + file.getName());
+			nVertices += runs.nVertices;
+			nRuns += runs.nRuns;
+		}
+
+		final float[] x = new float[nVertices];
+		final float[] y = new float[nVertices];
+		final long[] keys = new long[nRuns];
+		final int[] cellPolygons = new int[nRuns + 1];
+		final int[] polygonVertices = new int[nRuns + 1];
+
+		final LongIntHashMap seen = new LongIntHashMap(nRuns);
+		int nCells = 0;
+		int nPolygons = 0;
+		int v = 0;
+		int nSkipped = 0;
+		long currentKey = 0;
+		int currentLabel = 0;
+		boolean skipping = false;
+
+		for (long c = 0; c < nChunks; c++) {
+			final Runs runs = chunks.remove(c);
+			for (int r = 0; r < runs.nRuns; r++) {
+				final long key = runs.keys[r];
+				final int label = runs.labels[r];
+
+				if (nCells + nSkipped > 0 && key == currentKey) {
+					if (skipping)
+						continue;
+					if (label != currentLabel)
+						polygonVertices[nPolygons++] = v;
+				} else {
+					currentKey = key;
+					// Rows of a cell that was already read, but not consecutive to it
+					skipping = seen.containsKey(key);
+					if (skipping) {
+						nSkipped++;
+						continue;
+					}
+					seen.put(key, nCells);
+					keys[nCells] = key;
+					cellPolygons[nCells++] = nPolygons;
+					polygonVertices[nPolygons++] = v;
+				}
+				currentLabel = label;
+
+				final int n = runs.end(r) - runs.start(r);
+				System.arraycopy(runs.x, runs.start(r), x, v, n);
+				System.arraycopy(runs.y, runs.start(r), y, v, n);
+				v += n;
+			}
+		}
+		cellPolygons[nCells] = nPolygons;
+		polygonVertices[nPolygons] = v;
+
+		if (nSkipped > 0)
+			logger.warn("Skipped {} runs of non-consecutive rows of an already read cell in {}", nSkipped, file.getName());
+		logger.info("Read {} polygons of {} cells ({} vertices) from {}", nPolygons, nCells, v, file.getName());
+
+		return new XeniumBoundaries(
+				Arrays.copyOf(keys, nCells),
+				Arrays.copyOf(cellPolygons, nCells + 1),
+				Arrays.copyOf(polygonVertices, nPolygons + 1),
+				v == x.length? x: Arrays.copyOf(x, v),
+				v == y.length? y: Arrays.copyOf(y, v));
+	}
+
+	/**
+	 * @return number of cells
+	 */
+	public int size() {
+		return keys.length;
+	}
+
+	/**
+	 * @param i
+	 * @return the Xenium cell id of a cell
+	 */
+	public long getKey(final int i) {
+		return keys[i];
+	}
+
+	/**
+	 * @param key Xenium cell id
+	 * @return the index of the cell, or -1
+	 */
+	public int indexOf(final long key) {
+		return index.get(key);
+	}
+
+	/**
+	 * Average of the vertices of a cell, a cheap stand-in for the centroid when selecting cells.
+	 * @param i
+	 * @param xy output array of length 2
+	 */
+	public void getCentre(final int i, final double[] xy) {
+		final int from = polygonVertices[cellPolygons[i]];
+		final int to = polygonVertices[cellPolygons[i+1]];
+		double sx = 0, sy = 0;
+		for (int v = from; v < to; v++) {
+			sx += x[v];
+			sy += y[v];
+		}
+		final int n = Math.max(1, to - from);
+		xy[0] = sx / n;
+		xy[1] = sy / n;
+	}
+
+	/**
+	 * Create the ROI of a cell. Cells with several polygons get their union.
+	 * @param i
+	 * @param plane
+	 * @return the ROI, or null if the cell has no valid polygon
+	 */
+	public ROI createROI(final int i, final ImagePlane plane) {
+		final int p0 = cellPolygons[i];
+		final int p1 = cellPolygons[i+1];
+		if (p1 - p0 == 1)
+			return createPolygonROI(p0, plane);
+
+		final List<Geometry> geometries = new ArrayList<>();
+		for (int p = p0; p < p1; p++) {
+			final ROI roi = createPolygonROI(p, plane);
+			if (roi != null)
+				geometries.add(roi.getGeometry());
+		}
+		if (geometries.isEmpty())
+			return null;
+		return GeometryTools.geometryToROI(GeometryTools.union(geometries), plane);
+	}
+
+	private ROI createPolygonROI(final int p, final ImagePlane plane) {
+		final int from = polygonVertices[p];
+		int to = polygonVertices[p+1];
+		// Polygons are closed by repeating the first vertex
+		if (to - from > 1 && x[to-1] == x[from] && y[to-1] == y[from])
+			to--;
+		if (to - from < 3)
+			return null;
+		final double[] xs = new double[to - from];
+		final double[] ys = new double[to - from];
+		for (int v = from; v < to; v++) {
+			xs[v - from] = x[v];
+			ys[v - from] = y[v];
+		}
+		return ROIs.createPolygonROI(xs, ys, plane);
+	}
+
+	private static int columnIndex(final List<String> columns, final String name, final int defaultIndex) {
+		final int ind = columns.indexOf(name);
+		return ind < 0 ? defaultIndex : ind;
+	}
+
+	/**
+	 * Runs of consecutive rows sharing a cell and label id within one chunk.
+	 */
+	private static class Runs {
+
+		private long[] keys = new long[1024];
+		private int[] labels = new int[1024];
+		private int[] starts = new int[1025];
+		private int nRuns = 0;
+
+		private float[] x = new float[1 << 14];
+		private float[] y = new float[1 << 14];
+		private int nVertices = 0;
+
+		void add(final long key, final int label, final float vx, final float vy) {
+			if (nRuns == 0 || keys[nRuns-1] != key || labels[nRuns-1] != label) {
+				if (nRuns == keys.length) {
+					keys = Arrays.copyOf(keys, nRuns * 2);
+					labels = Arrays.copyOf(labels, nRuns * 2);
+					starts = Arrays.copyOf(starts, nRuns * 2 + 1);
+				}
+				keys[nRuns] = key;
+				labels[nRuns] = label;
+				starts[nRuns] = nVertices;
+				nRuns++;
+			}
+			if (nVertices == x.length) {
+				x = Arrays.copyOf(x, nVertices * 2);
+				y = Arrays.copyOf(y, nVertices * 2);
+			}
+			x[nVertices] = vx;
+			y[nVertices] = vy;
+			nVertices++;
+			starts[nRuns] = nVertices;
+		}
+
+		int start(final int r) {
+			return starts[r];
+		}
+
+		int end(final int r) {
+			return starts[r+1];
+		}
+
+	}
+
+}
@@ -0,0 +1,288 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.beans.property.StringProperty;
+import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.AbstractDetectionPlugin;
+import qupath.lib.plugins.DetectionPluginTools;
+import qupath.lib.plugins.ObjectDetector;
+import qupath.lib.plugins.PluginRunner;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Plugin for loading the Xenium cell segmentation as cell objects
+ * <p>
+ * Cell and nucleus polygons are read from {@code cell_boundaries.csv.gz} and {@code nucleus_boundaries.csv.gz} by
+ * {@link XeniumBoundaries}, and cells are created directly with their nucleus and the {@code xenium:cell:cell_id} measurement.
+ * {@link XeniumAnnotation} then matches them to the Xenium cells by id, instead of by location.
+ * All cells are added to the hierarchy at once, as children of the selected annotations or of the root.
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class XeniumBoundaryAnnotation extends AbstractDetectionPlugin<BufferedImage> {
+
+	final private static Logger logger = LoggerFactory.getLogger(XeniumBoundaryAnnotation.class);
+
+	final private StringProperty xnumAntnXnumFldrProp = PathPrefs.createPersistentPreference("xnumAntnXnumFldr", "");
+
+	private ParameterList params;
+
+	private String lastResults = null;
+
+	/**
+	 * Constructor.
+	 */
+	public XeniumBoundaryAnnotation() {
+		params = new ParameterList()
+			.addTitleParameter("10X Xenium Cell Boundary Loader")
+			.addStringParameter("xeniumDir", "Xenium directory", xnumAntnXnumFldrProp.get(), "Xenium Out Directory")
+			.addBooleanParameter("inclNucleus", "Include nucleus boundaries? (default: true)", true, "Read nucleus_boundaries.csv.gz and add the nuclei to the cells? (default: true)")
+			.addBooleanParameter("selectedOnly", "Only cells within the selected annotations? (default: true)", true, "Only create cells whose centres fall within the selected annotations, as their children? (default: true)")
+			.addIntParameter("maxObjects", "Maximal number of cells", 2000000, null, "Maximal number of cell objects to create")
+			;
+	}
+
+	class AnnotationLoader implements ObjectDetector<BufferedImage> {
+
+		@Override
+		public Collection<PathObject> runDetection(final ImageData<BufferedImage> imageData, final ParameterList params, final ROI pathROI) throws IOException {
+			xnumAntnXnumFldrProp.set(params.getStringParameterValue("xeniumDir"));
+
+			final ImageServer<BufferedImage> server = imageData.getServer();
+			final PathObjectHierarchy hierarchy = imageData.getHierarchy();
+			final ArrayList<PathObject> resultPathObjectList = new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+
+			try {
+				if(params.getStringParameterValue("xeniumDir").isBlank()) throw new Exception("xeniumDir is blank");
+
+				final File xeniumDir = new File(params.getStringParameterValue("xeniumDir"));
+
+				final InputStream is = new FileInputStream(new File(xeniumDir, "affine_matrix.json"));
+				final String jsonTxt = IOUtils.toString(is, "UTF-8");
+				is.close();
+				final JSONObject jsonObj = new JSONObject(jsonTxt);
+
+				final double dapiImageHeightMicrons = jsonObj.getDouble("dapi_height");
+				final double dapiImagePixelSizeMicrons = jsonObj.getDouble("dapi_pixel_size");
+				final double[] affineMtx = IntStream.range(0, 6).mapToDouble(i -> jsonObj.getJSONArray("affine_matrix").getDouble(i)).toArray();
+
+				final List<PathObject> selectedAnnotationPathObjectList = new ArrayList<>();
+
+				for (PathObject pathObject : hierarchy.getSelectionModel().getSelectedObjects()) {
+					if (pathObject.isAnnotation())
+						selectedAnnotationPathObjectList.add(pathObject);
+				}
+
+				final boolean selectedOnly = params.getBooleanParameterValue("selectedOnly");
+				if(selectedOnly && selectedAnnotationPathObjectList.isEmpty()) throw new Exception("Missed selected annotations");
+
+				/*
+				 * Read the cell and nucleus polygons
+				 */
+
+				final XeniumBoundaries cells = XeniumBoundaries.read(new File(xeniumDir, "cell_boundaries.csv.gz"), dapiImageHeightMicrons, dapiImagePixelSizeMicrons, affineMtx);
+				final XeniumBoundaries nuclei = params.getBooleanParameterValue("inclNucleus")?
+						XeniumBoundaries.read(new File(xeniumDir, "nucleus_boundaries.csv.gz"), dapiImageHeightMicrons, dapiImagePixelSizeMicrons, affineMtx): null;
+
+				/*
+				 * Keep the cells falling within the selected annotations, or within the image
+				 */
+
+				final int nCells = cells.size();
+				final double[] xCentres = new double[nCells];
+				final double[] yCentres = new double[nCells];
+				IntStream.range(0, nCells).parallel().forEach(i -> {
+					final double[] xy = new double[2];
+					cells.getCentre(i, xy);
+					xCentres[i] = xy[0];
+					yCentres[i] = xy[1];
+				});
+
+				final int[] cellLocations;
+				if(selectedOnly) {
+					cellLocations = new PathObjectPointLocator(selectedAnnotationPathObjectList).locateAll(xCentres, yCentres);
+				}
+				else {
+					final int width = server.getWidth();
+					final int height = server.getHeight();
+					cellLocations = IntStream.range(0, nCells).map(i -> xCentres[i] >= 0 && yCentres[i] >= 0 && xCentres[i] < width && yCentres[i] < height? 0: -1).toArray();
+				}
+
+				final int[] keptCells = IntStream.range(0, nCells).filter(i -> cellLocations[i] >= 0).toArray();
+
+				final int maxObjects = params.getIntParameterValue("maxObjects");
+				if(keptCells.length > maxObjects) throw new Exception(keptCells.length+" cells exceed the limit of "+maxObjects+" objects, please select smaller regions");
+
+				/*
+				 * Create the cell objects in parallel
+				 */
+
+				final ImagePlane plane = ImagePlane.getDefaultPlane();
+				final PathObject[] cellPathObjects = new PathObject[keptCells.length];
+				IntStream.range(0, keptCells.length).parallel().forEach(k -> {
+					final int i = keptCells[k];
+					final ROI cellRoi = cells.createROI(i, plane);
+					if(cellRoi == null) return;
+
+					final long cellId = cells.getKey(i);
+					final int n = nuclei == null? -1: nuclei.indexOf(cellId);
+					final ROI nucleusRoi = n < 0? null: nuclei.createROI(n, plane);
+
+					final PathObject pathObj = PathObjects.createCellObject(cellRoi, nucleusRoi, null, null);
+					final MeasurementList pathObjMeasList = pathObj.getMeasurementList();
+					pathObjMeasList.put("xenium:cell:cell_id", cellId);
+					pathObjMeasList.close();
+					cellPathObjects[k] = pathObj;
+				});
+
+				/*
+				 * Add all cells at once; the hierarchy is only notified when the plugin completes
+				 */
+
+				int nCreated = 0;
+				if(selectedOnly) {
+					final List<List<PathObject>> annotationCells = new ArrayList<>();
+					for(int a = 0; a < selectedAnnotationPathObjectList.size(); a ++) annotationCells.add(new ArrayList<>());
+					for(int k = 0; k < keptCells.length; k ++) {
+						if(cellPathObjects[k] == null) continue;
+						annotationCells.get(cellLocations[keptCells[k]]).add(cellPathObjects[k]);
+						nCreated ++;
+					}
+					for(int a = 0; a < selectedAnnotationPathObjectList.size(); a ++) {
+						final PathObject annotation = selectedAnnotationPathObjectList.get(a);
+						annotation.clearChildObjects();
+						annotation.addChildObjects(annotationCells.get(a));
+					}
+				}
+				else {
+					final List<PathObject> cellPathObjectList = Arrays.stream(cellPathObjects).filter(p -> p != null).collect(Collectors.toList());
+					resultPathObjectList.addAll(cellPathObjectList);
+					nCreated = cellPathObjectList.size();
+				}
+
+				logger.info("Created {} cells from {}", nCreated, xeniumDir);
+				lastResults = "Created " + nCreated + " cells";
+
+				hierarchy.getSelectionModel().setSelectedObject(null);
+			}
+			catch(Exception e) {
+				Dialogs.showErrorMessage("Error", e.getMessage());
+
+				lastResults =  "Something went wrong: "+e.getMessage();
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			if (Thread.currentThread().isInterrupted()) {
+				Dialogs.showErrorMessage("Warning", "Interrupted!");
+
+				lastResults =  "Interrupted!";
+
+				return new ArrayList<PathObject>(hierarchy.getRootObject().getChildObjects());
+			}
+
+			return resultPathObjectList;
+		}
+
+
+		@Override
+		public String getLastResultsDescription() {
+			return lastResults;
+		}
+
+
+	}
+
+	@Override
+	public ParameterList getDefaultParameterList(final ImageData<BufferedImage> imageData) {
+		return params;
+	}
+
+	@Override
+	public String getName() {
+		return "Import 10x Xenium Cell Boundaries";
+	}
+
+	@Override
+	public String getLastResultsDescription() {
+		return lastResults;
+	}
+
+
+	@Override
+	public String getDescription() {
+		return "Create cell objects from the Xenium cell and nucleus boundaries, with their Xenium cell id";
+	}
+
+
+	@Override
+	protected void addRunnableTasks(ImageData<BufferedImage> imageData, PathObject parentObject, List<Runnable> tasks) {
+		tasks.add(DetectionPluginTools.createRunnableTask(new AnnotationLoader(), getParameterList(imageData), imageData, parentObject));
+	}
+
+
+	@Override
+	protected Collection<? extends PathObject> getParentObjects(final PluginRunner<BufferedImage> runner) {
+		PathObjectHierarchy hierarchy = getHierarchy(runner);
+		if (hierarchy.getTMAGrid() == null)
+			return Collections.singleton(hierarchy.getRootObject());
+
+		return hierarchy.getSelectionModel().getSelectedObjects().stream().filter(p -> p.isTMACore()).collect(Collectors.toList());
+	}
+
+
+	@Override
+	public Collection<Class<? extends PathObject>> getSupportedParentObjectClasses() {
+		return Arrays.asList(
+				PathAnnotationObject.class,
+				TMACoreObject.class
+				);
+	}
+
+}
@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parallel ingest of a Xenium {@code transcripts.csv.gz} file into per-cell and per-annotation count tables.
+ * <p>
+ * "transcript_id","cell_id","overlaps_nucleus","feature_name","x_location","y_location","z_location","qv"
+ *
+ * @author Chao Hui Huang
+ *
+ */
+public class XeniumTranscriptIngest {
+
+	final private static Logger logger = LoggerFactory.getLogger(XeniumTranscriptIngest.class);
+
+	final private static byte[] UNASSIGNED = "UNASSIGNED".getBytes(StandardCharsets.US_ASCII);
+	final private static byte[] MINUS_ONE = "-1".getBytes(StandardCharsets.US_ASCII);
+
+	private boolean inclGeneExpr = true;
+	private boolean inclBlankCodeword = false;
+	private boolean inclNegCtrlCodeword = false;
+	private boolean inclNegCtrlProbe = false;
+	private double minQv = 0.0;
+	private boolean onNucleusOnly = true;
+	private boolean belongsToCellOnly = true;
+
+	final private double dapiImageHeightMicrons;
+	final private double dapiImagePixelSizeMicrons;
+	final private double[] affineMtx;
+
+	private FeatureDictionary dictionary;
+	private TranscriptCountTable cellCounts;
+	private TranscriptCountTable annotCounts;
+
+	/**
+	 * Create an ingest using the coordinate transform stored in {@code affine_matrix.json}.
+	 * @param dapiImageHeightMicrons
+	 * @param dapiImagePixelSizeMicrons
+	 * @param affineMtx 2x3 affine matrix, row-major
+	 */
+	public XeniumTranscriptIngest(final double dapiImageHeightMicrons, final double dapiImagePixelSizeMicrons, final double[] affineMtx) {
+		this.dapiImageHeightMicrons = dapiImageHeightMicrons;
+		this.dapiImagePixelSizeMicrons = dapiImagePixelSizeMicrons;
+		this.affineMtx = affineMtx.clone();
+	}
+
+	/**
+	 * Set which feature categories are counted.
+	 * @param inclGeneExpr
+	 * @param inclBlankCodeword
+	 * @param inclNegCtrlCodeword
+	 * @param inclNegCtrlProbe
+	 * @return this ingest
+	 */
+	public XeniumTranscriptIngest featureTypes(final boolean inclGeneExpr, final boolean inclBlankCodeword, final boolean inclNegCtrlCodeword, final boolean inclNegCtrlProbe) {
+		this.inclGeneExpr = inclGeneExpr;
+		this.inclBlankCodeword = inclBlankCodeword;
+		this.inclNegCtrlCodeword = inclNegCtrlCodeword;
+		this.inclNegCtrlProbe = inclNegCtrlProbe;
+		return this;
+	}
+
+	/**
+	 * Set the per-transcript filters.
+	 * @param minQv minimal Q-value
+	 * @param onNucleusOnly only count transcripts overlapping a nucleus
+	 * @param belongsToCellOnly only count transcripts assigned to a cell by Xenium
+	 * @return this ingest
+	 */
+	public XeniumTranscriptIngest transcriptFilters(final double minQv, final boolean onNucleusOnly, final boolean belongsToCellOnly) {
+		this.minQv = minQv;
+		this.onNucleusOnly = onNucleusOnly;
+		this.belongsToCellOnly = belongsToCellOnly;
+		return this;
+	}
+
+	private boolean isFeatureIncluded(final String name) {
+		if (name.startsWith("BLANK_"))
+			return inclBlankCodeword;
+		if (name.startsWith("NegControlCodeword_"))
+			return inclNegCtrlCodeword;
+		if (name.startsWith("NegControlProbe_"))
+			return inclNegCtrlProbe;
+		return inclGeneExpr;
+	}
+
+	/**
+	 * Parse the transcript file and count every accepted transcript in the cell and annotation containing it.
+	 * @param transcriptFile
+	 * @param cellLocator locator returning cell indices
+	 * @param nCells number of cells addressed by the cell locator
+	 * @param annotLocator locator returning annotation indices
+	 * @param nAnnots number of annotations addressed by the annotation locator
+	 * @throws Exception
+	 */
+	public void ingest(final File transcriptFile, final PointLocator cellLocator, final int nCells, final PointLocator annotLocator, final int nAnnots) throws Exception {
+		final String header = ChunkedTextParser.readFirstLine(transcriptFile);
+		if (header == null)
+			throw new Exception(transcriptFile.getName() + " is empty");
+
+		final List<String> columns = Arrays.asList(header.replace("\"", "").trim().split(","));
+		final int colCellId = columnIndex(columns, "cell_id", 1);
+		final int colOverlapsNucleus = columnIndex(columns, "overlaps_nucleus", 2);
+		final int colFeatureName = columnIndex(columns, "feature_name", 3);
+		final int colX = columnIndex(columns, "x_location", 4);
+		final int colY = columnIndex(columns, "y_location", 5);
+		final int colQv = columnIndex(columns, "qv", 7);
+		final int nColumns = IntStream.of(colCellId, colOverlapsNucleus, colFeatureName, colX, colY, colQv).max().getAsInt() + 1;
+
+		final ChunkedTextParser parser = new ChunkedTextParser(transcriptFile).skipHeader(true);
+		final int nWorkers = parser.getWorkerCount();
+
+		dictionary = new FeatureDictionary(this::isFeatureIncluded);
+		cellCounts = new TranscriptCountTable(nCells, nWorkers);
+		annotCounts = new TranscriptCountTable(nAnnots, nWorkers);
+
+		final FeatureDictionary.Lookup[] lookups = new FeatureDictionary.Lookup[nWorkers];
+		final ByteFields[] fields = new ByteFields[nWorkers];
+		for (int w = 0; w < nWorkers; w++) {
+			lookups[w] = dictionary.createLookup();
+			fields[w] = new ByteFields(',', columns.size());
+		}
+
+		final AtomicLong nAccepted = new AtomicLong();
+
+		parser.parse((buf, from, to, worker) -> {
+			final ByteFields f = fields[worker];
+			final FeatureDictionary.Lookup lookup = lookups[worker];
+			long accepted = 0;
+
+			int p = from;
+			while (p < to) {
+				final int e = ByteFields.lineEnd(buf, p, to);
+				if (f.split(buf, p, e) >= nColumns) {
+					if (accepted(f, colCellId, colOverlapsNucleus, colQv)) {
+						final int feature = lookup.lookup(buf, f.start(colFeatureName), f.end(colFeatureName));
+						if (feature >= 0) {
+							final double dx = f.getDouble(colX)/dapiImagePixelSizeMicrons;
+							final double dy = (dapiImageHeightMicrons-f.getDouble(colY))/dapiImagePixelSizeMicrons;
+
+							final double aX = affineMtx[0] * dx + affineMtx[1] * dy + affineMtx[2];
+							final double aY = affineMtx[3] * dx + affineMtx[4] * dy + affineMtx[5];
+
+							final int cell = cellLocator.locate(aX, aY);
+							if (cell >= 0)
+								cellCounts.increment(worker, cell, feature);
+
+							final int annot = annotLocator.locate(aX, aY);
+							if (annot >= 0)
+								annotCounts.increment(worker, annot, feature);
+
+							accepted++;
+						}
+					}
+				}
+				p = e + 1;
+			}
+			nAccepted.addAndGet(accepted);
+		});
+
+		cellCounts.compact();
+		annotCounts.compact();
+
+		logger.info("Counted {} transcripts of {} features from {}", nAccepted.get(), dictionary.size(), transcriptFile.getName());
+	}
+
+	private boolean accepted(final ByteFields f, final int colCellId, final int colOverlapsNucleus, final int colQv) {
+		if (onNucleusOnly && f.getInt(colOverlapsNucleus) == 0)
+			return false;
+		if (f.getDouble(colQv) < minQv)
+			return false;
+		if (belongsToCellOnly && (f.equalsBytes(colCellId, MINUS_ONE) || f.equalsBytes(colCellId, UNASSIGNED)))
+			return false;
+		return true;
+	}
+
+	private static int columnIndex(final List<String> columns, final String name, final int defaultIndex) {
+		final int ind = columns.indexOf(name);
+		return ind < 0 ? defaultIndex : ind;
+	}
+
+	/**
+	 * @return the features seen by the last ingest
+	 */
+	public FeatureDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * @return per-cell counts of the last ingest
+	 */
+	public TranscriptCountTable getCellCounts() {
+		return cellCounts;
+	}
+
+	/**
+	 * @return per-annotation counts of the last ingest
+	 */
+	public TranscriptCountTable getAnnotationCounts() {
+		return annotCounts;
+	}
+
+}
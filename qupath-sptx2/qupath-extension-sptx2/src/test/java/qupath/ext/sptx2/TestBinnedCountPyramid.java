@@ -0,0 +1,207 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.regions.ImagePlane;
+
+/**
+ * Test building coarser levels of a binned count pyramid, placing bins, and reading Visium HD outputs.
+ */
+public class TestBinnedCountPyramid {
+
+	/**
+	 * x = 100 + 2*col - 1*row, y = 50 + 1*col + 2*row
+	 */
+	private static final double[] AFFINE = {100, 2, -1, 50, 1, 2};
+
+	private static int[][] toDense(FeatureMatrix matrix) {
+		var dense = new int[matrix.getRowCount()][matrix.getFeatureCount()];
+		var rows = new int[matrix.getRowCount()];
+		for (int r = 0; r < rows.length; r++)
+			rows[r] = r;
+		var features = new int[matrix.getFeatureCount()];
+		for (int f = 0; f < features.length; f++)
+			features[f] = f;
+		var table = matrix.toCountTable(rows, rows.length, features);
+		var rowPtr = table.getRowPointers();
+		for (int r = 0; r < rows.length; r++)
+			for (int k = rowPtr[r]; k < rowPtr[r+1]; k++)
+				dense[r][table.getFeatures()[k]] = table.getCounts()[k];
+		return dense;
+	}
+
+	@Test
+	void testGetLevel() {
+		// Random counts on a sparse 2 um grid of 30 x 30 bins
+		int size = 30, nFeatures = 3;
+		var random = new Random(11);
+		var counts = new int[size][size][nFeatures];
+		var names = new ArrayList<String>();
+		var keys = new ArrayList<Long>();
+		var rowPtr = new ArrayList<Integer>();
+		var features = new ArrayList<Integer>();
+		var values = new ArrayList<Integer>();
+		rowPtr.add(0);
+		for (int row = size - 1; row >= 0; row--) {
+			for (int col = 0; col < size; col++) {
+				if (random.nextInt(3) == 0)
+					continue;
+				names.add(BinnedCountPyramid.formatBarcode(2, row, col));
+				keys.add(LongIntHashMap.pack(row, col));
+				for (int f = 0; f < nFeatures; f++) {
+					int count = random.nextInt(4);
+					counts[row][col][f] = count;
+					if (count > 0) {
+						features.add(f);
+						values.add(count);
+					}
+				}
+				rowPtr.add(features.size());
+			}
+		}
+		var base = new FeatureMatrix(names.toArray(new String[0]), keys.stream().mapToLong(Long::longValue).toArray(),
+				new String[] {"f0", "f1", "f2"}, new String[] {"g0", "g1", "g2"}, new String[] {"Gene Expression", "Gene Expression", "Gene Expression"},
+				rowPtr.stream().mapToInt(Integer::intValue).toArray(), features.stream().mapToInt(Integer::intValue).toArray(),
+				values.stream().mapToInt(Integer::intValue).toArray());
+		var pyramid = new BinnedCountPyramid(2, base, AFFINE);
+		assertEquals(2, pyramid.getBaseBinSize());
+		assertSame(base, pyramid.getLevel(2));
+
+		var level = pyramid.getLevel(8);
+		assertSame(level, pyramid.getLevel(8));
+		var dense = toDense(level);
+		int nBins = (size + 3) / 4;
+		assertEquals(nBins * nBins, level.getRowCount());
+		for (int b = 0; b < level.getRowCount(); b++) {
+			long key = level.getRowKey(b);
+			int row = LongIntHashMap.hi(key), col = LongIntHashMap.lo(key);
+			// Bins are ordered by row and then by column
+			if (b > 0)
+				assertTrue(key > level.getRowKey(b - 1));
+			assertEquals(BinnedCountPyramid.formatBarcode(8, row, col), level.getRowName(b));
+			var expected = new int[nFeatures];
+			for (int r = row * 4; r < Math.min(size, row * 4 + 4); r++)
+				for (int c = col * 4; c < Math.min(size, col * 4 + 4); c++)
+					for (int f = 0; f < nFeatures; f++)
+						expected[f] += counts[r][c][f];
+			assertArrayEquals(expected, dense[b]);
+		}
+		assertEquals("g1", level.getFeatureName(1));
+
+		assertThrows(IllegalArgumentException.class, () -> pyramid.getLevel(5));
+		assertThrows(IllegalArgumentException.class, () -> pyramid.getLevel(1));
+	}
+
+	@Test
+	void testGeometry() {
+		var pyramid = new BinnedCountPyramid(2, new FeatureMatrix(new String[0], new long[0], new String[0], new String[0], new String[0],
+				new int[1], new int[0], new int[0]), AFFINE);
+		var xy = new double[2];
+		pyramid.getCentre(2, LongIntHashMap.pack(3, 5), xy);
+		assertArrayEquals(new double[] {100 + 10 - 3, 50 + 5 + 6}, xy, 1e-12);
+		// The 8 um bin (1, 1) covers base rows and columns 4 to 7
+		pyramid.getCentre(8, LongIntHashMap.pack(1, 1), xy);
+		assertArrayEquals(new double[] {100 + 11 - 5.5, 50 + 5.5 + 11}, xy, 1e-12);
+
+		var points = pyramid.createBinROI(8, LongIntHashMap.pack(1, 1), ImagePlane.getDefaultPlane()).getAllPoints();
+		assertEquals(4, points.size());
+		double cx = 0, cy = 0;
+		for (var p : points) {
+			cx += p.getX() / 4;
+			cy += p.getY() / 4;
+			// Corners are half a diagonal of 4 x 4 base bins from the centre
+			assertEquals(Math.hypot(2, 2) * Math.sqrt(5), Math.hypot(p.getX() - xy[0], p.getY() - xy[1]), 1e-9);
+		}
+		assertEquals(xy[0], cx, 1e-9);
+		assertEquals(xy[1], cy, 1e-9);
+	}
+
+	@Test
+	void testBarcodes() {
+		assertEquals("s_008um_00012_00345-1", BinnedCountPyramid.formatBarcode(8, 12, 345));
+		assertEquals(LongIntHashMap.pack(12, 345), BinnedCountPyramid.parseBarcode("s_002um_00012_00345-1"));
+		assertThrows(IllegalArgumentException.class, () -> BinnedCountPyramid.parseBarcode("AAACGT-1"));
+	}
+
+	private static void writeGzip(Path file, String content) throws IOException {
+		try (var writer = new PrintWriter(new GZIPOutputStream(new FileOutputStream(file.toFile())))) {
+			writer.print(content);
+		}
+	}
+
+	@Test
+	void testReadVisiumHd(@TempDir Path dir) throws Exception {
+		var baseDir = dir.resolve("binned_outputs").resolve("square_002um");
+		var matrixDir = baseDir.resolve("filtered_feature_bc_matrix");
+		var spatialDir = baseDir.resolve("spatial");
+		Files.createDirectories(matrixDir);
+		Files.createDirectories(spatialDir);
+
+		writeGzip(matrixDir.resolve("barcodes.tsv.gz"), "s_002um_00000_00001-1\ns_002um_00005_00002-1\n");
+		writeGzip(matrixDir.resolve("features.tsv.gz"), "ENSG1\tCD3E\tGene Expression\n");
+		writeGzip(matrixDir.resolve("matrix.mtx.gz"), "%%MatrixMarket matrix coordinate integer general\n1 2 2\n1 1 3\n1 2 4\n");
+
+		// Space Ranger places the bins exactly on the affine grid, with pixel rows (y) before columns (x)
+		var positions = new StringBuilder("barcode,in_tissue,array_row,array_col,pxl_row_in_fullres,pxl_col_in_fullres\n");
+		for (int row = 0; row < 6; row++)
+			for (int col = 0; col < 4; col++)
+				positions.append(BinnedCountPyramid.formatBarcode(2, row, col)).append(",1,").append(row).append(',').append(col).append(',')
+					.append(AFFINE[3] + AFFINE[4] * col + AFFINE[5] * row).append(',').append(AFFINE[0] + AFFINE[1] * col + AFFINE[2] * row).append('\n');
+		Files.writeString(spatialDir.resolve("tissue_positions.csv"), positions.toString());
+
+		// The parent directory of binned_outputs is accepted too
+		var pyramid = BinnedCountPyramid.readVisiumHd(dir.toFile(), new SidecarCache(null));
+		var base = pyramid.getLevel(2);
+		assertEquals(2, base.getRowCount());
+		assertEquals(LongIntHashMap.pack(5, 2), base.getRowKey(1));
+		assertArrayEquals(new int[][] {{3}, {4}}, toDense(base));
+		var xy = new double[2];
+		pyramid.getCentre(2, LongIntHashMap.pack(5, 2), xy);
+		assertArrayEquals(new double[] {100 + 4 - 5, 50 + 2 + 10}, xy, 1e-9);
+
+		Files.delete(spatialDir.resolve("tissue_positions.csv"));
+		Files.writeString(spatialDir.resolve("tissue_positions.parquet"), "PAR1");
+		var e = assertThrows(IOException.class, () -> BinnedCountPyramid.readVisiumHd(dir.resolve("binned_outputs").toFile(), new SidecarCache(null)));
+		assertTrue(e.getMessage().contains("parquet"));
+	}
+
+	@Test
+	void testFitTooFewBins(@TempDir Path dir) throws Exception {
+		var file = dir.resolve("tissue_positions.csv");
+		Files.writeString(file, "barcode,in_tissue,array_row,array_col,pxl_row_in_fullres,pxl_col_in_fullres\na,1,0,0,1,1\nb,1,0,1,1,2\n");
+		assertThrows(IOException.class, () -> BinnedCountPyramid.fitGridToPixels(file.toFile()));
+		// Collinear bins do not span a grid
+		Files.writeString(file, "a,1,0,0,1,1\nb,1,0,1,1,2\nc,1,0,2,1,3\n");
+		assertThrows(IOException.class, () -> BinnedCountPyramid.fitGridToPixels(file.toFile()));
+	}
+
+}
@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test field splitting and number parsing over byte arrays.
+ */
+public class TestByteFields {
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void testSplit() {
+		var buf = bytes("\"a\",,\"\",3.5,\"x\r\n");
+		var fields = new ByteFields(',', 2);
+		int end = ByteFields.lineEnd(buf, 0, buf.length);
+		assertEquals(buf.length - 1, end);
+		assertEquals(buf.length, ByteFields.lineEnd(buf, end + 1, buf.length));
+
+		// Capacity grows, quotes are stripped and the trailing '\r' is ignored
+		assertEquals(5, fields.split(buf, 0, end));
+		assertEquals(5, fields.size());
+		assertEquals("a", fields.getString(0));
+		assertEquals(0, fields.length(1));
+		assertEquals("", fields.getString(2));
+		assertEquals(3.5, fields.getDouble(3));
+		assertEquals("\"x", fields.getString(4));
+		assertSame(buf, fields.buffer());
+
+		// Fields are reused by the next line
+		var other = bytes("b\tc");
+		var tabs = new ByteFields('\t', 1);
+		assertEquals(2, tabs.split(other, 0, other.length));
+		assertEquals(1, tabs.split(other, 2, other.length));
+		assertEquals("c", tabs.getString(0));
+		assertEquals(1, tabs.split(other, 0, 0));
+		assertEquals(0, tabs.length(0));
+	}
+
+	@Test
+	void testIntegers() {
+		var buf = bytes("42,-17,+8,12.0,9007199254740993,,x1");
+		var fields = new ByteFields(',', 8);
+		fields.split(buf, 0, buf.length);
+		assertEquals(42, fields.getInt(0));
+		assertEquals(-17, fields.getInt(1));
+		assertEquals(8, fields.getLong(2));
+		assertEquals(12, fields.getInt(3));
+		assertEquals(9007199254740993L, fields.getLong(4));
+		assertThrows(NumberFormatException.class, () -> fields.getInt(5));
+		assertThrows(NumberFormatException.class, () -> fields.getInt(6));
+	}
+
+	@Test
+	void testDoubles() {
+		String[] values = {"0", "-0.5", "1234.5678", "0.000123", "1e-3", "-2.5E+4", "6.02214076e23", "123456789012345678901234",
+				"0.1234567890123456789", "1.5e-300", "NaN", "-Infinity"};
+		var buf = bytes(String.join(",", values) + ",");
+		var fields = new ByteFields(',', values.length + 1);
+		assertEquals(values.length + 1, fields.split(buf, 0, buf.length));
+		for (int i = 0; i < values.length; i++) {
+			double expected = Double.parseDouble(values[i]);
+			assertEquals(expected, fields.getDouble(i), Math.abs(expected) * 1e-15, values[i]);
+		}
+		assertTrue(Double.isNaN(fields.getDouble(values.length)));
+	}
+
+	@Test
+	void testCompare() {
+		var buf = bytes("UNASSIGNED,NegControlProbe_A,-1");
+		var fields = new ByteFields(',', 3);
+		fields.split(buf, 0, buf.length);
+		assertTrue(fields.equalsBytes(0, bytes("UNASSIGNED")));
+		assertFalse(fields.equalsBytes(0, bytes("UNASSIGNE")));
+		assertTrue(fields.startsWith(1, bytes("NegControlProbe_")));
+		assertFalse(fields.startsWith(2, bytes("-1-")));
+		assertTrue(fields.equalsBytes(2, bytes("-1")));
+
+		var name = bytes("NegControlProbe_A");
+		assertEquals(ByteFields.hash(name, 0, name.length), fields.hash(1));
+		assertNotEquals(fields.hash(0), fields.hash(1));
+	}
+
+}
@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test summing cell counts into targets, from a sparse store or from measurements.
+ */
+public class TestCellExpressionAggregator {
+
+	private static int[] getRow(CellExpressionAggregator aggregator, int row, String... features) {
+		var table = aggregator.getCounts();
+		var dictionary = aggregator.getDictionary();
+		var counts = new int[features.length];
+		var rowPtr = table.getRowPointers();
+		for (int k = rowPtr[row]; k < rowPtr[row+1]; k++) {
+			int f = List.of(features).indexOf(dictionary.getName(table.getFeatures()[k]));
+			assertTrue(f >= 0);
+			counts[f] = table.getCounts()[k];
+		}
+		return counts;
+	}
+
+	/**
+	 * Cells 0 and 1 are in the store; cells 2 and 3 only have measurements.
+	 */
+	private static List<PathObject> createCells() {
+		var cells = new ArrayList<PathObject>();
+		for (int i = 0; i < 4; i++)
+			cells.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 10, 0, 5, 5, ImagePlane.getDefaultPlane())));
+		var ml = cells.get(2).getMeasurementList();
+		ml.put("test:B", 2.6);
+		ml.put("test:D", 1);
+		ml.put("test:C", 0.4);
+		ml.put("other:A", 5);
+		cells.get(3).getMeasurementList().put("test:A", 7);
+		return cells;
+	}
+
+	private static GeneExpressionStore createStore(String prefix, List<PathObject> cells) {
+		var builder = new GeneExpressionStore.Builder(prefix, List.of("A", "B", "C"));
+		builder.addRow(cells.get(0), new int[] {0, 2}, new float[] {3, 1.4f}, 2);
+		builder.addRow(cells.get(1), new int[] {1, 2}, new float[] {2, 0.2f}, 2);
+		return builder.build();
+	}
+
+	@Test
+	void testAggregate() {
+		var cells = createCells();
+		var aggregator = new CellExpressionAggregator(createStore("test:", cells), "test:");
+		// Store genes come first in the dictionary
+		assertEquals(0, aggregator.getDictionary().getId("A"));
+		assertEquals(2, aggregator.getDictionary().getId("C"));
+
+		aggregator.aggregate(cells, new int[] {0, 1, 0, -1}, 2);
+		assertEquals(2, aggregator.getCounts().getTargetCount());
+		// Values are rounded, and measurements below 0.5 or with another prefix are ignored
+		assertArrayEquals(new int[] {3, 3, 1, 1}, getRow(aggregator, 0, "A", "B", "C", "D"));
+		assertArrayEquals(new int[] {0, 2, 0, 0}, getRow(aggregator, 1, "A", "B", "C", "D"));
+	}
+
+	@Test
+	void testStoreWithOtherPrefix() {
+		var cells = createCells();
+		var aggregator = new CellExpressionAggregator(createStore("other:", cells), "test:");
+		assertEquals(-1, aggregator.getDictionary().getId("A"));
+
+		// Cells 0 and 1 have no measurements, so only cells 2 and 3 are counted
+		aggregator.aggregate(cells, new int[] {0, 0, 0, 0}, 1);
+		assertArrayEquals(new int[] {7, 3, 0, 1}, getRow(aggregator, 0, "A", "B", "C", "D"));
+	}
+
+	@Test
+	void testWorkers() {
+		var cells = new ArrayList<PathObject>();
+		var targets = new int[1000];
+		for (int i = 0; i < targets.length; i++) {
+			var cell = PathObjects.createDetectionObject(ROIs.createRectangleROI(i, 0, 1, 1, ImagePlane.getDefaultPlane()));
+			cell.getMeasurementList().put("test:A", 1 + i % 3);
+			cells.add(cell);
+			targets[i] = i % 7;
+		}
+		int parallelism = ThreadTools.getParallelism();
+		try {
+			ThreadTools.setParallelism(5);
+			var aggregator = new CellExpressionAggregator(null, "test:");
+			aggregator.aggregate(cells, targets, 7);
+			for (int t = 0; t < 7; t++) {
+				int expected = 0;
+				for (int i = t; i < targets.length; i += 7)
+					expected += 1 + i % 3;
+				assertArrayEquals(new int[] {expected}, getRow(aggregator, t, "A"));
+			}
+		} finally {
+			ThreadTools.setParallelism(parallelism);
+		}
+	}
+
+}
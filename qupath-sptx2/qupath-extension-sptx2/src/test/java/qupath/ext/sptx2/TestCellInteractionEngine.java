@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.objects.CompactPathObjectConnectionGroup;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test ligand-receptor scores of cells in a row, with expression from measurements or from a sparse store.
+ */
+public class TestCellInteractionEngine {
+
+	/**
+	 * 3 objects in a row, 10 pixels apart, each connected to the previous and next one.
+	 */
+	private static List<PathObject> createObjects() {
+		var objects = new ArrayList<PathObject>();
+		for (int i = 0; i < 3; i++)
+			objects.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 10, 0, 2, 2, ImagePlane.getDefaultPlane())));
+		return objects;
+	}
+
+	private static PathObjectConnections connect(List<PathObject> objects) {
+		var connections = new PathObjectConnections();
+		connections.addGroup(CompactPathObjectConnectionGroup.createRadiusGraph(objects, 10.5));
+		return connections;
+	}
+
+	private static final List<String[]> PAIRS = List.of(new String[] {"L", "R"}, new String[] {"L", "M"}, new String[] {"Q", "R"});
+
+	@Test
+	void testMeasurements() {
+		var objects = createObjects();
+		// Totals of 4; the last object has no ligand measurement
+		put(objects.get(0), "L", 2, "R", 0, "X", 2);
+		put(objects.get(1), "L", 1, "R", 1, "X", 2);
+		put(objects.get(2), "R", 3, "X", 1);
+		objects.get(2).getMeasurementList().put("other:L", 5);
+
+		// Only the first two objects are scored, the last one is a receiver outside them
+		var engine = CellInteractionEngine.build(objects.subList(0, 2), connect(objects), PAIRS, "test:", null);
+		assertEquals(2, engine.getCellCount());
+		// Pairs with a gene no cell has are dropped
+		assertEquals(1, engine.getPairCount());
+		assertEquals("L_R", engine.getPairName(0));
+		assertSame(objects.get(2), engine.getPathObject(2));
+
+		assertEquals(0.5f, engine.getLigand(0, 0));
+		assertEquals(0.25f, engine.getReceptor(1, 0));
+		assertEquals(0.75f, engine.getReceptor(2, 0));
+		assertTrue(Float.isNaN(engine.getLigand(2, 0)));
+		assertFalse(engine.isValidSender(2));
+		assertTrue(engine.isValidReceiver(2));
+
+		var scores = new double[1];
+		assertTrue(engine.score(0, scores));
+		assertEquals(0.5 * 0.25, scores[0], 1e-6);
+		assertTrue(engine.score(1, scores));
+		assertEquals(0.25 * (0 + 0.75), scores[0], 1e-6);
+		assertFalse(engine.score(2, scores));
+
+		engine.writeMeasurements("test:cci:");
+		assertEquals(0.5 * 0.25, objects.get(0).getMeasurementList().get("test:cci:L_R"), 1e-6);
+		assertEquals(0.25 * 0.75, objects.get(1).getMeasurementList().get("test:cci:L_R"), 1e-6);
+		assertFalse(objects.get(2).getMeasurementList().containsKey("test:cci:L_R"));
+	}
+
+	@Test
+	void testStore() {
+		var objects = createObjects();
+		var builder = new GeneExpressionStore.Builder("test:", List.of("L", "R", "X", "Y"));
+		builder.addRow(objects.get(0), new int[] {0, 3}, new float[] {1, 3}, 2);
+		builder.addRow(objects.get(1), new int[] {1, 2}, new float[] {2, 2}, 2);
+
+		var engine = CellInteractionEngine.build(objects, connect(objects), PAIRS, "test:", builder.build());
+		assertEquals(3, engine.getCellCount());
+		assertEquals(1, engine.getPairCount());
+		assertEquals(0.25f, engine.getLigand(0, 0));
+		assertEquals(0f, engine.getReceptor(0, 0));
+		assertEquals(0.5f, engine.getReceptor(1, 0));
+		assertEquals(0.5f, engine.getExpression(1, engine.getReceptorColumn(0)));
+		// The last object is in neither the store nor the measurements
+		assertFalse(engine.isValidSender(2));
+		assertFalse(engine.isValidReceiver(2));
+
+		var scores = new double[1];
+		assertTrue(engine.score(0, scores));
+		assertEquals(0.25 * 0.5, scores[0], 1e-6);
+		assertTrue(engine.score(1, scores));
+		assertEquals(0, scores[0], 1e-6);
+
+		var pointers = engine.getNeighbourPointers();
+		assertEquals(4, pointers.length);
+		assertEquals(4, engine.getNeighbours().length);
+	}
+
+	@Test
+	void testReadPairs(@TempDir Path dir) throws Exception {
+		var file = dir.resolve("pairs.csv");
+		Files.writeString(file, "\"interaction\",\"ligand\",\"receptor\"\n\"CXCL12_CXCR4\",\"CXCL12\",\"CXCR4\"\nincomplete\nTGFB1_TGFBR1,TGFB1,TGFBR1\n");
+		var pairs = CellInteractionEngine.readPairs(file.toFile());
+		assertEquals(2, pairs.size());
+		assertArrayEquals(new String[] {"CXCL12", "CXCR4"}, pairs.get(0));
+		assertArrayEquals(new String[] {"TGFB1", "TGFBR1"}, pairs.get(1));
+	}
+
+	private static void put(PathObject pathObject, Object... namesAndValues) {
+		var ml = pathObject.getMeasurementList();
+		for (int i = 0; i < namesAndValues.length; i += 2)
+			ml.put("test:" + namesAndValues[i], ((Number)namesAndValues[i+1]).doubleValue());
+	}
+
+}
@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.CompactPathObjectConnectionGroup;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test layers and distances of target cells to opponent cells on a grid.
+ */
+public class TestCellLayerSearch {
+
+	private static final int SIZE = 6;
+
+	private static PathObject createCell(double x, double y, String className) {
+		var roi = ROIs.createRectangleROI(x - 2, y - 2, 4, 4, ImagePlane.getDefaultPlane());
+		return PathObjects.createDetectionObject(roi, className == null ? null : PathClass.fromString(className));
+	}
+
+	/**
+	 * 6 x 6 cells 10 pixels apart: opponents in column 0, targets in columns 1 to 4 and other cells in column 5.
+	 * Two further targets at x = 200 only touch an unclassified cell.
+	 */
+	private static List<PathObject> createCells() {
+		var cells = new ArrayList<PathObject>();
+		for (int row = 0; row < SIZE; row++)
+			for (int col = 0; col < SIZE; col++)
+				cells.add(createCell(col * 10, row * 10, col == 0 ? "Tumor cells" : col < 5 ? "Immune" : "Other"));
+		cells.add(createCell(200, 0, "Immune"));
+		cells.add(createCell(200, 10, "Immune"));
+		cells.add(createCell(200, 20, null));
+		return cells;
+	}
+
+	private static CellLayerSearch build(List<PathObject> cells) {
+		var connections = new PathObjectConnections();
+		connections.addGroup(CompactPathObjectConnectionGroup.createRadiusGraph(cells, 10.5));
+		// Class names are compared without whitespace
+		return CellLayerSearch.build(cells, connections, List.of("Immune"), List.of("Tumorcells", "Stroma"));
+	}
+
+	@Test
+	void testLayers() {
+		var cells = createCells();
+		var search = build(cells);
+		assertEquals(cells.size(), search.getCellCount());
+		assertTrue(search.isTarget(1));
+		assertFalse(search.isTarget(0));
+
+		var layers = search.getLayers(0);
+		var limited = search.getLayers(2);
+		for (int row = 0; row < SIZE; row++) {
+			for (int col = 0; col < SIZE; col++) {
+				int i = row * SIZE + col;
+				int expected = col >= 1 && col <= 4 ? col - 1 : -1;
+				assertEquals(expected, layers[i]);
+				assertEquals(expected < 2 ? expected : -1, limited[i]);
+			}
+		}
+		assertEquals(-1, layers[SIZE * SIZE]);
+		assertEquals(-1, layers[SIZE * SIZE + 1]);
+	}
+
+	@Test
+	void testSubset() {
+		// Opponents outside the searched cells still start the layers
+		var cells = createCells();
+		var connections = new PathObjectConnections();
+		connections.addGroup(CompactPathObjectConnectionGroup.createRadiusGraph(cells, 10.5));
+		var targets = new ArrayList<PathObject>();
+		for (int row = 0; row < SIZE; row++)
+			targets.add(cells.get(row * SIZE + 2));
+		for (int row = 0; row < SIZE; row++)
+			targets.add(cells.get(row * SIZE + 1));
+		var search = CellLayerSearch.build(targets, connections, List.of("Immune"), List.of("Tumor cells"));
+		var layers = search.getLayers(0);
+		for (int row = 0; row < SIZE; row++) {
+			assertEquals(1, layers[row]);
+			assertEquals(0, layers[SIZE + row]);
+		}
+	}
+
+	@Test
+	void testGeodesicDistances() {
+		var cells = createCells();
+		var distances = build(cells).getGeodesicDistances();
+		for (int row = 0; row < SIZE; row++) {
+			for (int col = 0; col < SIZE; col++) {
+				double d = distances[row * SIZE + col];
+				if (col >= 1 && col <= 4)
+					assertEquals(col * 10.0, d, 1e-9);
+				else
+					assertTrue(Double.isNaN(d));
+			}
+		}
+		assertTrue(Double.isNaN(distances[SIZE * SIZE]));
+	}
+
+	@Test
+	void testEuclideanDistances() {
+		var cells = createCells();
+		var search = build(cells);
+		// An opponent that is not connected to any cell
+		var candidates = new ArrayList<PathObject>(cells);
+		candidates.add(createCell(203, 4, "Stroma"));
+		var distances = search.getEuclideanDistances(candidates);
+		for (int row = 0; row < SIZE; row++) {
+			for (int col = 0; col < SIZE; col++) {
+				double d = distances[row * SIZE + col];
+				if (col >= 1 && col <= 4)
+					assertEquals(col * 10.0, d, 1e-9);
+				else
+					assertTrue(Double.isNaN(d));
+			}
+		}
+		assertEquals(5, distances[SIZE * SIZE], 1e-9);
+		assertEquals(Math.hypot(3, 6), distances[SIZE * SIZE + 1], 1e-9);
+
+		// Without opponents every distance is NaN
+		for (double d : search.getEuclideanDistances(cells.subList(1, 5)))
+			assertTrue(Double.isNaN(d));
+	}
+
+}
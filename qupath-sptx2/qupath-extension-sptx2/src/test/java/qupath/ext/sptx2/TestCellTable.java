@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test reading CosMx cell tables, ordering of packed keys, and the sidecar codec of cell tables.
+ */
+public class TestCellTable {
+
+	@Test
+	void testOrderByPackedKey() {
+		var random = new Random(3);
+		var keys = new long[5000];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = LongIntHashMap.pack(random.nextInt(40), random.nextInt(100000));
+		var order = CellTable.orderByPackedKey(keys);
+
+		var seen = new boolean[keys.length];
+		for (int i = 0; i < order.length; i++) {
+			assertFalse(seen[order[i]]);
+			seen[order[i]] = true;
+			if (i > 0)
+				assertTrue(keys[order[i]] >= keys[order[i-1]]);
+		}
+		assertEquals(0, CellTable.orderByPackedKey(new long[0]).length);
+	}
+
+	@Test
+	void testReadCosmx(@TempDir Path dir) throws Exception {
+		var fovFile = dir.resolve("slide_fov_positions_file.csv");
+		Files.writeString(fovFile, "\"fov\",\"x_global_px\",\"y_global_px\"\n1,1000.4,2000.6\n2,100.4,3000\n3,5000,200.6\n");
+
+		// Cells of 3 FOVs in a random order
+		var lines = new ArrayList<String>();
+		for (int fov = 1; fov <= 3; fov++)
+			for (int cell = 1; cell <= 500; cell++)
+				lines.add(fov + "," + cell + ",12,1.5,5,6," + (1000 * fov + cell) + ".5," + (2000 * fov + cell) + ".25");
+		Collections.shuffle(lines, new Random(4));
+		var metadataFile = dir.resolve("slide_metadata_file.csv");
+		Files.writeString(metadataFile, "\"fov\",\"cell_ID\",\"Area\",\"AspectRatio\",\"CenterX_local_px\",\"CenterY_local_px\",\"CenterX_global_px\",\"CenterY_global_px\"\n"
+				+ String.join("\n", lines) + "\n");
+
+		var table = CellTable.readCosmx(metadataFile.toFile(), fovFile.toFile());
+		assertEquals(1500, table.size());
+		for (int i = 0; i < table.size(); i++) {
+			int fov = 1 + i / 500, cell = 1 + i % 500;
+			assertEquals(LongIntHashMap.pack(fov, cell), table.getKey(i));
+			// The FOV origin is rounded to (100, 201)
+			assertEquals(1000 * fov + cell + 0.5 - 100, table.getX(i), 1e-9);
+			assertEquals(2000 * fov + cell + 0.25 - 201, table.getY(i), 1e-9);
+			assertEquals(CellTable.NO_CLUSTER, table.getCluster(i));
+		}
+		// Cells are located at their shifted positions
+		var located = table.locate((x, y) -> x > 3000 ? (int)y : -1);
+		assertEquals(-1, located[0]);
+		assertEquals((int)table.getY(1499), located[1499]);
+	}
+
+	@Test
+	void testCodec(@TempDir Path dir) throws Exception {
+		Map<String, double[]> columns = new LinkedHashMap<>();
+		columns.put("area", new double[] {10, 20.5, 30});
+		columns.put("x_centroid", new double[] {1, 2, 3});
+		var table = new CellTable(new long[] {LongIntHashMap.pack(1, 2), 7, -1}, new double[] {0.5, 1, 2}, new double[] {3, 4, 5},
+				new int[] {2, CellTable.NO_CLUSTER, 0}, columns);
+
+		var file = dir.resolve("cells.bin").toFile();
+		var writer = new SidecarCache.Writer();
+		CellTable.CODEC.write(table, writer);
+		writer.write(file, "key");
+		try (var entry = SidecarCache.Entry.open(file, "key")) {
+			var read = CellTable.CODEC.read(entry);
+			assertEquals(3, read.size());
+			for (int i = 0; i < 3; i++) {
+				assertEquals(table.getKey(i), read.getKey(i));
+				assertEquals(table.getX(i), read.getX(i));
+				assertEquals(table.getY(i), read.getY(i));
+				assertEquals(table.getCluster(i), read.getCluster(i));
+			}
+			assertArrayEquals(columns.get("area"), read.getColumn("area"));
+			assertArrayEquals(columns.get("x_centroid"), read.getColumn("x_centroid"));
+			assertNull(read.getColumn("missing"));
+		}
+	}
+
+}
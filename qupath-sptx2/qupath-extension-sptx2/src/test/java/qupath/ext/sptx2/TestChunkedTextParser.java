@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test that chunked parsing hands every line to exactly one worker, for plain and gzipped files.
+ */
+public class TestChunkedTextParser {
+
+	private static File writeLines(File file, int nLines) throws IOException {
+		try (OutputStream stream = file.getName().endsWith(".gz") ? new GZIPOutputStream(new FileOutputStream(file)) : new FileOutputStream(file);
+				var writer = new PrintWriter(stream)) {
+			writer.print("header,line\n");
+			// Lines of varying length, the last one without a newline
+			for (int i = 0; i < nLines; i++)
+				writer.print(i + "," + "x".repeat(i % 17) + (i < nLines - 1 ? "\n" : ""));
+		}
+		return file;
+	}
+
+	private static List<Integer> parseIds(ChunkedTextParser parser) throws Exception {
+		var ids = Collections.synchronizedList(new ArrayList<Integer>());
+		var fields = new ByteFields[parser.getWorkerCount()];
+		for (int w = 0; w < fields.length; w++)
+			fields[w] = new ByteFields(',', 2);
+		parser.parse((buf, from, to, worker) -> {
+			int p = from;
+			while (p < to) {
+				int e = ByteFields.lineEnd(buf, p, to);
+				fields[worker].split(buf, p, e);
+				ids.add(fields[worker].getInt(0));
+				p = e + 1;
+			}
+		});
+		Collections.sort(ids);
+		return ids;
+	}
+
+	@Test
+	void testAllLines(@TempDir Path dir) throws Exception {
+		for (var name : new String[] {"lines.csv", "lines.csv.gz"}) {
+			var file = writeLines(dir.resolve(name).toFile(), 5000);
+			assertEquals("header,line", ChunkedTextParser.readFirstLine(file));
+			// Chunks much smaller than the file, so that lines are split across reads
+			var ids = parseIds(new ChunkedTextParser(file, 4, 100).skipHeader(true));
+			assertEquals(5000, ids.size());
+			for (int i = 0; i < ids.size(); i++)
+				assertEquals(i, ids.get(i).intValue());
+		}
+	}
+
+	@Test
+	void testSequence(@TempDir Path dir) throws Exception {
+		var file = writeLines(dir.resolve("lines.csv").toFile(), 1000);
+		var firstIds = new ConcurrentHashMap<Long, Integer>();
+		var nChunks = new AtomicInteger();
+		new ChunkedTextParser(file, 3, 64).skipLines(1).parseSequenced((buf, from, to, worker, sequence) -> {
+			nChunks.incrementAndGet();
+			var fields = new ByteFields(',', 2);
+			fields.split(buf, from, ByteFields.lineEnd(buf, from, to));
+			firstIds.put(sequence, fields.getInt(0));
+		});
+		// Sequence numbers are dense and follow the file order
+		assertEquals(nChunks.get(), firstIds.size());
+		for (long s = 1; s < nChunks.get(); s++)
+			assertTrue(firstIds.get(s) > firstIds.get(s - 1));
+		assertEquals(0, firstIds.get(0L).intValue());
+	}
+
+	@Test
+	void testErrors(@TempDir Path dir) throws Exception {
+		var file = writeLines(dir.resolve("lines.csv").toFile(), 100);
+		// A line longer than a chunk
+		assertThrows(IOException.class, () -> parseIds(new ChunkedTextParser(file, 2, 8)));
+
+		// The first exception of a worker stops the parsing
+		var parser = new ChunkedTextParser(file, 2, 64).skipHeader(true);
+		var e = assertThrows(ExecutionException.class, () -> parser.parse((buf, from, to, worker) -> {
+			throw new IllegalStateException("Failed");
+		}));
+		assertTrue(e.getCause() instanceof IllegalStateException);
+
+		// An empty file has no chunks
+		var empty = dir.resolve("empty.csv").toFile();
+		assertTrue(empty.createNewFile());
+		assertNull(ChunkedTextParser.readFirstLine(empty));
+		assertTrue(parseIds(new ChunkedTextParser(empty, 2, 64)).isEmpty());
+	}
+
+}
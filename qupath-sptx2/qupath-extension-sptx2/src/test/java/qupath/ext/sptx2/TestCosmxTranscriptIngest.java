@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test the transcript filters, FOV placement and counts of a CosMx ingest.
+ */
+public class TestCosmxTranscriptIngest {
+
+	private static final String HEADER = "\"fov\",\"cell_ID\",\"cell\",\"x_local_px\",\"y_local_px\",\"x_global_px\",\"y_global_px\",\"z\",\"target\",\"CellComp\"";
+
+	private static int[] getRow(TranscriptCountTable table, FeatureDictionary dictionary, int row, String... features) {
+		var counts = new int[features.length];
+		var rowPtr = table.getRowPointers();
+		for (int k = rowPtr[row]; k < rowPtr[row+1]; k++) {
+			int f = Arrays.asList(features).indexOf(dictionary.getName(table.getFeatures()[k]));
+			assertTrue(f >= 0);
+			counts[f] = table.getCounts()[k];
+		}
+		return counts;
+	}
+
+	/**
+	 * FOV 1 is at the origin (1000, 2000) and FOV 2 is 100 pixels to its right; FOV 3 is missing.
+	 */
+	private static Path createFovPositions(Path dir) throws Exception {
+		var file = dir.resolve("slide_fov_positions_file.csv");
+		Files.writeString(file, "\"fov\",\"x_global_px\",\"y_global_px\"\n1,1000.4,2000.2\n2,1100.4,2000.2\n");
+		return file;
+	}
+
+	@Test
+	void testIngest(@TempDir Path dir) throws Exception {
+		var file = dir.resolve("slide_tx_file.csv").toFile();
+		// qv is the last column, and one line is truncated
+		Files.writeString(file.toPath(), String.join("\n",
+				HEADER + ",\"qv\"",
+				"1,5,\"c_1_1_5\",10,10,0,0,0,\"GeneA\",\"Nuclear\",40",
+				"2,3,\"c_1_2_3\",10,60,0,0,0,\"GeneA\",\"Nuclear\",40",
+				"1,5,\"c_1_1_5\",10,10,0,0,0,\"GeneB\",\"Membrane\",40",
+				"1,0,\"c_1_1_0\",10,10,0,0,0,\"GeneB\",\"Nuclear\",40",
+				"1,5,\"c_1_1_5\",10,10,0,0,0,\"GeneB\",\"Nuclear\",10",
+				"1,5,\"c_1_1_5\",10,10,0,0,0,\"NegPrb1\",\"Nuclear\",40",
+				"3,7,\"c_1_3_7\",10,10,0,0,0,\"GeneA\",\"Nuclear\",40",
+				"1,5,\"c_1_1_5\",10,10",
+				"2,3,\"c_1_2_3\",10,10,0,0,0,\"GeneB\",\"Nuclear\",40") + "\n");
+
+		// Cells split the image at x = 50, the annotation covers y < 50; FOV offsets are (0.4, 0.2) and (100.4, 0.2)
+		var ingest = new CosmxTranscriptIngest(createFovPositions(dir).toFile())
+				.featureTypes(true, false)
+				.transcriptFilters(20, true, true);
+		ingest.ingest(file, (x, y) -> x < 50 ? 0 : 1, 2, (x, y) -> y < 50 ? 0 : -1, 1);
+
+		var dictionary = ingest.getDictionary();
+		assertFalse(dictionary.isIncluded(dictionary.getId("NegPrb1")));
+		var cells = ingest.getCellCounts();
+		assertEquals(2, cells.getTargetCount());
+		assertArrayEquals(new int[] {1, 0}, getRow(cells, dictionary, 0, "GeneA", "GeneB"));
+		assertArrayEquals(new int[] {1, 1}, getRow(cells, dictionary, 1, "GeneA", "GeneB"));
+		assertArrayEquals(new int[] {1, 1}, getRow(ingest.getAnnotationCounts(), dictionary, 0, "GeneA", "GeneB"));
+
+		// Without filters, only the molecule of the missing FOV and the truncated line are skipped
+		ingest.featureTypes(true, true).transcriptFilters(0, false, false);
+		ingest.ingest(file, (x, y) -> x < 50 ? 0 : 1, 2, (x, y) -> y < 50 ? 0 : -1, 1);
+		dictionary = ingest.getDictionary();
+		assertArrayEquals(new int[] {1, 3, 1}, getRow(ingest.getCellCounts(), dictionary, 0, "GeneA", "GeneB", "NegPrb1"));
+		assertArrayEquals(new int[] {1, 4, 1}, getRow(ingest.getAnnotationCounts(), dictionary, 0, "GeneA", "GeneB", "NegPrb1"));
+	}
+
+	@Test
+	void testPlacement(@TempDir Path dir) throws Exception {
+		var file = dir.resolve("slide_tx_file.csv.gz").toFile();
+		try (var writer = new PrintWriter(new GZIPOutputStream(new FileOutputStream(file)))) {
+			writer.print(HEADER + "\n");
+			writer.print("2,3,\"c_1_2_3\",1.5,2.5,0,0,0,\"GeneA\",\"Nuclear\"\n");
+		}
+
+		// Without a qv column the Q-value filter is ignored
+		var ingest = new CosmxTranscriptIngest(createFovPositions(dir).toFile()).transcriptFilters(20, true, true);
+		var located = new double[2];
+		ingest.ingest(file, (x, y) -> {
+			located[0] = x;
+			located[1] = y;
+			return 0;
+		}, 1, (x, y) -> -1, 0);
+		assertEquals(101.9, located[0], 1e-9);
+		assertEquals(2.7, located[1], 1e-9);
+		assertArrayEquals(new int[] {1}, getRow(ingest.getCellCounts(), ingest.getDictionary(), 0, "GeneA"));
+	}
+
+}
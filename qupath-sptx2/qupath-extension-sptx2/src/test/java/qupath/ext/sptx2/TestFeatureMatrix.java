@@ -0,0 +1,187 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test reading 10x and CosMx feature matrices, summing their rows, and the sidecar codec of feature matrices.
+ */
+public class TestFeatureMatrix {
+
+	/**
+	 * Dense counts of a table, checking features are sorted within each row.
+	 */
+	private static int[][] toDense(TranscriptCountTable table, int nFeatures) {
+		var dense = new int[table.getTargetCount()][nFeatures];
+		var rowPtr = table.getRowPointers();
+		for (int t = 0; t < dense.length; t++) {
+			for (int k = rowPtr[t]; k < rowPtr[t+1]; k++) {
+				if (k > rowPtr[t])
+					assertTrue(table.getFeatures()[k] > table.getFeatures()[k-1]);
+				dense[t][table.getFeatures()[k]] = table.getCounts()[k];
+			}
+		}
+		return dense;
+	}
+
+	private static int[][] toDense(FeatureMatrix matrix) {
+		var rows = IntStream.range(0, matrix.getRowCount()).toArray();
+		var features = IntStream.range(0, matrix.getFeatureCount()).toArray();
+		return toDense(matrix.toCountTable(rows, rows.length, features), features.length);
+	}
+
+	private static void writeGzip(Path file, String content) throws IOException {
+		try (var writer = new PrintWriter(new GZIPOutputStream(new FileOutputStream(file.toFile())))) {
+			writer.print(content);
+		}
+	}
+
+	@Test
+	void testReadCosmxExprMat(@TempDir Path dir) throws Exception {
+		int nFovs = 3, nCells = 400;
+		var genes = new String[] {"CD3E", "NegPrb1", "MS4A1", "NegPrb22", "EPCAM"};
+		var random = new Random(6);
+		var expected = new int[nFovs * nCells][genes.length];
+		var lines = new ArrayList<String>();
+		for (int fov = 0; fov < nFovs; fov++) {
+			for (int cell = 0; cell < nCells; cell++) {
+				var line = new StringBuilder((fov + 1) + "," + cell);
+				for (int g = 0; g < genes.length; g++) {
+					int count = random.nextInt(3) == 0 ? random.nextInt(200) : 0;
+					expected[fov * nCells + cell][g] = count;
+					line.append(',').append(count);
+				}
+				lines.add(line.toString());
+			}
+		}
+		Collections.shuffle(lines, new Random(7));
+		var file = dir.resolve("slide_exprMat_file.csv");
+		Files.writeString(file, "\"fov\",\"cell_ID\",\"" + String.join("\",\"", genes) + "\"\n" + String.join("\n", lines) + "\n");
+
+		var matrix = FeatureMatrix.readCosmxExprMat(file.toFile());
+		assertEquals(nFovs * nCells, matrix.getRowCount());
+		assertEquals(genes.length, matrix.getFeatureCount());
+		for (int g = 0; g < genes.length; g++) {
+			assertEquals(genes[g], matrix.getFeatureName(g));
+			assertEquals(genes[g].startsWith("NegPrb") ? "Negative Control Probe" : "Gene Expression", matrix.getFeatureType(g));
+		}
+		int nnz = 0;
+		for (int r = 0; r < matrix.getRowCount(); r++) {
+			int fov = 1 + r / nCells, cell = r % nCells;
+			assertEquals(LongIntHashMap.pack(fov, cell), matrix.getRowKey(r));
+			assertEquals(cell + "_" + fov, matrix.getRowName(r));
+			for (int count : expected[r])
+				nnz += count == 0 ? 0 : 1;
+		}
+		// Zero counts are not stored
+		assertEquals(nnz, matrix.getNonZeroCount());
+		assertArrayEquals(expected, toDense(matrix));
+	}
+
+	@Test
+	void testRead10x(@TempDir Path dir) throws Exception {
+		writeGzip(dir.resolve("barcodes.tsv.gz"), "17\naaabbb-1\n3\n");
+		writeGzip(dir.resolve("features.tsv.gz"), "ENSG1\tCD3E\tGene Expression\nNEG1\tNegControlProbe_1\tNegative Control Probe\n");
+		// Rows are features and columns are barcodes
+		writeGzip(dir.resolve("matrix.mtx.gz"), "%%MatrixMarket matrix coordinate integer general\n2 3 4\n1 1 5\n2 1 1\n2 2 7\n1 3 2\n");
+
+		var matrix = FeatureMatrix.read10x(dir.toFile());
+		assertEquals(3, matrix.getRowCount());
+		assertEquals(2, matrix.getFeatureCount());
+		assertEquals("aaabbb-1", matrix.getRowName(1));
+		// Barcodes that are not integers are keyed by their index
+		assertEquals(17, matrix.getRowKey(0));
+		assertEquals(1, matrix.getRowKey(1));
+		assertEquals(3, matrix.getRowKey(2));
+		assertEquals("NegControlProbe_1", matrix.getFeatureName(1));
+		assertEquals("Negative Control Probe", matrix.getFeatureType(1));
+		assertEquals(4, matrix.getNonZeroCount());
+		assertArrayEquals(new int[][] {{5, 1}, {0, 7}, {2, 0}}, toDense(matrix));
+		assertEquals(3, FeatureMatrix.get10xSources(dir.toFile()).size());
+	}
+
+	private static FeatureMatrix createMatrix() {
+		// Rows {1, 0, 2}, {0, 4, 0}, {3, 0, 5}, {0, 0, 6}
+		return new FeatureMatrix(new String[] {"a", "b", "c", "d"}, new long[] {10, 11, 12, 13},
+				new String[] {"f0", "f1", "f2"}, new String[] {"g0", "g1", "g2"}, new String[] {"Gene Expression", "Gene Expression", "Gene Expression"},
+				new int[] {0, 2, 3, 5, 6}, new int[] {0, 2, 1, 0, 2, 2}, new int[] {1, 2, 4, 3, 5, 6});
+	}
+
+	@Test
+	void testToCountTable() {
+		var matrix = createMatrix();
+		// Drop row b and feature g1, merge rows a and c, and swap the features
+		var table = matrix.toCountTable(new int[] {1, -1, 1, 0}, 2, new int[] {1, -1, 0});
+		assertArrayEquals(new int[][] {{6, 0}, {7, 4}}, toDense(table, 2));
+	}
+
+	@Test
+	void testSumRows() {
+		var matrix = createMatrix();
+		var summed = matrix.sumRows(new int[] {0, 0, -1, 1}, new String[] {"ab", "d"}, new long[] {20, 21});
+		assertEquals(2, summed.getRowCount());
+		assertEquals(3, summed.getFeatureCount());
+		assertEquals("ab", summed.getRowName(0));
+		assertEquals(21, summed.getRowKey(1));
+		assertEquals("g2", summed.getFeatureName(2));
+		assertArrayEquals(new int[][] {{1, 4, 2}, {0, 0, 6}}, toDense(summed));
+
+		var rekeyed = matrix.withRowKeys(new long[] {0, 1, 2, 3});
+		assertEquals(2, rekeyed.getRowKey(2));
+		assertEquals("c", rekeyed.getRowName(2));
+		assertArrayEquals(toDense(matrix), toDense(rekeyed));
+	}
+
+	@Test
+	void testCodec(@TempDir Path dir) throws Exception {
+		var matrix = createMatrix();
+		var file = dir.resolve("matrix.bin").toFile();
+		var writer = new SidecarCache.Writer();
+		FeatureMatrix.CODEC.write(matrix, writer);
+		writer.write(file, "key");
+		try (var entry = SidecarCache.Entry.open(file, "key")) {
+			var read = FeatureMatrix.CODEC.read(entry);
+			assertEquals(matrix.getRowCount(), read.getRowCount());
+			for (int r = 0; r < matrix.getRowCount(); r++) {
+				assertEquals(matrix.getRowName(r), read.getRowName(r));
+				assertEquals(matrix.getRowKey(r), read.getRowKey(r));
+			}
+			for (int f = 0; f < matrix.getFeatureCount(); f++) {
+				assertEquals(matrix.getFeatureName(f), read.getFeatureName(f));
+				assertEquals(matrix.getFeatureType(f), read.getFeatureType(f));
+			}
+			assertArrayEquals(toDense(matrix), toDense(read));
+		}
+	}
+
+}
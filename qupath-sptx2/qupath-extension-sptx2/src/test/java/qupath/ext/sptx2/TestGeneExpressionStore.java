@@ -0,0 +1,152 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.gui.measure.ObservableMeasurementTableData;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.io.PathIO;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test the sparse gene expression store, its file format and its virtual measurements.
+ */
+public class TestGeneExpressionStore {
+
+	private static List<PathObject> createCells(int n) {
+		var cells = new ArrayList<PathObject>();
+		for (int i = 0; i < n; i++)
+			cells.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 10, 10, 5, 5, ImagePlane.getDefaultPlane())));
+		return cells;
+	}
+
+	/**
+	 * Cell i has A = i, C = 2i, and no B; the last cell has no row.
+	 */
+	private static GeneExpressionStore createStore(List<PathObject> cells) {
+		var builder = new GeneExpressionStore.Builder("test:", List.of("A", "B", "C"));
+		// Add rows in reverse order, with the last row split in two
+		for (int i = cells.size() - 2; i >= 1; i--)
+			builder.addRow(cells.get(i), new int[] {2, 0}, new float[] {2 * i, i}, 2);
+		builder.addRow(cells.get(0), new int[] {0}, new float[] {0}, 1);
+		builder.addRow(cells.get(cells.size() - 2), new int[] {1}, new float[] {0}, 1);
+		return builder.build();
+	}
+
+	private static void assertStoreValues(GeneExpressionStore store, List<PathObject> cells) {
+		for (int i = 0; i < cells.size() - 1; i++) {
+			assertEquals(i, store.getValue(cells.get(i), "A"), 1e-6);
+			assertEquals(0, store.getValue(cells.get(i), "B"), 1e-6);
+			assertEquals(2 * i, store.getValue(cells.get(i), "C"), 1e-6);
+		}
+		assertTrue(Double.isNaN(store.getValue(cells.get(cells.size() - 1), "A")));
+		assertTrue(Double.isNaN(store.getValue(cells.get(0), "D")));
+	}
+
+	@Test
+	void testValues() {
+		var cells = createCells(20);
+		var store = createStore(cells);
+		assertEquals(19, store.nObjects());
+		assertEquals(3, store.nGenes());
+		// Zero values are dropped
+		assertEquals(2 * 18, store.nNonZero());
+		assertStoreValues(store, cells);
+		assertEquals(List.of("C", "A"), store.getTopGenes(cells.get(5), 5));
+	}
+
+	@Test
+	void testWriteRead(@TempDir Path dir) throws Exception {
+		var cells = createCells(20);
+		var store = createStore(cells);
+		File file = dir.resolve("store.bin").toFile();
+		store.write(file);
+		var read = GeneExpressionStore.read(file);
+		assertEquals(store.getPrefix(), read.getPrefix());
+		assertEquals(store.getGenes(), read.getGenes());
+		assertEquals(store.nNonZero(), read.nNonZero());
+		assertStoreValues(read, cells);
+	}
+
+	@Test
+	void testVirtualMeasurements() {
+		var cells = createCells(20);
+		var imageData = new ImageData<BufferedImage>(null);
+		GeneExpressionStore.setStore(imageData, createStore(cells));
+
+		var measurements = ObservableMeasurementTableData.getVirtualMeasurements(imageData);
+		assertEquals(List.of("test:A", "test:B", "test:C"), new ArrayList<>(measurements.keySet()));
+		assertEquals(10, measurements.get("test:C").applyAsDouble(cells.get(5)), 1e-6);
+
+		// A store with another prefix keeps the previous measurements, a store with the same prefix replaces them
+		var other = new GeneExpressionStore.Builder("other:", List.of("A"));
+		other.addRow(cells.get(1), new int[] {0}, new float[] {1}, 1);
+		GeneExpressionStore.publishVirtualMeasurements(imageData, other.build());
+		assertEquals(4, ObservableMeasurementTableData.getVirtualMeasurements(imageData).size());
+		GeneExpressionStore.publishVirtualMeasurements(imageData, createStore(cells));
+		assertEquals(4, ObservableMeasurementTableData.getVirtualMeasurements(imageData).size());
+	}
+
+	@Test
+	void testSaveImageData() throws Exception {
+		var cells = createCells(20);
+		var store = createStore(cells);
+		var server = new WrappedBufferedImageServer("test", new BufferedImage(256, 64, BufferedImage.TYPE_BYTE_GRAY));
+		var imageData = new ImageData<>(server);
+		imageData.getHierarchy().addObjects(cells);
+		GeneExpressionStore.setStore(imageData, store);
+
+		// The store and its virtual measurements are skipped, rather than failing the whole write
+		var bytes = new ByteArrayOutputStream();
+		PathIO.writeImageData(bytes, imageData);
+		var read = PathIO.readImageData(new ByteArrayInputStream(bytes.toByteArray()), null, server, BufferedImage.class);
+
+		var readCells = new ArrayList<>(read.getHierarchy().getDetectionObjects());
+		assertEquals(cells.size(), readCells.size());
+		assertNull(read.getProperty(GeneExpressionStore.KEY_GENE_EXPRESSION));
+		assertTrue(ObservableMeasurementTableData.getVirtualMeasurements(read).isEmpty());
+
+		// Object ids are kept, so the store applies to the objects read back
+		GeneExpressionStore.setStore(read, store);
+		var measurements = ObservableMeasurementTableData.getVirtualMeasurements(read);
+		var ids = cells.stream().map(PathObject::getID).collect(Collectors.toList());
+		for (var cell : readCells) {
+			int i = ids.indexOf(cell.getID());
+			assertTrue(i >= 0);
+			assertEquals(store.getValue(cells.get(i), "C"), measurements.get("test:C").applyAsDouble(cell), 1e-6);
+		}
+	}
+
+}
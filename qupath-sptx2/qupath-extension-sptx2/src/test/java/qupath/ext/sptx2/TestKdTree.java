@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test k-nearest-neighbour and radius queries of the k-d tree against a brute-force search.
+ */
+public class TestKdTree {
+
+	private static double[][] createPoints(int n, long seed) {
+		var random = new Random(seed);
+		var xy = new double[2][n];
+		for (int i = 0; i < n; i++) {
+			// Integer coordinates, so that there are ties and duplicates
+			xy[0][i] = random.nextInt(200);
+			xy[1][i] = random.nextInt(100);
+		}
+		return xy;
+	}
+
+	private static double[] bruteForceDistances(double[][] xy, double qx, double qy, int exclude, int k) {
+		var distances = new ArrayList<Double>();
+		for (int j = 0; j < xy[0].length; j++)
+			if (j != exclude)
+				distances.add(Math.hypot(xy[0][j] - qx, xy[1][j] - qy));
+		Collections.sort(distances);
+		return distances.subList(0, Math.min(k, distances.size())).stream().mapToDouble(Double::doubleValue).toArray();
+	}
+
+	@Test
+	void testNearest() {
+		var xy = createPoints(3000, 13);
+		var tree = new KdTree(xy[0], xy[1]);
+		assertEquals(3000, tree.size());
+		var random = new Random(14);
+		for (int k : new int[] {1, 5, 16}) {
+			var neighbours = new KdTree.Neighbours(k);
+			for (int q = 0; q < 300; q++) {
+				int exclude = q % 2 == 0 ? random.nextInt(3000) : -1;
+				double qx = exclude >= 0 ? xy[0][exclude] : random.nextDouble() * 300 - 50;
+				double qy = exclude >= 0 ? xy[1][exclude] : random.nextDouble() * 200 - 50;
+				tree.nearest(qx, qy, exclude, neighbours);
+				var expected = bruteForceDistances(xy, qx, qy, exclude, k);
+				assertEquals(k, neighbours.size());
+				for (int r = 0; r < k; r++) {
+					int j = neighbours.getIndex(r);
+					assertNotEquals(exclude, j);
+					assertEquals(Math.hypot(xy[0][j] - qx, xy[1][j] - qy), neighbours.getDistance(r), 1e-9);
+					assertEquals(expected[r], neighbours.getDistance(r), 1e-9);
+				}
+			}
+		}
+	}
+
+	@Test
+	void testFewPoints() {
+		var tree = new KdTree(new double[] {0, 3, 1}, new double[] {0, 4, 0});
+		var neighbours = new KdTree.Neighbours(5);
+		tree.nearest(0, 0, 0, neighbours);
+		assertEquals(2, neighbours.size());
+		assertEquals(2, neighbours.getIndex(0));
+		assertEquals(1, neighbours.getIndex(1));
+		assertEquals(5, neighbours.getDistance(1), 1e-12);
+
+		new KdTree(new double[0], new double[0]).nearest(1, 1, -1, neighbours);
+		assertEquals(0, neighbours.size());
+		tree.nearest(0, 0, -1, new KdTree.Neighbours(0));
+	}
+
+	@Test
+	void testForEachWithin() {
+		var xy = createPoints(2000, 15);
+		var tree = new KdTree(xy[0], xy[1]);
+		var random = new Random(16);
+		for (int q = 0; q < 200; q++) {
+			double qx = random.nextInt(220) - 10, qy = random.nextInt(120) - 10, radius = random.nextInt(20);
+			var expected = new ArrayList<Integer>();
+			for (int j = 0; j < xy[0].length; j++)
+				if (Math.hypot(xy[0][j] - qx, xy[1][j] - qy) <= radius)
+					expected.add(j);
+			var actual = new ArrayList<Integer>();
+			tree.forEachWithin(qx, qy, radius, actual::add);
+			Collections.sort(actual);
+			assertEquals(expected, actual);
+		}
+		// Points on the circle are included
+		var found = new int[1];
+		new KdTree(new double[] {3}, new double[] {4}).forEachWithin(0, 0, 5, j -> found[0]++);
+		assertEquals(1, found[0]);
+	}
+
+}
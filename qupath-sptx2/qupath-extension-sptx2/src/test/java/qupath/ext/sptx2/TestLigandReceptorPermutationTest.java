@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.objects.CompactPathObjectConnectionGroup;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test the ligand-receptor permutation test on a grid where one cluster sends a ligand and the other has its receptor.
+ */
+public class TestLigandReceptorPermutationTest {
+
+	/**
+	 * 10 x 10 cells 10 pixels apart, cluster A on the left half and B on the right half.
+	 */
+	private static List<PathObject> createCells() {
+		var cells = new ArrayList<PathObject>();
+		for (int row = 0; row < 10; row++) {
+			for (int col = 0; col < 10; col++) {
+				var roi = ROIs.createRectangleROI(col * 10 - 2, row * 10 - 2, 4, 4, ImagePlane.getDefaultPlane());
+				cells.add(PathObjects.createDetectionObject(roi, PathClass.fromString(col < 5 ? "A" : "B")));
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * Cells of A express L and X, cells of B express R and X, in equal counts.
+	 */
+	private static GeneExpressionStore createSegregatedStore(List<PathObject> cells) {
+		var builder = new GeneExpressionStore.Builder("test:", List.of("L", "R", "X"));
+		for (var cell : cells) {
+			int gene = "A".equals(cell.getPathClass().getName()) ? 0 : 1;
+			builder.addRow(cell, new int[] {gene, 2}, new float[] {4, 4}, 2);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Every cell expresses random counts of L, R and X.
+	 */
+	private static GeneExpressionStore createRandomStore(List<PathObject> cells) {
+		var builder = new GeneExpressionStore.Builder("test:", List.of("L", "R", "X"));
+		var random = new Random(5);
+		for (var cell : cells)
+			builder.addRow(cell, new int[] {0, 1, 2}, new float[] {random.nextInt(5), random.nextInt(5), 1 + random.nextInt(5)}, 3);
+		return builder.build();
+	}
+
+	private static LigandReceptorPermutationTest createTest(List<PathObject> cells, GeneExpressionStore store) {
+		var connections = new PathObjectConnections();
+		connections.addGroup(CompactPathObjectConnectionGroup.createRadiusGraph(cells, 10.5));
+		var engine = CellInteractionEngine.build(cells, connections, List.<String[]>of(new String[] {"L", "R"}), "test:", store);
+		return new LigandReceptorPermutationTest(engine, p -> p.getPathClass().getName(), 0.1);
+	}
+
+	private static double[] getPValues(LigandReceptorPermutationTest test) {
+		return new double[] {test.getPValue(0, 0, 0), test.getPValue(0, 1, 0), test.getPValue(1, 0, 0), test.getPValue(1, 1, 0)};
+	}
+
+	@Test
+	void testScores() {
+		var cells = createCells();
+		var test = createTest(cells, createSegregatedStore(cells));
+		assertArrayEquals(new String[] {"A", "B"}, test.getClusterNames());
+		assertEquals(100, test.getCellCount());
+
+		test.run(200, 1);
+		assertEquals(200, test.getPermutationCount());
+		// Mean of the normalised ligand in A and receptor in B
+		assertEquals(0.5, test.getScore(0, 1, 0), 1e-6);
+		assertTrue(test.getPValue(0, 1, 0) < 0.01);
+		// B does not express the ligand: the score is 0, and every shuffle reaches it
+		assertEquals(0, test.getScore(1, 0, 0), 1e-6);
+		assertEquals(1, test.getPValue(1, 0, 0), 1e-6);
+	}
+
+	@Test
+	void testReproducibleAcrossWorkers() {
+		var cells = createCells();
+		var test = createTest(cells, createRandomStore(cells));
+		int parallelism = ThreadTools.getParallelism();
+		try {
+			ThreadTools.setParallelism(1);
+			test.run(100, 3);
+			var expected = getPValues(test);
+			// The random counts give p-values between the bounds, so a different shuffle order would show
+			for (double p : expected)
+				assertTrue(p > 1.0 / 101 && p < 1);
+
+			ThreadTools.setParallelism(3);
+			test.run(100, 3);
+			assertArrayEquals(expected, getPValues(test), 1e-12);
+
+			test.run(100, 4);
+			assertFalse(Arrays.equals(expected, getPValues(test)));
+		} finally {
+			ThreadTools.setParallelism(parallelism);
+		}
+	}
+
+}
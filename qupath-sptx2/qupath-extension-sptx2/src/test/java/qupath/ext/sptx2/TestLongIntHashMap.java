@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the primitive long to int hash map against a {@link HashMap}.
+ */
+public class TestLongIntHashMap {
+
+	@Test
+	void testPack() {
+		for (int[] pair : new int[][] {{0, 0}, {1, -1}, {-5, 7}, {Integer.MAX_VALUE, Integer.MIN_VALUE}}) {
+			long key = LongIntHashMap.pack(pair[0], pair[1]);
+			assertEquals(pair[0], LongIntHashMap.hi(key));
+			assertEquals(pair[1], LongIntHashMap.lo(key));
+		}
+		// Packed keys sort by their high int first, as used for sorting rows
+		assertTrue(LongIntHashMap.pack(1, 100) < LongIntHashMap.pack(2, 0));
+	}
+
+	@Test
+	void testPutGet() {
+		// Start small so that the table is rehashed several times
+		var map = new LongIntHashMap(1);
+		var expected = new HashMap<Long, Integer>();
+		var random = new Random(1);
+		for (int i = 0; i < 20000; i++) {
+			long key = random.nextInt(5000) * 0x100000001L - 1000;
+			int value = random.nextInt();
+			map.put(key, value);
+			expected.put(key, value);
+		}
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+			assertTrue(map.containsKey(entry.getKey()));
+			assertEquals(entry.getValue().intValue(), map.get(entry.getKey()));
+		}
+		assertFalse(map.containsKey(-999));
+		assertEquals(-1, map.get(-999));
+
+		var visited = new HashMap<Long, Integer>();
+		map.forEach((k, v) -> assertNull(visited.put(k, v)));
+		assertEquals(expected, visited);
+	}
+
+	@Test
+	void testAddTo() {
+		var map = new LongIntHashMap(4, 0);
+		assertEquals(0, map.get(7));
+		for (int i = 0; i < 1000; i++)
+			map.addTo(LongIntHashMap.pack(i % 10, i % 3), 2);
+		assertEquals(30, map.size());
+		int total = 0;
+		for (int hi = 0; hi < 10; hi++)
+			for (int lo = 0; lo < 3; lo++)
+				total += map.get(LongIntHashMap.pack(hi, lo));
+		assertEquals(2000, total);
+		assertEquals(5, map.addTo(123, 5));
+		assertEquals(2, map.addTo(123, -3));
+	}
+
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test the streaming MatrixMarket reader against a dense sum of the same entries.
+ */
+public class TestMatrixMarketReader {
+
+	@Test
+	void testRead(@TempDir Path dir) throws Exception {
+		int nRows = 30, nCols = 500;
+		var random = new Random(2);
+		var values = new int[nRows][nCols];
+		var file = dir.resolve("matrix.mtx.gz").toFile();
+		int nEntries = 0;
+		for (int r = 0; r < nRows; r++) {
+			for (int c = 0; c < nCols; c++) {
+				if (random.nextInt(5) == 0) {
+					values[r][c] = 1 + random.nextInt(20);
+					nEntries++;
+				}
+			}
+		}
+		try (var writer = new PrintWriter(new GZIPOutputStream(new FileOutputStream(file)))) {
+			writer.print("%%MatrixMarket matrix coordinate integer general\n");
+			writer.print("%metadata_json: {}\n");
+			writer.print(nRows + " " + nCols + " " + nEntries + "\n");
+			// Column-major, as written by 10x
+			for (int c = 0; c < nCols; c++)
+				for (int r = 0; r < nRows; r++)
+					if (values[r][c] != 0)
+						writer.print((r + 1) + " " + (c + 1) + " " + values[r][c] + "\n");
+		}
+
+		var reader = new MatrixMarketReader(file);
+		assertEquals(nRows, reader.getRowCount());
+		assertEquals(nCols, reader.getColumnCount());
+		assertEquals(nEntries, reader.getEntryCount());
+
+		// Skip every third row and the first columns, and merge columns in groups of 7
+		var rowFeatures = new int[nRows];
+		for (int r = 0; r < nRows; r++)
+			rowFeatures[r] = r % 3 == 0 ? -1 : nRows - 1 - r;
+		int nTargets = (nCols + 6) / 7;
+		var columnTargets = new int[nCols];
+		for (int c = 0; c < nCols; c++)
+			columnTargets[c] = c < 10 ? -1 : c / 7;
+
+		var expected = new int[nTargets][nRows];
+		for (int r = 0; r < nRows; r++)
+			for (int c = 0; c < nCols; c++)
+				if (rowFeatures[r] >= 0 && columnTargets[c] >= 0)
+					expected[columnTargets[c]][rowFeatures[r]] += values[r][c];
+
+		var table = reader.read(rowFeatures, columnTargets, nTargets);
+		assertEquals(nTargets, table.getTargetCount());
+		var rowPtr = table.getRowPointers();
+		for (int t = 0; t < nTargets; t++) {
+			var actual = new int[nRows];
+			for (int k = rowPtr[t]; k < rowPtr[t+1]; k++) {
+				// Features are sorted within each row
+				if (k > rowPtr[t])
+					assertTrue(table.getFeatures()[k] > table.getFeatures()[k-1]);
+				actual[table.getFeatures()[k]] = table.getCounts()[k];
+			}
+			assertArrayEquals(expected[t], actual);
+		}
+	}
+
+	@Test
+	void testInvalidHeader(@TempDir Path dir) throws Exception {
+		var file = dir.resolve("matrix.mtx").toFile();
+		Files.writeString(file.toPath(), "%%MatrixMarket matrix coordinate integer general\n10 20\n");
+		assertThrows(IOException.class, () -> new MatrixMarketReader(file));
+		Files.writeString(file.toPath(), "%%MatrixMarket matrix coordinate integer general\n");
+		assertThrows(IOException.class, () -> new MatrixMarketReader(file));
+	}
+
+}
@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.CompactPathObjectConnectionGroup;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test the CSR neighbour graph, with neighbours outside the cells dropped or kept as extra nodes.
+ */
+public class TestNeighbourGraph {
+
+	/**
+	 * 5 objects in a row, 10 pixels apart, each connected to the previous and next one.
+	 */
+	private static List<PathObject> createObjects() {
+		var objects = new ArrayList<PathObject>();
+		for (int i = 0; i < 5; i++)
+			objects.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 10, 0, 2, 2, ImagePlane.getDefaultPlane())));
+		return objects;
+	}
+
+	private static PathObjectConnections connect(List<PathObject> objects) {
+		var connections = new PathObjectConnections();
+		connections.addGroup(CompactPathObjectConnectionGroup.createRadiusGraph(objects, 10.5));
+		return connections;
+	}
+
+	private static int[] getNeighbours(NeighbourGraph graph, int i) {
+		var neighbours = Arrays.copyOfRange(graph.getNeighbours(), graph.getPointers()[i], graph.getPointers()[i+1]);
+		Arrays.sort(neighbours);
+		return neighbours;
+	}
+
+	@Test
+	void testDropOutside() {
+		var objects = createObjects();
+		var connections = connect(objects);
+		// Cells 3, 1 and 2, in that order
+		var cells = List.of(objects.get(3), objects.get(1), objects.get(2));
+		var graph = NeighbourGraph.build(cells, connections, false);
+
+		assertEquals(3, graph.getCellCount());
+		assertEquals(cells, graph.getNodes());
+		assertArrayEquals(new int[] {0, 1, 2, 4}, graph.getPointers());
+		assertArrayEquals(new int[] {2}, getNeighbours(graph, 0));
+		assertArrayEquals(new int[] {2}, getNeighbours(graph, 1));
+		assertArrayEquals(new int[] {0, 1}, getNeighbours(graph, 2));
+	}
+
+	@Test
+	void testKeepOutside() {
+		var objects = createObjects();
+		var connections = connect(objects);
+		var cells = List.of(objects.get(3), objects.get(1));
+		var graph = NeighbourGraph.build(cells, connections, true);
+
+		assertEquals(2, graph.getCellCount());
+		// Objects 2 and 4 are reached from cell 3, and 0 from cell 1; object 2 is only added once
+		var nodes = graph.getNodes();
+		assertEquals(5, nodes.size());
+		assertEquals(cells, nodes.subList(0, 2));
+		assertEquals(3, graph.getPointers().length);
+		for (int i = 0; i < 2; i++) {
+			var neighbours = new ArrayList<PathObject>();
+			for (int j : getNeighbours(graph, i))
+				neighbours.add(nodes.get(j));
+			var expected = connections.getConnections(cells.get(i));
+			assertEquals(expected.size(), neighbours.size());
+			assertTrue(neighbours.containsAll(expected));
+		}
+	}
+
+	@Test
+	void testNoConnections() {
+		var objects = createObjects();
+		for (boolean keepOutside : new boolean[] {false, true}) {
+			var graph = NeighbourGraph.build(objects, null, keepOutside);
+			assertEquals(objects.size(), graph.getNodes().size());
+			assertEquals(0, graph.getNeighbours().length);
+			assertArrayEquals(new int[objects.size() + 1], graph.getPointers());
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.objects.CompactPathObjectConnectionGroup;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test neighbourhood enrichment and co-occurrence on a grid of two segregated classes.
+ */
+public class TestNeighbourhoodEnrichment {
+
+	/**
+	 * 10 x 10 cells 10 pixels apart, class A on the left half and B on the right half, plus one unclassified cell.
+	 */
+	private static List<PathObject> createCells() {
+		var cells = new ArrayList<PathObject>();
+		for (int row = 0; row < 10; row++) {
+			for (int col = 0; col < 10; col++) {
+				var roi = ROIs.createRectangleROI(col * 10 - 2, row * 10 - 2, 4, 4, ImagePlane.getDefaultPlane());
+				cells.add(PathObjects.createDetectionObject(roi, PathClass.fromString(col < 5 ? "A" : "B")));
+			}
+		}
+		cells.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(98, 48, 4, 4, ImagePlane.getDefaultPlane())));
+		return cells;
+	}
+
+	private static NeighbourhoodEnrichment build(List<PathObject> cells) {
+		// Connect the 4 nearest cells of the grid
+		var connections = new PathObjectConnections();
+		connections.addGroup(CompactPathObjectConnectionGroup.createRadiusGraph(cells, 10.5));
+		return NeighbourhoodEnrichment.build(cells, connections,
+				p -> p.getPathClass() == null ? null : p.getPathClass().getName());
+	}
+
+	@Test
+	void testObservedCounts() {
+		var enrichment = build(createCells());
+		assertArrayEquals(new String[] {"A", "B"}, enrichment.getClassNames());
+		assertEquals(100, enrichment.getCellCount());
+		// Edges to the unclassified cell are dropped
+		assertEquals(2 * 2 * 10 * 9, enrichment.getEdgeCount());
+
+		enrichment.runEnrichment(10, 1);
+		assertEquals(10, enrichment.getObservedCount(0, 1));
+		assertEquals(10, enrichment.getObservedCount(1, 0));
+		assertEquals(2 * (4 * 10 + 5 * 9), enrichment.getObservedCount(0, 0));
+		assertEquals(enrichment.getObservedCount(0, 0), enrichment.getObservedCount(1, 1));
+	}
+
+	@Test
+	void testEnrichment() {
+		var enrichment = build(createCells());
+		enrichment.runEnrichment(200, 42);
+		assertEquals(200, enrichment.getPermutationCount());
+		assertTrue(enrichment.getZScore(0, 0) > 5);
+		assertTrue(enrichment.getZScore(1, 1) > 5);
+		assertTrue(enrichment.getZScore(0, 1) < -5);
+	}
+
+	@Test
+	void testReproducibleAcrossWorkers() {
+		var enrichment = build(createCells());
+		int parallelism = ThreadTools.getParallelism();
+		try {
+			ThreadTools.setParallelism(1);
+			enrichment.runEnrichment(50, 7);
+			double[] expected = {enrichment.getZScore(0, 0), enrichment.getZScore(0, 1), enrichment.getZScore(1, 1)};
+
+			ThreadTools.setParallelism(3);
+			enrichment.runEnrichment(50, 7);
+			assertArrayEquals(expected, new double[] {enrichment.getZScore(0, 0), enrichment.getZScore(0, 1), enrichment.getZScore(1, 1)}, 1e-9);
+
+			enrichment.runEnrichment(50, 8);
+			assertNotEquals(expected[0], enrichment.getZScore(0, 0), 1e-9);
+		} finally {
+			ThreadTools.setParallelism(parallelism);
+		}
+	}
+
+	@Test
+	void testCoOccurrence() {
+		var enrichment = build(createCells());
+		enrichment.runCoOccurrence(new double[] {10.5, 200});
+		// Close neighbours are mostly of the same class
+		assertTrue(enrichment.getCoOccurrence(0, 0, 0) > 1.5);
+		assertTrue(enrichment.getCoOccurrence(0, 0, 1) < 0.5);
+		// Both classes have the same marginal probability, so the ratios around a class sum to 2
+		assertTrue(enrichment.getCoOccurrence(1, 0, 1) > 1);
+		assertEquals(2.0, enrichment.getCoOccurrence(1, 0, 0) + enrichment.getCoOccurrence(1, 0, 1), 1e-9);
+	}
+
+}
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test class fractions and mean gene expression of the neighbours of cells in a row.
+ */
+public class TestNicheComposition {
+
+	private static final double[] X = {0, 10, 20, 30, 42, 55};
+
+	private static final String[] CLASSES = {"B", "A", "B", null, "A", "A"};
+
+	private static List<PathObject> createCells() {
+		var cells = new ArrayList<PathObject>();
+		for (int i = 0; i < X.length; i++) {
+			var roi = ROIs.createRectangleROI(X[i] - 2, -2, 4, 4, ImagePlane.getDefaultPlane());
+			cells.add(PathObjects.createDetectionObject(roi, CLASSES[i] == null ? null : PathClass.fromString(CLASSES[i])));
+		}
+		return cells;
+	}
+
+	private static NicheComposition build(List<PathObject> cells) {
+		return NicheComposition.build(cells, p -> p.getPathClass() == null ? null : p.getPathClass().getName());
+	}
+
+	@Test
+	void testNearest() {
+		var cells = createCells();
+		var niche = build(cells);
+		// Classes are sorted, and the unclassified cell is not a neighbour
+		assertArrayEquals(new String[] {"A", "B"}, niche.getClassNames());
+		assertEquals(5, niche.getNeighbourCount());
+
+		var expression = new float[X.length];
+		for (int i = 0; i < X.length; i++)
+			expression[i] = i;
+		var store = niche.compute(3, 0, List.of("G"), expression);
+		assertEquals(NicheComposition.PREFIX, store.getPrefix());
+		assertEquals(List.of("fraction:A", "fraction:B", "mean:G"), store.getGenes());
+		assertEquals(X.length, store.nObjects());
+
+		// Cell 0 is not its own neighbour: cells 1, 2 and 4
+		assertEquals(2.0 / 3, store.getValue(cells.get(0), "fraction:A"), 1e-6);
+		assertEquals(1.0 / 3, store.getValue(cells.get(0), "fraction:B"), 1e-6);
+		assertEquals(7.0 / 3, store.getValue(cells.get(0), "mean:G"), 1e-6);
+		// The unclassified cell 3 gets a vector from cells 2, 4 and 1
+		assertEquals(2.0 / 3, store.getValue(cells.get(3), "fraction:A"), 1e-6);
+		assertEquals(7.0 / 3, store.getValue(cells.get(3), "mean:G"), 1e-6);
+		// Cell 5: cells 4, 2 and 1
+		assertEquals(2.0 / 3, store.getValue(cells.get(5), "fraction:A"), 1e-6);
+		assertEquals(7.0 / 3, store.getValue(cells.get(5), "mean:G"), 1e-6);
+	}
+
+	@Test
+	void testRadius() {
+		var cells = createCells();
+		int parallelism = ThreadTools.getParallelism();
+		try {
+			ThreadTools.setParallelism(4);
+			var store = build(cells).compute(0, 10.5, List.of(), null);
+			assertEquals(List.of("fraction:A", "fraction:B"), store.getGenes());
+			assertEquals(1, store.getValue(cells.get(0), "fraction:A"), 1e-6);
+			assertEquals(0, store.getValue(cells.get(1), "fraction:A"), 1e-6);
+			assertEquals(1, store.getValue(cells.get(1), "fraction:B"), 1e-6);
+			assertEquals(1, store.getValue(cells.get(3), "fraction:B"), 1e-6);
+			// Cells 4 and 5 only have the unclassified cell, or no cell, within the radius
+			assertFalse(store.contains(cells.get(4)));
+			assertFalse(store.contains(cells.get(5)));
+			assertEquals(4, store.nObjects());
+		} finally {
+			ThreadTools.setParallelism(parallelism);
+		}
+	}
+
+	@Test
+	void testReadExpression() {
+		var cells = createCells();
+		cells.get(0).getMeasurementList().put("test:G", 2);
+		cells.get(0).getMeasurementList().put("test:H", 3);
+		cells.get(2).getMeasurementList().put("test:H", 5);
+		var expression = NicheComposition.readExpression(cells.subList(0, 3), List.of("G", "H"), "test:", null);
+		assertArrayEquals(new float[] {2, 3, 0, 0, 0, 5}, expression);
+
+		var builder = new GeneExpressionStore.Builder("test:", List.of("H", "X"));
+		builder.addRow(cells.get(1), new int[] {0, 1}, new float[] {4, 6}, 2);
+		var store = builder.build();
+		expression = NicheComposition.readExpression(cells.subList(0, 3), List.of("G", "H"), "test:", store);
+		assertArrayEquals(new float[] {0, 0, 0, 4, 0, 0}, expression);
+		// A store with another prefix is ignored
+		expression = NicheComposition.readExpression(cells.subList(0, 3), List.of("G", "H"), "other:", store);
+		assertArrayEquals(new float[6], expression);
+	}
+
+}
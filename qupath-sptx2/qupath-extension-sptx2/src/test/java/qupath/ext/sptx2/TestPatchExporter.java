@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test patches are cropped around their objects, across tiles and image borders, and handed to the sinks.
+ */
+public class TestPatchExporter {
+
+	private static final int WIDTH = 300, HEIGHT = 200, PATCH_SIZE = 20;
+
+	/**
+	 * Every pixel encodes its own position, and the pixels outside the image are blank.
+	 */
+	private static int expectedPixel(int x, int y) {
+		return x < 0 || y < 0 || x >= WIDTH || y >= HEIGHT ? 0 : (x << 8) | y;
+	}
+
+	private static WrappedBufferedImageServer createServer() {
+		var img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < HEIGHT; y++)
+			for (int x = 0; x < WIDTH; x++)
+				img.setRGB(x, y, expectedPixel(x, y));
+		return new WrappedBufferedImageServer("test", img);
+	}
+
+	private static PathObject createObject(double x, double y) {
+		return PathObjects.createDetectionObject(ROIs.createRectangleROI(x - 2, y - 2, 4, 4, ImagePlane.getDefaultPlane()));
+	}
+
+	/**
+	 * Objects spread over several 64-pixel tiles, two crossing the image border and one outside the image.
+	 */
+	private static Map<String, List<PathObject>> createGroups() {
+		var groups = new LinkedHashMap<String, List<PathObject>>();
+		var first = new ArrayList<PathObject>();
+		for (int i = 0; i < 40; i++)
+			first.add(createObject(15 + (i * 37) % 270, 15 + (i * 53) % 170));
+		groups.put("first", first);
+		groups.put("second", List.of(createObject(5, 5), createObject(295, 196), createObject(1000, 1000)));
+		return groups;
+	}
+
+	private static class MemorySink implements PatchExporter.PatchSink {
+
+		final Map<PathObject, byte[]> patches = new ConcurrentHashMap<>();
+		final Map<PathObject, String> groups = new ConcurrentHashMap<>();
+
+		@Override
+		public void write(PathObject pathObject, String group, byte[] bytes) throws IOException {
+			assertNull(patches.put(pathObject, bytes));
+			groups.put(pathObject, group);
+		}
+
+		@Override
+		public void close() {}
+
+	}
+
+	@Test
+	void testExport() throws Exception {
+		var groups = createGroups();
+		var sink = new MemorySink();
+		// A queue of one patch makes the readers wait for the writers
+		int n = new PatchExporter(createServer(), PATCH_SIZE, 0, "png").tileSize(64).threads(3, 2, 1).export(groups, sink);
+		assertEquals(42, n);
+		assertEquals(42, sink.patches.size());
+
+		for (var entry : groups.entrySet()) {
+			for (var pathObject : entry.getValue()) {
+				var bytes = sink.patches.get(pathObject);
+				if (pathObject.getROI().getCentroidX() > WIDTH) {
+					assertNull(bytes);
+					continue;
+				}
+				assertEquals(entry.getKey(), sink.groups.get(pathObject));
+				var patch = ImageIO.read(new ByteArrayInputStream(bytes));
+				assertEquals(PATCH_SIZE, patch.getWidth());
+				assertEquals(PATCH_SIZE, patch.getHeight());
+				int x0 = (int)pathObject.getROI().getCentroidX() - PATCH_SIZE / 2;
+				int y0 = (int)pathObject.getROI().getCentroidY() - PATCH_SIZE / 2;
+				for (int y = 0; y < PATCH_SIZE; y++)
+					for (int x = 0; x < PATCH_SIZE; x++)
+						assertEquals(expectedPixel(x0 + x, y0 + y), patch.getRGB(x, y) & 0xffffff);
+			}
+		}
+	}
+
+	@Test
+	void testResizeAndDirectorySink(@TempDir Path dir) throws Exception {
+		var exporter = new PatchExporter(createServer(), PATCH_SIZE, 10, "png");
+		var object = createObject(100, 100);
+		int n = exporter.export(Map.of("group", List.of(object)), exporter.directorySink(dir.toFile()));
+		assertEquals(1, n);
+		var file = dir.resolve("group").resolve(object.getID() + ".png");
+		assertTrue(Files.isRegularFile(file));
+		var patch = ImageIO.read(file.toFile());
+		assertEquals(10, patch.getWidth());
+		assertEquals(10, patch.getHeight());
+	}
+
+	@Test
+	void testWriterFailure() {
+		var sink = new PatchExporter.PatchSink() {
+
+			@Override
+			public void write(PathObject pathObject, String group, byte[] bytes) throws IOException {
+				throw new IOException("Disk full");
+			}
+
+			@Override
+			public void close() {}
+
+		};
+		var exporter = new PatchExporter(createServer(), PATCH_SIZE, 0, "png").tileSize(64).threads(2, 1, 1);
+		var e = assertThrows(Exception.class, () -> exporter.export(createGroups(), sink));
+		Throwable cause = e;
+		while (cause != null && !(cause instanceof IOException))
+			cause = cause.getCause();
+		assertNotNull(cause);
+		assertEquals("Disk full", cause.getMessage());
+	}
+
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Envelope;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test locating points and rectangles in overlapping objects, exactly and through a tiled label raster.
+ */
+public class TestPathObjectPointLocator {
+
+	/**
+	 * Two overlapping squares, an ellipse, and a point object that is never returned.
+	 */
+	private static List<PathObject> createObjects() {
+		var plane = ImagePlane.getDefaultPlane();
+		return List.of(
+				PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 100, 100, plane)),
+				PathObjects.createAnnotationObject(ROIs.createRectangleROI(50, 50, 100, 100, plane)),
+				PathObjects.createAnnotationObject(ROIs.createEllipseROI(300, 0, 100, 100, plane)),
+				PathObjects.createAnnotationObject(ROIs.createPointsROI(500, 500, plane)));
+	}
+
+	@Test
+	void testLocate() {
+		var locator = new PathObjectPointLocator(createObjects());
+		assertEquals(4, locator.size());
+		assertNull(locator.getGeometry(3));
+
+		// The lowest index wins where objects overlap
+		assertEquals(0, locator.locate(75, 75));
+		assertEquals(1, locator.locate(120, 120));
+		assertEquals(2, locator.locate(350, 50));
+		// Boundaries are covered
+		assertEquals(0, locator.locate(100, 10));
+		// Inside the bounding box of the ellipse, but not the ellipse
+		assertEquals(-1, locator.locate(302, 2));
+		assertEquals(-1, locator.locate(500, 500));
+		assertEquals(-1, locator.locate(-1, 50));
+
+		assertArrayEquals(new int[] {0, 1, -1}, locator.locateAll(new double[] {10, 140, 200}, new double[] {10, 140, 10}));
+	}
+
+	@Test
+	void testLocateEnvelope() {
+		var locator = new PathObjectPointLocator(createObjects());
+		assertEquals(0, locator.locateEnvelope(new Envelope(10, 40, 10, 40)));
+		assertEquals(0, locator.locateEnvelope(new Envelope(60, 90, 60, 90)));
+		assertEquals(1, locator.locateEnvelope(new Envelope(60, 140, 110, 140)));
+		assertEquals(2, locator.locateEnvelope(new Envelope(340, 360, 40, 60)));
+		// Rectangles crossing a boundary are not covered by either object
+		assertEquals(-1, locator.locateEnvelope(new Envelope(90, 110, 10, 20)));
+		assertEquals(-1, locator.locateEnvelope(new Envelope(300, 320, 0, 20)));
+
+		var found = locator.query(new Envelope(90, 310, 40, 60));
+		found.sort(null);
+		assertEquals(List.of(0, 1, 2), found);
+	}
+
+	@Test
+	void testTiledRaster() {
+		var locator = new PathObjectPointLocator(createObjects());
+		// Pixel centres are located as exactly, for tiles that do not divide the objects
+		for (double downsample : new double[] {1, 2}) {
+			var raster = locator.createTiledRaster(downsample, 37);
+			for (int py = 0; py < 160 / downsample; py++) {
+				for (int px = 0; px < 420 / downsample; px++) {
+					double x = (px + 0.5) * downsample, y = (py + 0.5) * downsample;
+					assertEquals(locator.locate(x, y), raster.locate(x, y), "(" + x + ", " + y + ")");
+				}
+			}
+			assertEquals(-1, raster.locate(-1, 10));
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test grid nearest-neighbour and radius queries against a brute-force search.
+ */
+public class TestPointGrid {
+
+	private static int bruteForceNearest(double[] x, double[] y, double qx, double qy, int exclude) {
+		int best = -1;
+		double bestDist2 = Double.POSITIVE_INFINITY;
+		for (int j = 0; j < x.length; j++) {
+			double d2 = (x[j] - qx) * (x[j] - qx) + (y[j] - qy) * (y[j] - qy);
+			if (j != exclude && d2 < bestDist2) {
+				bestDist2 = d2;
+				best = j;
+			}
+		}
+		return best;
+	}
+
+	private static void assertNearest(double[] x, double[] y, PointGrid grid, double qx, double qy, int exclude) {
+		int expected = bruteForceNearest(x, y, qx, qy, exclude);
+		int actual = grid.nearest(qx, qy, exclude);
+		// Ties may be broken differently, but not the distance
+		assertEquals(Math.hypot(x[expected] - qx, y[expected] - qy), Math.hypot(x[actual] - qx, y[actual] - qy), 1e-12);
+	}
+
+	@Test
+	void testNearest() {
+		var random = new Random(8);
+		int n = 2000;
+		var x = new double[n];
+		var y = new double[n];
+		for (int i = 0; i < n; i++) {
+			// Clustered points, so that many cells are empty
+			x[i] = random.nextInt(5) * 1000 + random.nextGaussian() * 20;
+			y[i] = random.nextGaussian() * 500;
+		}
+		var grid = new PointGrid(x, y);
+		assertEquals(n, grid.size());
+		for (int i = 0; i < n; i++)
+			assertNearest(x, y, grid, x[i], y[i], i);
+		// Queries far outside the points
+		for (int i = 0; i < 200; i++)
+			assertNearest(x, y, grid, random.nextDouble() * 20000 - 10000, random.nextDouble() * 20000 - 10000, -1);
+	}
+
+	@Test
+	void testCollinear() {
+		int n = 1000;
+		var x = new double[n];
+		var y = new double[n];
+		for (int i = 0; i < n; i++)
+			x[i] = i * 3.0;
+		var grid = new PointGrid(x, y);
+		assertTrue(grid.getCellSize() > 1);
+		for (int i = 0; i < n; i += 7)
+			assertEquals(i, grid.nearest(x[i] + 1, 5, -1));
+		assertEquals(n - 1, grid.nearest(1e6, 0, -1));
+	}
+
+	@Test
+	void testSmall() {
+		assertEquals(-1, new PointGrid(new double[0], new double[0]).nearest(0, 0, -1));
+		var grid = new PointGrid(new double[] {5}, new double[] {5});
+		assertEquals(0, grid.nearest(100, -100, -1));
+		assertEquals(-1, grid.nearest(5, 5, 0));
+	}
+
+	@Test
+	void testForEachWithin() {
+		var random = new Random(9);
+		int n = 3000;
+		var x = new double[n];
+		var y = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = random.nextDouble() * 1000;
+			y[i] = random.nextDouble() * 500;
+		}
+		var grid = new PointGrid(x, y, 7.5);
+		assertEquals(7.5, grid.getCellSize());
+		for (int q = 0; q < 100; q++) {
+			double qx = random.nextDouble() * 1200 - 100, qy = random.nextDouble() * 700 - 100, radius = random.nextDouble() * 60;
+			var expected = new ArrayList<Integer>();
+			for (int j = 0; j < n; j++)
+				if (Math.hypot(x[j] - qx, y[j] - qy) <= radius)
+					expected.add(j);
+			var actual = new ArrayList<Integer>();
+			grid.forEachWithin(qx, qy, radius, actual::add);
+			Collections.sort(actual);
+			assertEquals(expected, actual);
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test reading predictions from CSV and .npz archives, and parsing object ids.
+ */
+public class TestPredictionImporter {
+
+	private static List<PathObject> createObjects(int n) {
+		var objects = new ArrayList<PathObject>();
+		for (int i = 0; i < n; i++)
+			objects.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(i, 0, 1, 1, ImagePlane.getDefaultPlane())));
+		return objects;
+	}
+
+	/**
+	 * Encode an array as a version 1.0 .npy file.
+	 */
+	private static byte[] npy(String descr, String shape, byte[] data, boolean fortran) {
+		var dict = "{'descr': '" + descr + "', 'fortran_order': " + (fortran ? "True" : "False") + ", 'shape': (" + shape + "), }";
+		// The header is padded with spaces so that the data starts at a multiple of 64 bytes
+		int length = (10 + dict.length() + 1 + 63) / 64 * 64 - 10;
+		var header = new StringBuilder(dict);
+		while (header.length() < length - 1)
+			header.append(' ');
+		header.append('\n');
+		var buf = ByteBuffer.allocate(10 + length + data.length).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(new byte[] {(byte)0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0});
+		buf.putShort((short)length);
+		buf.put(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+		buf.put(data);
+		return buf.array();
+	}
+
+	private static byte[] npyStrings(List<String> values, boolean unicode) {
+		int nChars = values.stream().mapToInt(String::length).max().orElse(1);
+		int itemSize = unicode ? nChars * 4 : nChars;
+		var data = new byte[itemSize * values.size()];
+		for (int i = 0; i < values.size(); i++) {
+			var bytes = values.get(i).getBytes(unicode ? Charset.forName("UTF-32LE") : StandardCharsets.UTF_8);
+			System.arraycopy(bytes, 0, data, i * itemSize, bytes.length);
+		}
+		return npy((unicode ? "<U" : "|S") + nChars, values.size() + ",", data, false);
+	}
+
+	private static void writeNpz(Path file, Map<String, byte[]> arrays) throws IOException {
+		try (var zip = new ZipOutputStream(new FileOutputStream(file.toFile()))) {
+			for (var entry : arrays.entrySet()) {
+				zip.putNextEntry(new ZipEntry(entry.getKey() + ".npy"));
+				zip.write(entry.getValue());
+				zip.closeEntry();
+			}
+		}
+	}
+
+	@Test
+	void testParseUUID() {
+		var id = UUID.randomUUID();
+		var bytes = ("," + id + ",").getBytes(StandardCharsets.US_ASCII);
+		assertEquals(id, PredictionImporter.parseUUID(bytes, 1, bytes.length - 1));
+		// Upper case digits
+		bytes = id.toString().toUpperCase().getBytes(StandardCharsets.US_ASCII);
+		assertEquals(id, PredictionImporter.parseUUID(bytes, 0, bytes.length));
+
+		var max = new UUID(-1, -1).toString().getBytes(StandardCharsets.US_ASCII);
+		assertEquals(new UUID(-1, -1), PredictionImporter.parseUUID(max, 0, max.length));
+
+		for (var invalid : new String[] {"", "not-a-uuid", id.toString().substring(1), id + "0",
+				id.toString().replace('-', '0'), "g" + id.toString().substring(1), id.toString().substring(0, 35) + "-"}) {
+			bytes = invalid.getBytes(StandardCharsets.US_ASCII);
+			assertNull(PredictionImporter.parseUUID(bytes, 0, bytes.length), invalid);
+		}
+	}
+
+	@Test
+	void testCsv(@TempDir Path dir) throws Exception {
+		var objects = createObjects(3);
+		var file = dir.resolve("predictions.csv");
+		Files.writeString(file, String.join("\n",
+				"\"Object ID\",subtype,GeneA,GeneB",
+				objects.get(0).getID() + ",Tumor,1.5,0",
+				UUID.randomUUID() + ",Tumor,1,1",
+				"",
+				objects.get(2).getID().toString().toUpperCase() + ",Immune,0,2.25",
+				"broken,Immune,0,0") + "\n");
+
+		var importer = new PredictionImporter(objects).classPrefix("GAN: ").measurementPrefix("pred:");
+		importer.read(file.toFile(), "Object ID", "subtype");
+		assertEquals(2, importer.getMatchedCount());
+		assertEquals(2, importer.getUnmatchedCount());
+		assertEquals("GAN: Tumor", objects.get(0).getPathClass().toString());
+		assertEquals(1.5, objects.get(0).getMeasurementList().get("pred:GeneA"), 1e-12);
+		assertNull(objects.get(1).getPathClass());
+		assertEquals("GAN: Immune", objects.get(2).getPathClass().toString());
+		assertEquals(2.25, objects.get(2).getMeasurementList().get("pred:GeneB"), 1e-12);
+
+		// Without a measurement prefix only classes are read
+		var other = createObjects(1);
+		Files.writeString(file, "id,subtype,GeneA\n" + other.get(0).getID() + ",Stroma,4\n");
+		new PredictionImporter(other).read(file.toFile(), "", "subtype");
+		assertEquals("Stroma", other.get(0).getPathClass().toString());
+		assertEquals(0, other.get(0).getMeasurementList().size());
+
+		assertThrows(Exception.class, () -> new PredictionImporter(other).read(file.toFile(), "missing", null));
+	}
+
+	@Test
+	void testNpz(@TempDir Path dir) throws Exception {
+		// More rows than a block of the value matrix, with one unknown and one invalid id
+		int n = 5000;
+		var objects = createObjects(n);
+		var ids = new ArrayList<String>();
+		var classes = new ArrayList<String>();
+		var values = ByteBuffer.allocate(n * 3 * 4).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < n; i++) {
+			ids.add(i == 7 ? UUID.randomUUID().toString() : i == 11 ? "invalid" : objects.get(i).getID().toString());
+			classes.add(i % 2 == 0 ? "Tumor" : "Immune");
+			for (int g = 0; g < 3; g++)
+				values.putFloat(i + g * 0.25f);
+		}
+
+		var file = dir.resolve("predictions.npz");
+		var arrays = new LinkedHashMap<String, byte[]>();
+		arrays.put(PredictionImporter.NPZ_IDS, npyStrings(ids, true));
+		arrays.put("subtype", npyStrings(classes, false));
+		arrays.put(PredictionImporter.NPZ_NAMES, npyStrings(List.of("A", "B", "Gene"), true));
+		arrays.put(PredictionImporter.NPZ_VALUES, npy("<f4", n + ", 3", values.array(), false));
+		writeNpz(file, arrays);
+
+		var importer = new PredictionImporter(objects).measurementPrefix("pred:");
+		importer.read(file.toFile(), null, "subtype");
+		assertEquals(n - 2, importer.getMatchedCount());
+		assertEquals(2, importer.getUnmatchedCount());
+		for (int i : new int[] {0, 1, 4095, 4096, 4999}) {
+			var measurements = objects.get(i).getMeasurementList();
+			assertEquals(i % 2 == 0 ? "Tumor" : "Immune", objects.get(i).getPathClass().toString());
+			assertEquals(i, measurements.get("pred:A"), 1e-3);
+			assertEquals(i + 0.5, measurements.get("pred:Gene"), 1e-3);
+		}
+		assertNull(objects.get(7).getPathClass());
+		assertEquals(0, objects.get(11).getMeasurementList().size());
+	}
+
+	@Test
+	void testNpzTypes(@TempDir Path dir) throws Exception {
+		// Byte ids, integer classes and a big-endian double matrix
+		var objects = createObjects(2);
+		var classes = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putLong(3).putLong(-1);
+		var values = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN).putDouble(0.125).putDouble(-2);
+		var arrays = new LinkedHashMap<String, byte[]>();
+		arrays.put(PredictionImporter.NPZ_IDS, npyStrings(List.of(objects.get(1).getID().toString(), objects.get(0).getID().toString()), false));
+		arrays.put("cluster", npy("<i8", "2,", classes.array(), false));
+		arrays.put(PredictionImporter.NPZ_NAMES, npyStrings(List.of("X"), false));
+		arrays.put(PredictionImporter.NPZ_VALUES, npy(">f8", "2, 1", values.array(), false));
+		var file = dir.resolve("types.npz");
+		writeNpz(file, arrays);
+
+		new PredictionImporter(objects).classPrefix("Cluster ").measurementPrefix("").read(file.toFile(), null, "cluster");
+		assertEquals("Cluster 3", objects.get(1).getPathClass().toString());
+		assertEquals("Cluster -1", objects.get(0).getPathClass().toString());
+		assertEquals(0.125, objects.get(1).getMeasurementList().get("X"), 1e-12);
+		assertEquals(-2, objects.get(0).getMeasurementList().get("X"), 1e-12);
+
+		// Values of the wrong shape or order
+		arrays.put(PredictionImporter.NPZ_VALUES, npy(">f8", "1, 2", values.array(), false));
+		writeNpz(file, arrays);
+		assertThrows(IOException.class, () -> new PredictionImporter(objects).measurementPrefix("").read(file.toFile(), null, null));
+		arrays.put(PredictionImporter.NPZ_VALUES, npy(">f8", "2, 1", values.array(), true));
+		writeNpz(file, arrays);
+		assertThrows(IOException.class, () -> new PredictionImporter(objects).measurementPrefix("").read(file.toFile(), null, null));
+		arrays.put(PredictionImporter.NPZ_NAMES, npyStrings(List.of("X", "Y"), false));
+		arrays.put(PredictionImporter.NPZ_VALUES, npy(">f8", "2, 1", values.array(), false));
+		writeNpz(file, arrays);
+		var e = assertThrows(Exception.class, () -> new PredictionImporter(objects).measurementPrefix("").read(file.toFile(), null, null));
+		assertTrue(e.getMessage().contains("columns"));
+		// A missing class array
+		assertThrows(IOException.class, () -> new PredictionImporter(objects).read(file.toFile(), null, "missing"));
+		// Without a measurement prefix the values are not read
+		new PredictionImporter(objects).read(file.toFile(), null, null);
+	}
+
+}
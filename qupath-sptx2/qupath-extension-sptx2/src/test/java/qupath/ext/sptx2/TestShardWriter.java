@@ -0,0 +1,192 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonParser;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test the tar layout, index and labels of the shards.
+ */
+public class TestShardWriter {
+
+	private static PathObject createObject(double x, double y, String className) {
+		var roi = ROIs.createRectangleROI(x - 2, y - 2, 4, 4, ImagePlane.getDefaultPlane());
+		return PathObjects.createDetectionObject(roi, className == null ? null : PathClass.fromString(className));
+	}
+
+	private static long parseOctal(byte[] bytes, int offset, int length) {
+		long value = 0;
+		for (int i = offset; i < offset + length && bytes[i] != 0; i++)
+			value = value * 8 + (bytes[i] - '0');
+		return value;
+	}
+
+	/**
+	 * Read the members of a tar file, checking every header and the end-of-archive blocks.
+	 */
+	private static Map<String, byte[]> readTar(Path file, Map<String, Long> offsets) throws Exception {
+		var bytes = Files.readAllBytes(file);
+		assertEquals(0, bytes.length % 512);
+		var members = new HashMap<String, byte[]>();
+		int p = 0;
+		while (bytes[p] != 0) {
+			var header = Arrays.copyOfRange(bytes, p, p + 512);
+			int nameLength = 0;
+			while (nameLength < 100 && header[nameLength] != 0)
+				nameLength++;
+			var name = new String(header, 0, nameLength, StandardCharsets.UTF_8);
+			assertEquals("ustar", new String(header, 257, 5, StandardCharsets.US_ASCII));
+			assertEquals('0', header[156]);
+
+			long checksum = parseOctal(header, 148, 7);
+			Arrays.fill(header, 148, 156, (byte)' ');
+			long sum = 0;
+			for (byte b : header)
+				sum += b & 0xff;
+			assertEquals(sum, checksum);
+
+			int size = (int)parseOctal(header, 124, 11);
+			members.put(name, Arrays.copyOfRange(bytes, p + 512, p + 512 + size));
+			offsets.put(name, (long)(p + 512));
+			p += 512 + (size + 511) / 512 * 512;
+		}
+		// Two empty blocks close the archive
+		assertEquals(bytes.length, p + 1024);
+		for (int i = p; i < bytes.length; i++)
+			assertEquals(0, bytes[i]);
+		return members;
+	}
+
+	@Test
+	void testShards(@TempDir Path dir) throws Exception {
+		var objects = new ArrayList<PathObject>();
+		var images = new ArrayList<byte[]>();
+		int[] sizes = {1, 512, 513, 3000, 0, 100, 2000};
+		for (int i = 0; i < sizes.length; i++) {
+			objects.add(createObject(10 * i + 0.25, 5, i % 2 == 0 ? "Tumor" : null));
+			var image = new byte[sizes[i]];
+			for (int k = 0; k < image.length; k++)
+				image[k] = (byte)(k * 31 + i);
+			images.add(image);
+		}
+
+		var outputDir = dir.resolve("shards");
+		long maxShardBytes = 6000;
+		try (var writer = new ShardWriter(outputDir.toFile(), "png", maxShardBytes, null)) {
+			for (int i = 0; i < objects.size(); i++)
+				writer.write(objects.get(i), "group" + (i % 3), images.get(i));
+			assertEquals(sizes.length, writer.getSampleCount());
+		}
+
+		int nSamples = 0;
+		int nShards = 0;
+		while (Files.exists(outputDir.resolve(String.format("shard-%06d.tar", nShards)))) {
+			var tar = outputDir.resolve(String.format("shard-%06d.tar", nShards));
+			var offsets = new HashMap<String, Long>();
+			var members = readTar(tar, offsets);
+			var lines = Files.readAllLines(outputDir.resolve(String.format("shard-%06d.tsv", nShards)));
+			assertTrue(lines.get(0).startsWith("key\tgroup\tclass"));
+			// Shards only go over the limit with a single sample
+			assertTrue(Files.size(tar) <= maxShardBytes || lines.size() == 2);
+			assertEquals(2 * (lines.size() - 1), members.size());
+
+			var data = Files.readAllBytes(tar);
+			for (var line : lines.subList(1, lines.size())) {
+				var fields = line.split("\t", -1);
+				int i = nSamples++;
+				var pathObject = objects.get(i);
+				var key = pathObject.getID().toString();
+				assertEquals(key, fields[0]);
+				assertEquals("group" + (i % 3), fields[1]);
+				assertEquals(i % 2 == 0 ? "Tumor" : "", fields[2]);
+				assertEquals(pathObject.getROI().getCentroidX(), Double.parseDouble(fields[3]), 1e-3);
+
+				// Samples are an image followed by its label, and the index points into the tar
+				assertArrayEquals(images.get(i), members.get(key + ".png"));
+				assertEquals(offsets.get(key + ".png").longValue(), Long.parseLong(fields[5]));
+				assertEquals(images.get(i).length, Integer.parseInt(fields[6]));
+				int labelOffset = Integer.parseInt(fields[7]);
+				var label = Arrays.copyOfRange(data, labelOffset, labelOffset + Integer.parseInt(fields[8]));
+				assertArrayEquals(members.get(key + ".json"), label);
+
+				var json = JsonParser.parseString(new String(label, StandardCharsets.UTF_8)).getAsJsonObject();
+				assertEquals(key, json.get("id").getAsString());
+				assertEquals("group" + (i % 3), json.get("group").getAsString());
+				assertEquals(fields[2], json.get("class").getAsString());
+				assertEquals(5, json.get("y").getAsDouble(), 1e-9);
+			}
+			nShards++;
+		}
+		assertTrue(nShards > 1);
+		assertEquals(sizes.length, nSamples);
+	}
+
+	@Test
+	void testExpressionLabels(@TempDir Path dir) throws Exception {
+		var inStore = createObject(1, 1, null);
+		var withMeasurements = createObject(2, 2, null);
+		withMeasurements.getMeasurementList().put("test:A", 2);
+		withMeasurements.getMeasurementList().put("test:B", 0);
+		withMeasurements.getMeasurementList().put("other:C", 4);
+
+		var builder = new GeneExpressionStore.Builder("test:", List.of("A", "B"));
+		builder.addRow(inStore, new int[] {1}, new float[] {3}, 1);
+		var store = builder.build();
+
+		var label = ShardWriter.expressionLabeler("test:", store).apply(inStore).getAsJsonObject("expression");
+		assertEquals(1, label.size());
+		assertEquals(3, label.get("B").getAsDouble(), 1e-6);
+
+		// A store with another prefix is ignored, and zeros are left out
+		label = ShardWriter.expressionLabeler("test:", null).apply(withMeasurements).getAsJsonObject("expression");
+		assertEquals(1, label.size());
+		assertEquals(2, label.get("A").getAsDouble(), 1e-6);
+		assertEquals(0, ShardWriter.expressionLabeler("other:", store).apply(inStore).getAsJsonObject("expression").size());
+
+		var outputDir = dir.resolve("labelled");
+		try (var writer = new ShardWriter(outputDir.toFile(), "jpg", 1 << 20, ShardWriter.expressionLabeler("test:", store))) {
+			writer.write(inStore, "g", new byte[] {1, 2, 3});
+			assertEquals(1, writer.getShardCount());
+		}
+		var members = readTar(outputDir.resolve("shard-000000.tar"), new HashMap<>());
+		var json = JsonParser.parseString(new String(members.get(inStore.getID() + ".json"), StandardCharsets.UTF_8)).getAsJsonObject();
+		assertEquals(3, json.getAsJsonObject("expression").get("B").getAsDouble(), 1e-6);
+		assertEquals(inStore.getID().toString(), json.get("id").getAsString());
+	}
+
+}
@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test sidecar files are written, read back, and re-created when their sources change.
+ */
+public class TestSidecarCache {
+
+	/**
+	 * Value with one section of every type.
+	 */
+	private static class Value {
+
+		int[] ints;
+		long[] longs;
+		float[] floats;
+		double[] doubles;
+		String[] strings;
+
+	}
+
+	private static final SidecarCache.Codec<Value> CODEC = new SidecarCache.Codec<>() {
+
+		@Override
+		public void write(Value value, SidecarCache.Writer writer) {
+			writer.putInts("ints", value.ints)
+				.putLongs("longs", value.longs)
+				.putFloats("floats", value.floats)
+				.putDoubles("doubles", value.doubles)
+				.putStrings("strings", value.strings);
+		}
+
+		@Override
+		public Value read(SidecarCache.Entry entry) throws IOException {
+			var value = new Value();
+			value.ints = entry.getIntArray("ints");
+			value.longs = entry.getLongArray("longs");
+			value.floats = entry.getFloatArray("floats");
+			value.doubles = entry.getDoubleArray("doubles");
+			value.strings = entry.getStrings("strings");
+			return value;
+		}
+
+	};
+
+	private static Value createValue(int n) {
+		var value = new Value();
+		value.ints = IntStream.range(0, n).map(i -> i * 7 - 3).toArray();
+		value.longs = IntStream.range(0, n).mapToLong(i -> (long)i << 40).toArray();
+		value.floats = new float[n];
+		value.doubles = new double[n];
+		value.strings = new String[n];
+		for (int i = 0; i < n; i++) {
+			value.floats[i] = i / 3f;
+			value.doubles[i] = -i / 7.0;
+			value.strings[i] = i % 3 == 0 ? "" : "gene-\u00e9" + i;
+		}
+		return value;
+	}
+
+	private static void assertSameValue(Value expected, Value actual) {
+		assertArrayEquals(expected.ints, actual.ints);
+		assertArrayEquals(expected.longs, actual.longs);
+		assertArrayEquals(expected.floats, actual.floats);
+		assertArrayEquals(expected.doubles, actual.doubles);
+		assertArrayEquals(expected.strings, actual.strings);
+	}
+
+	private static File createSource(Path dir, String content) throws IOException {
+		var file = dir.resolve("source.csv").toFile();
+		Files.writeString(file.toPath(), content);
+		return file;
+	}
+
+	@Test
+	void testLoadFromSidecar(@TempDir Path dir) throws Exception {
+		var source = createSource(dir, "a,b,c\n1,2,3\n");
+		var cache = new SidecarCache(dir.resolve("cache").toFile());
+		var expected = createValue(1001);
+		var nParsed = new AtomicInteger();
+
+		var first = cache.load("test", List.of(source), CODEC, () -> {
+			nParsed.incrementAndGet();
+			return expected;
+		});
+		assertSame(expected, first);
+
+		var second = cache.load("test", List.of(source), CODEC, () -> {
+			nParsed.incrementAndGet();
+			return expected;
+		});
+		assertEquals(1, nParsed.get());
+		assertNotSame(expected, second);
+		assertSameValue(expected, second);
+	}
+
+	@Test
+	void testInvalidation(@TempDir Path dir) throws Exception {
+		var source = createSource(dir, "a,b,c\n1,2,3\n");
+		var cache = new SidecarCache(dir.resolve("cache").toFile());
+		cache.load("test", List.of(source), CODEC, () -> createValue(10));
+
+		// Same size, different content and modification time
+		Files.writeString(source.toPath(), "a,b,c\n4,5,6\n");
+		source.setLastModified(source.lastModified() + 2000);
+
+		var nParsed = new AtomicInteger();
+		var value = cache.load("test", List.of(source), CODEC, () -> {
+			nParsed.incrementAndGet();
+			return createValue(20);
+		});
+		assertEquals(1, nParsed.get());
+		assertEquals(20, value.ints.length);
+
+		// The new sidecar replaces the old one
+		var reloaded = cache.load("test", List.of(source), CODEC, () -> {
+			throw new AssertionError("Should be read from the sidecar");
+		});
+		assertSameValue(createValue(20), reloaded);
+	}
+
+	@Test
+	void testCorruptSidecar(@TempDir Path dir) throws Exception {
+		var source = createSource(dir, "a\n");
+		var cacheDir = dir.resolve("cache").toFile();
+		var cache = new SidecarCache(cacheDir);
+		cache.load("test", List.of(source), CODEC, () -> createValue(10));
+
+		// A truncated sidecar falls back to parsing
+		for (var file : cacheDir.listFiles())
+			Files.write(file.toPath(), new byte[] {1, 2, 3});
+		var value = cache.load("test", List.of(source), CODEC, () -> createValue(5));
+		assertEquals(5, value.ints.length);
+	}
+
+	@Test
+	void testDisabled() throws Exception {
+		var cache = new SidecarCache(null);
+		assertFalse(cache.isEnabled());
+		var nParsed = new AtomicInteger();
+		for (int i = 0; i < 2; i++) {
+			cache.load("test", List.of(), CODEC, () -> {
+				nParsed.incrementAndGet();
+				return createValue(1);
+			});
+		}
+		assertEquals(2, nParsed.get());
+	}
+
+	@Test
+	void testChunkedSections(@TempDir Path dir) throws Exception {
+		var file = dir.resolve("chunked.bin").toFile();
+		var expected = createValue(1003);
+		var writer = new SidecarCache.Writer();
+		CODEC.write(expected, writer);
+		writer.write(file, "key");
+
+		assertNull(SidecarCache.Entry.open(file, "other"));
+
+		// Chunks that do not divide the section sizes, as for sections over 2 GB
+		for (long chunkBytes : new long[] {8, 24, 1000, 1 << 20}) {
+			try (var entry = SidecarCache.Entry.open(file, "key")) {
+				entry.setMapChunkBytes(chunkBytes);
+				assertSameValue(expected, CODEC.read(entry));
+				assertThrows(IOException.class, () -> entry.getIntArray("missing"));
+				assertThrows(IOException.class, () -> entry.getIntArray("longs"));
+			}
+		}
+		try (var entry = SidecarCache.Entry.open(file, "key")) {
+			assertThrows(IllegalArgumentException.class, () -> entry.setMapChunkBytes(12));
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.objects.CompactPathObjectConnectionGroup;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnections;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Test Moran's I and Geary's C against a dense computation from their definitions.
+ */
+public class TestSpatialAutocorrelation {
+
+	private static final int SIZE = 12;
+
+	private static final List<String> GENES = List.of("Gradient", "Sparse", "Constant", "Absent");
+
+	private static List<PathObject> createCells() {
+		var cells = new ArrayList<PathObject>();
+		for (int row = 0; row < SIZE; row++)
+			for (int col = 0; col < SIZE; col++)
+				cells.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(col * 10 - 2, row * 10 - 2, 4, 4, ImagePlane.getDefaultPlane())));
+		return cells;
+	}
+
+	/**
+	 * Counts of every cell but the last: a gradient along x, random sparse counts, a constant and a gene no cell has.
+	 */
+	private static float[][] createCounts() {
+		var random = new Random(12);
+		var counts = new float[SIZE * SIZE - 1][GENES.size()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i][0] = 1 + i % SIZE + random.nextInt(3);
+			counts[i][1] = random.nextInt(4) == 0 ? 1 + random.nextInt(10) : 0;
+			counts[i][2] = 5;
+		}
+		return counts;
+	}
+
+	private static GeneExpressionStore createStore(List<PathObject> cells, float[][] counts) {
+		var builder = new GeneExpressionStore.Builder("test:", GENES);
+		for (int i = 0; i < counts.length; i++) {
+			var genes = new int[GENES.size()];
+			var values = new float[GENES.size()];
+			int n = 0;
+			for (int g = 0; g < GENES.size(); g++) {
+				if (counts[i][g] != 0) {
+					genes[n] = g;
+					values[n++] = counts[i][g];
+				}
+			}
+			builder.addRow(cells.get(i), genes, values, n);
+		}
+		return builder.build();
+	}
+
+	private static PathObjectConnections connect(List<PathObject> cells) {
+		// Up to 8 neighbours
+		var connections = new PathObjectConnections();
+		connections.addGroup(CompactPathObjectConnectionGroup.createRadiusGraph(cells, 15));
+		return connections;
+	}
+
+	/**
+	 * Moran's I, Geary's C and their p-values under normality, from dense weights.
+	 */
+	private static double[] reference(List<PathObject> cells, PathObjectConnections connections, float[][] counts, int gene,
+			boolean rowStandardise, boolean normalise) {
+		int n = counts.length;
+		var index = new IdentityHashMap<PathObject, Integer>();
+		for (int i = 0; i < n; i++)
+			index.put(cells.get(i), i);
+		var w = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			var neighbours = new ArrayList<Integer>();
+			for (var neighbour : connections.getConnections(cells.get(i))) {
+				Integer j = index.get(neighbour);
+				if (j != null && j != i)
+					neighbours.add(j);
+			}
+			for (int j : neighbours)
+				w[i][j] = rowStandardise ? 1.0 / neighbours.size() : 1;
+		}
+
+		var x = new double[n];
+		double mean = 0;
+		for (int i = 0; i < n; i++) {
+			double total = 0;
+			for (float c : counts[i])
+				total += c;
+			x[i] = normalise ? Math.log1p(counts[i][gene] * 1e4 / total) : counts[i][gene];
+			mean += x[i] / n;
+		}
+
+		double s0 = 0, s1 = 0, s2 = 0, zz = 0, cross = 0, squares = 0;
+		for (int i = 0; i < n; i++) {
+			double rowSum = 0, colSum = 0;
+			for (int j = 0; j < n; j++) {
+				s0 += w[i][j];
+				s1 += (w[i][j] + w[j][i]) * (w[i][j] + w[j][i]) / 2;
+				rowSum += w[i][j];
+				colSum += w[j][i];
+				zz += w[i][j] * (x[i] - mean) * (x[j] - mean);
+				cross += w[i][j] * (x[i] - x[j]) * (x[i] - x[j]);
+			}
+			s2 += (rowSum + colSum) * (rowSum + colSum);
+			squares += (x[i] - mean) * (x[i] - mean);
+		}
+		double moran = n / s0 * zz / squares;
+		double geary = (n - 1) / (2 * s0) * cross / squares;
+
+		double expectedI = -1.0 / (n - 1);
+		double sdI = Math.sqrt((n * n * s1 - n * s2 + 3 * s0 * s0) / ((n * n - 1.0) * s0 * s0) - expectedI * expectedI);
+		double sdC = Math.sqrt(((2 * s1 + s2) * (n - 1) - 4 * s0 * s0) / (2 * (n + 1.0) * s0 * s0));
+		return new double[] {moran, SpatialAutocorrelation.upperTail((moran - expectedI) / sdI),
+				geary, SpatialAutocorrelation.upperTail((1 - geary) / sdC)};
+	}
+
+	@Test
+	void testAgainstReference() {
+		var cells = createCells();
+		var counts = createCounts();
+		var store = createStore(cells, counts);
+		var connections = connect(cells);
+		for (boolean rowStandardise : new boolean[] {false, true}) {
+			for (boolean normalise : new boolean[] {false, true}) {
+				var autocorrelation = SpatialAutocorrelation.build(cells, connections, "test:", store, rowStandardise, normalise);
+				// The last cell has no expression data
+				assertEquals(counts.length, autocorrelation.getCellCount());
+				autocorrelation.run(0, 0);
+				assertEquals(GENES.size(), autocorrelation.getGeneCount());
+				assertEquals(0, autocorrelation.getPermutationCount());
+				// Normalised counts of the constant gene vary with the cell totals
+				int nScored = normalise ? 3 : 2;
+				for (int g = 0; g < nScored; g++) {
+					assertEquals(GENES.get(g), autocorrelation.getGene(g));
+					var expected = reference(cells, connections, counts, g, rowStandardise, normalise);
+					assertEquals(expected[0], autocorrelation.getMoranI(g), 1e-6);
+					assertEquals(expected[1], autocorrelation.getMoranPValue(g), 1e-6);
+					assertEquals(expected[2], autocorrelation.getGearyC(g), 1e-6);
+					assertEquals(expected[3], autocorrelation.getGearyPValue(g), 1e-6);
+				}
+				assertTrue(autocorrelation.getMoranPValue(0) < 1e-6);
+				// Constant and absent genes have no statistics
+				for (int g = nScored; g < 4; g++) {
+					assertTrue(Double.isNaN(autocorrelation.getMoranI(g)));
+					assertTrue(Double.isNaN(autocorrelation.getGearyC(g)));
+				}
+			}
+		}
+	}
+
+	@Test
+	void testMeasurements() {
+		// Counts read from measurement lists give the same statistics as the store
+		var cells = createCells();
+		var counts = createCounts();
+		for (int i = 0; i < counts.length; i++)
+			for (int g = 0; g < GENES.size(); g++)
+				if (counts[i][g] != 0)
+					cells.get(i).getMeasurementList().put("test:" + GENES.get(g), counts[i][g]);
+		var connections = connect(cells);
+		var autocorrelation = SpatialAutocorrelation.build(cells, connections, "test:", null, true, false);
+		autocorrelation.run(0, 0);
+		assertEquals(counts.length, autocorrelation.getCellCount());
+		// Genes are ordered as first seen in the measurement lists
+		for (int g = 0; g < autocorrelation.getGeneCount(); g++) {
+			int gene = GENES.indexOf(autocorrelation.getGene(g));
+			if (gene > 1)
+				continue;
+			var expected = reference(cells, connections, counts, gene, true, false);
+			assertEquals(expected[0], autocorrelation.getMoranI(g), 1e-6);
+			assertEquals(expected[2], autocorrelation.getGearyC(g), 1e-6);
+		}
+	}
+
+	@Test
+	void testPermutations() {
+		var cells = createCells();
+		var autocorrelation = SpatialAutocorrelation.build(cells, connect(cells), "test:", createStore(cells, createCounts()), false, true);
+		int parallelism = ThreadTools.getParallelism();
+		try {
+			ThreadTools.setParallelism(1);
+			autocorrelation.run(199, 3);
+			assertEquals(199, autocorrelation.getPermutationCount());
+			// No relabelling reaches the gradient
+			assertEquals(1.0 / 200, autocorrelation.getMoranPValue(0), 1e-12);
+			assertEquals(1.0 / 200, autocorrelation.getGearyPValue(0), 1e-12);
+			double expected = autocorrelation.getMoranPValue(1);
+			assertTrue(expected > 1.0 / 200 && expected <= 1);
+
+			ThreadTools.setParallelism(4);
+			autocorrelation.run(199, 3);
+			assertEquals(expected, autocorrelation.getMoranPValue(1), 1e-12);
+		} finally {
+			ThreadTools.setParallelism(parallelism);
+		}
+	}
+
+	@Test
+	void testAdjustFdr() {
+		var adjusted = SpatialAutocorrelation.adjustFdr(new double[] {0.01, 0.04, Double.NaN, 0.03});
+		assertEquals(0.03, adjusted[0], 1e-12);
+		assertEquals(0.04, adjusted[1], 1e-12);
+		assertTrue(Double.isNaN(adjusted[2]));
+		assertEquals(0.04, adjusted[3], 1e-12);
+		assertEquals(0.5, SpatialAutocorrelation.upperTail(0), 1e-7);
+		assertEquals(0.025, SpatialAutocorrelation.upperTail(1.959964), 1e-6);
+		assertEquals(0.975, SpatialAutocorrelation.upperTail(-1.959964), 1e-6);
+	}
+
+	@Test
+	void testWriteTable(@TempDir Path dir) throws Exception {
+		var cells = createCells();
+		var autocorrelation = SpatialAutocorrelation.build(cells, connect(cells), "test:", createStore(cells, createCounts()), true, false);
+		autocorrelation.run(0, 0);
+		var file = dir.resolve("svg.tsv").toFile();
+		assertEquals(2, autocorrelation.writeTable(file, 1));
+		var lines = Files.readAllLines(file.toPath());
+		assertEquals(3, lines.size());
+		assertTrue(lines.get(0).startsWith("gene\texpressing_cells\tmoran_i"));
+		// Genes are sorted by decreasing Moran's I
+		assertTrue(lines.get(1).startsWith("Gradient\t" + (SIZE * SIZE - 1) + "\t"));
+		assertEquals(1, autocorrelation.writeTable(file, 1e-6));
+	}
+
+}
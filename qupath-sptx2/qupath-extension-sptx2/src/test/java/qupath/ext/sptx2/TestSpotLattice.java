@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the spacing, symmetry and rotation estimated for hexagonal and square spot arrays.
+ */
+public class TestSpotLattice {
+
+	/**
+	 * Rotated hexagonal or square lattice, with jittered positions.
+	 */
+	private static double[][] createLattice(boolean hexagonal, double spacing, double rotation, int nRows, int nCols, double jitter) {
+		var random = new Random(10);
+		double rowHeight = hexagonal ? spacing * Math.sqrt(3) / 2 : spacing;
+		var xy = new double[2][nRows * nCols];
+		double cos = Math.cos(rotation), sin = Math.sin(rotation);
+		for (int row = 0; row < nRows; row++) {
+			for (int col = 0; col < nCols; col++) {
+				double u = col * spacing + (hexagonal && row % 2 == 1 ? spacing / 2 : 0);
+				double v = row * rowHeight;
+				int i = row * nCols + col;
+				xy[0][i] = 5000 + u * cos - v * sin + random.nextGaussian() * jitter;
+				xy[1][i] = 5000 + u * sin + v * cos + random.nextGaussian() * jitter;
+			}
+		}
+		return xy;
+	}
+
+	@Test
+	void testHexagonal() {
+		var xy = createLattice(true, 100, Math.toRadians(10), 40, 50, 1);
+		// Duplicate a spot
+		xy[0][7] = xy[0][8];
+		xy[1][7] = xy[1][8];
+		var lattice = SpotLattice.estimate(xy[0], xy[1]);
+		assertEquals(2000, lattice.size());
+		assertEquals(6, lattice.getSymmetry());
+		assertEquals(100, lattice.getSpacing(), 1);
+		assertEquals(0, lattice.getMinDistance());
+		assertEquals(10, Math.toDegrees(lattice.getRotation()), 1);
+	}
+
+	@Test
+	void testSquare() {
+		var xy = createLattice(false, 25, Math.toRadians(-20), 60, 30, 0.2);
+		var lattice = SpotLattice.estimate(xy[0], xy[1]);
+		assertEquals(4, lattice.getSymmetry());
+		assertEquals(25, lattice.getSpacing(), 0.5);
+		assertTrue(lattice.getMinDistance() > 20);
+		// Rotations are folded into [0, 90) degrees
+		assertEquals(70, Math.toDegrees(lattice.getRotation()), 1);
+	}
+
+	@Test
+	void testDegenerate() {
+		var single = SpotLattice.estimate(new double[] {1}, new double[] {2});
+		assertTrue(Double.isNaN(single.getSpacing()));
+		assertEquals(0, single.getSymmetry());
+		var duplicates = SpotLattice.estimate(new double[] {1, 1, 1}, new double[] {2, 2, 2});
+		assertTrue(Double.isNaN(duplicates.getSpacing()));
+		assertEquals(0, duplicates.getMinDistance());
+	}
+
+}
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.regions.ImagePlane;
+
+/**
+ * Test that boundary polygons cut by chunk boundaries are joined back, whatever the chunk size.
+ */
+public class TestXeniumBoundaries {
+
+	private static final double HEIGHT = 100;
+
+	private static final double PIXEL_SIZE = 0.5;
+
+	private static final double[] AFFINE = {1, 0, 3, 0, 1, -2};
+
+	/**
+	 * Write 12 cells, each a closed square with label 1. Cell 5 has a second polygon with label 2,
+	 * cell 9 has only 2 vertices, and a stray row of cell 3 comes after the others.
+	 * @return pixel coordinates of the vertices kept for each cell, in file order
+	 */
+	private static Map<Long, List<double[]>> writeBoundaries(File file) throws Exception {
+		var vertices = new LinkedHashMap<Long, List<double[]>>();
+		var lines = new ArrayList<String>();
+		for (long key = 1; key <= 12; key++) {
+			var list = new ArrayList<double[]>();
+			double cx = 7.25 * key;
+			double cy = 50 - 2.5 * key;
+			var polygons = key == 5 ? new int[] {1, 2} : new int[] {1};
+			for (int label : polygons) {
+				double[][] square = {{-1, -1}, {1, -1}, {1, 1}, {-1, 1}, {-1, -1}};
+				int n = key == 9 ? 2 : square.length;
+				for (int v = 0; v < n; v++) {
+					double vx = cx + square[v][0] * label;
+					double vy = cy + square[v][1] * label;
+					lines.add(key + "," + vx + "," + vy + "," + label);
+					list.add(new double[] {vx / PIXEL_SIZE + 3, (HEIGHT - vy) / PIXEL_SIZE - 2});
+				}
+			}
+			vertices.put(key, list);
+		}
+		lines.add("3,0.5,0.5,1");
+
+		try (var writer = new PrintWriter(file.getName().endsWith(".gz") ? new GZIPOutputStream(new FileOutputStream(file)) : new FileOutputStream(file))) {
+			writer.print("\"cell_id\",\"vertex_x\",\"vertex_y\",\"label_id\"\n");
+			for (var line : lines)
+				writer.print(line + "\n");
+		}
+		return vertices;
+	}
+
+	private static void checkBoundaries(XeniumBoundaries boundaries, Map<Long, List<double[]>> expected) {
+		assertEquals(expected.size(), boundaries.size());
+		var xy = new double[2];
+		int i = 0;
+		for (var entry : expected.entrySet()) {
+			long key = entry.getKey();
+			assertEquals(key, boundaries.getKey(i));
+			assertEquals(i, boundaries.indexOf(key));
+
+			// The centre averages every vertex of every polygon, so a lost or duplicated run would show
+			double sx = 0, sy = 0;
+			for (var v : entry.getValue()) {
+				sx += v[0];
+				sy += v[1];
+			}
+			boundaries.getCentre(i, xy);
+			assertEquals(sx / entry.getValue().size(), xy[0], 1e-4);
+			assertEquals(sy / entry.getValue().size(), xy[1], 1e-4);
+
+			if (key == 9)
+				assertNull(boundaries.createROI(i, ImagePlane.getDefaultPlane()));
+			else if (key != 5) {
+				// The repeated first vertex is dropped
+				var points = boundaries.createROI(i, ImagePlane.getDefaultPlane()).getAllPoints();
+				assertEquals(4, points.size());
+				assertEquals(entry.getValue().get(0)[0], points.get(0).getX(), 1e-4);
+				assertEquals(entry.getValue().get(0)[1], points.get(0).getY(), 1e-4);
+			}
+			i++;
+		}
+		assertEquals(-1, boundaries.indexOf(13));
+	}
+
+	@Test
+	void testChunkSeams(@TempDir Path dir) throws Exception {
+		var file = dir.resolve("cell_boundaries.csv").toFile();
+		var expected = writeBoundaries(file);
+		// Lines are at most 18 bytes long, so small chunks cut most polygons
+		for (int chunkSize : new int[] {24, 37, 64, 101, 1 << 20}) {
+			for (int nWorkers : new int[] {1, 3}) {
+				var parser = new ChunkedTextParser(file, nWorkers, chunkSize);
+				checkBoundaries(XeniumBoundaries.read(file, HEIGHT, PIXEL_SIZE, AFFINE, parser), expected);
+			}
+		}
+	}
+
+	@Test
+	void testGzip(@TempDir Path dir) throws Exception {
+		var file = dir.resolve("nucleus_boundaries.csv.gz").toFile();
+		var expected = writeBoundaries(file);
+		checkBoundaries(XeniumBoundaries.read(file, HEIGHT, PIXEL_SIZE, AFFINE, new ChunkedTextParser(file, 2, 40)), expected);
+		checkBoundaries(XeniumBoundaries.read(file, HEIGHT, PIXEL_SIZE, AFFINE), expected);
+	}
+
+}
@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * ST-AnD is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ST-AnD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ST-AnD.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.ext.sptx2;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test the transcript filters and counts of a Xenium ingest, with columns in a non-default order.
+ */
+public class TestXeniumTranscriptIngest {
+
+	private static int[] getRow(TranscriptCountTable table, FeatureDictionary dictionary, int row, String... features) {
+		var counts = new int[features.length];
+		var rowPtr = table.getRowPointers();
+		for (int k = rowPtr[row]; k < rowPtr[row+1]; k++) {
+			int f = Arrays.asList(features).indexOf(dictionary.getName(table.getFeatures()[k]));
+			assertTrue(f >= 0);
+			counts[f] = table.getCounts()[k];
+		}
+		return counts;
+	}
+
+	@Test
+	void testIngest(@TempDir Path dir) throws Exception {
+		var file = dir.resolve("transcripts.csv").toFile();
+		// qv comes before the columns read after it, and one line is truncated
+		Files.writeString(file.toPath(), String.join("\n",
+				"\"transcript_id\",\"qv\",\"cell_id\",\"overlaps_nucleus\",\"x_location\",\"y_location\",\"z_location\",\"feature_name\"",
+				"1,40.0,\"cell_a\",1,10.0,10.0,0,\"GeneA\"",
+				"2,40.0,\"cell_b\",1,60.0,90.0,0,\"GeneA\"",
+				"3,10.0,\"cell_a\",1,10.0,10.0,0,\"GeneB\"",
+				"4,40.0,\"cell_a\",0,10.0,10.0,0,\"GeneB\"",
+				"5,40.0,\"UNASSIGNED\",1,10.0,10.0,0,\"GeneB\"",
+				"9,40.0,\"cell_a\",1",
+				"6,40.0,\"cell_a\",1,20.0,20.0,0,\"BLANK_0001\"",
+				"7,40.0,\"cell_b\",1,70.0,80.0,0,\"GeneB\"",
+				"8,40.0,\"cell_b\",1,70.0,80.0,0,\"GeneA\"") + "\n");
+
+		// y is flipped against an image 100 microns high; cells split the image at x = 50, the annotation covers y < 50
+		var ingest = new XeniumTranscriptIngest(100, 1, new double[] {1, 0, 0, 0, 1, 0})
+				.featureTypes(true, false, false, false)
+				.transcriptFilters(20, true, true);
+		ingest.ingest(file, (x, y) -> x < 50 ? 0 : 1, 2, (x, y) -> y < 50 ? 0 : -1, 1);
+
+		var dictionary = ingest.getDictionary();
+		assertTrue(dictionary.getId("GeneA") >= 0);
+		assertFalse(dictionary.isIncluded(dictionary.getId("BLANK_0001")));
+
+		var cells = ingest.getCellCounts();
+		assertEquals(2, cells.getTargetCount());
+		assertArrayEquals(new int[] {1, 0}, getRow(cells, dictionary, 0, "GeneA", "GeneB"));
+		assertArrayEquals(new int[] {2, 1}, getRow(cells, dictionary, 1, "GeneA", "GeneB"));
+		assertArrayEquals(new int[] {2, 1}, getRow(ingest.getAnnotationCounts(), dictionary, 0, "GeneA", "GeneB"));
+	}
+
+}
@@ -34,9 +34,14 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -67,6 +72,7 @@ import qupath.lib.analysis.features.ObjectMeasurements;
 import qupath.lib.analysis.features.ObjectMeasurements.Compartments;
 import qupath.lib.analysis.features.ObjectMeasurements.Measurements;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ColorTransforms;
 import qupath.lib.images.servers.ColorTransforms.ColorTransform;
@@ -124,6 +130,8 @@ public class StarDist2D implements AutoCloseable {
 		
 		private int nThreads = -1;
 		
+		private int nModels = 0;
+		
 		private String modelPath = null;
 		private DnnModel<?> dnn = null;
 		private ColorTransform[] channels = new ColorTransform[0];
@@ -433,6 +441,24 @@ public class StarDist2D implements AutoCloseable {
 			return this;
 		}
 		
+		/**
+		 * Process the tiles of each region as a pipeline, intended for CPU inference.
+		 * Tiles are read and normalized ahead of time on one pool, predicted by a fixed number of model instances 
+		 * that are each confined to their own thread, and converted to nuclei on another pool while later tiles 
+		 * are still being predicted. The available processors are shared between the model instances.
+		 * Regions should therefore be detected one at a time: each pipeline sizes its pools for all the processors, 
+		 * and sets the global OpenCV thread count while it runs.
+		 * <p>
+		 * Additional model instances are loaded from the model path; if the builder was created from a 
+		 * {@link DnnModel}, a single instance is used.
+		 * @param nModels number of model instances, or 0 to process tiles with parallel streams (the default)
+		 * @return this builder
+		 */
+		public Builder pipeline(int nModels) {
+			this.nModels = nModels;
+			return this;
+		}
+		
 		/**
 		 * Request default intensity measurements are made for all available cell compartments.
 		 * @return this builder
@@ -652,38 +678,8 @@ public class StarDist2D implements AutoCloseable {
 			
 //			var padding = pad > 0 ? Padding.symmetric(pad) : Padding.empty();
 			var dnn = this.dnn;
-			if (dnn == null) {
-				var file = new File(modelPath);
-				if (!file.exists()) {
-					throw new IllegalArgumentException("I couldn't find the model file " + file.getAbsolutePath());
-				}
-				try {
-					var params = DnnModelParams.builder()
-							.files(file)
-							.layout(layout)
-							.build();
-					dnn = DnnModels.buildModel(params);
-					if (dnn != null)
-						logger.debug("Loaded model {} as {}", modelPath, dnn);
-				} catch (Exception e) {
-					logger.error("Unable to load model file: " + e.getLocalizedMessage(), e);
-					throw new RuntimeException("Unable to load StarDist model from " + modelPath, e);
-				}
-				// Try using legacy TensorFlow approach
-				if (dnn == null) {
-					try {
-						// For backwards compatibility, we try to support TensorFlow if the extension is installed
-						var clsTF = Class.forName("qupath.ext.tensorflow.TensorFlowTools");
-						var method = clsTF.getMethod("createDnnModel", String.class);
-						dnn = (DnnModel<?>)method.invoke(null, modelPath);
-						logger.debug("Loaded model {} with TensorFlow", modelPath);
-					} catch (Exception e) {
-						logger.error("Unable to load TensorFlow with reflection - are you sure it is available and on the classpath?");
-						logger.error(e.getLocalizedMessage(), e);
-						throw new RuntimeException("Unable to load StarDist model from " + modelPath, e);
-					}
-				}
-			}
+			if (dnn == null)
+				dnn = loadModel(modelPath, layout);
 			
 			stardist.op = ImageOps.buildImageDataOp(channels);
 					
@@ -704,6 +700,9 @@ public class StarDist2D implements AutoCloseable {
 			stardist.doLog = doLog;
 			stardist.simplifyDistance = simplifyDistance;
 			stardist.nThreads = nThreads;
+			stardist.nModels = nModels;
+			stardist.modelPath = this.dnn == null ? modelPath : null;
+			stardist.layout = layout;
 			stardist.constrainToParent = constrainToParent;
 			stardist.creatorFun = creatorFun;
 			stardist.globalPathClass = globalPathClass;
@@ -722,6 +721,44 @@ public class StarDist2D implements AutoCloseable {
 		
 	}
 	
+	/**
+	 * Load a model from a file, falling back to TensorFlow if OpenCV cannot read it.
+	 */
+	private static DnnModel<?> loadModel(String modelPath, String layout) {
+		DnnModel<?> dnn = null;
+		var file = new File(modelPath);
+		if (!file.exists()) {
+			throw new IllegalArgumentException("I couldn't find the model file " + file.getAbsolutePath());
+		}
+		try {
+			var params = DnnModelParams.builder()
+					.files(file)
+					.layout(layout)
+					.build();
+			dnn = DnnModels.buildModel(params);
+			if (dnn != null)
+				logger.debug("Loaded model {} as {}", modelPath, dnn);
+		} catch (Exception e) {
+			logger.error("Unable to load model file: " + e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to load StarDist model from " + modelPath, e);
+		}
+		// Try using legacy TensorFlow approach
+		if (dnn == null) {
+			try {
+				// For backwards compatibility, we try to support TensorFlow if the extension is installed
+				var clsTF = Class.forName("qupath.ext.tensorflow.TensorFlowTools");
+				var method = clsTF.getMethod("createDnnModel", String.class);
+				dnn = (DnnModel<?>)method.invoke(null, modelPath);
+				logger.debug("Loaded model {} with TensorFlow", modelPath);
+			} catch (Exception e) {
+				logger.error("Unable to load TensorFlow with reflection - are you sure it is available and on the classpath?");
+				logger.error(e.getLocalizedMessage(), e);
+				throw new RuntimeException("Unable to load StarDist model from " + modelPath, e);
+			}
+		}
+		return dnn;
+	}
+	
 	private boolean doLog = false;
 	
 	private double simplifyDistance = 1.4;
@@ -747,6 +784,11 @@ public class StarDist2D implements AutoCloseable {
 	
 	private int nThreads = -1;
 	
+	private int nModels = 0;
+	private String modelPath;
+	private String layout;
+	private List<DnnModel<?>> pipelineModels;
+	
 	private boolean includeProbability = false;
 	
 	private int tileWidth = 1024;
@@ -821,7 +863,8 @@ public class StarDist2D implements AutoCloseable {
 			return;
 		}
 		log("Processing {} parent objects", parents.size());
-		if (nThreads >= 0)
+		// The pipeline is already parallel, and its model instances should not be shared between parents
+		if (nThreads >= 0 || nModels > 0)
 			parents.stream().forEach(p -> detectObjects(imageData, p, false));
 		else
 			parents.parallelStream().forEach(p -> detectObjects(imageData, p, false));
@@ -930,9 +973,15 @@ public class StarDist2D implements AutoCloseable {
 			log("Detecting nuclei for {} tiles", tiles.size());
 		else
 			log("Detecting nuclei");
-		var nuclei = tiles.parallelStream()
-				.flatMap(t -> detectObjectsForTile(opWithPreprocessing, dnn, imageData, t.getRegionRequest(), tiles.size() > 1, mask).stream())
-				.collect(Collectors.toList());
+		List<PotentialNucleus> nuclei;
+		if (nModels > 0) {
+			var requests = tiles.stream().map(t -> t.getRegionRequest()).collect(Collectors.toList());
+			nuclei = detectObjectsPipelined(opWithPreprocessing, imageData, requests, tiles.size() > 1, mask);
+		} else {
+			nuclei = tiles.parallelStream()
+					.flatMap(t -> detectObjectsForTile(opWithPreprocessing, dnn, imageData, t.getRegionRequest(), tiles.size() > 1, mask).stream())
+					.collect(Collectors.toList());
+		}
 		
 		if (cancelRuns)
 			return Collections.emptyList();
@@ -1188,14 +1237,263 @@ public class StarDist2D implements AutoCloseable {
 	
 	private List<PotentialNucleus> detectObjectsForTile(ImageDataOp op, DnnModel<?> dnn, ImageData<BufferedImage> imageData, RegionRequest request, boolean excludeOnBounds, Geometry mask) {
 
-		List<PotentialNucleus> nuclei;
-		
 		if (Thread.currentThread().isInterrupted())
 			cancelRuns = true;
 		
 		if (cancelRuns)
 			Collections.emptyList();
 		
+		try (var scope = new PointerScope()) {
+			TileInput input;
+			try {
+				input = prepareTile(op, imageData, request, mask);
+			} catch (IOException e) {
+				logger.error(e.getLocalizedMessage(), e);
+				return Collections.emptyList();
+			}
+			return decodeTile(predictTile(dnn, input), excludeOnBounds);
+		}
+	}
+	
+	
+	/**
+	 * Detect potential nuclei for a list of tiles as a pipeline.
+	 * Tiles are read and normalized ahead of time on one pool, predicted on one thread per model instance 
+	 * and converted to nuclei on another pool. Bounded queues between the stages limit the number of tiles 
+	 * held in memory, and OpenCV threads are shared between the model instances while the pipeline runs.
+	 * Nuclei are returned in tile order, as for the sequential path, so that overlaps are resolved 
+	 * the same way whatever order the tiles finish in.
+	 */
+	private List<PotentialNucleus> detectObjectsPipelined(ImageDataOp op, ImageData<BufferedImage> imageData, List<RegionRequest> requests, boolean excludeOnBounds, Geometry mask) {
+		
+		var models = getPipelineModels();
+		int nWorkers = Math.max(1, Math.min(models.size(), requests.size()));
+		int capacity = nWorkers * 2;
+		
+		var inputs = new ArrayBlockingQueue<TileInput>(capacity);
+		var outputs = new Semaphore(capacity);
+		@SuppressWarnings("unchecked")
+		var tileNuclei = (List<PotentialNucleus>[])new List[requests.size()];
+		var error = new AtomicReference<Throwable>();
+		
+		var preparePool = Executors.newFixedThreadPool(nWorkers, ThreadTools.createThreadFactory("stardist-prepare-", true));
+		var inferencePool = Executors.newFixedThreadPool(nWorkers, ThreadTools.createThreadFactory("stardist-inference-", true));
+		var decodePool = Executors.newFixedThreadPool(nWorkers, ThreadTools.createThreadFactory("stardist-decode-", true));
+		var pools = List.of(preparePool, inferencePool, decodePool);
+		
+		int nThreadsOpenCV = opencv_core.getNumThreads();
+		opencv_core.setNumThreads(Math.max(1, ThreadTools.getParallelism() / nWorkers));
+		try {
+			for (int i = 0; i < requests.size(); i++) {
+				int tile = i;
+				var request = requests.get(i);
+				preparePool.submit(guard(error, pools, () -> {
+					if (cancelRuns)
+						return;
+					try (var scope = new PointerScope()) {
+						var input = prepareTile(op, imageData, request, mask);
+						input.tile = tile;
+						input.retain();
+						try {
+							inputs.put(input);
+						} catch (InterruptedException e) {
+							input.release();
+							throw e;
+						}
+					} catch (IOException e) {
+						logger.error(e.getLocalizedMessage(), e);
+					}
+				}));
+			}
+			
+			for (var model : models.subList(0, nWorkers)) {
+				inferencePool.submit(guard(error, pools, () -> {
+					while (true) {
+						var input = inputs.take();
+						if (input == END_OF_TILES)
+							return;
+						TileOutput output;
+						try (var scope = new PointerScope()) {
+							output = predictTile(model, input);
+							output.retain();
+						} catch (Exception e) {
+							input.release();
+							throw e;
+						}
+						try {
+							outputs.acquire();
+							decodePool.submit(guard(error, pools, () -> {
+								try {
+									tileNuclei[output.input.tile] = decodeTile(output, excludeOnBounds);
+								} finally {
+									output.release();
+									outputs.release();
+								}
+							}));
+						} catch (Exception e) {
+							output.release();
+							throw e;
+						}
+					}
+				}));
+			}
+			
+			preparePool.shutdown();
+			preparePool.awaitTermination(24, TimeUnit.HOURS);
+			for (int i = 0; i < nWorkers && error.get() == null; i++) {
+				while (!inputs.offer(END_OF_TILES, 100, TimeUnit.MILLISECONDS) && error.get() == null)
+					continue;
+			}
+			inferencePool.shutdown();
+			inferencePool.awaitTermination(24, TimeUnit.HOURS);
+			decodePool.shutdown();
+			decodePool.awaitTermination(24, TimeUnit.HOURS);
+		} catch (InterruptedException e) {
+			logger.warn("StarDist pipeline interrupted");
+			cancelRuns = true;
+			Thread.currentThread().interrupt();
+		} finally {
+			pools.forEach(ExecutorService::shutdownNow);
+			opencv_core.setNumThreads(nThreadsOpenCV);
+			for (var input : inputs) {
+				if (input != END_OF_TILES)
+					input.release();
+			}
+		}
+		
+		if (cancelRuns)
+			return Collections.emptyList();
+		if (error.get() != null)
+			throw new RuntimeException("StarDist detection failed: " + error.get().getLocalizedMessage(), error.get());
+		
+		// Tiles that could not be read have no nuclei
+		var nuclei = new ArrayList<PotentialNucleus>();
+		for (var list : tileNuclei) {
+			if (list != null)
+				nuclei.addAll(list);
+		}
+		return nuclei;
+	}
+	
+	
+	private static interface PipelineTask {
+		void run() throws Exception;
+	}
+	
+	/**
+	 * Wrap a pipeline task so that the first failure is recorded and stops all stages.
+	 */
+	private static Runnable guard(AtomicReference<Throwable> error, List<ExecutorService> pools, PipelineTask task) {
+		return () -> {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				if (error.compareAndSet(null, t))
+					pools.forEach(ExecutorService::shutdownNow);
+			}
+		};
+	}
+	
+	
+	/**
+	 * Get the model instances used by the pipeline, loading additional instances from the model path if needed.
+	 */
+	private synchronized List<DnnModel<?>> getPipelineModels() {
+		if (pipelineModels == null) {
+			var models = new ArrayList<DnnModel<?>>();
+			models.add(dnn);
+			if (modelPath != null) {
+				for (int i = 1; i < nModels; i++)
+					models.add(loadModel(modelPath, layout));
+			} else if (nModels > 1)
+				logger.warn("Only one model instance can be used when the model is not loaded from a file");
+			pipelineModels = models;
+		}
+		return pipelineModels;
+	}
+	
+	
+	/**
+	 * Marks the end of the tiles for one inference thread.
+	 */
+	private static final TileInput END_OF_TILES = new TileInput(null, null, null, null);
+	
+	
+	/**
+	 * Normalized input of one tile, ready for prediction.
+	 */
+	private static class TileInput {
+		
+		private final RegionRequest requestPadded;
+		private final Geometry mask;
+		private final Mat mat;
+		private final Padding padding;
+		
+		/**
+		 * Index of the tile in the list of requests, set by the pipeline.
+		 */
+		private int tile;
+		
+		private TileInput(RegionRequest requestPadded, Geometry mask, Mat mat, Padding padding) {
+			this.requestPadded = requestPadded;
+			this.mask = mask;
+			this.mat = mat;
+			this.padding = padding;
+		}
+		
+		/**
+		 * Keep the native memory alive after the {@link PointerScope} in which it was created is closed.
+		 */
+		private void retain() {
+			mat.retainReference();
+		}
+		
+		private void release() {
+			mat.releaseReference();
+		}
+		
+	}
+	
+	
+	/**
+	 * Prediction for one tile, split into probability, ray and (optional) classification images.
+	 */
+	private static class TileOutput {
+		
+		private final TileInput input;
+		private final Mat matProb;
+		private final Mat matRays;
+		private final Mat matClassifications;
+		
+		private TileOutput(TileInput input, Mat matProb, Mat matRays, Mat matClassifications) {
+			this.input = input;
+			this.matProb = matProb;
+			this.matRays = matRays;
+			this.matClassifications = matClassifications;
+		}
+		
+		private void retain() {
+			matProb.retainReference();
+			matRays.retainReference();
+			if (matClassifications != null)
+				matClassifications.retainReference();
+		}
+		
+		private void release() {
+			matProb.releaseReference();
+			matRays.releaseReference();
+			if (matClassifications != null)
+				matClassifications.releaseReference();
+			input.release();
+		}
+		
+	}
+	
+	
+	/**
+	 * Read and preprocess a tile, padded to a size the model can handle.
+	 */
+	private TileInput prepareTile(ImageDataOp op, ImageData<BufferedImage> imageData, RegionRequest request, Geometry mask) throws IOException {
 		// Create a mask around pixels we can use
 		var regionMask = GeometryTools.createRectangle(request.getX(), request.getY(), request.getWidth(), request.getHeight());
 		if (mask == null)
@@ -1222,113 +1520,123 @@ public class StarDist2D implements AutoCloseable {
 //						PathClassFactory.getPathClass("Temporary")
 //						));
 		
-		try (var scope = new PointerScope()) {
-			Mat mat;
-			try {
-				mat = op.apply(imageData, requestPadded);
-			} catch (IOException e) {
-				logger.error(e.getLocalizedMessage(), e);
-				return Collections.emptyList();
-			}
-						
-			// Calculate image width & height.
-			// These need to be consistent with the expected maximum number of pooling operations
-			// to avoid shape problems.
-			int expectedPooling = 6; // A generous estimate (usually 3 or 4 expected)
-			int multiple = (int)Math.pow(2, expectedPooling);
-			int tw = (int)Math.ceil(mat.cols()/(double)multiple) * multiple;
-			int th = (int)Math.ceil(mat.rows()/(double)multiple) * multiple;
+		Mat mat = op.apply(imageData, requestPadded);
+					
+		// Calculate image width & height.
+		// These need to be consistent with the expected maximum number of pooling operations
+		// to avoid shape problems.
+		int expectedPooling = 6; // A generous estimate (usually 3 or 4 expected)
+		int multiple = (int)Math.pow(2, expectedPooling);
+		int tw = (int)Math.ceil(mat.cols()/(double)multiple) * multiple;
+		int th = (int)Math.ceil(mat.rows()/(double)multiple) * multiple;
 //			
-			// Ensure we have a Mat of the right size
-			var padding = ensureSize(mat, tw, th, opencv_core.BORDER_REFLECT);
-			
-			boolean isFirstRun = firstRun.getAndSet(false);
-			
-			Map<String, Mat> output;
-//			synchronized(dnn) {
-				output = dnn.convertAndPredict(Map.of(DnnModel.DEFAULT_INPUT_NAME, mat));
-//			}
-			Mat matProb = null;
-			Mat matRays = null;
-			Mat matClassifications = null;
-			if (output.size() == 1) {
-				// Split channels to extract probability, ray and (possibly) classification images
-				var matOutput = output.values().iterator().next();
-				int nChannels = matOutput.channels();
-				int nClassifications = classifications == null ? 0 : classifications.size();
-				int nRays = nChannels - 1 - nClassifications;
-				matProb = extractChannels(matOutput, 0);
-				matRays = extractChannels(matOutput, range(1, nRays+1));
-				matClassifications = nClassifications == 0 ? null : extractChannels(matOutput, range(nRays+1, nChannels));
-			} else {
-				// Split output as needed
-				// We require that probabilities are single-channel, and there are more rays than classifications
-				for (var entry : output.entrySet()) {
-					var temp = entry.getValue();
-					if (temp.channels() == 1)
-						matProb = temp;
-					else if (matRays == null)
+		// Ensure we have a Mat of the right size
+		var padding = ensureSize(mat, tw, th, opencv_core.BORDER_REFLECT);
+		
+		return new TileInput(requestPadded, mask, mat, padding);
+	}
+	
+	
+	/**
+	 * Run the model on a prepared tile.
+	 */
+	private TileOutput predictTile(DnnModel<?> dnn, TileInput input) {
+		boolean isFirstRun = firstRun.getAndSet(false);
+		
+		Map<String, Mat> output;
+//		synchronized(dnn) {
+			output = dnn.convertAndPredict(Map.of(DnnModel.DEFAULT_INPUT_NAME, input.mat));
+//		}
+		Mat matProb = null;
+		Mat matRays = null;
+		Mat matClassifications = null;
+		if (output.size() == 1) {
+			// Split channels to extract probability, ray and (possibly) classification images
+			var matOutput = output.values().iterator().next();
+			int nChannels = matOutput.channels();
+			int nClassifications = classifications == null ? 0 : classifications.size();
+			int nRays = nChannels - 1 - nClassifications;
+			matProb = extractChannels(matOutput, 0);
+			matRays = extractChannels(matOutput, range(1, nRays+1));
+			matClassifications = nClassifications == 0 ? null : extractChannels(matOutput, range(nRays+1, nChannels));
+		} else {
+			// Split output as needed
+			// We require that probabilities are single-channel, and there are more rays than classifications
+			for (var entry : output.entrySet()) {
+				var temp = entry.getValue();
+				if (temp.channels() == 1)
+					matProb = temp;
+				else if (matRays == null)
+					matRays = temp;
+				else {
+					if (temp.channels() > matRays.channels()) {
+						matClassifications = matRays;
 						matRays = temp;
-					else {
-						if (temp.channels() > matRays.channels()) {
-							matClassifications = matRays;
-							matRays = temp;
-						} else
-							matClassifications = temp;
-					}
-				}
-			}
-			
-			// Warn if we have weird dimensions on the first run
-			if (isFirstRun) {
-				if (classifications != null && !classifications.isEmpty()) {
-					int nClassifications = classifications.size();
-					int nChannels = matClassifications == null ? 0 : matClassifications.channels();
-					// We might not specify a background classification, but if we have very different numbers from the prediction we should report that
-					if (nClassifications > nChannels || nClassifications < nChannels-1)
-						logger.warn("{} classifications provided, {} available in the prediction", nClassifications, nChannels);
-					else
-						logger.debug("{} classifications provided, {} available in the prediction", nClassifications, nChannels);
+					} else
+						matClassifications = temp;
 				}
 			}
-			
-			// Depending upon model export, we might have a half resolution prediction that needs to be rescaled
-			long inputWidth = mat.cols();
-			long inputHeight = mat.rows();
-			if (inputWidth <= 0 || inputHeight <= 0)
-				throw new RuntimeException("Mat dimensions are unknown!");
-			double scaleX = Math.round((double)inputWidth / matProb.cols());
-			double scaleY = Math.round((double)inputHeight / matProb.rows());
-			if (scaleX != 1.0 || scaleY != 1.0) {
-				if (scaleX != 2.0 || scaleY != 2.0)
-					logger.warn("Unexpected StarDist rescaling x={}, y={}", scaleX, scaleY);
+		}
+		
+		// Warn if we have weird dimensions on the first run
+		if (isFirstRun) {
+			if (classifications != null && !classifications.isEmpty()) {
+				int nClassifications = classifications.size();
+				int nChannels = matClassifications == null ? 0 : matClassifications.channels();
+				// We might not specify a background classification, but if we have very different numbers from the prediction we should report that
+				if (nClassifications > nChannels || nClassifications < nChannels-1)
+					logger.warn("{} classifications provided, {} available in the prediction", nClassifications, nChannels);
 				else
-					logger.debug("StarDist rescaling x={}, y={}", scaleX, scaleY);
+					logger.debug("{} classifications provided, {} available in the prediction", nClassifications, nChannels);
 			}
-			
-			// Convert predictions to potential nuclei
-			FloatIndexer indexerProb = matProb.createIndexer();
-			FloatIndexer indexerRays = matRays.createIndexer();
-			FloatIndexer indexerClassifications = matClassifications == null ? null : matClassifications.createIndexer();
-			nuclei = createNuclei(indexerProb, indexerRays, indexerClassifications,
-					requestPadded.getDownsample(),
-					requestPadded.getX() - requestPadded.getDownsample() * padding.getX1(),
-					requestPadded.getY() - requestPadded.getDownsample() * padding.getY1(),
-					scaleX,
-					scaleY,
-					mask);
-			
-			// Exclude anything that overlaps the right/bottom boundary of a region
-			if (excludeOnBounds) {
-				var iter = nuclei.iterator();
-				while (iter.hasNext()) {
-					var n = iter.next();
-					var env = n.geometry.getEnvelopeInternal();
-					if (env.getMaxX() >= requestPadded.getMaxX() || env.getMaxY() >= requestPadded.getMaxY())
-						iter.remove();
-				}
+		}
+		
+		return new TileOutput(input, matProb, matRays, matClassifications);
+	}
+	
+	
+	/**
+	 * Convert the prediction of a tile to nuclei, and resolve overlaps within the tile.
+	 */
+	private List<PotentialNucleus> decodeTile(TileOutput output, boolean excludeOnBounds) {
+		var requestPadded = output.input.requestPadded;
+		var padding = output.input.padding;
+		
+		// Depending upon model export, we might have a half resolution prediction that needs to be rescaled
+		long inputWidth = output.input.mat.cols();
+		long inputHeight = output.input.mat.rows();
+		if (inputWidth <= 0 || inputHeight <= 0)
+			throw new RuntimeException("Mat dimensions are unknown!");
+		double scaleX = Math.round((double)inputWidth / output.matProb.cols());
+		double scaleY = Math.round((double)inputHeight / output.matProb.rows());
+		if (scaleX != 1.0 || scaleY != 1.0) {
+			if (scaleX != 2.0 || scaleY != 2.0)
+				logger.warn("Unexpected StarDist rescaling x={}, y={}", scaleX, scaleY);
+			else
+				logger.debug("StarDist rescaling x={}, y={}", scaleX, scaleY);
+		}
+		
+		// Convert predictions to potential nuclei
+		FloatIndexer indexerProb = output.matProb.createIndexer();
+		FloatIndexer indexerRays = output.matRays.createIndexer();
+		FloatIndexer indexerClassifications = output.matClassifications == null ? null : output.matClassifications.createIndexer();
+		var nuclei = createNuclei(indexerProb, indexerRays, indexerClassifications,
+				requestPadded.getDownsample(),
+				requestPadded.getX() - requestPadded.getDownsample() * padding.getX1(),
+				requestPadded.getY() - requestPadded.getDownsample() * padding.getY1(),
+				scaleX,
+				scaleY,
+				output.input.mask);
+		
+		// Exclude anything that overlaps the right/bottom boundary of a region
+		if (excludeOnBounds) {
+			var iter = nuclei.iterator();
+			while (iter.hasNext()) {
+				var n = iter.next();
+				var env = n.geometry.getEnvelopeInternal();
+				if (env.getMaxX() >= requestPadded.getMaxX() || env.getMaxY() >= requestPadded.getMaxY())
+					iter.remove();
 			}
-			
 		}
 		
 		return filterNuclei(nuclei);
@@ -1669,6 +1977,13 @@ public class StarDist2D implements AutoCloseable {
 			((Closeable) dnn).close();
 		} else if (dnn instanceof AutoCloseable)
 			((AutoCloseable) dnn).close();
+		if (pipelineModels != null) {
+			for (var model : pipelineModels) {
+				if (model != dnn)
+					model.close();
+			}
+			pipelineModels = null;
+		}
 	}
 	
 	
@@ -0,0 +1,177 @@
+/*-
+ * Copyright 2020-2022 QuPath developers, University of Edinburgh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package qupath.ext.stardist;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.opencv.dnn.BlobFunction;
+import qupath.opencv.dnn.DnnModel;
+import qupath.opencv.dnn.PredictionFunction;
+
+@SuppressWarnings("javadoc")
+public class TestStarDist2D {
+
+	private static final int N_RAYS = 16;
+
+	private static final double RADIUS = 5;
+
+	/**
+	 * Pipelined detection should give exactly the same nuclei, in the same order, as the parallel stream path.
+	 */
+	@Test
+	public void testPipelineMatchesSequential() throws Exception {
+		var imageData = createImageData();
+
+		List<PathObject> expected;
+		try (var stardist = createBuilder(new FakeModel(-1)).build()) {
+			expected = stardist.detectObjects(imageData, null);
+		}
+		assertFalse(expected.isEmpty());
+
+		// Repeat, since the order in which the tiles finish can vary
+		for (int i = 0; i < 5; i++) {
+			try (var stardist = createBuilder(new FakeModel(-1)).pipeline(2).build()) {
+				var actual = stardist.detectObjects(imageData, null);
+				assertEquals(expected.size(), actual.size());
+				for (int j = 0; j < expected.size(); j++) {
+					var expectedGeometry = expected.get(j).getROI().getGeometry();
+					var actualGeometry = actual.get(j).getROI().getGeometry();
+					assertTrue(expectedGeometry.equalsExact(actualGeometry), "Different nucleus at index " + j);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A failing prediction should stop the pipeline and be rethrown, rather than leaving the other stages waiting.
+	 */
+	@Test
+	public void testPipelineFailure() throws Exception {
+		var imageData = createImageData();
+		var model = new FakeModel(1);
+		try (var stardist = createBuilder(model).pipeline(1).build()) {
+			var e = assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+				return assertThrows(RuntimeException.class, () -> stardist.detectObjects(imageData, null));
+			});
+			assertSame(model.failure, e.getCause());
+		}
+	}
+
+
+	private static StarDist2D.Builder createBuilder(DnnModel<?> model) {
+		// Small tiles, so that the image is split into 3x3 tiles of 96 pixels
+		return StarDist2D.builder(model)
+				.threshold(0.5)
+				.tileSize(128)
+				.padding(16);
+	}
+
+	/**
+	 * Create a single-channel image with bright disks, several of them crossing tile boundaries.
+	 */
+	private static ImageData<BufferedImage> createImageData() {
+		var img = new BufferedImage(256, 224, BufferedImage.TYPE_BYTE_GRAY);
+		var g2d = img.createGraphics();
+		g2d.setColor(Color.WHITE);
+		int[][] centers = {
+				{30, 30}, {94, 40}, {100, 100}, {96, 150}, {190, 60},
+				{150, 190}, {200, 200}, {50, 150}, {192, 96}, {240, 20}
+		};
+		int d = 14;
+		for (var c : centers)
+			g2d.fillOval(c[0] - d/2, c[1] - d/2, d, d);
+		g2d.dispose();
+		return new ImageData<>(new WrappedBufferedImageServer("stardist-test", img));
+	}
+
+
+	/**
+	 * Model standing in for StarDist, with the probability taken from the input pixels and constant rays.
+	 */
+	private static class FakeModel implements DnnModel<Mat> {
+
+		private final int failAfter;
+		private final AtomicInteger count = new AtomicInteger();
+		private final RuntimeException failure = new IllegalStateException("Prediction failed");
+
+		/**
+		 * @param failAfter number of tiles to predict before failing, or -1 to never fail
+		 */
+		private FakeModel(int failAfter) {
+			this.failAfter = failAfter;
+		}
+
+		@Override
+		public Map<String, Mat> convertAndPredict(Map<String, Mat> blobs) {
+			if (failAfter >= 0 && count.getAndIncrement() >= failAfter)
+				throw failure;
+
+			var input = blobs.get(DnnModel.DEFAULT_INPUT_NAME);
+			int rows = input.rows();
+			int cols = input.cols();
+			var output = new Mat(rows, cols, opencv_core.CV_32FC(N_RAYS + 1));
+			try (FloatIndexer idxInput = input.createIndexer();
+					FloatIndexer idxOutput = output.createIndexer()) {
+				for (int y = 0; y < rows; y++) {
+					for (int x = 0; x < cols; x++) {
+						idxOutput.put(y, x, 0, idxInput.get(y, x, 0) / 255f);
+						for (int c = 1; c <= N_RAYS; c++)
+							idxOutput.put(y, x, c, (float)RADIUS);
+					}
+				}
+			}
+			return Map.of(DnnModel.DEFAULT_OUTPUT_NAME, output);
+		}
+
+		@Override
+		public BlobFunction<Mat> getBlobFunction() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public BlobFunction<Mat> getBlobFunction(String name) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public PredictionFunction<Mat> getPredictionFunction() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
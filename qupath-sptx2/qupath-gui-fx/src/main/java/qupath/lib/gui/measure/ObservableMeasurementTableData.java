@@ -24,6 +24,7 @@
 package qupath.lib.gui.measure;
 
 import java.awt.image.BufferedImage;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -37,6 +38,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -107,6 +109,8 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 	
 	private static final String KEY_PIXEL_LAYER = "PIXEL_LAYER";
 	
+	private static final String KEY_VIRTUAL_MEASUREMENTS = "VIRTUAL_MEASUREMENTS";
+	
 	/**
 	 * Set the {@link ImageData} and a collection of objects to measure.
 	 * @param imageData the {@link ImageData}, required to determine many dynamic measurements
@@ -157,6 +161,46 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 	}
 	
 	
+	/**
+	 * Set virtual measurements as a property in the {@link ImageData}.
+	 * These are numeric measurements computed on request from data held outside the objects' measurement lists 
+	 * (e.g. a sparse gene expression matrix), so that they can be shown in the table without being stored per object.
+	 * <p>
+	 * Functions should return NaN for objects without a value.
+	 * <p>
+	 * The functions are held in a holder that is not serializable, since they usually capture data held elsewhere: 
+	 * the property is skipped when the image data is written, and must be set again after it is read.
+	 * <p>
+	 * Note that this method is subject to change (in location and behavior).
+	 * 
+	 * @param imageData
+	 * @param measurements map of measurement names to functions computing the value for an object; if null, the property will be removed
+	 */
+	public static void setVirtualMeasurements(ImageData<?> imageData, Map<String, ToDoubleFunction<PathObject>> measurements) {
+		if (measurements == null)
+			imageData.removeProperty(KEY_VIRTUAL_MEASUREMENTS);
+		else
+			imageData.setProperty(KEY_VIRTUAL_MEASUREMENTS, new VirtualMeasurementMap(measurements));
+	}
+	
+	/**
+	 * Request the virtual measurements from an {@link ImageData}.
+	 * <p>
+	 * Note that this method is subject to change (in location and behavior).
+	 * 
+	 * @param imageData
+	 * @return map of measurement names to functions, or an empty map if none are set
+	 * @see #setVirtualMeasurements(ImageData, Map)
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, ToDoubleFunction<PathObject>> getVirtualMeasurements(ImageData<?> imageData) {
+		var measurements = imageData == null ? null : imageData.getProperty(KEY_VIRTUAL_MEASUREMENTS);
+		if (measurements instanceof Map)
+			return (Map<String, ToDoubleFunction<PathObject>>)measurements;
+		return Collections.emptyMap();
+	}
+	
+	
 	private ImageData<?> getImageData() {
 		return imageData;
 	}
@@ -369,6 +413,14 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 		}
 		
 		
+		if (containsAnnotations || containsDetections) {
+			for (var entry : getVirtualMeasurements(imageData).entrySet()) {
+				builderMap.put(entry.getKey(), new VirtualMeasurementBuilder(entry.getKey(), entry.getValue()));
+				features.add(entry.getKey());
+			}
+		}
+		
+		
 		// Update all the lists, if necessary
 		boolean changes = false;
 		if (metadataNames.size() != metadataList.size() || !metadataNames.containsAll(metadataList)) {
@@ -1890,6 +1942,60 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 
 
 
+	/**
+	 * Read-only holder of virtual measurements, deliberately not {@link java.io.Serializable} so that 
+	 * writing the image data skips it instead of failing on the functions.
+	 */
+	static class VirtualMeasurementMap extends AbstractMap<String, ToDoubleFunction<PathObject>> {
+		
+		private Map<String, ToDoubleFunction<PathObject>> map;
+		
+		VirtualMeasurementMap(Map<String, ToDoubleFunction<PathObject>> measurements) {
+			this.map = Collections.unmodifiableMap(new LinkedHashMap<>(measurements));
+		}
+
+		@Override
+		public Set<Entry<String, ToDoubleFunction<PathObject>>> entrySet() {
+			return map.entrySet();
+		}
+		
+		@Override
+		public String toString() {
+			return "Virtual measurements (" + map.size() + ")";
+		}
+		
+	}
+
+
+	static class VirtualMeasurementBuilder extends NumericMeasurementBuilder {
+		
+		private String name;
+		private ToDoubleFunction<PathObject> fun;
+		
+		VirtualMeasurementBuilder(String name, ToDoubleFunction<PathObject> fun) {
+			this.name = name;
+			this.fun = fun;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+		
+		@Override
+		public double computeValue(final PathObject pathObject) {
+			return fun.applyAsDouble(pathObject);
+		}
+
+		@Override
+		public Binding<Number> createMeasurement(PathObject pathObject) {
+			return Bindings.createDoubleBinding(() -> fun.applyAsDouble(pathObject));
+		}
+		
+	}
+
+
+
 	@Override
 	public List<String> getAllNames() {
 		return new ArrayList<>(fullList);